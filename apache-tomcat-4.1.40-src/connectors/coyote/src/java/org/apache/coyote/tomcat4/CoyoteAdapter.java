@@ -153,6 +153,9 @@ final class CoyoteAdapter
             // Parse and set Catalina and configuration specific 
             // request parameters
             postParseRequest(req, request, res, response);
+            // Start looking up the client host name, if it will be needed
+            if (connector.getEnableLookups() && req.remoteHost().isNull())
+                connector.getResolver().prefetch(request.getRemoteAddr());
             // Calling the container
             connector.getContainer().invoke(request, response);
             response.finishResponse();
@@ -38,6 +38,7 @@ import org.apache.catalina.Service;
 import org.apache.catalina.core.StandardEngine;
 import org.apache.catalina.net.DefaultServerSocketFactory;
 import org.apache.catalina.net.ServerSocketFactory;
+import org.apache.catalina.util.HostNameResolver;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.commons.modeler.Registry;
@@ -142,6 +143,13 @@ public final class CoyoteConnector
     private boolean enableLookups = false;
 
 
+    /**
+     * The resolver of the host names of clients, used when DNS lookups are
+     * enabled.
+     */
+    private HostNameResolver resolver = new HostNameResolver();
+
+
     /**
      * The server socket factory for this component.
      */
@@ -722,6 +730,101 @@ public final class CoyoteConnector
     }
 
 
+    /**
+     * Return the maximum number of client addresses whose host names are
+     * cached.
+     */
+    public int getLookupCacheSize() {
+
+        return (resolver.getCacheSize());
+
+    }
+
+
+    /**
+     * Set the maximum number of client addresses whose host names are
+     * cached.
+     *
+     * @param lookupCacheSize The new maximum number of cached addresses
+     */
+    public void setLookupCacheSize(int lookupCacheSize) {
+
+        resolver.setCacheSize(lookupCacheSize);
+
+    }
+
+
+    /**
+     * Return the time (in seconds) the host name of a client is cached.
+     */
+    public int getLookupCacheTtl() {
+
+        return (resolver.getCacheTtl());
+
+    }
+
+
+    /**
+     * Set the time (in seconds) the host name of a client is cached.
+     *
+     * @param lookupCacheTtl The new time to live
+     */
+    public void setLookupCacheTtl(int lookupCacheTtl) {
+
+        resolver.setCacheTtl(lookupCacheTtl);
+
+    }
+
+
+    /**
+     * Return the time (in seconds) a client address without a host name
+     * is cached.
+     */
+    public int getLookupFailureTtl() {
+
+        return (resolver.getFailureTtl());
+
+    }
+
+
+    /**
+     * Set the time (in seconds) a client address without a host name is
+     * cached.
+     *
+     * @param lookupFailureTtl The new time to live
+     */
+    public void setLookupFailureTtl(int lookupFailureTtl) {
+
+        resolver.setFailureTtl(lookupFailureTtl);
+
+    }
+
+
+    /**
+     * Return the number of threads looking up the host names of clients
+     * ahead of time.
+     */
+    public int getLookupPrefetchThreads() {
+
+        return (resolver.getPrefetchThreads());
+
+    }
+
+
+    /**
+     * Set the number of threads looking up the host names of clients ahead
+     * of time, as soon as their requests arrive.  Zero, the default, looks
+     * up host names only when they are asked for.
+     *
+     * @param lookupPrefetchThreads The new number of threads
+     */
+    public void setLookupPrefetchThreads(int lookupPrefetchThreads) {
+
+        resolver.setPrefetchThreads(lookupPrefetchThreads);
+
+    }
+
+
     /**
      * Return the server socket factory used by this Container.
      */
@@ -1184,6 +1287,19 @@ public final class CoyoteConnector
     }
 
 
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Return the resolver of the host names of clients.
+     */
+    HostNameResolver getResolver() {
+
+        return (this.resolver);
+
+    }
+
+
     // -------------------------------------------------------- Private Methods
 
 
@@ -1359,6 +1475,9 @@ public final class CoyoteConnector
             log( "Coyote can't register jmx for protocol");
         }
 
+        if (enableLookups)
+            resolver.start();
+
         try {
             protocolHandler.start();
         } catch (Exception e) {
@@ -1390,6 +1509,8 @@ public final class CoyoteConnector
             throw new LifecycleException
                 (sm.getString
                  ("coyoteConnector.protocolHandlerDestroyFailed", e));
+        } finally {
+            resolver.stop();
         }
 
     }
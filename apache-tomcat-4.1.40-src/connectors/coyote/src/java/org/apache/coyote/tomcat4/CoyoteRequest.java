@@ -1032,13 +1032,12 @@ public class CoyoteRequest
         if (remoteHost == null) {
             if (!connector.getEnableLookups()) {
                 remoteHost = getRemoteAddr();
-            } else if (socket != null) {
-                InetAddress inet = socket.getInetAddress();
-                remoteHost = inet.getHostName();
-            } else {
-                coyoteRequest.action
-                    (ActionCode.ACTION_REQ_HOST_ATTRIBUTE, coyoteRequest);
+            } else if ((socket == null)
+                       && !coyoteRequest.remoteHost().isNull()) {
+                // Host name supplied by the protocol, such as AJP
                 remoteHost = coyoteRequest.remoteHost().toString();
+            } else {
+                remoteHost = connector.getResolver().resolve(getRemoteAddr());
             }
         }
         return remoteHost;
@@ -114,6 +114,12 @@ public abstract class AuthenticatorBase
     protected boolean cache = true;
 
 
+    /**
+     * The index of the security constraints of our Context.
+     */
+    private ConstraintIndex constraintIndex = null;
+
+
     /**
      * The Context to which this Valve is attached.
      */
@@ -751,19 +757,23 @@ public abstract class AuthenticatorBase
         if (contextPath.length() > 0)
             uri = uri.substring(contextPath.length());
         String method = hreq.getMethod();
-        for (int i = 0; i < constraints.length; i++) {
-            if (debug >= 2)
-                log("  Checking constraint '" + constraints[i] +
-                    "' against " + method + " " + uri + " --> " +
-                    constraints[i].included(uri, method));
-            if (constraints[i].included(uri, method))
-                return (constraints[i]);
-        }
 
-        // No applicable security constraint was found
-        if (debug >= 2)
-            log("  No applicable constraint located");
-        return (null);
+        // Look the request up in the index of the constraints, compiled
+        // again if constraints were added since
+        ConstraintIndex index = constraintIndex;
+        if ((index == null) || (index.getConstraints() != constraints)) {
+            index = new ConstraintIndex(constraints);
+            constraintIndex = index;
+        }
+        SecurityConstraint constraint = index.find(uri, method);
+        if (debug >= 2) {
+            if (constraint == null)
+                log("  No applicable constraint located");
+            else
+                log("  Constraint '" + constraint + "' applies to " +
+                    method + " " + uri);
+        }
+        return (constraint);
 
     }
 
@@ -1153,6 +1163,11 @@ public abstract class AuthenticatorBase
                 log("No SingleSignOn Valve is present");
         }
 
+        // Compile the security constraints of our Context
+        SecurityConstraint constraints[] = context.findConstraints();
+        if (constraints != null)
+            constraintIndex = new ConstraintIndex(constraints);
+
     }
 
 
@@ -1174,6 +1189,7 @@ public abstract class AuthenticatorBase
         started = false;
 
         sso = null;
+        constraintIndex = null;
 
     }
 
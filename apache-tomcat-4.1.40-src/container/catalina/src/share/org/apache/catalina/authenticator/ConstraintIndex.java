@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.authenticator;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.catalina.deploy.SecurityCollection;
+import org.apache.catalina.deploy.SecurityConstraint;
+
+
+/**
+ * An index of the security constraints of a web application, compiled from
+ * the URL patterns of their web resource collections into tables of exact,
+ * path prefix and extension patterns, so that the constraint guarding a
+ * request is found with a few table lookups per segment of its path rather
+ * than by matching every pattern.
+ * <p>
+ * The constraint found is the one <code>SecurityConstraint.included()</code>
+ * would select: the first one, in the order of the deployment descriptor,
+ * with a collection including the request URI and method.  The index does
+ * not see changes made to the constraints after it was compiled.
+ */
+
+final class ConstraintIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Compile an index of the specified security constraints.
+     *
+     * @param constraints The security constraints, in declaration order
+     */
+    ConstraintIndex(SecurityConstraint constraints[]) {
+
+        this.constraints = constraints;
+        HashMap exact = new HashMap();
+        HashMap prefix = new HashMap();
+        HashMap extension = new HashMap();
+        ArrayList universal = new ArrayList();
+
+        for (int i = 0; i < constraints.length; i++) {
+            SecurityCollection collections[] = constraints[i].findCollections();
+            for (int j = 0; j < collections.length; j++) {
+                Entry entry = new Entry(i, collections[j].findMethods());
+                String patterns[] = collections[j].findPatterns();
+                for (int k = 0; k < patterns.length; k++) {
+                    String pattern = patterns[k];
+                    if ((pattern == null) || (pattern.length() == 0))
+                        pattern = "/";
+                    add(exact, pattern, entry);
+                    if (pattern.equals("/") || pattern.equals("/*"))
+                        universal.add(entry);
+                    else if (pattern.startsWith("/") && pattern.endsWith("/*"))
+                        add(prefix, pattern.substring(0, pattern.length() - 2),
+                            entry);
+                    else if (pattern.startsWith("*."))
+                        add(extension, pattern.substring(1), entry);
+                }
+            }
+        }
+
+        this.exact = compile(exact);
+        this.prefix = compile(prefix);
+        this.extension = compile(extension);
+        this.universal =
+            (Entry[]) universal.toArray(new Entry[universal.size()]);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The security constraints indexed, in declaration order.
+     */
+    private SecurityConstraint constraints[] = null;
+
+
+    /**
+     * The entries of the patterns compared with the whole path, keyed by
+     * pattern.
+     */
+    private HashMap exact = null;
+
+
+    /**
+     * The entries of the extension patterns, keyed by extension including
+     * the period.
+     */
+    private HashMap extension = null;
+
+
+    /**
+     * The standard HTTP methods, whose position is their bit in a method
+     * mask.
+     */
+    private static final String METHODS[] = {
+        "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE"
+    };
+
+
+    /**
+     * The entries of the path prefix patterns, keyed by prefix without the
+     * trailing "/*".
+     */
+    private HashMap prefix = null;
+
+
+    /**
+     * The entries of the patterns matching every path.
+     */
+    private Entry universal[] = null;
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Return the security constraints this index was compiled from.
+     */
+    SecurityConstraint[] getConstraints() {
+
+        return (this.constraints);
+
+    }
+
+
+    /**
+     * Return the security constraint guarding the specified request, or
+     * <code>null</code> if there is none.
+     *
+     * @param uri Request URI, relative to the context path
+     * @param method Request method
+     */
+    SecurityConstraint find(String uri, String method) {
+
+        if ((method == null) || (constraints.length == 0))
+            return (null);
+        if ((uri == null) || (uri.length() == 0))
+            uri = "/";
+        int bit = bit(method);
+
+        // Keep the first constraint declared among those that match
+        int first = match(universal, method, bit, Integer.MAX_VALUE);
+        first = match((Entry[]) exact.get(uri), method, bit, first);
+
+        // Check each path prefix, from the longest
+        if (prefix.size() > 0) {
+            String path = uri;
+            if (path.endsWith("/"))
+                path = path.substring(0, path.length() - 1);
+            while (true) {
+                first = match((Entry[]) prefix.get(path), method, bit, first);
+                int slash = path.lastIndexOf('/');
+                if (slash <= 0)
+                    break;
+                path = path.substring(0, slash);
+            }
+        }
+
+        // Check each extension of the last segment
+        if (extension.size() > 0) {
+            int slash = uri.lastIndexOf('/');
+            if (slash >= 0) {
+                for (int i = uri.indexOf('.', slash); i >= 0;
+                     i = uri.indexOf('.', i + 1))
+                    first = match((Entry[]) extension.get(uri.substring(i)),
+                                  method, bit, first);
+            }
+        }
+
+        if (first == Integer.MAX_VALUE)
+            return (null);
+        return (constraints[first]);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Add an entry to the list of the specified key.
+     *
+     * @param table The table of lists
+     * @param key The key
+     * @param entry The entry
+     */
+    private static void add(HashMap table, String key, Entry entry) {
+
+        ArrayList list = (ArrayList) table.get(key);
+        if (list == null) {
+            list = new ArrayList();
+            table.put(key, list);
+        }
+        list.add(entry);
+
+    }
+
+
+    /**
+     * Return the mask bit of the specified method, or zero if it is not a
+     * standard method.
+     *
+     * @param method The method
+     */
+    private static int bit(String method) {
+
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method))
+                return (1 << i);
+        }
+        return (0);
+
+    }
+
+
+    /**
+     * Replace the lists of a table with arrays.
+     *
+     * @param table The table of lists
+     */
+    private static HashMap compile(HashMap table) {
+
+        HashMap result = new HashMap();
+        Iterator entries = table.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            ArrayList list = (ArrayList) entry.getValue();
+            result.put(entry.getKey(),
+                       (Entry[]) list.toArray(new Entry[list.size()]));
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * Return the lowest constraint position among the specified one and
+     * those of the specified entries including the method.
+     *
+     * @param entries The entries, in declaration order, or
+     *  <code>null</code>
+     * @param method The request method
+     * @param bit The mask bit of the request method
+     * @param first The lowest constraint position found so far
+     */
+    private static int match(Entry entries[], String method, int bit,
+                             int first) {
+
+        if (entries == null)
+            return (first);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].position >= first)
+                break;
+            if (entries[i].includes(method, bit))
+                return (entries[i].position);
+        }
+        return (first);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A web resource collection of a security constraint.
+     */
+    private static final class Entry {
+
+        /**
+         * The position of the security constraint in declaration order.
+         */
+        int position;
+
+        /**
+         * The mask of the standard methods included, all bits set if every
+         * method is included.
+         */
+        int mask = 0;
+
+        /**
+         * The other methods included.
+         */
+        String others[] = null;
+
+        Entry(int position, String methods[]) {
+            this.position = position;
+            if (methods.length == 0) {
+                mask = -1;
+                return;
+            }
+            ArrayList others = new ArrayList();
+            for (int i = 0; i < methods.length; i++) {
+                int bit = bit(methods[i]);
+                if (bit != 0)
+                    mask |= bit;
+                else
+                    others.add(methods[i]);
+            }
+            this.others = (String[]) others.toArray(new String[others.size()]);
+        }
+
+        /**
+         * Is the specified method included?
+         *
+         * @param method The method
+         * @param bit The mask bit of the method
+         */
+        boolean includes(String method, int bit) {
+            if (mask == -1)
+                return (true);
+            if (bit != 0)
+                return ((mask & bit) != 0);
+            for (int i = 0; i < others.length; i++) {
+                if (others[i].equals(method))
+                    return (true);
+            }
+            return (false);
+        }
+
+    }
+
+
+}
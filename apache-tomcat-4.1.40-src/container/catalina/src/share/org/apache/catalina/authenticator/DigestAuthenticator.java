@@ -31,6 +31,7 @@ import org.apache.catalina.HttpRequest;
 import org.apache.catalina.HttpResponse;
 import org.apache.catalina.Realm;
 import org.apache.catalina.deploy.LoginConfig;
+import org.apache.catalina.util.ConcurrentMessageDigest;
 import org.apache.catalina.util.MD5Encoder;
 
 
@@ -102,6 +103,9 @@ public class DigestAuthenticator
 
     /**
      * MD5 message digest provider.
+     *
+     * @deprecated Not safe for use by concurrent threads; use
+     *  <code>ConcurrentMessageDigest</code> instead.
      */
     protected static MessageDigest md5Helper;
 
@@ -316,7 +320,8 @@ public class DigestAuthenticator
         String a2 = method + ":" + uri;
         //System.out.println("A2:" + a2);
 
-        String md5a2 = md5Encoder.encode(md5Helper.digest(a2.getBytes()));
+        String md5a2 = md5Encoder.encode
+            (ConcurrentMessageDigest.digestMD5(a2.getBytes()));
 
         return (realm.authenticate(userName, response, nOnce, nc, cnonce, qop,
                                    realmName, md5a2));
@@ -399,7 +404,8 @@ public class DigestAuthenticator
         String nOnceValue = request.getRemoteAddr() + ":" +
             currentTime + ":" + key;
 
-        byte[] buffer = md5Helper.digest(nOnceValue.getBytes());
+        byte[] buffer =
+            ConcurrentMessageDigest.digestMD5(nOnceValue.getBytes());
         nOnceValue = md5Encoder.encode(buffer);
 
         // Updating the value in the no once hashtable
@@ -447,7 +453,7 @@ public class DigestAuthenticator
             realmName = request.getServerName() + ":"
                 + request.getServerPort();
 
-        byte[] buffer = md5Helper.digest(nOnce.getBytes());
+        byte[] buffer = ConcurrentMessageDigest.digestMD5(nOnce.getBytes());
 
         String authenticateHeader = "Digest realm=\"" + realmName + "\", "
             +  "qop=\"auth\", nonce=\"" + nOnce + "\", " + "opaque=\""
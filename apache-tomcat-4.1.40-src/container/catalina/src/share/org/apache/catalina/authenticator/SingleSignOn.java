@@ -22,6 +22,8 @@ package org.apache.catalina.authenticator;
 import java.io.IOException;
 import java.security.Principal;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -59,6 +61,15 @@ import org.apache.catalina.util.StringManager;
  *     Authenticators found in the
  *     <code>org.apache.catalina.authenticator</code> package.</li>
  * </ul>
+ * <p>
+ * Entries are normally removed when a session associated with them is
+ * logged out, or when the last of their sessions expires.  So that entries
+ * whose session events were missed do not accumulate, a background thread
+ * can also remove those not used for <code>maxIdleTime</code> seconds, and
+ * the number of entries can be bounded by <code>maxEntries</code>, beyond
+ * which the least recently used ones are evicted.  Removing an entry in
+ * either way does not invalidate its sessions: the user must only sign on
+ * again to use another web application.
  *
  * @author Craig R. McClanahan
  * @version $Revision: 466595 $ $Date: 2006-10-21 23:24:41 +0100 (Sat, 21 Oct 2006) $
@@ -66,7 +77,7 @@ import org.apache.catalina.util.StringManager;
 
 public class SingleSignOn
     extends ValveBase
-    implements Lifecycle, SessionListener {
+    implements Lifecycle, Runnable, SessionListener {
 
 
     // ----------------------------------------------------- Instance Variables
@@ -76,7 +87,13 @@ public class SingleSignOn
      * The cache of SingleSignOnEntry instances for authenticated Principals,
      * keyed by the cookie value that is used to select them.
      */
-    protected HashMap cache = new HashMap();
+    protected HashMap cache = new SingleSignOnMap();
+
+
+    /**
+     * The interval (in seconds) between checks for idle entries.
+     */
+    private int checkInterval = 60;
 
 
     /**
@@ -85,6 +102,18 @@ public class SingleSignOn
     protected int debug = 0;
 
 
+    /**
+     * The number of entries evicted to keep within <code>maxEntries</code>.
+     */
+    private long evictionCount = 0;
+
+
+    /**
+     * The number of entries removed after <code>maxIdleTime</code>.
+     */
+    private long expirationCount = 0;
+
+
     /**
      * Descriptive information about this Valve implementation.
      */
@@ -97,7 +126,20 @@ public class SingleSignOn
      */
     protected LifecycleSupport lifecycle = new LifecycleSupport(this);
 
-    
+
+    /**
+     * The maximum number of entries, or -1 for no limit.
+     */
+    private int maxEntries = -1;
+
+
+    /**
+     * The maximum time (in seconds) an entry may go unused before it is
+     * removed, or -1 for no limit.
+     */
+    private int maxIdleTime = -1;
+
+
     /**
      * Indicates whether this valve should require a downstream Authenticator to
      * reauthenticate each request, or if it itself can bind a UserPrincipal
@@ -126,9 +168,49 @@ public class SingleSignOn
     protected boolean started = false;
 
 
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * The background thread completion semaphore.
+     */
+    protected boolean threadDone = false;
+
+
+    /**
+     * Name to register for the background thread.
+     */
+    private String threadName = "SingleSignOn";
+
+
     // ------------------------------------------------------------- Properties
 
 
+    /**
+     * Return the interval (in seconds) between checks for idle entries.
+     */
+    public int getCheckInterval() {
+
+        return (this.checkInterval);
+
+    }
+
+
+    /**
+     * Set the interval (in seconds) between checks for idle entries.
+     *
+     * @param checkInterval The new check interval
+     */
+    public void setCheckInterval(int checkInterval) {
+
+        this.checkInterval = checkInterval;
+
+    }
+
+
     /**
      * Return the debugging detail level.
      */
@@ -151,6 +233,85 @@ public class SingleSignOn
     }
 
 
+    /**
+     * Return the number of entries currently cached.
+     */
+    public int getEntryCount() {
+
+        return (cache.size());
+
+    }
+
+
+    /**
+     * Return the number of entries evicted to keep within
+     * <code>maxEntries</code>.
+     */
+    public synchronized long getEvictionCount() {
+
+        return (this.evictionCount);
+
+    }
+
+
+    /**
+     * Return the number of entries removed after going unused for
+     * <code>maxIdleTime</code>.
+     */
+    public synchronized long getExpirationCount() {
+
+        return (this.expirationCount);
+
+    }
+
+
+    /**
+     * Return the maximum number of entries, or -1 for no limit.
+     */
+    public int getMaxEntries() {
+
+        return (this.maxEntries);
+
+    }
+
+
+    /**
+     * Set the maximum number of entries, beyond which the least recently
+     * used ones are evicted, or -1 for no limit.
+     *
+     * @param maxEntries The new maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+
+        this.maxEntries = maxEntries;
+
+    }
+
+
+    /**
+     * Return the maximum time (in seconds) an entry may go unused before
+     * it is removed, or -1 for no limit.
+     */
+    public int getMaxIdleTime() {
+
+        return (this.maxIdleTime);
+
+    }
+
+
+    /**
+     * Set the maximum time (in seconds) an entry may go unused before it is
+     * removed, or -1 for no limit.
+     *
+     * @param maxIdleTime The new maximum idle time
+     */
+    public void setMaxIdleTime(int maxIdleTime) {
+
+        this.maxIdleTime = maxIdleTime;
+
+    }
+
+
     /**
      * Gets whether each request needs to be reauthenticated (by an
      * Authenticator downstream in the pipeline) to the security
@@ -275,6 +436,9 @@ public class SingleSignOn
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        // Start the background thread removing idle entries
+        threadStart();
+
         if (debug >= 1)
             log("Started");
 
@@ -298,6 +462,9 @@ public class SingleSignOn
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
+        // Stop the background thread removing idle entries
+        threadStop();
+
         if (debug >= 1)
             log("Stopped");
 
@@ -506,10 +673,7 @@ public class SingleSignOn
             log("Deregistering sso id '" + ssoId + "'");
 
         // Look up and remove the corresponding SingleSignOnEntry
-        SingleSignOnEntry sso = null;
-        synchronized (cache) {
-            sso = (SingleSignOnEntry) cache.remove(ssoId);
-        }
+        SingleSignOnEntry sso = (SingleSignOnEntry) cache.remove(ssoId);
         if (sso == null)
             return;
 
@@ -551,9 +715,20 @@ public class SingleSignOn
             log("Registering sso id '" + ssoId + "' for user '" +
                 principal.getName() + "' with auth type '" + authType + "'");
 
-        synchronized (cache) {
-            cache.put(ssoId, new SingleSignOnEntry(principal, authType,
-                                                   username, password));
+        cache.put(ssoId, new SingleSignOnEntry(principal, authType,
+                                               username, password));
+
+        // Evict the least recently used entries beyond the limit
+        if ((maxEntries > 0) && (cache.size() > maxEntries)) {
+            HashMap evicted = new HashMap();
+            while (cache.size() > maxEntries) {
+                if (!((SingleSignOnMap) cache).removeEldest(evicted))
+                    break;
+            }
+            synchronized (this) {
+                evictionCount += evicted.size();
+            }
+            forget(evicted);
         }
 
     }
@@ -637,6 +812,28 @@ public class SingleSignOn
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Remove the entries that have not been used for
+     * <code>maxIdleTime</code> seconds.
+     */
+    protected void processExpires() {
+
+        if (maxIdleTime <= 0)
+            return;
+
+        HashMap expired = new HashMap();
+        ((SingleSignOnMap) cache).removeIdle
+            (System.currentTimeMillis() - maxIdleTime * 1000L, expired);
+        if (expired.isEmpty())
+            return;
+        synchronized (this) {
+            expirationCount += expired.size();
+        }
+        forget(expired);
+
+    }
+
+
     /**
      * Log a message on the Logger associated with our Container (if any).
      *
@@ -680,8 +877,110 @@ public class SingleSignOn
      */
     protected SingleSignOnEntry lookup(String ssoId) {
 
-        synchronized (cache) {
-            return ((SingleSignOnEntry) cache.get(ssoId));
+        return ((SingleSignOnEntry) cache.get(ssoId));
+
+    }
+
+
+    /**
+     * Sleep for the duration specified by the <code>checkInterval</code>
+     * property.
+     */
+    protected void threadSleep() {
+
+        try {
+            Thread.sleep(checkInterval * 1000L);
+        } catch (InterruptedException e) {
+            ;
+        }
+
+    }
+
+
+    /**
+     * Start the background thread that will periodically check for
+     * idle entries.
+     */
+    protected void threadStart() {
+
+        if (thread != null)
+            return;
+
+        threadDone = false;
+        threadName = "SingleSignOn[" +
+            ((container == null) ? "" : container.getName()) + "]";
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop the background thread that is periodically checking for
+     * idle entries.
+     */
+    protected void threadStop() {
+
+        if (thread == null)
+            return;
+
+        threadDone = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+
+        thread = null;
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Dissociate the sessions of the specified entries, which have been
+     * removed from the cache, without invalidating them.
+     *
+     * @param entries The entries removed, keyed by single sign on identifier
+     */
+    private void forget(Map entries) {
+
+        Iterator items = entries.entrySet().iterator();
+        while (items.hasNext()) {
+            Map.Entry item = (Map.Entry) items.next();
+            String ssoId = (String) item.getKey();
+            if (debug >= 1)
+                log("Removing unused sso id '" + ssoId + "'");
+            Session sessions[] =
+                ((SingleSignOnEntry) item.getValue()).findSessions();
+            synchronized (reverse) {
+                for (int i = 0; i < sessions.length; i++) {
+                    // Keep any later association with another identifier
+                    if (ssoId.equals(reverse.get(sessions[i])))
+                        reverse.remove(sessions[i]);
+                }
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * The background thread that checks for idle entries.
+     */
+    public void run() {
+
+        // Loop until the termination semaphore is set
+        while (!threadDone) {
+            threadSleep();
+            processExpires();
         }
 
     }
@@ -39,6 +39,8 @@ class SingleSignOnEntry
 
     private String authType = null;
 
+    private long lastAccessed = System.currentTimeMillis();
+
     private String password = null;
 
     private Principal principal = null;
@@ -133,6 +135,14 @@ class SingleSignOnEntry
         return (this.canReauthenticate);
     }
 
+    /**
+     * Gets the time this SSO was last looked up, guarded by the lock of
+     * the <code>SingleSignOnMap</code> segment holding it.
+     */
+    long getLastAccessed() {
+        return (this.lastAccessed);
+    }
+
     /**
      * Gets the password credential (if any) associated with the SSO.
      *
@@ -161,6 +171,16 @@ class SingleSignOnEntry
     }
 
 
+    /**
+     * Sets the time this SSO was last looked up.
+     *
+     * @param lastAccessed the time of the lookup
+     */
+    void setLastAccessed(long lastAccessed) {
+        this.lastAccessed = lastAccessed;
+    }
+
+
     /**
      * Updates the SingleSignOnEntry to reflect the latest security
      * information associated with the caller.
@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.authenticator;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Thread-safe map of the SingleSignOnEntry instances of a
+ * <code>SingleSignOn</code> valve, keyed by single sign on identifier.
+ * <p>
+ * The map is split into a fixed number of segments, each of them a
+ * <code>LinkedHashMap</code> in access order guarded by its own lock, so
+ * that requests looking up different identifiers rarely contend with each
+ * other.  Looking up an entry records the time of the access on it, which
+ * keeps the entries of each segment in order of last access: the least
+ * recently used entry of the whole map is the eldest of the segment heads,
+ * and the idle entries of a segment are found without visiting the others.
+ * <p>
+ * This map extends <code>HashMap</code> so that it can still be used as
+ * the <code>cache</code> of a <code>SingleSignOn</code> valve by its
+ * subclasses, but does not use the storage of its superclass.  Its
+ * collection views are unmodifiable snapshots.
+ */
+
+final class SingleSignOnMap extends HashMap {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new, empty map.
+     */
+    SingleSignOnMap() {
+
+        super();
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new LinkedHashMap(16, 0.75f, true);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of segments, which must be a power of two.
+     */
+    private static final int SEGMENTS = 16;
+
+
+    /**
+     * The segments of this map, each used as its own lock.
+     */
+    private LinkedHashMap segments[] = new LinkedHashMap[SEGMENTS];
+
+
+    // ------------------------------------------------------------ Map Methods
+
+
+    /**
+     * Remove all entries from this map.
+     */
+    public void clear() {
+
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                segments[i].clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Return a snapshot of the entries of this map.
+     */
+    public Object clone() {
+
+        return (snapshot());
+
+    }
+
+
+    /**
+     * Is there an entry with the specified identifier?
+     *
+     * @param key Single sign on identifier to look for
+     */
+    public boolean containsKey(Object key) {
+
+        if (!(key instanceof String))
+            return (false);
+        LinkedHashMap segment = segmentFor((String) key);
+        synchronized (segment) {
+            return (segment.containsKey(key));
+        }
+
+    }
+
+
+    /**
+     * Is the specified entry in this map?
+     *
+     * @param value The entry to look for
+     */
+    public boolean containsValue(Object value) {
+
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                if (segments[i].containsValue(value))
+                    return (true);
+            }
+        }
+        return (false);
+
+    }
+
+
+    /**
+     * Return an unmodifiable snapshot of the entries of this map.
+     */
+    public Set entrySet() {
+
+        return (Collections.unmodifiableSet(snapshot().entrySet()));
+
+    }
+
+
+    /**
+     * Return the entry with the specified identifier, recording the
+     * current time as its last access, or <code>null</code> if there is no
+     * such entry.
+     *
+     * @param key Single sign on identifier to look for
+     */
+    public Object get(Object key) {
+
+        if (!(key instanceof String))
+            return (null);
+        return (get((String) key, System.currentTimeMillis()));
+
+    }
+
+
+    /**
+     * Is this map empty?
+     */
+    public boolean isEmpty() {
+
+        return (size() == 0);
+
+    }
+
+
+    /**
+     * Return an unmodifiable snapshot of the identifiers of this map.
+     */
+    public Set keySet() {
+
+        return (Collections.unmodifiableSet(snapshot().keySet()));
+
+    }
+
+
+    /**
+     * Add an entry to this map, replacing and returning any entry with the
+     * same identifier.
+     *
+     * @param key Single sign on identifier of the entry
+     * @param value The <code>SingleSignOnEntry</code>, whose last access
+     *  time is already set
+     */
+    public Object put(Object key, Object value) {
+
+        LinkedHashMap segment = segmentFor((String) key);
+        synchronized (segment) {
+            return (segment.put(key, (SingleSignOnEntry) value));
+        }
+
+    }
+
+
+    /**
+     * Add all the entries of the specified map to this map.
+     *
+     * @param map The entries, keyed by single sign on identifier
+     */
+    public void putAll(Map map) {
+
+        Iterator entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+
+    }
+
+
+    /**
+     * Remove and return the entry with the specified identifier, or
+     * <code>null</code> if there is no such entry.
+     *
+     * @param key Single sign on identifier of the entry
+     */
+    public Object remove(Object key) {
+
+        if (!(key instanceof String))
+            return (null);
+        LinkedHashMap segment = segmentFor((String) key);
+        synchronized (segment) {
+            return (segment.remove(key));
+        }
+
+    }
+
+
+    /**
+     * Return the number of entries in this map.
+     */
+    public int size() {
+
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                size += segments[i].size();
+            }
+        }
+        return (size);
+
+    }
+
+
+    /**
+     * Return an unmodifiable snapshot of the entries of this map.
+     */
+    public Collection values() {
+
+        return (Collections.unmodifiableCollection(snapshot().values()));
+
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Remove all entries from this map.
+     *
+     * @param removed The map to which the entries removed are added,
+     *  keyed by single sign on identifier
+     */
+    void clear(Map removed) {
+
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                removed.putAll(segments[i]);
+                segments[i].clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the entry with the specified identifier, recording the
+     * specified time as its last access, or <code>null</code> if there is
+     * no such entry.
+     *
+     * @param ssoId Single sign on identifier to look for
+     * @param now The current time
+     */
+    SingleSignOnEntry get(String ssoId, long now) {
+
+        LinkedHashMap segment = segmentFor(ssoId);
+        synchronized (segment) {
+            SingleSignOnEntry entry = (SingleSignOnEntry) segment.get(ssoId);
+            if (entry != null)
+                entry.setLastAccessed(now);
+            return (entry);
+        }
+
+    }
+
+
+    /**
+     * Remove the least recently used entry of this map, and return
+     * <code>true</code>, or return <code>false</code> if it is empty.  The
+     * entry is only guaranteed to be the least recently used one if no other
+     * thread accesses the map at the same time.
+     *
+     * @param removed The map to which the entry removed is added, keyed by
+     *  single sign on identifier
+     */
+    boolean removeEldest(Map removed) {
+
+        // Find the segment whose head was accessed first
+        int eldest = -1;
+        long eldestAccessed = Long.MAX_VALUE;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                if (segments[i].isEmpty())
+                    continue;
+                SingleSignOnEntry entry = (SingleSignOnEntry)
+                    segments[i].values().iterator().next();
+                if (entry.getLastAccessed() < eldestAccessed) {
+                    eldest = i;
+                    eldestAccessed = entry.getLastAccessed();
+                }
+            }
+        }
+        if (eldest < 0)
+            return (false);
+
+        // Remove its head, which may have changed since
+        synchronized (segments[eldest]) {
+            Iterator entries = segments[eldest].entrySet().iterator();
+            if (!entries.hasNext())
+                return (false);
+            Map.Entry entry = (Map.Entry) entries.next();
+            removed.put(entry.getKey(), entry.getValue());
+            entries.remove();
+            return (true);
+        }
+
+    }
+
+
+    /**
+     * Remove the entries last accessed before the specified time.
+     *
+     * @param before The time before which entries are idle
+     * @param removed The map to which the entries removed are added,
+     *  keyed by single sign on identifier
+     */
+    void removeIdle(long before, Map removed) {
+
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                Iterator entries = segments[i].entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entries.next();
+                    SingleSignOnEntry sso =
+                        (SingleSignOnEntry) entry.getValue();
+                    if (sso.getLastAccessed() >= before)
+                        break;
+                    removed.put(entry.getKey(), sso);
+                    entries.remove();
+                }
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return a copy of the entries of this map, keyed by single sign on
+     * identifier.
+     */
+    private HashMap snapshot() {
+
+        HashMap snapshot = new HashMap();
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                snapshot.putAll(segments[i]);
+            }
+        }
+        return (snapshot);
+
+    }
+
+
+    /**
+     * Return the segment holding the specified identifier.
+     *
+     * @param ssoId Single sign on identifier
+     */
+    private LinkedHashMap segmentFor(String ssoId) {
+
+        int hash = ssoId.hashCode();
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 8);
+        return (segments[hash & (SEGMENTS - 1)]);
+
+    }
+
+
+}
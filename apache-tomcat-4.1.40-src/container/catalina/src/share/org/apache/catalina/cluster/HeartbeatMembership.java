@@ -0,0 +1,465 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * Discovers the members of a <code>TcpCluster</code> and detects their
+ * failure with heartbeats, sent as unicast UDP datagrams so that no
+ * multicast is needed. Every <code>heartbeatInterval</code> milliseconds a
+ * heartbeat is sent to the configured seeds and to every member heard of.
+ * A heartbeat carries the replication address of its sender and the
+ * heartbeat addresses of the members it currently hears, so that members
+ * only need to know one seed to find each other.
+ * <p>
+ * A member not heard for <code>suspectTimeout</code> milliseconds is
+ * suspected, and is removed once it has not been heard for
+ * <code>failureTimeout</code> milliseconds. Every heartbeat also carries
+ * an identifier chosen when its sender started, so that a member that
+ * restarted on the same address is removed and added again.
+ */
+
+final class HeartbeatMembership implements Runnable {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The value starting every heartbeat.
+     */
+    private static final int MAGIC = 0x54434842;
+
+    /**
+     * The largest heartbeat.
+     */
+    private static final int MAX_HEARTBEAT = 8192;
+
+    /**
+     * The types of membership events.
+     */
+    static final int ADDED = 0;
+    static final int SUSPECTED = 1;
+    static final int RECOVERED = 2;
+    static final int REMOVED = 3;
+
+    /**
+     * The cluster we discover the members of.
+     */
+    private TcpCluster cluster = null;
+
+    /**
+     * The identifier of this instance of the local member.
+     */
+    private long memberId;
+
+    /**
+     * The socket sending and receiving heartbeats.
+     */
+    private DatagramSocket socket = null;
+
+    /**
+     * The heartbeat addresses of the seeds.
+     */
+    private ArrayList seeds = new ArrayList();
+
+    /**
+     * The members heard of, keyed by heartbeat address.
+     */
+    private HashMap members = new HashMap();
+
+    /**
+     * The heartbeat addresses learnt from the heartbeats of other members,
+     * with the time they were last mentioned as <code>Long</code>s.
+     */
+    private HashMap gossip = new HashMap();
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+    /**
+     * The background thread completion semaphore.
+     */
+    private boolean threadDone = false;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create the membership of the specified cluster.
+     *
+     * @param cluster The cluster
+     */
+    HeartbeatMembership(TcpCluster cluster) {
+        this.cluster = cluster;
+        this.memberId = new Random().nextLong() ^ System.currentTimeMillis();
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Return the port heartbeats are received on.
+     */
+    int getLocalPort() {
+        return(socket.getLocalPort());
+    }
+
+    /**
+     * Return the replication addresses of the members currently heard,
+     * suspected members included.
+     */
+    synchronized String[] findMembers() {
+        String result[] = new String[members.size()];
+        Iterator values = members.values().iterator();
+        for (int i = 0; values.hasNext(); i++)
+            result[i] = ((Member) values.next()).replication;
+        return(result);
+    }
+
+    /**
+     * Open the heartbeat socket and start the background thread.
+     *
+     * @exception IOException if the socket cannot be opened
+     */
+    void start() throws IOException {
+        InetAddress address = null;
+        if (cluster.getHeartbeatAddress() != null)
+            address = InetAddress.getByName(cluster.getHeartbeatAddress());
+        socket = new DatagramSocket(cluster.getHeartbeatPort(), address);
+
+        String list = cluster.getSeeds();
+        if (list != null) {
+            StringTokenizer tokens = new StringTokenizer(list, ", \t\r\n");
+            while (tokens.hasMoreTokens()) {
+                String seed = tokens.nextToken();
+                try {
+                    seeds.add(parse(seed));
+                } catch (RuntimeException e) {
+                    cluster.log(cluster.sm.getString("tcpCluster.invalidMember",
+                                                     seed));
+                }
+            }
+        }
+
+        threadDone = false;
+        thread = new Thread(this, "TcpCluster[" + cluster.getClusterName() +
+                            "]-Heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread and close the heartbeat socket.
+     */
+    void stop() {
+        if (thread == null)
+            return;
+        threadDone = true;
+        socket.close();
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+        thread = null;
+        synchronized (this) {
+            members.clear();
+            gossip.clear();
+        }
+        seeds.clear();
+    }
+
+    // ------------------------------------------------------- Private Methods
+
+    /**
+     * Parse a <code>host:port</code> pair.
+     *
+     * @param address The pair
+     */
+    private static InetSocketAddress parse(String address) {
+        int colon = address.lastIndexOf(':');
+        return(new InetSocketAddress(address.substring(0, colon),
+                                     Integer.parseInt(address.substring(colon + 1))));
+    }
+
+    /**
+     * Render an address as a <code>host:port</code> pair.
+     *
+     * @param address The address
+     */
+    private static String format(InetSocketAddress address) {
+        return(address.getAddress().getHostAddress() + ":" + address.getPort());
+    }
+
+    /**
+     * Process a received heartbeat.
+     *
+     * @param packet The heartbeat
+     * @param events The membership events to fire, as
+     *  <code>Object[] { Integer type, String member }</code>
+     *
+     * @exception IOException if the heartbeat is malformed
+     */
+    private synchronized void receive(DatagramPacket packet, ArrayList events)
+        throws IOException {
+        DataInputStream in = new DataInputStream
+            (new ByteArrayInputStream(packet.getData(), packet.getOffset(),
+                                      packet.getLength()));
+        if (in.readInt() != MAGIC)
+            return;
+        String clusterName = in.readUTF();
+        long id = in.readLong();
+        String host = in.readUTF();
+        int port = in.readInt();
+        if (id == memberId)
+            return;
+        if ((cluster.getClusterName() != null) &&
+            !cluster.getClusterName().equals(clusterName))
+            return;
+
+        InetSocketAddress from =
+            new InetSocketAddress(packet.getAddress(), packet.getPort());
+        String key = format(from);
+        if (host.length() == 0)
+            host = packet.getAddress().getHostAddress();
+        String replication = host + ":" + port;
+        long now = System.currentTimeMillis();
+
+        Member member = (Member) members.get(key);
+        if ((member != null) && (member.id != id)) {
+            // Restarted on the same address
+            members.remove(key);
+            events.add(new Object[] { new Integer(REMOVED), member.replication });
+            member = null;
+        }
+        if (member == null) {
+            member = new Member(id, replication, from);
+            members.put(key, member);
+            gossip.remove(key);
+            events.add(new Object[] { new Integer(ADDED), replication });
+        } else if (member.suspected) {
+            member.suspected = false;
+            events.add(new Object[] { new Integer(RECOVERED), replication });
+        }
+        member.lastHeard = now;
+
+        // Learn the members it hears
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String address = in.readUTF();
+            if (!members.containsKey(address))
+                gossip.put(address, new Long(now));
+        }
+    }
+
+    /**
+     * Suspect and remove the members not heard for too long, and forget
+     * the learnt addresses no longer mentioned.
+     *
+     * @param events The membership events to fire
+     */
+    private synchronized void check(ArrayList events) {
+        long now = System.currentTimeMillis();
+        Iterator entries = members.values().iterator();
+        while (entries.hasNext()) {
+            Member member = (Member) entries.next();
+            long silence = now - member.lastHeard;
+            if (silence >= cluster.getFailureTimeout()) {
+                entries.remove();
+                events.add(new Object[] { new Integer(REMOVED),
+                                          member.replication });
+            } else if (!member.suspected &&
+                       (silence >= cluster.getSuspectTimeout())) {
+                member.suspected = true;
+                events.add(new Object[] { new Integer(SUSPECTED),
+                                          member.replication });
+            }
+        }
+        Iterator mentioned = gossip.values().iterator();
+        while (mentioned.hasNext()) {
+            if (now - ((Long) mentioned.next()).longValue() >=
+                cluster.getFailureTimeout())
+                mentioned.remove();
+        }
+    }
+
+    /**
+     * Send a heartbeat to the seeds, the members and the learnt addresses.
+     */
+    private void send() {
+        ArrayList targets = new ArrayList(seeds);
+        byte data[] = null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            out.writeUTF((cluster.getClusterName() == null) ?
+                         "" : cluster.getClusterName());
+            out.writeLong(memberId);
+            out.writeUTF(cluster.getReplicationHost());
+            out.writeInt(cluster.getTcpListenPort());
+            synchronized (this) {
+                ArrayList alive = new ArrayList();
+                Iterator values = members.values().iterator();
+                while (values.hasNext()) {
+                    Member member = (Member) values.next();
+                    targets.add(member.heartbeat);
+                    if (!member.suspected)
+                        alive.add(format(member.heartbeat));
+                }
+                Iterator keys = gossip.keySet().iterator();
+                while (keys.hasNext()) {
+                    try {
+                        targets.add(parse((String) keys.next()));
+                    } catch (RuntimeException e) {
+                        keys.remove();
+                    }
+                }
+                int n = alive.size();
+                while ((n > 0) &&
+                       (bos.size() + 4 + (n * 48) > MAX_HEARTBEAT))
+                    n--;
+                out.writeInt(n);
+                for (int i = 0; i < n; i++)
+                    out.writeUTF((String) alive.get(i));
+            }
+            out.close();
+            data = bos.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            return;
+        }
+
+        for (int i = 0; i < targets.size(); i++) {
+            InetSocketAddress target = (InetSocketAddress) targets.get(i);
+            if (target.isUnresolved())
+                continue;
+            try {
+                socket.send(new DatagramPacket(data, data.length, target));
+            } catch (IOException e) {
+                if (!threadDone && (cluster.getDebug() > 1))
+                    cluster.log(cluster.sm.getString("tcpCluster.heartbeatException",
+                                                     format(target),
+                                                     e.toString()));
+            }
+        }
+    }
+
+    /**
+     * Fire the specified membership events.
+     *
+     * @param events The events
+     */
+    private void fire(ArrayList events) {
+        for (int i = 0; i < events.size(); i++) {
+            Object event[] = (Object[]) events.get(i);
+            cluster.membershipChanged(((Integer) event[0]).intValue(),
+                                      (String) event[1]);
+        }
+        events.clear();
+    }
+
+    // ------------------------------------------------------ Background Thread
+
+    /**
+     * The background thread, receiving heartbeats between sending ours.
+     */
+    public void run() {
+        byte buffer[] = new byte[MAX_HEARTBEAT];
+        ArrayList events = new ArrayList();
+        long next = 0;
+        while (!threadDone) {
+            long now = System.currentTimeMillis();
+            if (now >= next) {
+                send();
+                check(events);
+                fire(events);
+                next = now + cluster.getHeartbeatInterval();
+            }
+
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.setSoTimeout((int) Math.max(1, next - now));
+                socket.receive(packet);
+                receive(packet, events);
+                fire(events);
+            } catch (InterruptedIOException e) {
+                ;
+            } catch (IOException e) {
+                if (!threadDone)
+                    cluster.log(cluster.sm.getString("tcpCluster.heartbeatException",
+                                                     String.valueOf(packet.getSocketAddress()),
+                                                     e.toString()));
+            }
+        }
+    }
+
+    // ----------------------------------------------------------- Inner Classes
+
+    /**
+     * A member heard of.
+     */
+    private static final class Member {
+
+        /**
+         * The identifier of this instance of the member.
+         */
+        long id;
+
+        /**
+         * The replication address of the member.
+         */
+        String replication;
+
+        /**
+         * The heartbeat address of the member.
+         */
+        InetSocketAddress heartbeat;
+
+        /**
+         * The time the member was last heard.
+         */
+        long lastHeard;
+
+        /**
+         * Is the member suspected?
+         */
+        boolean suspected = false;
+
+        Member(long id, String replication, InetSocketAddress heartbeat) {
+            this.id = id;
+            this.replication = replication;
+            this.heartbeat = heartbeat;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+/**
+ * Interface defining a listener for changes to the membership of a
+ * <code>TcpCluster</code>. Members are identified by their replication
+ * address, as a <code>host:port</code> pair. The methods are called from
+ * the thread detecting the change, and should return quickly.
+ */
+
+public interface MembershipListener {
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * A member has joined the cluster, or has restarted.
+     *
+     * @param member The replication address of the member
+     */
+    public void memberAdded(String member);
+
+    /**
+     * No heartbeat has been received from a member for the suspicion
+     * timeout; it may have failed.
+     *
+     * @param member The replication address of the member
+     */
+    public void memberSuspected(String member);
+
+    /**
+     * A heartbeat has been received again from a suspected member.
+     *
+     * @param member The replication address of the member
+     */
+    public void memberRecovered(String member);
+
+    /**
+     * No heartbeat has been received from a member for the failure
+     * timeout, or it has been replaced by a restarted instance; it is no
+     * longer a member of the cluster.
+     *
+     * @param member The replication address of the member
+     */
+    public void memberRemoved(String member);
+}
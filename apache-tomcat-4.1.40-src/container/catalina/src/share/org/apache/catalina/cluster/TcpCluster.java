@@ -0,0 +1,1305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+import java.beans.PropertyChangeSupport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+import org.apache.catalina.Cluster;
+import org.apache.catalina.Container;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Logger;
+import org.apache.catalina.util.LifecycleSupport;
+import org.apache.catalina.util.StringManager;
+
+/**
+ * A <b>Cluster</b> implementation that replicates over TCP connections
+ * between its members, for networks where multicast is not available.
+ * Each member listens on <code>tcpListenPort</code>, and is given the
+ * addresses of the other members with the <code>members</code> property,
+ * as a comma separated list of <code>host:port</code> pairs. The same list
+ * may be configured on every member, as the local member is skipped.
+ * <p>
+ * The data sent through our <code>TcpSender</code>s is queued and written
+ * asynchronously to every remote member over a pool of
+ * <code>connectionsPerMember</code> connections, several messages per
+ * write. Each connection queues at most <code>maxQueueSize</code>
+ * messages; when its queue is full the sender waits for at most
+ * <code>queueTimeout</code> milliseconds, then the message is dropped.
+ * When <code>waitForAck</code> is set, each message is acknowledged by the
+ * receiving member once it is handed to its <code>TcpReceiver</code>, and
+ * a batch that is not acknowledged within <code>ackTimeout</code>
+ * milliseconds is written again on a new connection.
+ * <p>
+ * Instead of, or besides, listing the members, a <code>heartbeatPort</code>
+ * may be set, in which case the members find each other by sending
+ * heartbeats to the <code>seeds</code> and to the members they hear of (see
+ * <code>HeartbeatMembership</code>). A member that is not heard for
+ * <code>suspectTimeout</code> milliseconds is suspected, and its messages
+ * are dropped until it is heard again; one not heard for
+ * <code>failureTimeout</code> milliseconds is removed. Listeners registered
+ * with <code>addMembershipListener()</code> are told of these changes.
+ * <p>
+ * Several members may run in the same JVM, or on the same host, by giving
+ * each its own ports; a port of 0 selects a free port when the cluster is
+ * started, which <code>getTcpListenPort()</code> and
+ * <code>getHeartbeatPort()</code> then return.
+ */
+
+public final class TcpCluster
+    implements Cluster, Lifecycle, Runnable {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The value sent by a connection before its messages.
+     */
+    static final int MAGIC = 0x54435250;
+
+    /**
+     * The value acknowledging a message.
+     */
+    static final int ACK = 0x06;
+
+    /**
+     * The largest message accepted by a member.
+     */
+    private static final int MAX_MESSAGE = 64 * 1024 * 1024;
+
+    /**
+     * Descriptive information about this component implementation.
+     */
+    private static final String info = "TcpCluster/1.0";
+
+    /**
+     * Name for logging purpose
+     */
+    private String clusterImpName = "TcpCluster";
+
+    /**
+     * The string manager for this package.
+     */
+    StringManager sm = StringManager.getManager(Constants.Package);
+
+    /**
+     * The background thread accepting connections.
+     */
+    private Thread thread = null;
+
+    /**
+     * The background thread completion semaphore.
+     */
+    private boolean threadDone = false;
+
+    /**
+     * The cluster name to join
+     */
+    private String clusterName = null;
+
+    /**
+     * The Container associated with this Cluster.
+     */
+    private Container container = null;
+
+    /**
+     * The address to listen on, or <code>null</code> for every address.
+     */
+    private String tcpListenAddress = null;
+
+    /**
+     * The port to listen on.
+     */
+    private int tcpListenPort = 4001;
+
+    /**
+     * The configured remote members, as a comma separated list of
+     * <code>host:port</code> pairs.
+     */
+    private String members = null;
+
+    /**
+     * The number of connections to each remote member.
+     */
+    private int connectionsPerMember = 2;
+
+    /**
+     * The maximum number of messages queued per connection.
+     */
+    private int maxQueueSize = 1000;
+
+    /**
+     * The time to wait for room in a full queue, in milliseconds.
+     */
+    private int queueTimeout = 5000;
+
+    /**
+     * Should each message be acknowledged by the receiving member?
+     */
+    private boolean waitForAck = false;
+
+    /**
+     * The time to wait for a connection or an acknowledgement,
+     * in milliseconds.
+     */
+    private int ackTimeout = 15000;
+
+    /**
+     * The address to send and receive heartbeats on, or <code>null</code>
+     * for <code>tcpListenAddress</code>.
+     */
+    private String heartbeatAddress = null;
+
+    /**
+     * The port to send and receive heartbeats on, or -1 if the members
+     * are not discovered with heartbeats.
+     */
+    private int heartbeatPort = -1;
+
+    /**
+     * The heartbeat addresses of the seeds, as a comma separated list of
+     * <code>host:port</code> pairs.
+     */
+    private String seeds = null;
+
+    /**
+     * The interval between heartbeats, in milliseconds.
+     */
+    private int heartbeatInterval = 1000;
+
+    /**
+     * The time after which a silent member is suspected, in milliseconds.
+     */
+    private int suspectTimeout = 3000;
+
+    /**
+     * The time after which a silent member is removed, in milliseconds.
+     */
+    private int failureTimeout = 10000;
+
+    /**
+     * The membership discovered with heartbeats, if any.
+     */
+    private HeartbeatMembership membership = null;
+
+    /**
+     * The registered membership listeners.
+     */
+    private ArrayList listeners = new ArrayList();
+
+    /**
+     * The socket accepting connections from the other members.
+     */
+    private ServerSocket serverSocket = null;
+
+    /**
+     * The senders to the remote members, keyed by <code>host:port</code>.
+     */
+    private HashMap senders = new HashMap();
+
+    /**
+     * The receivers, keyed by senderId.
+     */
+    private HashMap receivers = new HashMap();
+
+    /**
+     * The sockets of the accepted connections.
+     */
+    private ArrayList sockets = new ArrayList();
+
+    /**
+     * The lifecycle event support for this component.
+     */
+    private LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+    /**
+     * Has this component been started?
+     */
+    private boolean started = false;
+
+    /**
+     * The property change support for this component.
+     */
+    private PropertyChangeSupport support = new PropertyChangeSupport(this);
+
+    /**
+     * The debug level for this Container
+     */
+    private int debug = 0;
+
+    /**
+     * The interval for the background thread to sleep
+     */
+    private int checkInterval = 60;
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * Return descriptive information about this Cluster implementation and
+     * the corresponding version number, in the format
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    public String getInfo() {
+        return(info);
+    }
+
+    /**
+     * Return a <code>String</code> containing the name of this
+     * Cluster implementation, used for logging
+     *
+     * @return The Cluster implementation
+     */
+    protected String getName() {
+        return(this.clusterImpName);
+    }
+
+    /**
+     * Set the debug level for this component
+     *
+     * @param debug The debug level
+     */
+    public void setDebug(int debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Get the debug level for this component
+     *
+     * @return The debug level
+     */
+    public int getDebug() {
+        return(this.debug);
+    }
+
+    /**
+     * Set the name of the cluster to join.
+     *
+     * @param clusterName The clustername to join
+     */
+    public void setClusterName(String clusterName) {
+        String oldClusterName = this.clusterName;
+        this.clusterName = clusterName;
+        support.firePropertyChange("clusterName",
+                                   oldClusterName,
+                                   this.clusterName);
+    }
+
+    /**
+     * Return the name of the cluster that this Server is currently
+     * configured to operate within.
+     *
+     * @return The name of the cluster associated with this server
+     */
+    public String getClusterName() {
+        return(this.clusterName);
+    }
+
+    /**
+     * Set the Container associated with our Cluster
+     *
+     * @param container The Container to use
+     */
+    public void setContainer(Container container) {
+        Container oldContainer = this.container;
+        this.container = container;
+        support.firePropertyChange("container",
+                                   oldContainer,
+                                   this.container);
+    }
+
+    /**
+     * Get the Container associated with our Cluster
+     *
+     * @return The Container associated with our Cluster
+     */
+    public Container getContainer() {
+        return(this.container);
+    }
+
+    /**
+     * Set the time in seconds the receivers of this Cluster
+     * report as their check interval.
+     *
+     * @param checkInterval The time to sleep
+     */
+    public void setCheckInterval(int checkInterval) {
+        int oldCheckInterval = this.checkInterval;
+        this.checkInterval = checkInterval;
+        support.firePropertyChange("checkInterval",
+                                   new Integer(oldCheckInterval),
+                                   new Integer(this.checkInterval));
+    }
+
+    /**
+     * Get the time in seconds this Cluster sleeps
+     *
+     * @return The time in seconds this Cluster sleeps
+     */
+    public int getCheckInterval() {
+        return(this.checkInterval);
+    }
+
+    /**
+     * Set the address to listen on for connections from the other members.
+     *
+     * @param tcpListenAddress The address, or <code>null</code> for
+     *  every address of this host
+     */
+    public void setTcpListenAddress(String tcpListenAddress) {
+        String oldTcpListenAddress = this.tcpListenAddress;
+        this.tcpListenAddress = tcpListenAddress;
+        support.firePropertyChange("tcpListenAddress",
+                                   oldTcpListenAddress,
+                                   this.tcpListenAddress);
+    }
+
+    /**
+     * Get the address to listen on for connections from the other members.
+     */
+    public String getTcpListenAddress() {
+        return(this.tcpListenAddress);
+    }
+
+    /**
+     * Set the port to listen on for connections from the other members.
+     *
+     * @param tcpListenPort The port, or 0 for any free port
+     */
+    public void setTcpListenPort(int tcpListenPort) {
+        int oldTcpListenPort = this.tcpListenPort;
+        this.tcpListenPort = tcpListenPort;
+        support.firePropertyChange("tcpListenPort",
+                                   new Integer(oldTcpListenPort),
+                                   new Integer(this.tcpListenPort));
+    }
+
+    /**
+     * Get the port to listen on for connections from the other members;
+     * once started, this is the port actually listened on.
+     */
+    public int getTcpListenPort() {
+        return(this.tcpListenPort);
+    }
+
+    /**
+     * Set the remote members of this Cluster, as a comma separated list
+     * of <code>host:port</code> pairs. The members are added when the
+     * Cluster is started.
+     *
+     * @param members The remote members
+     */
+    public void setMembers(String members) {
+        String oldMembers = this.members;
+        this.members = members;
+        support.firePropertyChange("members", oldMembers, this.members);
+    }
+
+    /**
+     * Get the configured remote members of this Cluster.
+     */
+    public String getMembers() {
+        return(this.members);
+    }
+
+    /**
+     * Set the number of connections to each remote member.
+     *
+     * @param connectionsPerMember The number of connections
+     */
+    public void setConnectionsPerMember(int connectionsPerMember) {
+        int oldConnectionsPerMember = this.connectionsPerMember;
+        this.connectionsPerMember = connectionsPerMember;
+        support.firePropertyChange("connectionsPerMember",
+                                   new Integer(oldConnectionsPerMember),
+                                   new Integer(this.connectionsPerMember));
+    }
+
+    /**
+     * Get the number of connections to each remote member.
+     */
+    public int getConnectionsPerMember() {
+        return(this.connectionsPerMember);
+    }
+
+    /**
+     * Set the maximum number of messages queued per connection, and held
+     * by each receiver.
+     *
+     * @param maxQueueSize The maximum number of messages
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        int oldMaxQueueSize = this.maxQueueSize;
+        this.maxQueueSize = maxQueueSize;
+        support.firePropertyChange("maxQueueSize",
+                                   new Integer(oldMaxQueueSize),
+                                   new Integer(this.maxQueueSize));
+    }
+
+    /**
+     * Get the maximum number of messages queued per connection.
+     */
+    public int getMaxQueueSize() {
+        return(this.maxQueueSize);
+    }
+
+    /**
+     * Set the time to wait for room in a full queue before a message
+     * is dropped.
+     *
+     * @param queueTimeout The time to wait, in milliseconds
+     */
+    public void setQueueTimeout(int queueTimeout) {
+        int oldQueueTimeout = this.queueTimeout;
+        this.queueTimeout = queueTimeout;
+        support.firePropertyChange("queueTimeout",
+                                   new Integer(oldQueueTimeout),
+                                   new Integer(this.queueTimeout));
+    }
+
+    /**
+     * Get the time to wait for room in a full queue.
+     */
+    public int getQueueTimeout() {
+        return(this.queueTimeout);
+    }
+
+    /**
+     * Set whether each message should be acknowledged by the receiving
+     * member. Takes effect on new connections.
+     *
+     * @param waitForAck Should messages be acknowledged?
+     */
+    public void setWaitForAck(boolean waitForAck) {
+        boolean oldWaitForAck = this.waitForAck;
+        this.waitForAck = waitForAck;
+        support.firePropertyChange("waitForAck",
+                                   new Boolean(oldWaitForAck),
+                                   new Boolean(this.waitForAck));
+    }
+
+    /**
+     * Get whether each message is acknowledged by the receiving member.
+     */
+    public boolean getWaitForAck() {
+        return(this.waitForAck);
+    }
+
+    /**
+     * Set the time to wait for a connection to be established or a
+     * message to be acknowledged.
+     *
+     * @param ackTimeout The time to wait, in milliseconds
+     */
+    public void setAckTimeout(int ackTimeout) {
+        int oldAckTimeout = this.ackTimeout;
+        this.ackTimeout = ackTimeout;
+        support.firePropertyChange("ackTimeout",
+                                   new Integer(oldAckTimeout),
+                                   new Integer(this.ackTimeout));
+    }
+
+    /**
+     * Get the time to wait for a connection or an acknowledgement.
+     */
+    public int getAckTimeout() {
+        return(this.ackTimeout);
+    }
+
+    /**
+     * Set the address to send and receive heartbeats on.
+     *
+     * @param heartbeatAddress The address, or <code>null</code> for
+     *  <code>tcpListenAddress</code>
+     */
+    public void setHeartbeatAddress(String heartbeatAddress) {
+        String oldHeartbeatAddress = this.heartbeatAddress;
+        this.heartbeatAddress = heartbeatAddress;
+        support.firePropertyChange("heartbeatAddress",
+                                   oldHeartbeatAddress,
+                                   this.heartbeatAddress);
+    }
+
+    /**
+     * Get the address to send and receive heartbeats on.
+     */
+    public String getHeartbeatAddress() {
+        if (this.heartbeatAddress == null)
+            return(this.tcpListenAddress);
+        return(this.heartbeatAddress);
+    }
+
+    /**
+     * Set the port to send and receive heartbeats on.
+     *
+     * @param heartbeatPort The port, 0 for any free port, or -1 if the
+     *  members are not discovered with heartbeats
+     */
+    public void setHeartbeatPort(int heartbeatPort) {
+        int oldHeartbeatPort = this.heartbeatPort;
+        this.heartbeatPort = heartbeatPort;
+        support.firePropertyChange("heartbeatPort",
+                                   new Integer(oldHeartbeatPort),
+                                   new Integer(this.heartbeatPort));
+    }
+
+    /**
+     * Get the port to send and receive heartbeats on; once started, this
+     * is the port actually used.
+     */
+    public int getHeartbeatPort() {
+        return(this.heartbeatPort);
+    }
+
+    /**
+     * Set the heartbeat addresses of the seeds, as a comma separated list
+     * of <code>host:port</code> pairs.
+     *
+     * @param seeds The seeds
+     */
+    public void setSeeds(String seeds) {
+        String oldSeeds = this.seeds;
+        this.seeds = seeds;
+        support.firePropertyChange("seeds", oldSeeds, this.seeds);
+    }
+
+    /**
+     * Get the heartbeat addresses of the seeds.
+     */
+    public String getSeeds() {
+        return(this.seeds);
+    }
+
+    /**
+     * Set the interval between heartbeats.
+     *
+     * @param heartbeatInterval The interval, in milliseconds
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        int oldHeartbeatInterval = this.heartbeatInterval;
+        this.heartbeatInterval = heartbeatInterval;
+        support.firePropertyChange("heartbeatInterval",
+                                   new Integer(oldHeartbeatInterval),
+                                   new Integer(this.heartbeatInterval));
+    }
+
+    /**
+     * Get the interval between heartbeats.
+     */
+    public int getHeartbeatInterval() {
+        return(this.heartbeatInterval);
+    }
+
+    /**
+     * Set the time after which a member that is not heard is suspected.
+     *
+     * @param suspectTimeout The time, in milliseconds
+     */
+    public void setSuspectTimeout(int suspectTimeout) {
+        int oldSuspectTimeout = this.suspectTimeout;
+        this.suspectTimeout = suspectTimeout;
+        support.firePropertyChange("suspectTimeout",
+                                   new Integer(oldSuspectTimeout),
+                                   new Integer(this.suspectTimeout));
+    }
+
+    /**
+     * Get the time after which a member that is not heard is suspected.
+     */
+    public int getSuspectTimeout() {
+        return(this.suspectTimeout);
+    }
+
+    /**
+     * Set the time after which a member that is not heard is removed.
+     *
+     * @param failureTimeout The time, in milliseconds
+     */
+    public void setFailureTimeout(int failureTimeout) {
+        int oldFailureTimeout = this.failureTimeout;
+        this.failureTimeout = failureTimeout;
+        support.firePropertyChange("failureTimeout",
+                                   new Integer(oldFailureTimeout),
+                                   new Integer(this.failureTimeout));
+    }
+
+    /**
+     * Get the time after which a member that is not heard is removed.
+     */
+    public int getFailureTimeout() {
+        return(this.failureTimeout);
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Add a remote member to this Cluster, unless it is the local member
+     * or is already known. Data sent afterwards is also sent to it.
+     *
+     * @param host The host name of the member
+     * @param port The replication port of the member
+     */
+    public void addMember(String host, int port) {
+        if (started && isLocal(host, port))
+            return;
+        TcpMemberSender sender = null;
+        synchronized (senders) {
+            String key = host + ":" + port;
+            if (senders.containsKey(key))
+                return;
+            sender = new TcpMemberSender(this, host, port);
+            senders.put(key, sender);
+        }
+        if (debug > 0)
+            log(sm.getString("tcpCluster.addMember", host + ":" + port));
+        if (started)
+            sender.start();
+    }
+
+    /**
+     * Remove a remote member from this Cluster, dropping the data
+     * still queued for it.
+     *
+     * @param host The host name of the member
+     * @param port The replication port of the member
+     */
+    public void removeMember(String host, int port) {
+        TcpMemberSender sender = null;
+        synchronized (senders) {
+            sender = (TcpMemberSender) senders.remove(host + ":" + port);
+        }
+        if (sender == null)
+            return;
+        if (debug > 0)
+            log(sm.getString("tcpCluster.removeMember", host + ":" + port));
+        sender.stop();
+    }
+
+    /**
+     * Add a listener told of the members added to and removed from
+     * this Cluster by the heartbeat membership.
+     *
+     * @param listener The listener to add
+     */
+    public void addMembershipListener(MembershipListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a membership listener from this Cluster.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeMembershipListener(MembershipListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Return the remote members of this Cluster, as
+     * <code>host:port</code> pairs.
+     */
+    public String[] findMembers() {
+        synchronized (senders) {
+            return((String[]) senders.keySet().toArray(new String[senders.size()]));
+        }
+    }
+
+    /**
+     * Return the number of messages written to, dropped for, and failed to
+     * be written to the specified remote member, or <code>null</code> if
+     * it is not a member.
+     *
+     * @param member The member, as a <code>host:port</code> pair
+     */
+    public long[] getMemberStatistics(String member) {
+        TcpMemberSender sender = null;
+        synchronized (senders) {
+            sender = (TcpMemberSender) senders.get(member);
+        }
+        if (sender == null)
+            return(null);
+        return(new long[] { sender.getSent(), sender.getDropped(),
+                            sender.getFailed() });
+    }
+
+    /**
+     * Returns a collection containing <code>ClusterMemberInfo</code>
+     * on the remote members of this Cluster. This method does
+     * not include the local host, to retrieve
+     * <code>ClusterMemberInfo</code> on the local host
+     * use <code>getLocalClusterInfo()</code> instead.
+     *
+     * @return Collection with all members in the Cluster
+     */
+    public ClusterMemberInfo[] getRemoteClusterMembers() {
+        String members[] = findMembers();
+        ClusterMemberInfo infos[] = new ClusterMemberInfo[members.length];
+        for (int i = 0; i < members.length; i++) {
+            infos[i] = new ClusterMemberInfo();
+            infos[i].setClusterName(getClusterName());
+            infos[i].setHostName(members[i]);
+        }
+        return(infos);
+    }
+
+    /**
+     * Return cluster information about the local host
+     *
+     * @return Cluster information
+     */
+    public ClusterMemberInfo getLocalClusterMember() {
+        ClusterMemberInfo local = new ClusterMemberInfo();
+        local.setClusterName(getClusterName());
+        if (tcpListenAddress != null)
+            local.setHostName(tcpListenAddress + ":" + tcpListenPort);
+        else
+            local.setHostName("*:" + tcpListenPort);
+        local.setClusterInfo(getInfo());
+        return(local);
+    }
+
+    /**
+     * Returns a <code>ClusterSender</code> which is the interface
+     * to use when sending information in the Cluster. senderId is
+     * used as a identifier so that information sent through this
+     * instance can only be used with the respectice
+     * <code>ClusterReceiver</code>
+     *
+     * @return The ClusterSender
+     */
+    public ClusterSender getClusterSender(String senderId) {
+        TcpSender send = new TcpSender(senderId, this);
+        if (container != null)
+            send.setLogger(container.getLogger());
+        send.setDebug(debug);
+
+        if (debug > 1)
+            log(sm.getString("standardCluster.createSender", senderId));
+
+        return(send);
+    }
+
+    /**
+     * Returns a <code>ClusterReceiver</code> which is the interface
+     * to use when receiving information in the Cluster. senderId is
+     * used as a indentifier, only information send through the
+     * <code>ClusterSender</code> with the same senderId can be received.
+     * A receiver created earlier for the same senderId is stopped.
+     *
+     * @return The ClusterReceiver
+     */
+    public ClusterReceiver getClusterReceiver(String senderId) {
+        TcpReceiver recv = new TcpReceiver(senderId, maxQueueSize);
+        if (container != null)
+            recv.setLogger(container.getLogger());
+        recv.setDebug(debug);
+        recv.setCheckInterval(checkInterval);
+        recv.start();
+
+        TcpReceiver old = null;
+        synchronized (receivers) {
+            old = (TcpReceiver) receivers.put(senderId, recv);
+        }
+        if (old != null)
+            old.stop();
+
+        if (debug > 1)
+            log(sm.getString("standardCluster.createReceiver", senderId));
+
+        return(recv);
+    }
+
+    /**
+     * Log a message on the Logger associated with our Container (if any).
+     *
+     * @param message Message to be logged
+     */
+    protected void log(String message) {
+        Logger logger = null;
+
+        if (container != null)
+            logger = container.getLogger();
+
+        if (logger != null) {
+            logger.log(getName() + "[" + container.getName() + "]: "
+                       + message);
+        } else {
+            String containerName = null;
+            if (container != null)
+                containerName = container.getName();
+
+            System.out.println(getName() + "[" + containerName
+                               + "]: " + message);
+        }
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Return the replication host advertised in our heartbeats, which is
+     * empty if the other members should use the address they received
+     * the heartbeat from.
+     */
+    String getReplicationHost() {
+        if ((tcpListenAddress == null) || tcpListenAddress.equals("0.0.0.0"))
+            return("");
+        return(tcpListenAddress);
+    }
+
+    /**
+     * Update our senders after a change to the heartbeat membership, and
+     * tell the membership listeners.
+     *
+     * @param type The type of change
+     * @param member The replication address of the member
+     */
+    void membershipChanged(int type, String member) {
+        int colon = member.lastIndexOf(':');
+        String host = member.substring(0, colon);
+        int port = Integer.parseInt(member.substring(colon + 1));
+        TcpMemberSender sender = null;
+        synchronized (senders) {
+            sender = (TcpMemberSender) senders.get(member);
+        }
+
+        MembershipListener interested[] = null;
+        synchronized (listeners) {
+            interested = (MembershipListener[])
+                listeners.toArray(new MembershipListener[listeners.size()]);
+        }
+        switch (type) {
+        case HeartbeatMembership.ADDED:
+            log(sm.getString("tcpCluster.memberAdded", member));
+            addMember(host, port);
+            for (int i = 0; i < interested.length; i++)
+                interested[i].memberAdded(member);
+            break;
+        case HeartbeatMembership.SUSPECTED:
+            log(sm.getString("tcpCluster.memberSuspected", member));
+            if (sender != null)
+                sender.setSuspected(true);
+            for (int i = 0; i < interested.length; i++)
+                interested[i].memberSuspected(member);
+            break;
+        case HeartbeatMembership.RECOVERED:
+            log(sm.getString("tcpCluster.memberRecovered", member));
+            if (sender != null)
+                sender.setSuspected(false);
+            for (int i = 0; i < interested.length; i++)
+                interested[i].memberRecovered(member);
+            break;
+        case HeartbeatMembership.REMOVED:
+            log(sm.getString("tcpCluster.memberRemoved", member));
+            removeMember(host, port);
+            for (int i = 0; i < interested.length; i++)
+                interested[i].memberRemoved(member);
+            break;
+        }
+    }
+
+    /**
+     * Queue data from the specified sender for every remote member, and
+     * return the number of members it was dropped for.
+     *
+     * @param senderId The senderId of the data
+     * @param key The ordering key of the data, or <code>null</code>
+     * @param data The data
+     */
+    int send(String senderId, String key, byte[] data) {
+        byte frame[] = null;
+        try {
+            ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(data.length + senderId.length() + 2);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeUTF(senderId);
+            dos.write(data);
+            dos.close();
+            frame = bos.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            return(0);
+        }
+
+        TcpMemberSender targets[] = null;
+        synchronized (senders) {
+            targets = (TcpMemberSender[])
+                senders.values().toArray(new TcpMemberSender[senders.size()]);
+        }
+        int dropped = 0;
+        for (int i = 0; i < targets.length; i++) {
+            if (!targets[i].send(key, frame))
+                dropped++;
+        }
+        return(dropped);
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Is the specified member this member?
+     *
+     * @param host The host name of the member
+     * @param port The replication port of the member
+     */
+    private boolean isLocal(String host, int port) {
+        if (port != tcpListenPort)
+            return(false);
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            if (tcpListenAddress != null)
+                return(address.equals(InetAddress.getByName(tcpListenAddress)));
+            return(address.isLoopbackAddress() ||
+                   (NetworkInterface.getByInetAddress(address) != null));
+        } catch (IOException e) {
+            return(false);
+        }
+    }
+
+    /**
+     * Read the messages sent over an accepted connection, until it is
+     * closed, and hand them to the receivers.
+     *
+     * @param socket The accepted connection
+     */
+    private void read(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream(socket.getInputStream()));
+        if (in.readInt() != MAGIC)
+            throw new IOException(sm.getString("tcpCluster.badMagic"));
+        boolean ack = in.readBoolean();
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        while (!threadDone) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if ((length < 2) || (length > MAX_MESSAGE))
+                throw new IOException(sm.getString("tcpCluster.badLength",
+                                                   String.valueOf(length)));
+            byte frame[] = new byte[length];
+            in.readFully(frame);
+
+            ByteArrayInputStream bis = new ByteArrayInputStream(frame);
+            DataInputStream dis = new DataInputStream(bis);
+            String senderId = dis.readUTF();
+            byte data[] = new byte[bis.available()];
+            dis.readFully(data);
+
+            TcpReceiver recv = null;
+            synchronized (receivers) {
+                recv = (TcpReceiver) receivers.get(senderId);
+            }
+            if (recv != null)
+                recv.receive(new ReplicationWrapper(data, senderId));
+            else if (debug > 1)
+                log(sm.getString("tcpCluster.noReceiver", senderId));
+
+            // Acknowledge, flushing once the messages read so far are done
+            if (ack) {
+                out.write(ACK);
+                if (in.available() == 0)
+                    out.flush();
+            }
+        }
+    }
+
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        lifecycle.addLifecycleListener(listener);
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+
+        return lifecycle.findLifecycleListeners();
+
+    }
+
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        lifecycle.removeLifecycleListener(listener);
+    }
+
+    /**
+     * Prepare for the beginning of active use of the public methods of this
+     * component.  This method should be called after <code>configure()</code>,
+     * and before any of the public methods of the component are utilized.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+        // Validate and update our current component state
+        if (started)
+            throw new LifecycleException(sm.getString("standardCluster.alreadyStarted"));
+
+        try {
+            InetAddress address = null;
+            if (tcpListenAddress != null)
+                address = InetAddress.getByName(tcpListenAddress);
+            serverSocket = new ServerSocket(tcpListenPort, 50, address);
+            tcpListenPort = serverSocket.getLocalPort();
+        } catch (IOException e) {
+            throw new LifecycleException(sm.getString("tcpCluster.listenException",
+                                                      tcpListenAddress + ":" +
+                                                      tcpListenPort,
+                                                      e.toString()));
+        }
+        if (debug > 0)
+            log(sm.getString("tcpCluster.listen",
+                             tcpListenAddress + ":" + tcpListenPort));
+
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        started = true;
+
+        // Add the configured members, leaving out the local member
+        synchronized (senders) {
+            Iterator keys = senders.keySet().iterator();
+            while (keys.hasNext()) {
+                TcpMemberSender sender =
+                    (TcpMemberSender) senders.get(keys.next());
+                if (isLocal(sender.getHost(), sender.getPort()))
+                    keys.remove();
+            }
+        }
+        if (members != null) {
+            StringTokenizer tokens = new StringTokenizer(members, ", \t\r\n");
+            while (tokens.hasMoreTokens()) {
+                String member = tokens.nextToken();
+                int colon = member.lastIndexOf(':');
+                try {
+                    addMember(member.substring(0, colon),
+                              Integer.parseInt(member.substring(colon + 1)));
+                } catch (RuntimeException e) {
+                    log(sm.getString("tcpCluster.invalidMember", member));
+                }
+            }
+        }
+        TcpMemberSender targets[] = null;
+        synchronized (senders) {
+            targets = (TcpMemberSender[])
+                senders.values().toArray(new TcpMemberSender[senders.size()]);
+        }
+        for (int i = 0; i < targets.length; i++)
+            targets[i].start();
+
+        // Start the background thread accepting connections
+        threadStart();
+
+        // Start discovering the members with heartbeats
+        if (heartbeatPort >= 0) {
+            membership = new HeartbeatMembership(this);
+            try {
+                membership.start();
+                heartbeatPort = membership.getLocalPort();
+            } catch (IOException e) {
+                membership = null;
+                throw new LifecycleException(sm.getString("tcpCluster.heartbeatListenException",
+                                                          getHeartbeatAddress() +
+                                                          ":" + heartbeatPort,
+                                                          e.toString()));
+            }
+        }
+    }
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component.  This method should be the last one called on a given
+     * instance of this component.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+        // Validate and update our current component state
+        if (!started)
+            throw new LifecycleException(sm.getString("standardCluster.notStarted"));
+
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        started = false;
+
+        // Stop the heartbeats
+        if (membership != null) {
+            membership.stop();
+            membership = null;
+        }
+
+        // Stop accepting and reading connections
+        threadDone = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            ;
+        }
+        synchronized (sockets) {
+            for (int i = 0; i < sockets.size(); i++) {
+                try {
+                    ((Socket) sockets.get(i)).close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+            sockets.clear();
+        }
+        threadStop();
+
+        // Stop the senders and receivers
+        TcpMemberSender targets[] = null;
+        synchronized (senders) {
+            targets = (TcpMemberSender[])
+                senders.values().toArray(new TcpMemberSender[senders.size()]);
+            senders.clear();
+        }
+        for (int i = 0; i < targets.length; i++)
+            targets[i].stop();
+        TcpReceiver recvs[] = null;
+        synchronized (receivers) {
+            recvs = (TcpReceiver[])
+                receivers.values().toArray(new TcpReceiver[receivers.size()]);
+            receivers.clear();
+        }
+        for (int i = 0; i < recvs.length; i++)
+            recvs[i].stop();
+        serverSocket = null;
+    }
+
+    // ------------------------------------------------------ Background Thread
+
+    /**
+     * The background thread accepting connections from the other members,
+     * each of which is read by a thread of its own.
+     */
+    public void run() {
+        // Loop until the termination semaphore is set
+        while (!threadDone) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!threadDone)
+                    log(sm.getString("tcpCluster.acceptException",
+                                     e.toString()));
+                continue;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Runnable reader = new Runnable() {
+                public void run() {
+                    try {
+                        socket.setTcpNoDelay(true);
+                        read(socket);
+                    } catch (SocketException e) {
+                        ;
+                    } catch (IOException e) {
+                        if (!threadDone)
+                            log(sm.getString("tcpCluster.readException",
+                                             socket.getInetAddress() + ":" +
+                                             socket.getPort(),
+                                             e.toString()));
+                    } finally {
+                        synchronized (sockets) {
+                            sockets.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            ;
+                        }
+                    }
+                }
+            };
+            Thread readerThread =
+                new Thread(reader, "TcpCluster[" + getClusterName() +
+                           "]-Reader-" + socket.getInetAddress() + ":" +
+                           socket.getPort());
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+    }
+
+    /**
+     * Start the background thread.
+     */
+    private void threadStart() {
+        if (thread != null)
+            return;
+
+        threadDone = false;
+        thread = new Thread(this, "TcpCluster[" + getClusterName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    private void threadStop() {
+        if (thread == null)
+            return;
+
+        threadDone = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+
+        thread = null;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+
+/**
+ * Sends the messages of a <code>TcpCluster</code> to one remote member.
+ * Each member is served by a fixed number of connections, each with its
+ * own bounded queue and background thread, so that callers only pay for
+ * queueing a message. Messages sent with the same key always use the same
+ * connection, and are therefore delivered in the order they were sent.
+ * <p>
+ * When the queue of a connection is full the caller waits for at most
+ * <code>queueTimeout</code> milliseconds before the message is dropped.
+ * While a member cannot be reached its messages are dropped at once, and
+ * a new connection is attempted every <code>RECONNECT</code> milliseconds.
+ * The same happens while the member is suspected of having failed by the
+ * heartbeat membership. A batch that fails to be written is retried once
+ * on a new connection, so a message may be delivered twice, and after
+ * messages sent later; the receivers discard such stale messages.
+ */
+
+final class TcpMemberSender {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The maximum number of messages written before waiting for their
+     * acknowledgements.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * The interval between connection attempts to an unreachable member,
+     * in milliseconds.
+     */
+    private static final long RECONNECT = 1000L;
+
+    /**
+     * The cluster we belong to.
+     */
+    private TcpCluster cluster = null;
+
+    /**
+     * The host name of the member.
+     */
+    private String host = null;
+
+    /**
+     * The replication port of the member.
+     */
+    private int port;
+
+    /**
+     * The connections to the member.
+     */
+    private Connection connections[] = null;
+
+    /**
+     * The connection used for the next message sent without a key.
+     */
+    private int next = 0;
+
+    /**
+     * Is the member suspected of having failed?
+     */
+    private boolean suspected = false;
+
+    /**
+     * The number of messages written to the member.
+     */
+    private long sent = 0;
+
+    /**
+     * The number of messages dropped because a queue stayed full.
+     */
+    private long dropped = 0;
+
+    /**
+     * The number of messages that could not be written to the member.
+     */
+    private long failed = 0;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new sender to the specified member.
+     *
+     * @param cluster The cluster we belong to
+     * @param host The host name of the member
+     * @param port The replication port of the member
+     */
+    TcpMemberSender(TcpCluster cluster, String host, int port) {
+        this.cluster = cluster;
+        this.host = host;
+        this.port = port;
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Return the host name of the member.
+     */
+    String getHost() {
+        return(this.host);
+    }
+
+    /**
+     * Return the replication port of the member.
+     */
+    int getPort() {
+        return(this.port);
+    }
+
+    /**
+     * Return the number of messages written to the member.
+     */
+    synchronized long getSent() {
+        return(this.sent);
+    }
+
+    /**
+     * Return the number of messages dropped because a queue stayed full
+     * or the member could not be reached.
+     */
+    synchronized long getDropped() {
+        return(this.dropped);
+    }
+
+    /**
+     * Return the number of messages that could not be written to the member.
+     */
+    synchronized long getFailed() {
+        return(this.failed);
+    }
+
+    /**
+     * Queue a message for the member. Return <code>false</code> if the
+     * message was dropped.
+     *
+     * @param key The ordering key of the message, or <code>null</code>
+     * @param frame The encoded message
+     */
+    boolean send(String key, byte[] frame) {
+        Connection connection = null;
+        synchronized (this) {
+            if (connections == null)
+                return(false);
+            if (suspected) {
+                dropped++;
+                return(false);
+            }
+            int i;
+            if (key != null) {
+                i = (key.hashCode() & 0x7fffffff) % connections.length;
+            } else {
+                i = next;
+                next = (next + 1) % connections.length;
+            }
+            connection = connections[i];
+        }
+
+        if (connection.enqueue(frame))
+            return(true);
+        synchronized (this) {
+            dropped++;
+        }
+        return(false);
+    }
+
+    /**
+     * Set whether the member is suspected of having failed, in which case
+     * its messages are dropped rather than queued.
+     *
+     * @param suspected Is the member suspected?
+     */
+    synchronized void setSuspected(boolean suspected) {
+        this.suspected = suspected;
+    }
+
+    /**
+     * Start the connections to the member.
+     */
+    synchronized void start() {
+        if (connections != null)
+            return;
+        connections = new Connection[Math.max(1, cluster.getConnectionsPerMember())];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(i);
+            connections[i].start();
+        }
+    }
+
+    /**
+     * Stop the connections to the member, dropping the queued messages.
+     */
+    void stop() {
+        Connection stopped[] = null;
+        synchronized (this) {
+            stopped = connections;
+            connections = null;
+        }
+        if (stopped == null)
+            return;
+        for (int i = 0; i < stopped.length; i++)
+            stopped[i].stop();
+    }
+
+    // ------------------------------------------------------- Private Methods
+
+    /**
+     * Record the outcome of writing a batch.
+     *
+     * @param n The number of messages in the batch
+     * @param ok Were they written?
+     */
+    private synchronized void count(int n, boolean ok) {
+        if (ok)
+            sent += n;
+        else
+            failed += n;
+    }
+
+    // ----------------------------------------------------------- Inner Classes
+
+    /**
+     * One connection to the member, with its queue and background thread.
+     */
+    private class Connection implements Runnable {
+
+        /**
+         * The messages waiting to be written.
+         */
+        private LinkedList queue = new LinkedList();
+
+        /**
+         * Can the member currently be reached?
+         */
+        private boolean available = true;
+
+        /**
+         * The background thread completion semaphore.
+         */
+        private volatile boolean threadDone = false;
+
+        /**
+         * The background thread.
+         */
+        private Thread thread = null;
+
+        /**
+         * The index of this connection.
+         */
+        private int index;
+
+        /**
+         * The socket connected to the member, if any.
+         */
+        private Socket socket = null;
+
+        /**
+         * The stream writing to the socket.
+         */
+        private DataOutputStream out = null;
+
+        /**
+         * The stream reading acknowledgements from the socket.
+         */
+        private InputStream in = null;
+
+        Connection(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Queue a message, waiting for room if the queue is full. Return
+         * <code>false</code> if the message was dropped.
+         *
+         * @param frame The encoded message
+         */
+        synchronized boolean enqueue(byte[] frame) {
+            if (threadDone || !available)
+                return(false);
+            int maxQueueSize = cluster.getMaxQueueSize();
+            if (queue.size() >= maxQueueSize) {
+                long end = System.currentTimeMillis() + cluster.getQueueTimeout();
+                while (queue.size() >= maxQueueSize) {
+                    long wait = end - System.currentTimeMillis();
+                    if (threadDone || !available || (wait <= 0))
+                        return(false);
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return(false);
+                    }
+                }
+            }
+            queue.addLast(frame);
+            notifyAll();
+            return(true);
+        }
+
+        /**
+         * Wait for queued messages, and return up to <code>MAX_BATCH</code>
+         * of them, or <code>null</code> if we are stopping.
+         */
+        private synchronized byte[][] take() {
+            while (queue.isEmpty() && !threadDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            if (threadDone)
+                return(null);
+            int n = Math.min(queue.size(), MAX_BATCH);
+            byte batch[][] = new byte[n][];
+            for (int i = 0; i < n; i++)
+                batch[i] = (byte[]) queue.removeFirst();
+            notifyAll();
+            return(batch);
+        }
+
+        /**
+         * Mark the member as reachable or not; queued messages are dropped
+         * when it is not.
+         *
+         * @param available Can the member be reached?
+         */
+        private void setAvailable(boolean available) {
+            int n = 0;
+            synchronized (this) {
+                this.available = available;
+                if (!available) {
+                    n = queue.size();
+                    queue.clear();
+                    notifyAll();
+                }
+            }
+            if (n > 0)
+                count(n, false);
+        }
+
+        /**
+         * Open the socket to the member, if it is not open yet.
+         *
+         * @exception IOException if the member cannot be reached
+         */
+        private void connect() throws IOException {
+            if (socket != null)
+                return;
+            Socket s = new Socket();
+            try {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(cluster.getAckTimeout());
+                s.connect(new InetSocketAddress(host, port),
+                          cluster.getAckTimeout());
+                out = new DataOutputStream
+                    (new BufferedOutputStream(s.getOutputStream()));
+                in = s.getInputStream();
+                out.writeInt(TcpCluster.MAGIC);
+                out.writeBoolean(cluster.getWaitForAck());
+                out.flush();
+            } catch (IOException e) {
+                try {
+                    s.close();
+                } catch (IOException f) {
+                    ;
+                }
+                throw e;
+            }
+            socket = s;
+            if (cluster.getDebug() > 1)
+                cluster.log(cluster.sm.getString("tcpCluster.connect",
+                                                 host + ":" + port));
+        }
+
+        /**
+         * Close the socket to the member, if it is open.
+         */
+        private void close() {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ;
+            }
+            socket = null;
+            out = null;
+            in = null;
+        }
+
+        /**
+         * Write a batch of messages, and wait for their acknowledgements if
+         * requested.
+         *
+         * @param batch The messages
+         *
+         * @exception IOException if an input/output error occurs
+         */
+        private void write(byte[][] batch) throws IOException {
+            for (int i = 0; i < batch.length; i++) {
+                out.writeInt(batch[i].length);
+                out.write(batch[i]);
+            }
+            out.flush();
+            if (!cluster.getWaitForAck())
+                return;
+            for (int i = 0; i < batch.length; i++) {
+                if (in.read() != TcpCluster.ACK)
+                    throw new IOException(cluster.sm.getString
+                                          ("tcpCluster.noAck", host + ":" + port));
+            }
+        }
+
+        /**
+         * The background thread.
+         */
+        public void run() {
+            while (!threadDone) {
+                // Wait for the member to be reachable before queueing
+                if (socket == null) {
+                    try {
+                        connect();
+                        setAvailable(true);
+                    } catch (IOException e) {
+                        if (available && !threadDone)
+                            cluster.log(cluster.sm.getString
+                                        ("tcpCluster.unreachable",
+                                         host + ":" + port, e.toString()));
+                        setAvailable(false);
+                        try {
+                            Thread.sleep(RECONNECT);
+                        } catch (InterruptedException f) {
+                            ;
+                        }
+                        continue;
+                    }
+                }
+
+                byte batch[][] = take();
+                if (batch == null)
+                    break;
+                IOException error = null;
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    try {
+                        connect();
+                        write(batch);
+                        error = null;
+                        break;
+                    } catch (IOException e) {
+                        error = e;
+                        close();
+                    }
+                }
+                count(batch.length, error == null);
+                if ((error != null) && !threadDone)
+                    cluster.log(cluster.sm.getString("tcpCluster.sendException",
+                                                     host + ":" + port,
+                                                     error.toString()));
+            }
+            close();
+        }
+
+        /**
+         * Start the background thread.
+         */
+        void start() {
+            threadDone = false;
+            thread = new Thread(this, "TcpCluster[" + cluster.getClusterName() +
+                                "]-Sender-" + host + ":" + port + "-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stop the background thread, without waiting for it to finish
+         * a connection attempt or a write in progress.
+         */
+        void stop() {
+            synchronized (this) {
+                threadDone = true;
+                queue.clear();
+                notifyAll();
+            }
+            thread.interrupt();
+            thread = null;
+        }
+    }
+}
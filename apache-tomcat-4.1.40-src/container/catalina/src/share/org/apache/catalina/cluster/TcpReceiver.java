@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+import java.util.LinkedList;
+
+/**
+ * A <code>ClusterReceiver</code> holding the data a <code>TcpCluster</code>
+ * received for our senderId until it is picked up. The data is pushed by
+ * the threads reading the connections of the cluster, so this component
+ * needs no thread of its own; callers may wait for data to arrive with
+ * <code>getObjects(long)</code> rather than polling.
+ * <p>
+ * At most <code>maxQueueSize</code> objects are held. When that many are
+ * waiting the connection that received the next one stops reading until
+ * they are picked up, which in turn makes the remote members queue (and
+ * eventually drop) their data instead of overwhelming us.
+ */
+
+public final class TcpReceiver
+    extends ClusterSessionBase implements ClusterReceiver {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The name of our component, used for logging.
+     */
+    private String receiverName = "TcpReceiver";
+
+    /**
+     * The queue that keeps incoming data
+     */
+    private LinkedList queue = new LinkedList();
+
+    /**
+     * The maximum number of objects held.
+     */
+    private int maxQueueSize;
+
+    /**
+     * Has this component been started?
+     */
+    private boolean started = false;
+
+    /**
+     * The interval for the background thread to sleep
+     */
+    private int checkInterval = 5;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Create a new TcpReceiver.
+     *
+     * @param senderId The unique senderId
+     * @param maxQueueSize The maximum number of objects held
+     */
+    TcpReceiver(String senderId, int maxQueueSize) {
+        setSenderId(senderId);
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Return a <code>String</code> containing the name of this
+     * implementation, used for logging
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.receiverName);
+    }
+
+    /**
+     * Set the time in seconds for this component to
+     * Sleep before it checks for new received data in the Cluster
+     *
+     * @param checkInterval The time to sleep
+     */
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Get the time in seconds this Cluster sleeps
+     *
+     * @return The time in seconds this Cluster sleeps
+     */
+    public int getCheckInterval() {
+        return(this.checkInterval);
+    }
+
+    /**
+     * Receive the objects currently in our queue and clear
+     * it afterwards.
+     *
+     * @return An array with <code>ReplicationWrapper</code> objects
+     */
+    public synchronized Object[] getObjects() {
+        Object[] objs = queue.toArray();
+        queue.clear();
+        notifyAll();
+        return(objs);
+    }
+
+    /**
+     * Receive the objects currently in our queue and clear it afterwards,
+     * waiting for at most the specified time if it is empty.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return An array with <code>ReplicationWrapper</code> objects,
+     *  which is empty if none arrived in time
+     */
+    public synchronized Object[] getObjects(long timeout) {
+        if (queue.isEmpty() && started && (timeout > 0)) {
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+        return(getObjects());
+    }
+
+    /**
+     * Start our component
+     */
+    public synchronized void start() {
+        started = true;
+    }
+
+    /**
+     * Stop our component, dropping the data not picked up yet
+     */
+    public synchronized void stop() {
+        started = false;
+        queue.clear();
+        notifyAll();
+    }
+
+    /**
+     * The data is pushed by the connections of the cluster, so there
+     * is nothing to do in a thread of our own.
+     */
+    public void run() {
+        ;
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Queue data received for our senderId, waiting while the queue is
+     * full. The data is dropped if we are not started.
+     *
+     * @param wrapper The data received
+     */
+    synchronized void receive(ReplicationWrapper wrapper) {
+        while (started && (queue.size() >= maxQueueSize)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (!started)
+            return;
+        queue.addLast(wrapper);
+        notifyAll();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * A <code>ClusterSender</code> that queues its data for the remote
+ * members of a <code>TcpCluster</code>. Sending returns as soon as the
+ * data is queued; it is written to the members in the background.
+ */
+
+public final class TcpSender
+    extends ClusterSessionBase implements ClusterSender {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The name of our component, used for logging.
+     */
+    private String senderName = "TcpSender";
+
+    /**
+     * The cluster sending our data.
+     */
+    private TcpCluster cluster = null;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Create a new TcpSender, only receivers with our
+     * senderId will receive our data.
+     *
+     * @param senderId The senderId
+     * @param cluster The cluster sending our data
+     */
+    TcpSender(String senderId, TcpCluster cluster) {
+        setSenderId(senderId);
+        this.cluster = cluster;
+    }
+
+    /**
+     * Return a <code>String</code> containing the name of this
+     * implementation, used for logging
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.senderName);
+    }
+
+    /**
+     * Send an object to every remote member
+     *
+     * @param o The object to be sent.
+     */
+    public void send(Object o) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos =
+                new ObjectOutputStream(new BufferedOutputStream(bos));
+            oos.writeObject(o);
+            oos.close();
+            send(bos.toByteArray());
+        } catch (IOException e) {
+            log(sm.getString("tcpSender.sendException", e.toString()));
+        }
+    }
+
+    /**
+     * Send data to every remote member
+     *
+     * @param b data to be sent
+     */
+    public void send(byte[] b) {
+        send(null, b);
+    }
+
+    /**
+     * Send data to every remote member. The data sent with the same key
+     * is received in the order it was sent; it is typically the identifier
+     * of the session the data is about. Return <code>false</code> if the
+     * data was dropped for at least one member, in which case the sender
+     * should not rely on it having been received.
+     *
+     * @param key The ordering key, or <code>null</code> if the order
+     *  does not matter
+     * @param b data to be sent
+     */
+    public boolean send(String key, byte[] b) {
+        int dropped = cluster.send(getSenderId(), key, b);
+        if (dropped == 0)
+            return(true);
+        if (getDebug() > 0)
+            log(sm.getString("tcpSender.dropped", getSenderId(),
+                             String.valueOf(dropped)));
+        return(false);
+    }
+}
@@ -20,8 +20,6 @@ package org.apache.catalina.core;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.security.PrivilegedActionException;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -67,17 +65,25 @@ final class ApplicationFilterChain implements FilterChain {
 
 
     /**
-     * The set of filters that will be executed on this chain.
+     * Shared zero-length filter array, used when no filters apply.
      */
-    private ArrayList filters = new ArrayList();
+    static final ApplicationFilterConfig[] NO_FILTERS =
+        new ApplicationFilterConfig[0];
 
 
     /**
-     * The iterator that is used to maintain the current position in the filter chain.
-     * This iterator is called the first time that <code>doFilter()</code>
-     * is called.
+     * The set of filters that will be executed on this chain.  This array
+     * may be shared with the filter cache of our Wrapper, and so must
+     * never be modified by this chain.
      */
-    private Iterator iterator = null;
+    private ApplicationFilterConfig[] filters = NO_FILTERS;
+
+
+    /**
+     * The int which is used to maintain the current position in the
+     * filter chain.
+     */
+    private int pos = 0;
 
 
     /**
@@ -149,39 +155,39 @@ final class ApplicationFilterChain implements FilterChain {
     private void internalDoFilter(ServletRequest request, ServletResponse response)
         throws IOException, ServletException {
 
-        // Construct an iterator the first time this method is called
-        if (this.iterator == null)
-            this.iterator = filters.iterator();
+        // Skip building instance events when nobody is listening
+        boolean events = support.hasListeners();
 
         // Call the next filter if there is one
-        if (this.iterator.hasNext()) {
-            ApplicationFilterConfig filterConfig =
-              (ApplicationFilterConfig) iterator.next();
+        if (pos < filters.length) {
+            ApplicationFilterConfig filterConfig = filters[pos++];
             Filter filter = null;
             try {
                 filter = filterConfig.getFilter();
-                support.fireInstanceEvent(InstanceEvent.BEFORE_FILTER_EVENT,
-                                          filter, request, response);
+                if (events)
+                    support.fireInstanceEvent(InstanceEvent.BEFORE_FILTER_EVENT,
+                                              filter, request, response);
                 filter.doFilter(request, response, this);
-                support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
-                                          filter, request, response);
+                if (events)
+                    support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
+                                              filter, request, response);
             } catch (IOException e) {
-                if (filter != null)
+                if (events && (filter != null))
                     support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
                                               filter, request, response, e);
                 throw e;
             } catch (ServletException e) {
-                if (filter != null)
+                if (events && (filter != null))
                     support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
                                               filter, request, response, e);
                 throw e;
             } catch (RuntimeException e) {
-                if (filter != null)
+                if (events && (filter != null))
                     support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
                                               filter, request, response, e);
                 throw e;
             } catch (Throwable e) {
-                if (filter != null)
+                if (events && (filter != null))
                     support.fireInstanceEvent(InstanceEvent.AFTER_FILTER_EVENT,
                                               filter, request, response, e);
                 throw new ServletException
@@ -192,8 +198,9 @@ final class ApplicationFilterChain implements FilterChain {
 
         // We fell off the end of the chain -- call the servlet instance
         try {
-            support.fireInstanceEvent(InstanceEvent.BEFORE_SERVICE_EVENT,
-                                      servlet, request, response);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.BEFORE_SERVICE_EVENT,
+                                          servlet, request, response);
             if ((request instanceof HttpServletRequest) &&
                 (response instanceof HttpServletResponse)) {
                 servlet.service((HttpServletRequest) request,
@@ -201,23 +208,28 @@ final class ApplicationFilterChain implements FilterChain {
             } else {
                 servlet.service(request, response);
             }
-            support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
-                                      servlet, request, response);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
+                                          servlet, request, response);
         } catch (IOException e) {
-            support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
-                                      servlet, request, response, e);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
+                                          servlet, request, response, e);
             throw e;
         } catch (ServletException e) {
-            support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
-                                      servlet, request, response, e);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
+                                          servlet, request, response, e);
             throw e;
         } catch (RuntimeException e) {
-            support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
-                                      servlet, request, response, e);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
+                                          servlet, request, response, e);
             throw e;
         } catch (Throwable e) {
-            support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
-                                      servlet, request, response, e);
+            if (events)
+                support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
+                                          servlet, request, response, e);
             throw new ServletException
               (sm.getString("filterChain.servlet"), e);
         }
@@ -230,25 +242,39 @@ final class ApplicationFilterChain implements FilterChain {
 
 
     /**
-     * Add a filter to the set of filters that will be executed in this chain.
-     *
-     * @param filterConfig The FilterConfig for the servlet to be executed
+     * Return <code>true</code> if this chain is currently assigned to a
+     * request, and so may not be reused until it has been released.
      */
-    void addFilter(ApplicationFilterConfig filterConfig) {
+    boolean isInUse() {
 
-        this.filters.add(filterConfig);
+        return (this.servlet != null);
 
     }
 
 
     /**
-     * Release references to the filters and wrapper executed by this chain.
+     * Release references to the filters and wrapper executed by this chain,
+     * so that it may be reused for a subsequent request.
      */
     void release() {
 
-        this.filters.clear();
-        this.iterator = null;
+        this.filters = NO_FILTERS;
+        this.pos = 0;
         this.servlet = null;
+        this.support = null;
+
+    }
+
+
+    /**
+     * Set the filters that will be executed in this chain, in order.
+     *
+     * @param filters The FilterConfigs for the filters to be executed
+     */
+    void setFilters(ApplicationFilterConfig[] filters) {
+
+        this.filters = filters;
+        this.pos = 0;
 
     }
 
@@ -1311,6 +1311,59 @@ public abstract class ContainerBase
     }
 
 
+    /**
+     * Return <code>true</code> if the time spent in each Valve of our
+     * Pipeline is being recorded.
+     */
+    public boolean getValveTiming() {
+
+        if (pipeline instanceof StandardPipeline)
+            return (((StandardPipeline) pipeline).getTiming());
+        else
+            return (false);
+
+    }
+
+
+    /**
+     * Enable or disable recording of the time spent in each Valve of our
+     * Pipeline, if it supports it.
+     *
+     * @param valveTiming The new timing flag
+     */
+    public void setValveTiming(boolean valveTiming) {
+
+        if (pipeline instanceof StandardPipeline)
+            ((StandardPipeline) pipeline).setTiming(valveTiming);
+
+    }
+
+
+    /**
+     * Return a description of the time spent in each Valve of our
+     * Pipeline, if it is being recorded.
+     */
+    public String[] getValveStatistics() {
+
+        if (pipeline instanceof StandardPipeline)
+            return (((StandardPipeline) pipeline).getValveStatistics());
+        else
+            return (new String[0]);
+
+    }
+
+
+    /**
+     * Reset the recorded time spent in each Valve of our Pipeline.
+     */
+    public void resetValveTimes() {
+
+        if (pipeline instanceof StandardPipeline)
+            ((StandardPipeline) pipeline).resetValveTimes();
+
+    }
+
+
 
     // ------------------------------------------------------ Protected Methods
 
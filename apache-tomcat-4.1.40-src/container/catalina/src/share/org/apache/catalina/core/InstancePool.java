@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import javax.servlet.Servlet;
+
+
+/**
+ * Bounded pool of the instances of a <code>SingleThreadModel</code> servlet,
+ * used by <code>StandardWrapper</code>.
+ * <p>
+ * The pool only does the bookkeeping: when no idle instance is available
+ * and the pool has not reached its maximum size, <code>acquire()</code>
+ * reserves a slot and returns <code>null</code>, and the caller creates the
+ * new instance <em>outside</em> of any lock.  Threads that must wait are
+ * queued in arrival order, and each released instance is handed directly
+ * to the longest waiting thread, which is woken up on its own monitor.
+ * The pool lock is therefore only held for a few field updates.
+ * <p>
+ * The pool also records how often, and how long, requests had to wait for
+ * an instance.
+ */
+
+final class InstancePool {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new pool holding at most the specified number of
+     * instances.
+     *
+     * @param maxInstances Maximum number of instances
+     */
+    InstancePool(int maxInstances) {
+
+        super();
+        this.maxInstances = maxInstances;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of instances currently handed out.
+     */
+    private int countAllocated = 0;
+
+
+    /**
+     * The number of acquisitions that found the pool exhausted, and so had
+     * to wait for an instance to be released.
+     */
+    private long exhaustedCount = 0L;
+
+
+    /**
+     * The instances currently available, most recently released last.
+     */
+    private ArrayList idle = new ArrayList();
+
+
+    /**
+     * The maximum number of instances in this pool.
+     */
+    private int maxInstances = 0;
+
+
+    /**
+     * The longest time (in milliseconds) a thread waited for an instance.
+     */
+    private long maxWaitTime = 0L;
+
+
+    /**
+     * The number of instances created (or being created) for this pool.
+     */
+    private int size = 0;
+
+
+    /**
+     * The threads waiting for an instance, in arrival order.
+     */
+    private LinkedList waiters = new LinkedList();
+
+
+    /**
+     * The cumulative time (in milliseconds) threads waited for an instance.
+     */
+    private long waitTime = 0L;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of instances currently handed out.
+     */
+    synchronized int getCountAllocated() {
+
+        return (this.countAllocated);
+
+    }
+
+
+    /**
+     * Return the number of acquisitions that had to wait for an instance.
+     */
+    synchronized long getExhaustedCount() {
+
+        return (this.exhaustedCount);
+
+    }
+
+
+    /**
+     * Return the number of idle instances.
+     */
+    synchronized int getIdleCount() {
+
+        return (idle.size());
+
+    }
+
+
+    /**
+     * Set the maximum number of instances in this pool.  Existing instances
+     * are kept if the pool shrinks; they are simply not replaced.
+     *
+     * @param maxInstances The new maximum
+     */
+    synchronized void setMaxInstances(int maxInstances) {
+
+        this.maxInstances = maxInstances;
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) a thread waited for an
+     * instance.
+     */
+    synchronized long getMaxWaitTime() {
+
+        return (this.maxWaitTime);
+
+    }
+
+
+    /**
+     * Return the number of instances created for this pool.
+     */
+    synchronized int getSize() {
+
+        return (this.size);
+
+    }
+
+
+    /**
+     * Return the number of threads currently waiting for an instance.
+     */
+    synchronized int getWaitingCount() {
+
+        return (waiters.size());
+
+    }
+
+
+    /**
+     * Return the cumulative time (in milliseconds) threads waited for an
+     * instance.
+     */
+    synchronized long getWaitTime() {
+
+        return (this.waitTime);
+
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Return an idle instance of this pool, waiting (in arrival order) for
+     * one to be released if necessary.  If the pool may grow instead, a
+     * slot is reserved and <code>null</code> is returned: the caller must
+     * then create the new instance, and either use it or give the slot back
+     * with <code>cancel()</code>.
+     */
+    Servlet acquire() {
+
+        Waiter waiter = null;
+        synchronized (this) {
+            if (!idle.isEmpty()) {
+                countAllocated++;
+                return ((Servlet) idle.remove(idle.size() - 1));
+            }
+            if (size < maxInstances) {
+                size++;
+                countAllocated++;
+                return (null);
+            }
+            exhaustedCount++;
+            waiter = new Waiter();
+            waiters.addLast(waiter);
+        }
+
+        long start = System.currentTimeMillis();
+        synchronized (waiter) {
+            while (!waiter.done) {
+                try {
+                    waiter.wait();
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            waitTime += elapsed;
+            if (elapsed > maxWaitTime)
+                maxWaitTime = elapsed;
+        }
+        return (waiter.instance);
+
+    }
+
+
+    /**
+     * Add a newly created instance to the idle instances of this pool,
+     * unless the pool is already full.  Return <code>true</code> if the
+     * instance was added.
+     *
+     * @param servlet The new instance
+     */
+    boolean add(Servlet servlet) {
+
+        synchronized (this) {
+            if (size >= maxInstances)
+                return (false);
+            size++;
+            countAllocated++;
+        }
+        release(servlet);
+        return (true);
+
+    }
+
+
+    /**
+     * Give back a slot reserved by <code>acquire()</code> for an instance
+     * that could not be created.  If threads are waiting, the longest
+     * waiting one is told to create an instance itself.
+     */
+    void cancel() {
+
+        Waiter waiter = null;
+        synchronized (this) {
+            countAllocated--;
+            if (waiters.isEmpty()) {
+                size--;
+                return;
+            }
+            waiter = (Waiter) waiters.removeFirst();
+            countAllocated++;
+        }
+        waiter.hand(null);
+
+    }
+
+
+    /**
+     * Return a previously acquired instance to this pool, handing it
+     * directly to the longest waiting thread if there is one.
+     *
+     * @param servlet The instance being released
+     */
+    void release(Servlet servlet) {
+
+        Waiter waiter = null;
+        synchronized (this) {
+            if (waiters.isEmpty()) {
+                countAllocated--;
+                idle.add(servlet);
+                return;
+            }
+            waiter = (Waiter) waiters.removeFirst();
+        }
+        waiter.hand(servlet);
+
+    }
+
+
+    /**
+     * Remove and return all idle instances of this pool, so that they can
+     * be destroyed.
+     */
+    synchronized Servlet[] drain() {
+
+        Servlet results[] = (Servlet[]) idle.toArray(new Servlet[idle.size()]);
+        idle.clear();
+        size -= results.length;
+        return (results);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A thread waiting for an instance, notified on its own monitor.
+     */
+    private static final class Waiter {
+
+        /**
+         * Has this waiter been handed its result?
+         */
+        boolean done = false;
+
+        /**
+         * The instance handed to this waiter, or <code>null</code> if the
+         * waiter must create one.
+         */
+        Servlet instance = null;
+
+        /**
+         * Hand the specified instance to this waiter, and wake it up.
+         */
+        synchronized void hand(Servlet instance) {
+            this.instance = instance;
+            this.done = true;
+            notify();
+        }
+
+    }
+
+
+}
@@ -233,6 +233,15 @@ public class StandardContext
     private FilterMap filterMaps[] = new FilterMap[0];
 
 
+    /**
+     * Revision number of the filter configuration of this application,
+     * incremented whenever filter mappings are added or removed, or the
+     * filter instances are (re)started or stopped.  Used by our Wrappers
+     * to invalidate their cached filter chains.
+     */
+    private volatile int filterRevision = 0;
+
+
     /**
      * The descriptive information string for this implementation.
      */
@@ -240,6 +249,14 @@ public class StandardContext
         "org.apache.catalina.core.StandardContext/1.0";
 
 
+    /**
+     * The number of instances of each single thread model servlet created
+     * when it is loaded, set on each newly created Wrapper by
+     * <code>createWrapper()</code>.
+     */
+    private int initialInstances = 0;
+
+
     /**
      * The set of classnames of InstanceListeners that will be added
      * to each newly created Wrapper by <code>createWrapper()</code>.
@@ -835,6 +852,34 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the number of instances of each single thread model servlet
+     * created when it is loaded.
+     */
+    public int getInitialInstances() {
+
+        return (this.initialInstances);
+
+    }
+
+
+    /**
+     * Set the number of instances of each single thread model servlet
+     * created when it is loaded, for the servlets defined after this call.
+     *
+     * @param initialInstances The new number of instances
+     */
+    public void setInitialInstances(int initialInstances) {
+
+        int oldInitialInstances = this.initialInstances;
+        this.initialInstances = initialInstances;
+        support.firePropertyChange("initialInstances",
+                                   new Integer(oldInitialInstances),
+                                   new Integer(this.initialInstances));
+
+    }
+
+
     /**
      * Set the Loader with which this Context is associated.
      *
@@ -1554,6 +1599,7 @@ public class StandardContext
             System.arraycopy(filterMaps, 0, results, 0, filterMaps.length);
             results[filterMaps.length] = filterMap;
             filterMaps = results;
+            filterRevision++;
         }
         fireContainerEvent("addFilterMap", filterMap);
 
@@ -1834,7 +1880,8 @@ public class StandardContext
      */
     public Wrapper createWrapper() {
 
-        Wrapper wrapper = new StandardWrapper();
+        StandardWrapper wrapper = new StandardWrapper();
+        wrapper.setInitialInstances(initialInstances);
 
         synchronized (instanceListeners) {
             for (int i = 0; i < instanceListeners.length; i++) {
@@ -2058,6 +2105,18 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the current revision number of the filter configuration of
+     * this Context.  Any change to the filter mappings or to the set of
+     * initialized filters results in a different value.
+     */
+    int getFilterRevision() {
+
+        return (filterRevision);
+
+    }
+
+
     /**
      * Return the set of InstanceListener classes that will be added to
      * newly created Wrappers automatically.
@@ -2854,6 +2913,7 @@ public class StandardContext
             System.arraycopy(filterMaps, n + 1, results, n,
                              (filterMaps.length - 1) - n);
             filterMaps = results;
+            filterRevision++;
 
         }
 
@@ -3216,6 +3276,7 @@ public class StandardContext
                     ok = false;
                 }
             }
+            filterRevision++;
         }
 
         return (ok);
@@ -3245,6 +3306,7 @@ public class StandardContext
                 filterConfig.release();
             }
             filterConfigs.clear();
+            filterRevision++;
         }
         return (true);
 
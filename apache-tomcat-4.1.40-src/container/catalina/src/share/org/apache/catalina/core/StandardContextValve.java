@@ -23,12 +23,15 @@ import java.io.IOException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.apache.catalina.Context;
 import org.apache.catalina.HttpRequest;
+import org.apache.catalina.Manager;
 import org.apache.catalina.Request;
 import org.apache.catalina.Response;
 import org.apache.catalina.ValveContext;
 import org.apache.catalina.Wrapper;
+import org.apache.catalina.session.DistributedManager;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.ValveBase;
 
@@ -136,7 +139,17 @@ final class StandardContextValve
         // Ask this Wrapper to process this Request
         response.setContext(context);
 
-        wrapper.invoke(request, response);
+        try {
+            wrapper.invoke(request, response);
+        } finally {
+            // Replicate the session changes made by this request, if any
+            Manager manager = context.getManager();
+            if (manager instanceof DistributedManager) {
+                HttpSession session = hreq.getSession(false);
+                if (session != null)
+                    ((DistributedManager) manager).replicate(session.getId());
+            }
+        }
 
     }
 
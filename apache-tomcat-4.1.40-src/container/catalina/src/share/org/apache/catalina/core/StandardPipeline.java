@@ -31,7 +31,6 @@ import org.apache.catalina.Pipeline;
 import org.apache.catalina.Request;
 import org.apache.catalina.Response;
 import org.apache.catalina.Valve;
-import org.apache.catalina.ValveContext;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 
@@ -40,11 +39,16 @@ import org.apache.catalina.util.StringManager;
  * Standard implementation of a processing <b>Pipeline</b> that will invoke
  * a series of Valves that have been configured to be called in order.  This
  * implementation can be used for any type of Container.
- *
- * <b>IMPLEMENTATION WARNING</b> - This implementation assumes that no
- * calls to <code>addValve()</code> or <code>removeValve</code> are allowed
- * while a request is currently being processed.  Otherwise, the mechanism
- * by which per-thread state is maintained will need to be modified.
+ * <p>
+ * The configured Valves (including the basic one) are compiled into a
+ * single array whenever they change, and the position of each request in
+ * that array is tracked by a <code>StandardValveContext</code> stored in a
+ * note of the request, shared by every pipeline the request passes through.
+ * Requests already in progress keep using the array they started with when
+ * Valves are added or removed.
+ * <p>
+ * Optionally, the time spent in each Valve (excluding the Valves and nested
+ * Pipelines it invokes) can be accumulated, see <code>setTiming()</code>.
  *
  * @author Craig R. McClanahan
  */
@@ -113,6 +117,13 @@ public class StandardPipeline
     protected LifecycleSupport lifecycle = new LifecycleSupport(this);
 
 
+    /**
+     * The name of the request note holding the ValveContext of the request.
+     */
+    private static final String VALVE_CONTEXT_NOTE =
+        "org.apache.catalina.core.StandardPipeline.VALVE_CONTEXT";
+
+
     /**
      * The string manager for this package.
      */
@@ -133,6 +144,34 @@ public class StandardPipeline
     protected Valve valves[] = new Valve[0];
 
 
+    /**
+     * The Valves to be invoked for each request, in order, with the basic
+     * Valve (if any) last.  This array is replaced, never modified, when
+     * the configuration of this Pipeline changes.
+     */
+    protected volatile Valve chain[] = new Valve[0];
+
+
+    /**
+     * Should the time spent in each Valve be recorded?
+     */
+    protected boolean timing = false;
+
+
+    /**
+     * The cumulative time (in milliseconds) spent in each Valve of
+     * <code>chain</code>, if timing is enabled.
+     */
+    protected long valveTimes[] = new long[0];
+
+
+    /**
+     * The number of invocations of each Valve of <code>chain</code>, if
+     * timing is enabled.
+     */
+    protected long valveCounts[] = new long[0];
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -146,6 +185,90 @@ public class StandardPipeline
     }
 
 
+    /**
+     * Return <code>true</code> if the time spent in each Valve is being
+     * recorded.
+     */
+    public boolean getTiming() {
+
+        return (this.timing);
+
+    }
+
+
+    /**
+     * Enable or disable recording of the time spent in each Valve.  Enabling
+     * timing resets the previously recorded statistics.
+     *
+     * @param timing The new timing flag
+     */
+    public void setTiming(boolean timing) {
+
+        if (timing && !this.timing)
+            resetValveTimes();
+        this.timing = timing;
+
+    }
+
+
+    /**
+     * Return the cumulative time (in milliseconds) spent in each Valve of
+     * this Pipeline, in the order returned by <code>getValves()</code>.
+     * The time spent in subsequent Valves and in nested Pipelines is not
+     * included.
+     */
+    public long[] getValveTimes() {
+
+        synchronized (this) {
+            return ((long[]) valveTimes.clone());
+        }
+
+    }
+
+
+    /**
+     * Return a description of the recorded statistics of each Valve of this
+     * Pipeline, suitable for display through JMX.
+     */
+    public String[] getValveStatistics() {
+
+        Valve current[] = null;
+        long times[] = null;
+        long counts[] = null;
+        synchronized (this) {
+            current = chain;
+            times = (long[]) valveTimes.clone();
+            counts = (long[]) valveCounts.clone();
+        }
+        String results[] = new String[current.length];
+        for (int i = 0; i < current.length; i++) {
+            StringBuffer sb = new StringBuffer();
+            sb.append(current[i].getClass().getName());
+            sb.append(": invocations=");
+            sb.append(counts[i]);
+            sb.append(", time=");
+            sb.append(times[i]);
+            sb.append("ms");
+            results[i] = sb.toString();
+        }
+        return (results);
+
+    }
+
+
+    /**
+     * Reset the recorded statistics of each Valve of this Pipeline.
+     */
+    public void resetValveTimes() {
+
+        synchronized (this) {
+            valveTimes = new long[chain.length];
+            valveCounts = new long[chain.length];
+        }
+
+    }
+
+
     // ------------------------------------------------------ Contained Methods
 
 
@@ -344,6 +467,7 @@ public class StandardPipeline
             }
         }
         this.basic = valve;
+        compile();
 
     }
 
@@ -388,6 +512,7 @@ public class StandardPipeline
             System.arraycopy(valves, 0, results, 0, valves.length);
             results[valves.length] = valve;
             valves = results;
+            compile();
         }
 
     }
@@ -400,14 +525,7 @@ public class StandardPipeline
      */
     public Valve[] getValves() {
 
-        if (basic == null)
-            return (valves);
-        synchronized (valves) {
-            Valve results[] = new Valve[valves.length + 1];
-            System.arraycopy(valves, 0, results, 0, valves.length);
-            results[valves.length] = basic;
-            return (results);
-        }
+        return ((Valve[]) chain.clone());
 
     }
 
@@ -429,8 +547,28 @@ public class StandardPipeline
     public void invoke(Request request, Response response)
         throws IOException, ServletException {
 
+        // Acquire the ValveContext noted on this request, if any
+        StandardValveContext valveContext =
+            (StandardValveContext) request.getNote(VALVE_CONTEXT_NOTE);
+        if (valveContext == null) {
+            valveContext = new StandardValveContext();
+            request.setNote(VALVE_CONTEXT_NOTE, valveContext);
+        }
+
+        // Remember where an enclosing pipeline (if any) stands
+        StandardPipeline outerPipeline = valveContext.getPipeline();
+        Valve outerValves[] = valveContext.getValves();
+        int outerStage = valveContext.getStage();
+        boolean outerTiming = valveContext.isTiming();
+
         // Invoke the first Valve in this pipeline for this request
-        (new StandardPipelineValveContext()).invokeNext(request, response);
+        valveContext.set(this, chain, timing);
+        try {
+            valveContext.invokeNext(request, response);
+        } finally {
+            valveContext.restore(outerPipeline, outerValves, outerStage,
+                                 outerTiming);
+        }
 
     }
 
@@ -467,6 +605,7 @@ public class StandardPipeline
                 results[n++] = valves[i];
             }
             valves = results;
+            compile();
             try {
                 if (valve instanceof Contained)
                     ((Contained) valve).setContainer(null);
@@ -488,9 +627,57 @@ public class StandardPipeline
     }
 
 
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Add the specified time to the statistics of a Valve, unless the
+     * configuration of this Pipeline has changed in the meantime.
+     *
+     * @param valves The compiled Valves the request was processed with
+     * @param index Index of the Valve in <code>valves</code>
+     * @param time Time spent in the Valve, in milliseconds
+     */
+    void recordTime(Valve valves[], int index, long time) {
+
+        // NOTE - Unsynchronized, like the other request statistics
+        long times[] = valveTimes;
+        long counts[] = valveCounts;
+        if ((valves != chain) || (index >= times.length))
+            return;
+        times[index] += time;
+        counts[index]++;
+
+    }
+
+
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Rebuild the array of Valves invoked for each request, after the
+     * configured Valves or the basic Valve have changed.
+     */
+    protected void compile() {
+
+        synchronized (this) {
+            Valve current[] = valves;
+            Valve results[] = null;
+            if (basic == null) {
+                results = current;
+            } else {
+                results = new Valve[current.length + 1];
+                System.arraycopy(current, 0, results, 0, current.length);
+                results[current.length] = basic;
+            }
+            valveTimes = new long[results.length];
+            valveCounts = new long[results.length];
+            chain = results;
+        }
+
+    }
+
+
     /**
      * Log a message on the Logger associated with our Container (if any).
      *
@@ -534,75 +721,4 @@ public class StandardPipeline
     }
 
 
-    // ------------------------------- StandardPipelineValveContext Inner Class
-
-
-    protected class StandardPipelineValveContext
-        implements ValveContext {
-
-
-        // ------------------------------------------------- Instance Variables
-
-
-        protected int stage = 0;
-
-
-        // --------------------------------------------------------- Properties
-
-
-        /**
-          * Return descriptive information about this ValveContext 
-          * implementation.
-          */
-        public String getInfo() {
-            return info;
-        }
-
-
-        // ----------------------------------------------------- Public Methods
-
-
-        /**
-         * Cause the <code>invoke()</code> method of the next Valve that is 
-         * part of the Pipeline currently being processed (if any) to be 
-         * executed, passing on the specified request and response objects 
-         * plus this <code>ValveContext</code> instance.  Exceptions thrown by
-         * a subsequently executed Valve (or a Filter or Servlet at the 
-         * application level) will be passed on to our caller.
-         *
-         * If there are no more Valves to be executed, an appropriate
-         * ServletException will be thrown by this ValveContext.
-         *
-         * @param request The request currently being processed
-         * @param response The response currently being created
-         *
-         * @exception IOException if thrown by a subsequent Valve, Filter, or
-         *  Servlet
-         * @exception ServletException if thrown by a subsequent Valve, Filter,
-         *  or Servlet
-         * @exception ServletException if there are no further Valves 
-         *  configured in the Pipeline currently being processed
-         */
-        public void invokeNext(Request request, Response response)
-            throws IOException, ServletException {
-
-            int subscript = stage;
-            stage = stage + 1;
-
-            // Invoke the requested Valve for the current request thread
-            if (subscript < valves.length) {
-                valves[subscript].invoke(request, response, this);
-            } else if ((subscript == valves.length) && (basic != null)) {
-                basic.invoke(request, response, this);
-            } else {
-                throw new ServletException
-                    (sm.getString("standardPipeline.noValve"));
-            }
-
-        }
-
-
-    }
-
-
 }
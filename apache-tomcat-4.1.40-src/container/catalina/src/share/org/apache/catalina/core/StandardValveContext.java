@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import org.apache.catalina.Request;
+import org.apache.catalina.Response;
+import org.apache.catalina.Valve;
+import org.apache.catalina.ValveContext;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Implementation of a <code>ValveContext</code> that walks the compiled
+ * Valve array of a <code>StandardPipeline</code>.  One instance is stored in
+ * a note of each Request and is reused by every Pipeline the Request passes
+ * through, so that only the first Pipeline allocates it.
+ */
+
+public final class StandardValveContext
+    implements ValveContext {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The descriptive information related to this implementation.
+     */
+    private static final String info =
+        "org.apache.catalina.core.StandardValveContext/1.0";
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The Pipeline currently being processed.
+     */
+    private StandardPipeline pipeline = null;
+
+
+    /**
+     * The Valves of the Pipeline currently being processed, including the
+     * basic Valve as the last element.
+     */
+    private Valve valves[] = null;
+
+
+    /**
+     * The index of the next Valve to be invoked.
+     */
+    private int stage = 0;
+
+
+    /**
+     * Are we recording the time spent in each Valve?
+     */
+    private boolean timing = false;
+
+
+    /**
+     * The elapsed time of the most recently completed stage, including
+     * everything it invoked.  Used to compute the time spent in a Valve
+     * itself, excluding the Valves (and nested Pipelines) it invoked.
+     */
+    private long elapsed = 0L;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return descriptive information about this ValveContext implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Cause the <code>invoke()</code> method of the next Valve that is part
+     * of the Pipeline currently being processed (if any) to be executed,
+     * passing on the specified request and response objects plus this
+     * <code>ValveContext</code> instance.  Exceptions thrown by a
+     * subsequently executed Valve (or a Filter or Servlet at the application
+     * level) will be passed on to our caller.
+     *
+     * If there are no more Valves to be executed, an appropriate
+     * ServletException will be thrown by this ValveContext.
+     *
+     * @param request The request currently being processed
+     * @param response The response currently being created
+     *
+     * @exception IOException if thrown by a subsequent Valve, Filter, or
+     *  Servlet
+     * @exception ServletException if thrown by a subsequent Valve, Filter,
+     *  or Servlet
+     * @exception ServletException if there are no further Valves
+     *  configured in the Pipeline currently being processed
+     */
+    public void invokeNext(Request request, Response response)
+        throws IOException, ServletException {
+
+        int subscript = stage;
+        stage = subscript + 1;
+
+        if ((valves == null) || (subscript >= valves.length))
+            throw new ServletException
+                (sm.getString("standardPipeline.noValve"));
+
+        // Invoke the requested Valve for the current request thread
+        if (!timing) {
+            valves[subscript].invoke(request, response, this);
+            return;
+        }
+
+        // Invoke the requested Valve, recording the time spent in it
+        StandardPipeline current = pipeline;
+        Valve chain[] = valves;
+        long start = System.currentTimeMillis();
+        elapsed = 0L;
+        try {
+            chain[subscript].invoke(request, response, this);
+        } finally {
+            long total = System.currentTimeMillis() - start;
+            current.recordTime(chain, subscript, total - elapsed);
+            elapsed = total;
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Prepare this context to process the specified Pipeline, starting with
+     * its first Valve.  Callers processing a nested Pipeline must save the
+     * previous state of this context, and put it back with
+     * <code>restore()</code> once the nested Pipeline has completed.
+     *
+     * @param pipeline The Pipeline to be processed
+     * @param valves The compiled Valves of this Pipeline
+     * @param timing Should the time spent in each Valve be recorded?
+     */
+    void set(StandardPipeline pipeline, Valve valves[], boolean timing) {
+
+        this.pipeline = pipeline;
+        this.valves = valves;
+        this.stage = 0;
+        this.timing = timing;
+
+    }
+
+
+    /**
+     * Return the Pipeline currently being processed, if any.
+     */
+    StandardPipeline getPipeline() {
+
+        return (this.pipeline);
+
+    }
+
+
+    /**
+     * Return the compiled Valves currently being processed, if any.
+     */
+    Valve[] getValves() {
+
+        return (this.valves);
+
+    }
+
+
+    /**
+     * Return the index of the next Valve to be invoked.
+     */
+    int getStage() {
+
+        return (this.stage);
+
+    }
+
+
+    /**
+     * Return whether the time spent in each Valve is being recorded.
+     */
+    boolean isTiming() {
+
+        return (this.timing);
+
+    }
+
+
+    /**
+     * Restore the state of this context to process the remainder of an
+     * enclosing Pipeline.
+     *
+     * @param pipeline The Pipeline to be resumed
+     * @param valves The compiled Valves of this Pipeline
+     * @param stage The index of the next Valve to be invoked
+     * @param timing Should the time spent in each Valve be recorded?
+     */
+    void restore(StandardPipeline pipeline, Valve valves[], int stage,
+                 boolean timing) {
+
+        this.pipeline = pipeline;
+        this.valves = valves;
+        this.stage = stage;
+        this.timing = timing;
+
+    }
+
+
+}
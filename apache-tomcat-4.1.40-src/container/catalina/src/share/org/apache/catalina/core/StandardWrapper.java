@@ -22,7 +22,6 @@ package org.apache.catalina.core;
 import java.io.PrintStream;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Stack;
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -185,15 +184,15 @@ public final class StandardWrapper
 
 
     /**
-     * Number of instances currently loaded for a STM servlet.
+     * Number of STM instances to create when this servlet is loaded.
      */
-    private int nInstances = 0;
+    private int initialInstances = 0;
 
 
     /**
-     * Stack containing the STM instances.
+     * Pool containing the STM instances.
      */
-    private Stack instancePool = null;
+    private InstancePool instancePool = null;
 
 
     /**
@@ -245,6 +244,9 @@ public final class StandardWrapper
      */
     public int getCountAllocated() {
 
+        InstancePool pool = instancePool;
+        if (singleThreadModel && (pool != null))
+            return (pool.getCountAllocated());
         return (this.countAllocated);
 
     }
@@ -374,6 +376,108 @@ public final class StandardWrapper
 
 
 
+    /**
+     * Return the number of instances that will be created when a single
+     * thread model servlet is loaded.
+     */
+    public int getInitialInstances() {
+
+        return (this.initialInstances);
+
+    }
+
+
+    /**
+     * Set the number of instances that will be created when a single thread
+     * model servlet is loaded, so that the first requests do not have to
+     * wait for them.  This is capped by <code>maxInstances</code>, and takes
+     * effect the next time the servlet is loaded.  The Wrappers created by
+     * a <code>StandardContext</code> get the <code>initialInstances</code>
+     * property of the Context.
+     *
+     * @param initialInstances New value of initialInstances
+     */
+    public void setInitialInstances(int initialInstances) {
+
+        int oldInitialInstances = this.initialInstances;
+        this.initialInstances = initialInstances;
+        support.firePropertyChange("initialInstances", oldInitialInstances,
+                                   this.initialInstances);
+
+    }
+
+
+    /**
+     * Return the number of instances created for a single thread model
+     * servlet.
+     */
+    public int getInstanceCount() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0 : pool.getSize());
+
+    }
+
+
+    /**
+     * Return the number of idle instances of a single thread model servlet.
+     */
+    public int getIdleInstanceCount() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0 : pool.getIdleCount());
+
+    }
+
+
+    /**
+     * Return the number of requests currently waiting for an instance of a
+     * single thread model servlet.
+     */
+    public int getWaitingAllocations() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0 : pool.getWaitingCount());
+
+    }
+
+
+    /**
+     * Return the number of allocations that found all the instances of a
+     * single thread model servlet in use, and had to wait.
+     */
+    public long getExhaustedCount() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0L : pool.getExhaustedCount());
+
+    }
+
+
+    /**
+     * Return the cumulative time (in milliseconds) requests waited for an
+     * instance of a single thread model servlet.
+     */
+    public long getInstanceWaitTime() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0L : pool.getWaitTime());
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) a request waited for an
+     * instance of a single thread model servlet.
+     */
+    public long getMaxInstanceWaitTime() {
+
+        InstancePool pool = instancePool;
+        return ((pool == null) ? 0L : pool.getMaxWaitTime());
+
+    }
+
+
     /**
      * Return maximum number of instances that will be allocated when a single
      * thread model servlet is used.
@@ -395,6 +499,9 @@ public final class StandardWrapper
 
         int oldMaxInstances = this.maxInstances;
         this.maxInstances = maxInstances;
+        InstancePool pool = instancePool;
+        if (pool != null)
+            pool.setMaxInstances(maxInstances);
         support.firePropertyChange("maxInstances", oldMaxInstances, 
                                    this.maxInstances);
 
@@ -630,34 +737,24 @@ public final class StandardWrapper
 
         }
 
-        synchronized (instancePool) {
-
-            while (countAllocated >= nInstances) {
-                // Allocate a new instance if possible, or else wait
-                if (nInstances < maxInstances) {
-                    try {
-                        instancePool.push(loadServlet());
-                        nInstances++;
-                    } catch (ServletException e) {
-                        throw e;
-                    } catch (Throwable e) {
-                        throw new ServletException
-                            (sm.getString("standardWrapper.allocate"), e);
-                    }
-                } else {
-                    try {
-                        instancePool.wait();
-                    } catch (InterruptedException e) {
-                        ;
-                    }
-                }
+        // Take an idle instance, or create a new one if the pool may grow
+        InstancePool pool = instancePool;
+        Servlet servlet = pool.acquire();
+        if (servlet == null) {
+            try {
+                servlet = loadServlet();
+            } catch (ServletException e) {
+                pool.cancel();
+                throw e;
+            } catch (Throwable e) {
+                pool.cancel();
+                throw new ServletException
+                    (sm.getString("standardWrapper.allocate"), e);
             }
-            if (debug >= 2)
-                log("  Returning allocated STM instance");
-            countAllocated++;
-            return (Servlet) instancePool.pop();
-
         }
+        if (debug >= 2)
+            log("  Returning allocated STM instance");
+        return (servlet);
 
     }
 
@@ -680,11 +777,7 @@ public final class StandardWrapper
         }
 
         // Unlock and free this instance
-        synchronized (instancePool) {
-            countAllocated--;
-            instancePool.push(servlet);
-            instancePool.notify();
-        }
+        instancePool.release(servlet);
 
     }
 
@@ -766,6 +859,16 @@ public final class StandardWrapper
      */
     public synchronized void load() throws ServletException {
         instance = loadServlet();
+
+        // Create the requested number of STM instances up front
+        if (singleThreadModel) {
+            int n = Math.min(initialInstances, maxInstances) -
+                instancePool.getSize();
+            for (int i = 0; i < n; i++) {
+                if (!instancePool.add(loadServlet()))
+                    break;
+            }
+        }
     }
 
 
@@ -913,7 +1016,7 @@ public final class StandardWrapper
             singleThreadModel = servlet instanceof SingleThreadModel;
             if (singleThreadModel) {
                 if (instancePool == null)
-                    instancePool = new Stack();
+                    instancePool = new InstancePool(maxInstances);
             }
             fireContainerEvent("load", this);
         } finally {
@@ -1036,11 +1139,11 @@ public final class StandardWrapper
 
         // Loaf a while if the current instance is allocated
         // (possibly more than once if non-STM)
-        if (countAllocated > 0) {
+        if (getCountAllocated() > 0) {
             int nRetries = 0;
             while (nRetries < 10) {
                 if (nRetries == 0) {
-                    log("Waiting for " + countAllocated +
+                    log("Waiting for " + getCountAllocated() +
                         " instance(s) to be deallocated");
                 }
                 try {
@@ -1069,7 +1172,6 @@ public final class StandardWrapper
               (InstanceEvent.AFTER_DESTROY_EVENT, instance, t);
             instance = null;
             instancePool = null;
-            nInstances = 0;
             fireContainerEvent("unload", this);
             unloading = false;
             throw new ServletException
@@ -1094,12 +1196,11 @@ public final class StandardWrapper
 
         if (singleThreadModel && (instancePool != null)) {
             try {
-                while (!instancePool.isEmpty()) {
-                    ((Servlet) instancePool.pop()).destroy();
-                }
+                Servlet idle[] = instancePool.drain();
+                for (int i = 0; i < idle.length; i++)
+                    idle[i].destroy();
             } catch (Throwable t) {
                 instancePool = null;
-                nInstances = 0;
                 unloading = false;
                 fireContainerEvent("unload", this);
                 throw new ServletException
@@ -1107,7 +1208,6 @@ public final class StandardWrapper
                                   getName()), t);
             }
             instancePool = null;
-            nInstances = 0;
         }
 
         singleThreadModel = false;
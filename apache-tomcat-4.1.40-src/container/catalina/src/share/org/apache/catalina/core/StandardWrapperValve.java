@@ -20,6 +20,8 @@ package org.apache.catalina.core;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -66,6 +68,26 @@ final class StandardWrapperValve
      */
     private FilterDef filterDef = null;
 
+
+    /**
+     * The filter configuration resolved for our Wrapper, valid for a
+     * particular revision of the filter configuration of our Context.
+     */
+    private volatile FilterCache filterCache = null;
+
+
+    /**
+     * The maximum number of distinct request paths for which the resolved
+     * filter chain is remembered.
+     */
+    private static final int maxCachedPaths = 256;
+
+
+    /**
+     * The recycled filter chain for each request processing thread.
+     */
+    private static final ThreadLocal filterChains = new ThreadLocal();
+
     // Some JMX statistics. This vavle is associated with a StandardWrapper.
     // We exponse the StandardWrapper as JMX ( j2eeType=Servlet ). The fields
     // are here for performance.
@@ -300,9 +322,9 @@ final class StandardWrapperValve
     /**
      * Construct and return a FilterChain implementation that will wrap the
      * execution of the specified servlet instance.  If we should not execute
-     * a filter chain at all, return <code>null</code>.
-     * <p>
-     * <strong>FIXME</strong> - Pool the chain instances!
+     * a filter chain at all, return <code>null</code>.  Chain instances are
+     * recycled per request processing thread, unless running under a
+     * security manager.
      *
      * @param request The servlet request we are processing
      * @param servlet The servlet instance to be wrapped
@@ -314,23 +336,52 @@ final class StandardWrapperValve
         if (servlet == null)
             return (null);
 
-        // Create and initialize a filter chain object
-        ApplicationFilterChain filterChain =
-          new ApplicationFilterChain();
+        // Acquire a filter chain object, reusing this thread's if possible
+        ApplicationFilterChain filterChain = null;
+        if (System.getSecurityManager() == null) {
+            filterChain = (ApplicationFilterChain) filterChains.get();
+            if (filterChain == null) {
+                filterChain = new ApplicationFilterChain();
+                filterChains.set(filterChain);
+            } else if (filterChain.isInUse()) {
+                filterChain = new ApplicationFilterChain();
+            }
+        } else {
+            filterChain = new ApplicationFilterChain();
+        }
         filterChain.setServlet(servlet);
         StandardWrapper wrapper = (StandardWrapper) getContainer();
         filterChain.setSupport(wrapper.getInstanceSupport());
+        filterChain.setFilters(findFilters(request, wrapper));
+        return (filterChain);
 
-        // Acquire the filter mappings for this Context
+    }
+
+
+    /**
+     * Return the filters that must be applied to the specified request,
+     * in the order they must be executed.  The result is computed once per
+     * distinct context-relative request path and cached, until the filter
+     * configuration of our Context changes.
+     *
+     * @param request The servlet request we are processing
+     * @param wrapper The Wrapper we are associated with
+     */
+    private ApplicationFilterConfig[] findFilters(Request request,
+                                                  StandardWrapper wrapper) {
+
+        // Make sure our cached filter configuration is still current
         StandardContext context = (StandardContext) wrapper.getParent();
-        FilterMap filterMaps[] = context.findFilterMaps();
+        int revision = context.getFilterRevision();
+        FilterCache cache = filterCache;
+        if ((cache == null) || (cache.revision != revision)) {
+            cache = new FilterCache(context, wrapper.getName(), revision);
+            filterCache = cache;
+        }
 
-        // If there are no filter mappings, we are done
-        if ((filterMaps == null) || (filterMaps.length == 0))
-            return (filterChain);
-//        if (debug >= 1)
-//            log("createFilterChain:  Processing " + filterMaps.length +
-//                " filter map entries");
+        // Without URL dependent mappings, every request gets the same chain
+        if (cache.urlMaps.length == 0)
+            return (cache.servletFilters);
 
         // Acquire the information we will need to match filter mappings
         String requestPath = null;
@@ -344,63 +395,47 @@ final class StandardWrapperValve
             if (requestURI.length() >= contextPath.length())
                 requestPath = requestURI.substring(contextPath.length());
         }
-        String servletName = wrapper.getName();
-//        if (debug >= 1) {
-//            log(" requestPath=" + requestPath);
-//            log(" servletName=" + servletName);
-//        }
-        int n = 0;
-
-        // Add the relevant path-mapped filters to this filter chain
-        for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking path-mapped filter '" +
-//                    filterMaps[i] + "'");
-            if (!matchFiltersURL(filterMaps[i], requestPath))
-                continue;
-            ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
-                context.findFilterConfig(filterMaps[i].getFilterName());
-            if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing path-mapped filter '" +
-//                        filterMaps[i] + "'");
-                ;       // FIXME - log configuration problem
-                continue;
-            }
-//            if (debug >= 2)
-//                log(" Adding path-mapped filter '" +
-//                    filterConfig.getFilterName() + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
+        if (requestPath == null)
+            return (cache.servletFilters);
+        if (cache.pathIndependent)
+            return (cache.allFilters);
+
+        // Look for a previously computed chain for this path
+        ApplicationFilterConfig filters[] = null;
+        synchronized (cache.paths) {
+            filters = (ApplicationFilterConfig[]) cache.paths.get(requestPath);
         }
+        if (filters != null)
+            return (filters);
 
-        // Add filters that match on servlet name second
-        for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking servlet-mapped filter '" +
-//                    filterMaps[i] + "'");
-            if (!matchFiltersServlet(filterMaps[i], servletName))
-                continue;
-            ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
-                context.findFilterConfig(filterMaps[i].getFilterName());
-            if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing servlet-mapped filter '" +
-//                        filterMaps[i] + "'");
-                ;       // FIXME - log configuration problem
-                continue;
-            }
-//            if (debug >= 2)
-//                log(" Adding servlet-mapped filter '" +
-//                     filterMaps[i] + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
+        // Add the relevant path-mapped filters first, then the filters
+        // that match on servlet name
+        int n = 0;
+        ApplicationFilterConfig results[] = new ApplicationFilterConfig
+            [cache.urlMaps.length + cache.servletFilters.length];
+        for (int i = 0; i < cache.urlMaps.length; i++) {
+            if (matchFiltersURL(cache.urlMaps[i], requestPath))
+                results[n++] = cache.urlFilters[i];
+        }
+        System.arraycopy(cache.servletFilters, 0, results, n,
+                         cache.servletFilters.length);
+        n += cache.servletFilters.length;
+        if (n == 0) {
+            filters = ApplicationFilterChain.NO_FILTERS;
+        } else if (n == results.length) {
+            filters = results;
+        } else {
+            filters = new ApplicationFilterConfig[n];
+            System.arraycopy(results, 0, filters, 0, n);
         }
 
-        // Return the completed filter chain
-//        if (debug >= 2)
-//            log(" Returning chain with " + n + " filters");
-        return (filterChain);
+        // Remember this chain, within the bounds of our cache
+        synchronized (cache.paths) {
+            if (cache.paths.size() >= maxCachedPaths)
+                cache.paths.clear();
+            cache.paths.put(requestPath, filters);
+        }
+        return (filters);
 
     }
 
@@ -480,29 +515,6 @@ final class StandardWrapperValve
     }
 
 
-    /**
-     * Return <code>true</code> if the specified servlet name matches
-     * the requirements of the specified filter mapping; otherwise
-     * return <code>false</code>.
-     *
-     * @param filterMap Filter mapping being checked
-     * @param servletName Servlet name being checked
-     */
-    private boolean matchFiltersServlet(FilterMap filterMap,
-                                        String servletName) {
-
-//      if (debug >= 3)
-//          log("  Matching servlet name '" + servletName +
-//              "' against mapping " + filterMap);
-
-        if (servletName == null)
-            return (false);
-        else
-            return (servletName.equals(filterMap.getServletName()));
-
-    }
-
-
     /**
      * Return <code>true</code> if the context-relative request path
      * matches the requirements of the specified filter mapping;
@@ -591,4 +603,103 @@ final class StandardWrapperValve
     public void setErrorCount(int errorCount) {
         this.errorCount = errorCount;
     }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The filter mappings of a Context that are relevant to one particular
+     * Wrapper, resolved to their initialized filter configurations.
+     */
+    private static final class FilterCache {
+
+        /**
+         * Construct the filter configuration for the specified servlet.
+         *
+         * @param context The Context owning the filter mappings
+         * @param servletName Name of the servlet being filtered
+         * @param revision Filter configuration revision of the Context
+         */
+        FilterCache(StandardContext context, String servletName,
+                    int revision) {
+
+            this.revision = revision;
+            FilterMap filterMaps[] = context.findFilterMaps();
+            ArrayList maps = new ArrayList();
+            ArrayList urls = new ArrayList();
+            ArrayList names = new ArrayList();
+            boolean universal = true;
+            for (int i = 0; i < filterMaps.length; i++) {
+                ApplicationFilterConfig filterConfig =
+                    (ApplicationFilterConfig) context.findFilterConfig
+                    (filterMaps[i].getFilterName());
+                if (filterConfig == null)
+                    continue;   // FIXME - log configuration problem
+                String urlPattern = filterMaps[i].getURLPattern();
+                if (urlPattern != null) {
+                    maps.add(filterMaps[i]);
+                    urls.add(filterConfig);
+                    if (!urlPattern.equals("/*"))
+                        universal = false;
+                } else if ((servletName != null) &&
+                           servletName.equals(filterMaps[i].getServletName())) {
+                    names.add(filterConfig);
+                }
+            }
+            this.urlMaps = (FilterMap[]) maps.toArray(new FilterMap[0]);
+            this.urlFilters = (ApplicationFilterConfig[])
+                urls.toArray(new ApplicationFilterConfig[0]);
+            this.servletFilters = (ApplicationFilterConfig[])
+                names.toArray(new ApplicationFilterConfig[0]);
+            this.pathIndependent = universal;
+            if (universal) {
+                urls.addAll(names);
+                this.allFilters = (ApplicationFilterConfig[])
+                    urls.toArray(new ApplicationFilterConfig[0]);
+            } else {
+                this.allFilters = null;
+            }
+
+        }
+
+        /**
+         * The Context filter configuration revision this cache reflects.
+         */
+        final int revision;
+
+        /**
+         * The URL pattern filter mappings, in declaration order.
+         */
+        final FilterMap urlMaps[];
+
+        /**
+         * The filter configurations corresponding to <code>urlMaps</code>.
+         */
+        final ApplicationFilterConfig urlFilters[];
+
+        /**
+         * The filters mapped to our servlet by name, in declaration order.
+         */
+        final ApplicationFilterConfig servletFilters[];
+
+        /**
+         * Are all URL pattern mappings "/*", so that every request path
+         * gets the same chain?
+         */
+        final boolean pathIndependent;
+
+        /**
+         * The complete chain when <code>pathIndependent</code> is set.
+         */
+        final ApplicationFilterConfig allFilters[];
+
+        /**
+         * The chains already computed, keyed by context-relative path.
+         */
+        final HashMap paths = new HashMap();
+
+    }
+
+
 }
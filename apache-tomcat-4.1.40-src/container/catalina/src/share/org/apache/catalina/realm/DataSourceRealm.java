@@ -276,6 +276,11 @@ public class DataSourceRealm
             return null;
         }
 
+        // Answer a repeated authentication from the cache, if enabled
+        Principal cached = getCachedPrincipal(username, credentials);
+        if (cached != null)
+            return (cached);
+
         Connection dbConnection = null;
 
         try {
@@ -288,7 +293,10 @@ public class DataSourceRealm
             }
 
             // Acquire a Principal object for this user
-            return authenticate(dbConnection, username, credentials);
+            Principal principal =
+                authenticate(dbConnection, username, credentials);
+            cachePrincipal(username, credentials, principal);
+            return (principal);
 
         } catch (SQLException e) {
             // Log the problem for posterity
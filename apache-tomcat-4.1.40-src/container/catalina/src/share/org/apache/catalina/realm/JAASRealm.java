@@ -234,6 +234,11 @@ public class JAASRealm
      */
     public Principal authenticate(String username, String credentials) {
 
+        // Answer a repeated authentication from the cache, if enabled
+        Principal cached = getCachedPrincipal(username, credentials);
+        if (cached != null)
+            return (cached);
+
         // Establish a LoginContext to use for authentication
         LoginContext loginContext = null;
         try {
@@ -281,6 +286,7 @@ public class JAASRealm
         if (debug >= 2) {
             log(sm.getString("jaasRealm.authenticateSuccess", username));
         }
+        cachePrincipal(username, credentials, principal);
         return (principal);
 
     }
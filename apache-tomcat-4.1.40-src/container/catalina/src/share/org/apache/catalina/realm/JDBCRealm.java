@@ -26,6 +26,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.catalina.LifecycleException;
@@ -38,9 +41,11 @@ import org.apache.catalina.util.StringManager;
 * See the JDBCRealm.howto for more details on how to set up the database and
 * for configuration options.
 *
-* <p><strong>TODO</strong> - Support connection pooling (including message
-* format objects) so that <code>authenticate()</code> does not have to be
-* synchronized and would fix the ugly connection logic. </p>
+* <p>Users are authenticated concurrently, each on a database connection
+* taken from a pool of at most <code>maxActive</code> connections, which
+* keep their prepared statements open.  Unless <code>combineQueries</code>
+* is <code>false</code>, the credentials and roles of a user are read with
+* one query joining the user table with the user role table.</p>
 *
 * @author Craig R. McClanahan
 * @author Carson McDonald
@@ -55,6 +60,19 @@ public class JDBCRealm
     // ----------------------------------------------------- Instance Variables
 
 
+    /**
+     * Should the credentials and roles of a user be read with a single
+     * query?
+     */
+    protected boolean combineQueries = true;
+
+
+    /**
+     * The number of open database connections, in use or not.
+     */
+    protected int connectionCount = 0;
+
+
     /**
      * The connection username to use when trying to connect to the database.
      */
@@ -68,15 +86,16 @@ public class JDBCRealm
 
 
     /**
-     * The connection URL to use when trying to connect to the database.
+     * The open database connections that are not in use, the most
+     * recently released last.
      */
-    protected String connectionURL = null;
+    protected ArrayList connections = new ArrayList();
 
 
     /**
-     * The connection to the database.
+     * The connection URL to use when trying to connect to the database.
      */
-    protected Connection dbConnection = null;
+    protected String connectionURL = null;
 
 
     /**
@@ -98,6 +117,19 @@ public class JDBCRealm
         "org.apache.catalina.realm.JDBCRealm/1.0";
 
 
+    /**
+     * The maximum number of database connections open at once.
+     */
+    protected int maxActive = 8;
+
+
+    /**
+     * The maximum number of milliseconds to wait for a database connection
+     * when all of them are in use.
+     */
+    protected int maxWait = 10000;
+
+
     /**
      * Descriptive information about this Realm implementation.
      */
@@ -105,16 +137,19 @@ public class JDBCRealm
 
 
     /**
-     * The PreparedStatement to use for authenticating users.
+     * The PreparedStatements of each open database connection, keyed by
+     * connection, indexed by <code>CREDENTIALS</code>, <code>ROLES</code>
+     * and <code>PRINCIPAL</code>.
      */
-    protected PreparedStatement preparedCredentials = null;
+    protected HashMap preparedStatements = new HashMap();
 
 
     /**
-     * The PreparedStatement to use for identifying the roles for
-     * a specified user.
+     * The indexes of the PreparedStatements of a database connection.
      */
-    protected PreparedStatement preparedRoles = null;
+    protected static final int CREDENTIALS = 0;
+    protected static final int ROLES = 1;
+    protected static final int PRINCIPAL = 2;
 
 
     /**
@@ -207,6 +242,24 @@ public class JDBCRealm
       this.connectionURL = connectionURL;
     }
 
+    /**
+     * Return whether the credentials and roles of a user are read with a
+     * single query.
+     */
+    public boolean getCombineQueries() {
+        return combineQueries;
+    }
+
+    /**
+     * Set whether the credentials and roles of a user are read with a
+     * single query, joining the user table with the user role table.
+     *
+     * @param combineQueries The new flag
+     */
+    public void setCombineQueries(boolean combineQueries) {
+        this.combineQueries = combineQueries;
+    }
+
     /**
      * Return the JDBC driver that will be used.
      *
@@ -224,6 +277,41 @@ public class JDBCRealm
       this.driverName = driverName;
     }
 
+    /**
+     * Return the maximum number of database connections open at once.
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Set the maximum number of database connections open at once, which
+     * is the number of users that can be authenticated concurrently.
+     *
+     * @param maxActive The new maximum number of connections
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * Return the maximum number of milliseconds to wait for a database
+     * connection when all of them are in use.
+     */
+    public int getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Set the maximum number of milliseconds to wait for a database
+     * connection when all of them are in use.
+     *
+     * @param maxWait The new maximum wait
+     */
+    public void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
     /**
      * Return the column in the user role table that names a role.
      *
@@ -327,29 +415,28 @@ public class JDBCRealm
      * @param credentials Password or other credentials to use in
      *  authenticating this username
      */
-    public synchronized Principal authenticate(String username, String credentials) {
+    public Principal authenticate(String username, String credentials) {
+
+        // Answer a repeated authentication from the cache, if enabled
+        Principal cached = getCachedPrincipal(username, credentials);
+        if (cached != null)
+            return (cached);
 
-        // Number of tries is the numebr of attempts to connect to the database
-        // during this login attempt (if we need to open the database)
-        // This needs rewritten wuth better pooling support, the existing code
-        // needs signature changes since the Prepared statements needs cached
-        // with the connections.
-        // The code below will try twice if there is a SQLException so the
-        // connection may try to be opened again. On normal conditions (including
-        // invalid login - the above is only used once.
+        // The code below will try twice if there is a SQLException, as the
+        // pooled connections may have been closed by the database. On normal
+        // conditions (including invalid login) it is only used once.
         int numberOfTries = 2;
         while (numberOfTries>0) {
+            Connection dbConnection = null;
             try {
 
-                // Ensure that we have an open database connection
-                open();
+                // Take a database connection from the pool
+                dbConnection = open();
 
                 // Acquire a Principal object for this user
-                Principal principal = authenticate(dbConnection,
-                                                   username, credentials);
-
-
-                // Return the Principal (if any)
+                Principal principal = checkCredentials(dbConnection,
+                                                       username, credentials);
+                cachePrincipal(username, credentials, principal);
                 return (principal);
 
             } catch (SQLException e) {
@@ -357,9 +444,20 @@ public class JDBCRealm
                 // Log the problem for posterity
                 log(sm.getString("jdbcRealm.exception"), e);
 
-                // Close the connection so that it gets reopened next time
-                if (dbConnection != null)
-                    close(dbConnection);
+                // No connection could be opened or became available
+                if (dbConnection == null)
+                    return (null);
+
+                // Close this connection, and the idle ones that are likely
+                // to have failed the same way, so that they get reopened
+                close(dbConnection);
+                closeConnections();
+                dbConnection = null;
+
+            } finally {
+
+                // Return the connection to the pool, whatever was thrown
+                release(dbConnection);
 
             }
 
@@ -381,15 +479,42 @@ public class JDBCRealm
     /**
      * Return the Principal associated with the specified username and
      * credentials, if there is one; otherwise return <code>null</code>.
+     * A database error is logged, and <code>null</code> returned.
      *
      * @param dbConnection The database connection to be used
      * @param username Username of the Principal to look up
      * @param credentials Password or other credentials to use in
      *  authenticating this username
      */
-    public synchronized Principal authenticate(Connection dbConnection,
-                                               String username,
-                                               String credentials) {
+    public Principal authenticate(Connection dbConnection,
+                                  String username,
+                                  String credentials) {
+
+        try {
+            return (checkCredentials(dbConnection, username, credentials));
+        } catch (SQLException e) {
+            log(sm.getString("jdbcRealm.exception"), e);
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * Return the Principal associated with the specified username and
+     * credentials, if there is one; otherwise return <code>null</code>.
+     *
+     * @param dbConnection The database connection to be used
+     * @param username Username of the Principal to look up
+     * @param credentials Password or other credentials to use in
+     *  authenticating this username
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected Principal checkCredentials(Connection dbConnection,
+                                         String username,
+                                         String credentials)
+        throws SQLException {
 
         // No user or no credentials
         // Can't possibly authenticate, don't bother the database then
@@ -397,8 +522,18 @@ public class JDBCRealm
             return null;
         }
 
-        // Look up the user's credentials
-        String dbCredentials = getPassword(username);
+        // Look up the user's credentials, and roles if we can at once
+        String dbCredentials = null;
+        List roles = null;
+        if (combineQueries) {
+            GenericPrincipal principal = getPrincipal(dbConnection, username);
+            if (principal != null) {
+                dbCredentials = principal.getPassword();
+                roles = Arrays.asList(principal.getRoles());
+            }
+        } else {
+            dbCredentials = getPassword(dbConnection, username);
+        }
 
         // Validate the user's credentials
         boolean validated = false;
@@ -419,7 +554,8 @@ public class JDBCRealm
             return (null);
         }
 
-        ArrayList roles = getRoles(username);
+        if (roles == null)
+            roles = getRoles(dbConnection, username);
         
         // Create and return a suitable Principal for this user
         return (new GenericPrincipal(this, username, credentials, roles));
@@ -427,7 +563,7 @@ public class JDBCRealm
 
 
     /**
-     * Close the specified database connection.
+     * Close the specified database connection, and its prepared statements.
      *
      * @param dbConnection The connection to be closed
      */
@@ -437,30 +573,33 @@ public class JDBCRealm
         if (dbConnection == null)
             return;
 
-        // Close our prepared statements (if any)
-        try {
-            preparedCredentials.close();
-        } catch (Throwable f) {
-            ;
+        // Forget about this connection
+        PreparedStatement statements[] = null;
+        synchronized (connections) {
+            statements = (PreparedStatement[])
+                preparedStatements.remove(dbConnection);
+            if (statements != null) {
+                connectionCount--;
+                connections.notifyAll();
+            }
         }
-        this.preparedCredentials = null;
 
-
-        try {
-            preparedRoles.close();
-        } catch (Throwable f) {
-            ;
+        // Close our prepared statements (if any)
+        for (int i = 0; (statements != null) && (i < statements.length); i++) {
+            if (statements[i] == null)
+                continue;
+            try {
+                statements[i].close();
+            } catch (Throwable f) {
+                ;
+            }
         }
-        this.preparedRoles = null;
-
 
         // Close this database connection, and log any errors
         try {
             dbConnection.close();
         } catch (SQLException e) {
             log(sm.getString("jdbcRealm.close"), e); // Just log it here
-        } finally {
-           this.dbConnection = null;
         }
 
     }
@@ -479,7 +618,8 @@ public class JDBCRealm
                                             String username)
         throws SQLException {
 
-        if (preparedCredentials == null) {
+        PreparedStatement[] statements = statements(dbConnection);
+        if (statements[CREDENTIALS] == null) {
             StringBuffer sb = new StringBuffer("SELECT ");
             sb.append(userCredCol);
             sb.append(" FROM ");
@@ -487,10 +627,11 @@ public class JDBCRealm
             sb.append(" WHERE ");
             sb.append(userNameCol);
             sb.append(" = ?");
-            preparedCredentials =
+            statements[CREDENTIALS] =
                 dbConnection.prepareStatement(sb.toString());
         }
 
+        PreparedStatement preparedCredentials = statements[CREDENTIALS];
         if (username == null) {
             preparedCredentials.setNull(1,java.sql.Types.VARCHAR);
         } else {
@@ -516,20 +657,45 @@ public class JDBCRealm
      */
     protected String getPassword(String username) {
 
+        Connection dbConnection = null;
+        try {
+            dbConnection = open();
+            return (getPassword(dbConnection, username));
+        } catch(SQLException e){
+            log(sm.getString("jdbcRealm.getPassword.exception", username));
+            close(dbConnection);
+            dbConnection = null;
+        } finally {
+            release(dbConnection);
+        }
+        
+        return (null);
+
+    }
+
+
+    /**
+     * Return the password associated with the given principal's user name.
+     *
+     * @param dbConnection The database connection to be used
+     * @param username Username for which password should be retrieved
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected String getPassword(Connection dbConnection, String username)
+        throws SQLException {
+
         // Look up the user's credentials
         String dbCredentials = null;
-        PreparedStatement stmt = null;
         ResultSet rs = null;
 
         try {
-            stmt = credentials(dbConnection, username);
+            PreparedStatement stmt = credentials(dbConnection, username);
             rs = stmt.executeQuery();
 
             if (rs.next()) {
                 dbCredentials = rs.getString(1);
             }
-            rs.close();
-            rs = null;
             if (dbCredentials == null) {
                 return (null);
             }
@@ -537,24 +703,9 @@ public class JDBCRealm
             dbCredentials = dbCredentials.trim();
             return dbCredentials;
             
-        } catch(SQLException e){
-            log(sm.getString("jdbcRealm.getPassword.exception", username));
         } finally {
-            if (rs!=null) {
-                try {
-                    rs.close();
-                } catch(SQLException e) {
-                    log(sm.getString("jdbcRealm.abnormalCloseResultSet"));
-                }
-            }
-            try {
-                dbConnection.commit();
-            } catch (SQLException e) {
-                log(sm.getString("jdbcRealm.getPassword.exception", username));
-            }
+            close(rs);
         }
-        
-        return (null);
 
     }
 
@@ -564,10 +715,75 @@ public class JDBCRealm
      */
     protected Principal getPrincipal(String username) {
 
-        return (new GenericPrincipal(this,
-                                     username,
-                                     getPassword(username),
-                                     getRoles(username)));
+        Connection dbConnection = null;
+        try {
+            dbConnection = open();
+            GenericPrincipal principal = getPrincipal(dbConnection, username);
+            if (principal != null)
+                return (principal);
+        } catch(SQLException e){
+            log(sm.getString("jdbcRealm.getPassword.exception", username));
+            close(dbConnection);
+            dbConnection = null;
+        } finally {
+            release(dbConnection);
+        }
+
+        return (new GenericPrincipal(this, username, null, new ArrayList()));
+
+    }
+
+
+    /**
+     * Return the Principal associated with the given user name, holding
+     * the credentials stored in the database, or <code>null</code> if
+     * there is no such user.
+     *
+     * @param dbConnection The database connection to be used
+     * @param username Username of the Principal to look up
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected GenericPrincipal getPrincipal(Connection dbConnection,
+                                            String username)
+        throws SQLException {
+
+        if (!combineQueries) {
+            String dbCredentials = getPassword(dbConnection, username);
+            if (dbCredentials == null)
+                return (null);
+            return (new GenericPrincipal(this, username, dbCredentials,
+                                         getRoles(dbConnection, username)));
+        }
+
+        // Read the credentials, repeated on each row, and the roles
+        String dbCredentials = null;
+        ArrayList roleList = new ArrayList();
+        boolean found = false;
+        ResultSet rs = null;
+
+        try {
+            PreparedStatement stmt = principal(dbConnection, username);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                if (!found) {
+                    dbCredentials = rs.getString(1);
+                    found = true;
+                }
+                String role = rs.getString(2);
+                if (null!=role) {
+                    roleList.add(role.trim());
+                }
+            }
+        } finally {
+            close(rs);
+        }
+
+        if (!found)
+            return (null);
+        if (dbCredentials != null)
+            dbCredentials = dbCredentials.trim();
+        return (new GenericPrincipal(this, username, dbCredentials, roleList));
 
     }
 
@@ -577,13 +793,40 @@ public class JDBCRealm
      */
     protected ArrayList getRoles(String username) {
         
-        PreparedStatement stmt = null;
+        Connection dbConnection = null;
+        try {
+            dbConnection = open();
+            return (getRoles(dbConnection, username));
+        } catch(SQLException e){
+            log(sm.getString("jdbcRealm.getRoles.exception", username));
+            close(dbConnection);
+            dbConnection = null;
+        } finally {
+            release(dbConnection);
+        }
+
+        return (null);
+        
+    }
+
+
+    /**
+     * Return the roles associated with the gven user name.
+     *
+     * @param dbConnection The database connection to be used
+     * @param username Username for which roles should be retrieved
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected ArrayList getRoles(Connection dbConnection, String username)
+        throws SQLException {
+        
         ResultSet rs = null;
 
         try {
             // Accumulate the user's roles
             ArrayList roleList = new ArrayList();
-            stmt = roles(dbConnection, username);
+            PreparedStatement stmt = roles(dbConnection, username);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 String role = rs.getString(1);
@@ -591,64 +834,114 @@ public class JDBCRealm
                     roleList.add(role.trim());
                 }
             }
-            rs.close();
-            rs = null;
-            
             return (roleList);
             
-        } catch(SQLException e){
-            log(sm.getString("jdbcRealm.getRoles.exception", username));
         } finally {
-            if (rs!=null) {
+            close(rs);
+        }
+
+    }
+    
+    
+    /**
+     * Return a database connection for use by this Realm, either idle in
+     * the pool or newly opened.  If <code>maxActive</code> connections are
+     * in use already, wait for at most <code>maxWait</code> milliseconds
+     * for one to be released.  The connection must be given back with
+     * <code>release()</code>, or with <code>close()</code> if it failed.
+     *
+     * @exception SQLException if a database error occurs, or no connection
+     *  became available in time
+     */
+    protected Connection open() throws SQLException {
+
+        // Reuse an idle connection, waiting for one if all are in use
+        synchronized (connections) {
+            long end = System.currentTimeMillis() + maxWait;
+            while (connections.isEmpty() &&
+                   (connectionCount >= Math.max(1, maxActive))) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    throw new SQLException
+                        (sm.getString("jdbcRealm.maxWait",
+                                      String.valueOf(connectionCount),
+                                      String.valueOf(maxWait)));
                 try {
-                    rs.close();
-                } catch(SQLException e) {
-                    log(sm.getString("jdbcRealm.abnormalCloseResultSet"));
+                    connections.wait(wait);
+                } catch (InterruptedException e) {
+                    ;
                 }
             }
-            try {
-                dbConnection.commit();
-            } catch (SQLException e) {
-                log(sm.getString("jdbcRealm.getRoles.exception", username));
+            if (!connections.isEmpty())
+                return ((Connection)
+                        connections.remove(connections.size() - 1));
+            connectionCount++;
+        }
+
+        // Open a new connection, outside of the pool lock
+        Connection dbConnection = null;
+        try {
+            dbConnection = connect();
+            synchronized (connections) {
+                preparedStatements.put(dbConnection, new PreparedStatement[3]);
+            }
+            return (dbConnection);
+        } finally {
+            if (dbConnection == null) {
+                synchronized (connections) {
+                    connectionCount--;
+                    connections.notifyAll();
+                }
             }
         }
 
-        return (null);
-        
     }
-    
-    
+
+
     /**
-     * Open (if necessary) and return a database connection for use by
-     * this Realm.
+     * Return a PreparedStatement configured to perform the SELECT required
+     * to retrieve both the credentials and the roles of the specified
+     * username, the credentials being repeated on each row.
+     *
+     * @param dbConnection The database connection to be used
+     * @param username Username for which credentials and roles should be
+     *  retrieved
      *
      * @exception SQLException if a database error occurs
      */
-    protected Connection open() throws SQLException {
+    protected PreparedStatement principal(Connection dbConnection,
+                                          String username)
+        throws SQLException {
 
-        // Do nothing if there is a database connection already open
-        if (dbConnection != null)
-            return (dbConnection);
+        PreparedStatement[] statements = statements(dbConnection);
+        if (statements[PRINCIPAL] == null) {
+            StringBuffer sb = new StringBuffer("SELECT u.");
+            sb.append(userCredCol);
+            sb.append(", r.");
+            sb.append(roleNameCol);
+            sb.append(" FROM ");
+            sb.append(userTable);
+            sb.append(" u LEFT OUTER JOIN ");
+            sb.append(userRoleTable);
+            sb.append(" r ON u.");
+            sb.append(userNameCol);
+            sb.append(" = r.");
+            sb.append(userNameCol);
+            sb.append(" WHERE u.");
+            sb.append(userNameCol);
+            sb.append(" = ?");
+            statements[PRINCIPAL] =
+                dbConnection.prepareStatement(sb.toString());
+        }
 
-        // Instantiate our database driver if necessary
-        if (driver == null) {
-            try {
-                Class clazz = Class.forName(driverName);
-                driver = (Driver) clazz.newInstance();
-            } catch (Throwable e) {
-                throw new SQLException(e.getMessage());
-            }
+        PreparedStatement preparedPrincipal = statements[PRINCIPAL];
+        if (username == null) {
+            preparedPrincipal.setNull(1,java.sql.Types.VARCHAR);
+        } else {
+            preparedPrincipal.setString(1, username);
         }
 
-        // Open a new connection
-        Properties props = new Properties();
-        if (connectionName != null)
-            props.put("user", connectionName);
-        if (connectionPassword != null)
-            props.put("password", connectionPassword);
-        dbConnection = driver.connect(connectionURL, props);
-        dbConnection.setAutoCommit(false);
-        return (dbConnection);
+        return (preparedPrincipal);
 
     }
 
@@ -660,7 +953,27 @@ public class JDBCRealm
      */
     protected void release(Connection dbConnection) {
 
-        ; // NO-OP since we are not pooling anything
+        if (dbConnection == null)
+            return;
+
+        // End the transaction of our queries, so that no lock is held
+        try {
+            dbConnection.commit();
+        } catch (SQLException e) {
+            log(sm.getString("jdbcRealm.close"), e);
+            close(dbConnection);
+            return;
+        }
+
+        // Keep the connection for the next user, unless we are stopped
+        synchronized (connections) {
+            if (started && (connectionCount <= Math.max(1, maxActive))) {
+                connections.add(dbConnection);
+                connections.notifyAll();
+                return;
+            }
+        }
+        close(dbConnection);
 
     }
 
@@ -677,7 +990,8 @@ public class JDBCRealm
     protected PreparedStatement roles(Connection dbConnection, String username)
         throws SQLException {
 
-        if (preparedRoles == null) {
+        PreparedStatement[] statements = statements(dbConnection);
+        if (statements[ROLES] == null) {
             StringBuffer sb = new StringBuffer("SELECT ");
             sb.append(roleNameCol);
             sb.append(" FROM ");
@@ -685,16 +999,119 @@ public class JDBCRealm
             sb.append(" WHERE ");
             sb.append(userNameCol);
             sb.append(" = ?");
-            preparedRoles =
+            statements[ROLES] =
                 dbConnection.prepareStatement(sb.toString());
         }
 
+        PreparedStatement preparedRoles = statements[ROLES];
         preparedRoles.setString(1, username);
         return (preparedRoles);
 
     }
 
 
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Close the specified result set, logging any error.
+     *
+     * @param rs The result set to be closed
+     */
+    private void close(ResultSet rs) {
+
+        if (rs == null)
+            return;
+        try {
+            rs.close();
+        } catch(SQLException e) {
+            log(sm.getString("jdbcRealm.abnormalCloseResultSet"));
+        }
+
+    }
+
+
+    /**
+     * Close the database connections that are not in use.
+     */
+    private void closeConnections() {
+
+        Object idle[] = null;
+        synchronized (connections) {
+            idle = connections.toArray();
+            connections.clear();
+        }
+        for (int i = 0; i < idle.length; i++)
+            close((Connection) idle[i]);
+
+    }
+
+
+    /**
+     * Open a new database connection.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    private Connection connect() throws SQLException {
+
+        // Instantiate our database driver if necessary
+        Driver driver = null;
+        synchronized (this) {
+            if (this.driver == null) {
+                try {
+                    Class clazz = Class.forName(driverName);
+                    this.driver = (Driver) clazz.newInstance();
+                } catch (Throwable e) {
+                    throw new SQLException(e.getMessage());
+                }
+            }
+            driver = this.driver;
+        }
+
+        // Open a new connection
+        Properties props = new Properties();
+        if (connectionName != null)
+            props.put("user", connectionName);
+        if (connectionPassword != null)
+            props.put("password", connectionPassword);
+        Connection dbConnection = driver.connect(connectionURL, props);
+        if (dbConnection == null)
+            throw new SQLException
+                (sm.getString("jdbcRealm.connectionURL", connectionURL));
+        try {
+            dbConnection.setAutoCommit(false);
+        } catch (SQLException e) {
+            dbConnection.close();
+            throw e;
+        }
+        return (dbConnection);
+
+    }
+
+
+    /**
+     * Return the PreparedStatements of the specified database connection.
+     *
+     * @param dbConnection The database connection
+     *
+     * @exception SQLException if the connection was not opened by
+     *  <code>open()</code>, or has been closed
+     */
+    private PreparedStatement[] statements(Connection dbConnection)
+        throws SQLException {
+
+        PreparedStatement statements[] = null;
+        synchronized (connections) {
+            statements = (PreparedStatement[])
+                preparedStatements.get(dbConnection);
+        }
+        if (statements == null)
+            throw new SQLException(sm.getString("jdbcRealm.notPooled"));
+        return (statements);
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -707,17 +1124,17 @@ public class JDBCRealm
      */
     public void start() throws LifecycleException {
 
-        // Validate that we can open our connection - but let tomcat
+        // Perform normal superclass initialization
+        super.start();
+
+        // Validate that we can open a connection - but let tomcat
         // startup in case the database is temporarily unavailable
         try {
-            open();
+            release(open());
         } catch (SQLException e) {
             log(sm.getString("jdbcRealm.open"), e);
         }
 
-        // Perform normal superclass initialization
-        super.start();
-
     }
 
 
@@ -732,11 +1149,10 @@ public class JDBCRealm
         // Perform normal superclass finalization
         super.stop();
 
-        // Close any open DB connection
-        close(this.dbConnection);
+        // Close the idle DB connections, the others when they are released
+        closeConnections();
 
     }
 
 
 }
-
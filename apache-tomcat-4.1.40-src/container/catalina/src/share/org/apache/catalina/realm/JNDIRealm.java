@@ -19,11 +19,15 @@
 package org.apache.catalina.realm;
 
 
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.Context;
 import javax.naming.CommunicationException;
@@ -42,6 +46,7 @@ import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.util.Base64;
+import org.apache.catalina.util.ConcurrentMessageDigest;
 
 
 /**
@@ -125,6 +130,11 @@ import org.apache.catalina.util.Base64;
  *         role represented by this element.</li>
  *     </ul></li>
  *
+ * <li>If the <code>roleNested</code> property is <code>true</code>, the
+ *     groups found are searched for in turn as members of other groups,
+ *     whose roles are added as well.  The searches for the groups found at
+ *     the same level of nesting run in parallel.</li>
+ *
  * <li>In addition, roles may be represented by the values of an attribute
  * in the user's element whose name is configured by the
  * <code>userRoleName</code> property.</li>
@@ -135,9 +145,12 @@ import org.apache.catalina.util.Base64;
  *     directory server itself.</li>
  * </ul>
  *
- * <p><strong>TODO</strong> - Support connection pooling (including message
- * format objects) so that <code>authenticate()</code> does not have to be
- * synchronized.</p>
+ * <p>Users are authenticated concurrently, each on a directory context
+ * taken from a pool of at most <code>maxActive</code> contexts.  A context
+ * that has been idle for more than <code>validationInterval</code>
+ * milliseconds is checked with a read of its base entry before it is used
+ * again.  The roles found by searching the directory can be cached by user
+ * distinguished name, see <code>roleCacheSize</code>.</p>
  *
  * <p><strong>WARNING</strong> - There is a reported bug against the Netscape
  * provider code (com.netscape.jndi.ldap.LdapContextFactory) with respect to
@@ -180,9 +193,16 @@ public class JNDIRealm extends RealmBase {
 
 
     /**
-     * The directory context linking us to our directory server.
+     * The number of open directory contexts, in use or not.
      */
-    protected DirContext context = null;
+    protected int connectionCount = 0;
+
+
+    /**
+     * The open directory contexts that are not in use, with the time they
+     * were released, the most recently released last.
+     */
+    protected ArrayList connections = new ArrayList();
 
 
     /**
@@ -211,6 +231,19 @@ public class JNDIRealm extends RealmBase {
         "org.apache.catalina.realm.JNDIRealm/1.0";
 
 
+    /**
+     * The maximum number of directory contexts open at once.
+     */
+    protected int maxActive = 8;
+
+
+    /**
+     * The maximum number of milliseconds to wait for a directory context
+     * when all of them are in use.
+     */
+    protected int maxWait = 10000;
+
+
     /**
      * Descriptive information about this Realm implementation.
      */
@@ -296,6 +329,30 @@ public class JNDIRealm extends RealmBase {
     protected String roleBase = "";
 
 
+    /**
+     * The roles found by searching the directory, keyed by the
+     * distinguished name of the user, in least recently used order.
+     */
+    protected LinkedHashMap roleCache = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return (size() > roleCacheSize);
+        }
+    };
+
+
+    /**
+     * The maximum number of users whose roles are cached, or zero if
+     * roles are not cached.
+     */
+    protected int roleCacheSize = 0;
+
+
+    /**
+     * The number of seconds the roles of a user stay cached.
+     */
+    protected int roleCacheTimeout = 60;
+
+
     /**
      * The MessageFormat object associated with the current
      * <code>roleSearch</code>.
@@ -328,6 +385,11 @@ public class JNDIRealm extends RealmBase {
      */
     protected boolean roleSubtree = false;
 
+    /**
+     * Should we search for the groups the groups of a user are members of?
+     */
+    protected boolean roleNested = false;
+
     /**
      * An alternate URL, to which, we should connect if connectionURL fails.
      */
@@ -340,9 +402,10 @@ public class JNDIRealm extends RealmBase {
     protected int connectionAttempt = 0;
 
     /**
-     * The current user pattern to be used for lookup and binding of a user.
+     * The number of milliseconds a directory context may stay idle before
+     * it is checked again, or a negative value if it is never checked.
      */
-    protected int curUserPattern = 0;
+    protected int validationInterval = 30000;
 
     // ------------------------------------------------------------- Properties
 
@@ -668,6 +731,79 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    /**
+     * Return the maximum number of users whose roles are cached.
+     */
+    public int getRoleCacheSize() {
+
+        return (this.roleCacheSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of users whose roles are cached.  Zero, the
+     * default, disables the cache.
+     *
+     * @param roleCacheSize The new maximum number of users
+     */
+    public void setRoleCacheSize(int roleCacheSize) {
+
+        int oldRoleCacheSize = this.roleCacheSize;
+        this.roleCacheSize = roleCacheSize;
+        if (roleCacheSize < oldRoleCacheSize) {
+            synchronized (roleCache) {
+                roleCache.clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the number of seconds the roles of a user stay cached.
+     */
+    public int getRoleCacheTimeout() {
+
+        return (this.roleCacheTimeout);
+
+    }
+
+
+    /**
+     * Set the number of seconds the roles of a user stay cached.
+     *
+     * @param roleCacheTimeout The new timeout
+     */
+    public void setRoleCacheTimeout(int roleCacheTimeout) {
+
+        this.roleCacheTimeout = roleCacheTimeout;
+
+    }
+
+
+    /**
+     * Return the "search nested groups for roles" flag.
+     */
+    public boolean getRoleNested() {
+
+        return (this.roleNested);
+
+    }
+
+
+    /**
+     * Set the "search nested groups for roles" flag.
+     *
+     * @param roleNested The new nested flag
+     */
+    public void setRoleNested(boolean roleNested) {
+
+        this.roleNested = roleNested;
+
+    }
+
+
     /**
      * Return the "search subtree for roles" flag.
      */
@@ -773,6 +909,78 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    /**
+     * Return the maximum number of directory contexts open at once.
+     */
+    public int getMaxActive() {
+
+        return (this.maxActive);
+
+    }
+
+
+    /**
+     * Set the maximum number of directory contexts open at once, which is
+     * the number of users that can be authenticated concurrently.
+     *
+     * @param maxActive The new maximum number of contexts
+     */
+    public void setMaxActive(int maxActive) {
+
+        this.maxActive = maxActive;
+
+    }
+
+
+    /**
+     * Return the maximum number of milliseconds to wait for a directory
+     * context when all of them are in use.
+     */
+    public int getMaxWait() {
+
+        return (this.maxWait);
+
+    }
+
+
+    /**
+     * Set the maximum number of milliseconds to wait for a directory
+     * context when all of them are in use.
+     *
+     * @param maxWait The new maximum wait
+     */
+    public void setMaxWait(int maxWait) {
+
+        this.maxWait = maxWait;
+
+    }
+
+
+    /**
+     * Return the number of milliseconds a directory context may stay idle
+     * before it is checked again.
+     */
+    public int getValidationInterval() {
+
+        return (this.validationInterval);
+
+    }
+
+
+    /**
+     * Set the number of milliseconds a directory context may stay idle
+     * before it is checked again.  Zero checks it every time it is used, a
+     * negative value never.
+     *
+     * @param validationInterval The new validation interval
+     */
+    public void setValidationInterval(int validationInterval) {
+
+        this.validationInterval = validationInterval;
+
+    }
+
+
     // ---------------------------------------------------------- Realm Methods
 
 
@@ -791,12 +999,17 @@ public class JNDIRealm extends RealmBase {
      */
     public Principal authenticate(String username, String credentials) {
 
+        // Answer a repeated authentication from the cache, if enabled
+        Principal cached = getCachedPrincipal(username, credentials);
+        if (cached != null)
+            return (cached);
+
         DirContext context = null;
         Principal principal = null;
 
         try {
 
-            // Ensure that we have a directory context available
+            // Take a directory context from the pool
             context = open();
 
             // Occassionally the directory context will timeout.  Try one more
@@ -819,9 +1032,11 @@ public class JNDIRealm extends RealmBase {
                 // log the exception so we know it's there.
                 log(sm.getString("jndiRealm.exception"), e);
 
-                // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                // close the connection, and the idle ones that are likely
+                // to have timed out as well, so we know they will be reopened.
+                close(context);
+                context = null;
+                closeConnections();
 
                 // open a new directory context.
                 context = open();
@@ -831,11 +1046,8 @@ public class JNDIRealm extends RealmBase {
 
             }
 
-
-            // Release this context
-            release(context);
-
             // Return the authenticated Principal (if any)
+            cachePrincipal(username, credentials, principal);
             return (principal);
 
         } catch (NamingException e) {
@@ -846,10 +1058,30 @@ public class JNDIRealm extends RealmBase {
             // Close the connection so that it gets reopened next time
             if (context != null)
                 close(context);
+            context = null;
 
             // Return "not authenticated" for this request
             return (null);
 
+        } finally {
+
+            // Return the context to the pool, whatever was thrown
+            release(context);
+
+        }
+
+    }
+
+
+    /**
+     * Remove every authenticated Principal, and the roles found by searching
+     * the directory, from the caches.
+     */
+    public void clearCache() {
+
+        super.clearCache();
+        synchronized (roleCache) {
+            roleCache.clear();
         }
 
     }
@@ -872,9 +1104,9 @@ public class JNDIRealm extends RealmBase {
      *
      * @exception NamingException if a directory server error occurs
      */
-    public synchronized Principal authenticate(DirContext context,
-                                               String username,
-                                               String credentials)
+    public Principal authenticate(DirContext context,
+                                  String username,
+                                  String credentials)
         throws NamingException {
 
         if (username == null || username.equals("")
@@ -882,11 +1114,11 @@ public class JNDIRealm extends RealmBase {
             return (null);
 
         if (userPatternArray != null) {
-            for (curUserPattern = 0;
+            for (int curUserPattern = 0;
                  curUserPattern < userPatternFormatArray.length;
                  curUserPattern++) {
                 // Retrieve user information
-                User user = getUser(context, username);
+                User user = getUser(context, username, curUserPattern);
                 if (user != null) {
                     try {
                         // Check the user's credentials
@@ -911,7 +1143,7 @@ public class JNDIRealm extends RealmBase {
             return null;
         } else {
             // Retrieve user information
-            User user = getUser(context, username);
+            User user = getUser(context, username, 0);
             if (user == null)
                 return (null);
 
@@ -941,10 +1173,12 @@ public class JNDIRealm extends RealmBase {
      *
      * @param context The directory context
      * @param username Username to be looked up
+     * @param curUserPattern Index of the user pattern to be used
      *
      * @exception NamingException if a directory server error occurs
      */
-    protected User getUser(DirContext context, String username)
+    protected User getUser(DirContext context, String username,
+                           int curUserPattern)
         throws NamingException {
 
         User user = null;
@@ -960,7 +1194,8 @@ public class JNDIRealm extends RealmBase {
 
         // Use pattern or search for user entry
         if (userPatternFormatArray != null) {
-            user = getUserByPattern(context, username, attrIds);
+            user = getUserByPattern(context, username, attrIds,
+                                    curUserPattern);
         } else {
             user = getUserBySearch(context, username, attrIds);
         }
@@ -979,22 +1214,29 @@ public class JNDIRealm extends RealmBase {
      * @param username The username
      * @param attrIds String[]containing names of attributes to
      * retrieve.
+     * @param curUserPattern Index of the user pattern to be used
      *
      * @exception NamingException if a directory server error occurs
      */
     protected User getUserByPattern(DirContext context,
                                               String username,
-                                              String[] attrIds)
+                                              String[] attrIds,
+                                              int curUserPattern)
         throws NamingException {
 
         if (debug >= 2)
             log("lookupUser(" + username + ")");
 
-        if (username == null || userPatternFormatArray[curUserPattern] == null)
+        MessageFormat userPatternFormat = userPatternFormatArray[curUserPattern];
+        if (username == null || userPatternFormat == null)
             return (null);
 
-        // Form the dn from the user pattern
-        String dn = userPatternFormatArray[curUserPattern].format(new String[] { username });
+        // Form the dn from the user pattern (a MessageFormat is not
+        // thread safe, and users are authenticated concurrently)
+        String dn = null;
+        synchronized (userPatternFormat) {
+            dn = userPatternFormat.format(new String[] { username });
+        }
         if (debug >= 3) {
             log("  dn=" + dn);
         }
@@ -1039,11 +1281,15 @@ public class JNDIRealm extends RealmBase {
                                            String[] attrIds)
         throws NamingException {
 
+        MessageFormat userSearchFormat = this.userSearchFormat;
         if (username == null || userSearchFormat == null)
             return (null);
 
         // Form the search filter
-        String filter = userSearchFormat.format(new String[] { username });
+        String filter = null;
+        synchronized (userSearchFormat) {
+            filter = userSearchFormat.format(new String[] { username });
+        }
 
         // Set up the search controls
         SearchControls constraints = new SearchControls();
@@ -1087,13 +1333,7 @@ public class JNDIRealm extends RealmBase {
         }
 
         // Get the entry's distinguished name
-        NameParser parser = context.getNameParser("");
-        Name contextName = parser.parse(context.getNameInNamespace());
-        Name baseName = parser.parse(userBase);
-        Name entryName = parser.parse(result.getName());
-        Name name = contextName.addAll(baseName);
-        name = name.addAll(entryName);
-        String dn = name.toString();
+        String dn = getDistinguishedName(context, userBase, result);
 
         if (debug > 2)
             log("  entry found for " + username + " with dn " + dn);
@@ -1191,15 +1431,18 @@ public class JNDIRealm extends RealmBase {
             // The string is in a format compatible with Base64.encode not
             // the Hex encoding of the parent class.
             if (password.startsWith("{SHA}")) {
-                /* sync since super.digest() does this same thing */
-                synchronized (this) {
-                    password = password.substring(5);
-                    md.reset();
-                    md.update(credentials.getBytes());
-                    String digestedPassword =
-                        new String(Base64.encode(md.digest()));
-                    validated = password.equals(digestedPassword);
+                // Digest with the instance of this thread, as digest() does
+                password = password.substring(5);
+                byte[] digested = null;
+                try {
+                    digested = ConcurrentMessageDigest.digest
+                        (md.getAlgorithm(), credentials.getBytes());
+                } catch (NoSuchAlgorithmException e) {
+                    log(sm.getString("realmBase.digest"), e);
+                    return (false);
                 }
+                String digestedPassword = new String(Base64.encode(digested));
+                validated = password.equals(digestedPassword);
             } else {
                 // Hex hashes should be compared case-insensitive
                 validated = (digest(credentials).equalsIgnoreCase(password));
@@ -1314,32 +1557,15 @@ public class JNDIRealm extends RealmBase {
         if ((roleFormat == null) || (roleName == null))
             return (list);
 
-        // Set up parameters for an appropriate search
-        String filter = roleFormat.format(new String[] { doRFC2254Encoding(dn), username });
-        SearchControls controls = new SearchControls();
-        if (roleSubtree)
-            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        else
-            controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-        controls.setReturningAttributes(new String[] {roleName});
-
-        // Perform the configured search and process the results
-        if (debug >= 3) {
-            log("  Searching role base '" + roleBase + "' for attribute '" +
-                roleName + "'");
-            log("  With filter expression '" + filter + "'");
-        }
-        NamingEnumeration results =
-            context.search(roleBase, filter, controls);
-        if (results == null)
-            return (list);  // Should never happen, but just in case ...
-        while (results.hasMore()) {
-            SearchResult result = (SearchResult) results.next();
-            Attributes attrs = result.getAttributes();
-            if (attrs == null)
-                continue;
-            list = addAttributeValues(roleName, attrs, list);
+        // Search the directory, unless the roles of this user are cached
+        ArrayList found = getCachedRoles(dn);
+        if (found == null) {
+            found = searchRoles(context, dn, username);
+            cacheRoles(dn, found);
+        } else if (debug >= 3) {
+            log("  Found cached roles of " + dn);
         }
+        list.addAll(found);
 
 
         if (debug >= 2) {
@@ -1356,6 +1582,53 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    /**
+     * Search the directory for the roles of the user with the specified
+     * distinguished name and username, and if <code>roleNested</code> is
+     * set for the roles of the groups found, level by level.  The searches
+     * of one level run in parallel, on contexts taken from the pool when
+     * some are idle and on the specified context otherwise.
+     *
+     * @param context The directory context we are searching
+     * @param dn Distinguished name of the user
+     * @param username Username of the user
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    protected ArrayList searchRoles(DirContext context, String dn,
+                                    String username)
+        throws NamingException {
+
+        ArrayList roles = new ArrayList();
+        HashSet searched = new HashSet();
+        searched.add(dn.toLowerCase());
+        RoleSearch searches[] = { new RoleSearch(dn, username) };
+
+        while (searches.length > 0) {
+            runSearches(context, searches);
+
+            // Collect the roles, and the groups not searched yet
+            ArrayList next = new ArrayList();
+            for (int i = 0; i < searches.length; i++) {
+                for (int j = 0; j < searches[i].roles.size(); j++) {
+                    Object role = searches[i].roles.get(j);
+                    if (!roles.contains(role))
+                        roles.add(role);
+                }
+                for (int j = 0; j < searches[i].groups.size(); j++) {
+                    String group[] = (String[]) searches[i].groups.get(j);
+                    if (searched.add(group[0].toLowerCase()))
+                        next.add(new RoleSearch(group[0], group[1]));
+                }
+            }
+            searches = (RoleSearch[]) next.toArray(new RoleSearch[next.size()]);
+        }
+
+        return (roles);
+
+    }
+
+
     /**
      * Return a String representing the value of the specified attribute.
      *
@@ -1441,7 +1714,10 @@ public class JNDIRealm extends RealmBase {
         } catch (NamingException e) {
             log(sm.getString("jndiRealm.close"), e);
         }
-        this.context = null;
+        synchronized (connections) {
+            connectionCount--;
+            connections.notifyAll();
+        }
 
     }
 
@@ -1476,7 +1752,7 @@ public class JNDIRealm extends RealmBase {
 
         try {
 
-            // Ensure that we have a directory context available
+            // Take a directory context from the pool
             context = open();
 
             // Occassionally the directory context will timeout.  Try one more
@@ -1491,9 +1767,11 @@ public class JNDIRealm extends RealmBase {
                 // log the exception so we know it's there.
                 log(sm.getString("jndiRealm.exception"), e);
 
-                // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                // close the connection, and the idle ones that are likely
+                // to have timed out as well, so we know they will be reopened.
+                close(context);
+                context = null;
+                closeConnections();
 
                 // open a new directory context.
                 context = open();
@@ -1530,53 +1808,38 @@ public class JNDIRealm extends RealmBase {
     /**
      * Return the Principal associated with the given user name.
      */
-    protected synchronized Principal getPrincipal(DirContext context,
-                                                  String username)
+    protected Principal getPrincipal(DirContext context, String username)
         throws NamingException {
-        
-        User user = getUser(context, username);
-        
+
+        User user = null;
+        if (userPatternFormatArray != null) {
+            for (int curUserPattern = 0;
+                 (user == null) &&
+                     (curUserPattern < userPatternFormatArray.length);
+                 curUserPattern++)
+                user = getUser(context, username, curUserPattern);
+        } else {
+            user = getUser(context, username, 0);
+        }
+        if (user == null)
+            return (null);
+
         return new GenericPrincipal(this, user.username, user.password ,
                 getRoles(context, user));
     }
 
 
     /**
-     * Open (if necessary) and return a connection to the configured
-     * directory server for this Realm.
+     * Return a connection to the configured directory server for this Realm,
+     * taken from the pool or opened if none is idle.  If
+     * <code>maxActive</code> connections are in use, wait for one to be
+     * released for at most <code>maxWait</code> milliseconds.
      *
      * @exception NamingException if a directory server error occurs
      */
     protected DirContext open() throws NamingException {
 
-        // Do nothing if there is a directory server connection already open
-        if (context != null)
-            return (context);
-
-        try {
-
-            // Ensure that we have a directory context available
-            context = new InitialDirContext(getDirectoryContextEnvironment());
-
-        } catch (Exception e) {
-
-            connectionAttempt = 1;
-
-            // log the first exception.
-            log(sm.getString("jndiRealm.exception"), e);
-
-            // Try connecting to the alternate url.
-            context = new InitialDirContext(getDirectoryContextEnvironment());
-
-        } finally {
-
-            // reset it in case the connection times out.
-            // the primary may come back.
-            connectionAttempt = 0;
-
-        }
-
-        return (context);
+        return (open(true));
 
     }
 
@@ -1624,7 +1887,19 @@ public class JNDIRealm extends RealmBase {
      */
     protected void release(DirContext context) {
 
-        ; // NO-OP since we are not pooling anything
+        if (context == null)
+            return;
+
+        // Keep the connection for the next user, unless we are stopped
+        synchronized (connections) {
+            if (started && (connectionCount <= Math.max(1, maxActive))) {
+                connections.add
+                    (new IdleContext(context, System.currentTimeMillis()));
+                connections.notifyAll();
+                return;
+            }
+        }
+        close(context);
 
     }
 
@@ -1641,14 +1916,19 @@ public class JNDIRealm extends RealmBase {
     public void start() throws LifecycleException {
 
         // Validate that we can open our connection
+        DirContext context = null;
         try {
-            open();
+            context = open();
         } catch (NamingException e) {
             throw new LifecycleException(sm.getString("jndiRealm.open"), e);
         }
 
-        // Perform normal superclass initialization
-        super.start();
+        // Perform normal superclass initialization, and keep the connection
+        try {
+            super.start();
+        } finally {
+            release(context);
+        }
 
     }
 
@@ -1664,11 +1944,282 @@ public class JNDIRealm extends RealmBase {
         // Perform normal superclass finalization
         super.stop();
 
-        // Close any open directory server connection
-        close(this.context);
+        // Close the idle directory server connections, the others being
+        // closed as they are released
+        closeConnections();
+
+    }
+
+    /**
+     * Cache the roles found by searching the directory for the user with
+     * the specified distinguished name, if the role cache is enabled.
+     *
+     * @param dn Distinguished name of the user
+     * @param roles The roles found
+     */
+    private void cacheRoles(String dn, ArrayList roles) {
+
+        if (roleCacheSize <= 0)
+            return;
+        synchronized (roleCache) {
+            roleCache.put(dn, new CachedRoles
+                (roles, System.currentTimeMillis() + roleCacheTimeout * 1000L));
+        }
+
+    }
+
+
+    /**
+     * Close the idle directory server connections.
+     */
+    private void closeConnections() {
+
+        Object idle[] = null;
+        synchronized (connections) {
+            idle = connections.toArray();
+            connections.clear();
+        }
+        for (int i = 0; i < idle.length; i++)
+            close(((IdleContext) idle[i]).context);
+
+    }
+
+
+    /**
+     * Open a new connection to the directory server, or to the alternate
+     * one if it cannot be reached.
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    private synchronized DirContext connect() throws NamingException {
+
+        try {
+
+            // Ensure that we have a directory context available
+            return (new InitialDirContext(getDirectoryContextEnvironment()));
+
+        } catch (Exception e) {
+
+            connectionAttempt = 1;
+
+            // log the first exception.
+            log(sm.getString("jndiRealm.exception"), e);
+
+            // Try connecting to the alternate url.
+            return (new InitialDirContext(getDirectoryContextEnvironment()));
+
+        } finally {
+
+            // reset it in case the connection times out.
+            // the primary may come back.
+            connectionAttempt = 0;
+
+        }
+
+    }
+
+
+    /**
+     * Return the cached roles of the user with the specified distinguished
+     * name, or <code>null</code> if they are not cached or have expired.
+     *
+     * @param dn Distinguished name of the user
+     */
+    private ArrayList getCachedRoles(String dn) {
+
+        if (roleCacheSize <= 0)
+            return (null);
+        synchronized (roleCache) {
+            CachedRoles cached = (CachedRoles) roleCache.get(dn);
+            if (cached == null)
+                return (null);
+            if (cached.expires <= System.currentTimeMillis()) {
+                roleCache.remove(dn);
+                return (null);
+            }
+            return (cached.roles);
+        }
+
+    }
+
+
+    /**
+     * Return the distinguished name of an entry found by a search.
+     *
+     * @param context The directory context searched
+     * @param base The base element of the search
+     * @param result The entry found
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    private String getDistinguishedName(DirContext context, String base,
+                                        SearchResult result)
+        throws NamingException {
+
+        NameParser parser = context.getNameParser("");
+        Name contextName = parser.parse(context.getNameInNamespace());
+        Name baseName = parser.parse(base);
+        Name entryName = parser.parse(result.getName());
+        Name name = contextName.addAll(baseName);
+        name = name.addAll(entryName);
+        return (name.toString());
+
+    }
+
+
+    /**
+     * Return a connection to the directory server, taken from the pool or
+     * opened if none is idle.
+     *
+     * @param wait If <code>maxActive</code> connections are in use, should
+     *  we wait for one to be released, rather than return <code>null</code>?
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    private DirContext open(boolean wait) throws NamingException {
+
+        // Reuse an idle connection that is still valid, waiting for one
+        // if all are in use
+        long end = System.currentTimeMillis() + maxWait;
+        while (true) {
+            IdleContext idle = null;
+            synchronized (connections) {
+                while (connections.isEmpty() &&
+                       (connectionCount >= Math.max(1, maxActive))) {
+                    if (!wait)
+                        return (null);
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new NamingException
+                            (sm.getString("jndiRealm.maxWait",
+                                          String.valueOf(connectionCount),
+                                          String.valueOf(maxWait)));
+                    try {
+                        connections.wait(remaining);
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (connections.isEmpty()) {
+                    connectionCount++;
+                    break;
+                }
+                idle = (IdleContext) connections.remove(connections.size() - 1);
+            }
+            if (validate(idle))
+                return (idle.context);
+            close(idle.context);
+        }
+
+        // Open a new connection, outside of the pool lock
+        DirContext context = null;
+        try {
+            context = connect();
+            return (context);
+        } finally {
+            if (context == null) {
+                synchronized (connections) {
+                    connectionCount--;
+                    connections.notifyAll();
+                }
+            }
+        }
 
     }
 
+
+    /**
+     * Run the specified role searches, the first one on the specified
+     * context and the others on pooled contexts in parallel, or on the
+     * specified context when no other one is idle.
+     *
+     * @param context The directory context we are searching
+     * @param searches The role searches to run
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    private void runSearches(DirContext context, RoleSearch searches[])
+        throws NamingException {
+
+        Thread threads[] = new Thread[searches.length];
+        try {
+
+            // Start the searches that can have a connection of their own
+            for (int i = 1; i < searches.length; i++) {
+                searches[i].context = open(false);
+                if (searches[i].context == null)
+                    break;
+                threads[i] = new Thread(searches[i], "JNDIRealm-RoleSearch");
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+
+            // Run the other ones on this thread
+            for (int i = 0; i < searches.length; i++) {
+                if (threads[i] == null)
+                    searches[i].search(context);
+            }
+
+        } finally {
+
+            // Wait for the parallel searches, and release their connections
+            for (int i = 0; i < searches.length; i++) {
+                if (threads[i] == null)
+                    continue;
+                while (threads[i].isAlive()) {
+                    try {
+                        threads[i].join();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (searches[i].exception == null)
+                    release(searches[i].context);
+                else
+                    close(searches[i].context);
+            }
+
+        }
+
+        // Any failure of a search fails the authentication
+        for (int i = 0; i < searches.length; i++) {
+            Throwable t = searches[i].exception;
+            if (t instanceof NamingException)
+                throw (NamingException) t;
+            if (t != null) {
+                NamingException e = new NamingException(t.toString());
+                e.setRootCause(t);
+                throw e;
+            }
+        }
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the specified idle connection can be
+     * used, checking it with a read of its base entry if it has been idle
+     * for more than <code>validationInterval</code> milliseconds.
+     *
+     * @param idle The idle connection
+     */
+    private boolean validate(IdleContext idle) {
+
+        if ((validationInterval < 0) ||
+            (System.currentTimeMillis() - idle.released < validationInterval))
+            return (true);
+        try {
+            idle.context.getAttributes("", new String[0]);
+            return (true);
+        } catch (NamingException e) {
+            if (debug >= 1)
+                log(sm.getString("jndiRealm.validate", e.toString()));
+            return (false);
+        }
+
+    }
+
+
     /**
      * Given a string containing LDAP patterns for user locations (separated by
      * parentheses in a pseudo-LDAP search string format -
@@ -1758,6 +2309,159 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The roles of a user kept in the role cache.
+     */
+    private static final class CachedRoles {
+
+        /**
+         * The roles found by searching the directory.
+         */
+        ArrayList roles = null;
+
+        /**
+         * The time at which they expire.
+         */
+        long expires = 0L;
+
+        CachedRoles(ArrayList roles, long expires) {
+            this.roles = roles;
+            this.expires = expires;
+        }
+
+    }
+
+
+    /**
+     * A pooled directory context that is not in use.
+     */
+    private static final class IdleContext {
+
+        /**
+         * The directory context.
+         */
+        DirContext context = null;
+
+        /**
+         * The time at which it was released.
+         */
+        long released = 0L;
+
+        IdleContext(DirContext context, long released) {
+            this.context = context;
+            this.released = released;
+        }
+
+    }
+
+
+    /**
+     * The search for the groups having the user, or group, with the
+     * specified distinguished name as a member.
+     */
+    private class RoleSearch implements Runnable {
+
+        /**
+         * Distinguished name of the member.
+         */
+        String dn = null;
+
+        /**
+         * Username of the user, or role name of the group.
+         */
+        String name = null;
+
+        /**
+         * The directory context used when run on a thread of its own.
+         */
+        DirContext context = null;
+
+        /**
+         * The roles found.
+         */
+        ArrayList roles = new ArrayList();
+
+        /**
+         * The distinguished name and role name of the groups found, if
+         * nested groups are searched.
+         */
+        ArrayList groups = new ArrayList();
+
+        /**
+         * The exception thrown when run on a thread of its own, if any.
+         */
+        Throwable exception = null;
+
+        RoleSearch(String dn, String name) {
+            this.dn = dn;
+            this.name = name;
+        }
+
+        /**
+         * Run the search on its own directory context.
+         */
+        public void run() {
+            try {
+                search(context);
+            } catch (Throwable t) {
+                exception = t;
+            }
+        }
+
+        /**
+         * Run the search on the specified directory context.
+         *
+         * @param context The directory context we are searching
+         *
+         * @exception NamingException if a directory server error occurs
+         */
+        void search(DirContext context) throws NamingException {
+
+            // Set up parameters for an appropriate search
+            String filter = null;
+            synchronized (roleFormat) {
+                filter = roleFormat.format
+                    (new String[] { doRFC2254Encoding(dn), name });
+            }
+            SearchControls controls = new SearchControls();
+            if (roleSubtree)
+                controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            else
+                controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+            controls.setReturningAttributes(new String[] {roleName});
+
+            // Perform the configured search and process the results
+            if (debug >= 3) {
+                log("  Searching role base '" + roleBase + "' for attribute '" +
+                    roleName + "'");
+                log("  With filter expression '" + filter + "'");
+            }
+            NamingEnumeration results =
+                context.search(roleBase, filter, controls);
+            if (results == null)
+                return;  // Should never happen, but just in case ...
+            while (results.hasMore()) {
+                SearchResult result = (SearchResult) results.next();
+                Attributes attrs = result.getAttributes();
+                if (attrs == null)
+                    continue;
+                ArrayList values = addAttributeValues(roleName, attrs, null);
+                roles.addAll(values);
+                if (roleNested) {
+                    String group = values.isEmpty() ? "" : (String) values.get(0);
+                    groups.add(new String[] {
+                        getDistinguishedName(context, roleBase, result), group });
+                }
+            }
+
+        }
+
+    }
+
+
 }
 
 // ------------------------------------------------------ Private Classes
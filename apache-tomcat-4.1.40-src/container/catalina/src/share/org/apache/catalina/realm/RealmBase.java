@@ -24,8 +24,11 @@ import java.beans.PropertyChangeSupport;
 import java.security.Principal;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Lifecycle;
@@ -33,6 +36,7 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Logger;
 import org.apache.catalina.Realm;
+import org.apache.catalina.util.ConcurrentMessageDigest;
 import org.apache.catalina.util.HexUtils;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -55,6 +59,50 @@ public abstract class RealmBase
     // ----------------------------------------------------- Instance Variables
 
 
+    /**
+     * The authenticated Principals cached by <code>cachePrincipal()</code>,
+     * keyed by username, in least recently used order.
+     */
+    protected LinkedHashMap cache = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return (size() > cacheSize);
+        }
+    };
+
+
+    /**
+     * The number of authentications answered from the cache.
+     */
+    protected long cacheHits = 0;
+
+
+    /**
+     * The number of authentications that could not be answered from the
+     * cache.
+     */
+    protected long cacheMisses = 0;
+
+
+    /**
+     * The random salt mixed with the credentials digested for the cache,
+     * generated each time this Realm is started.
+     */
+    private byte[] cacheSalt = null;
+
+
+    /**
+     * The maximum number of authenticated Principals cached, or zero if
+     * authentication results are not cached.
+     */
+    protected int cacheSize = 0;
+
+
+    /**
+     * The number of seconds an authenticated Principal stays cached.
+     */
+    protected int cacheTimeout = 60;
+
+
     /**
      * The Container with which this Realm is associated.
      */
@@ -95,7 +143,9 @@ public abstract class RealmBase
 
 
     /**
-     * The MessageDigest object for digesting user credentials (passwords).
+     * The MessageDigest object for digesting user credentials (passwords),
+     * which tells the algorithm in use.  Credentials are digested with an
+     * instance of the calling thread for this algorithm.
      */
     protected MessageDigest md = null;
 
@@ -108,6 +158,9 @@ public abstract class RealmBase
 
     /**
      * MD5 message digest provider.
+     *
+     * @deprecated Not safe for use by concurrent threads; use
+     *  <code>ConcurrentMessageDigest</code> instead.
      */
     protected static MessageDigest md5Helper;
 
@@ -140,6 +193,85 @@ public abstract class RealmBase
     // ------------------------------------------------------------- Properties
 
 
+    /**
+     * Return the number of authentications answered from the cache.
+     */
+    public long getCacheHits() {
+
+        synchronized (cache) {
+            return (this.cacheHits);
+        }
+
+    }
+
+
+    /**
+     * Return the number of authentications that could not be answered
+     * from the cache.
+     */
+    public long getCacheMisses() {
+
+        synchronized (cache) {
+            return (this.cacheMisses);
+        }
+
+    }
+
+
+    /**
+     * Return the maximum number of authenticated Principals cached.
+     */
+    public int getCacheSize() {
+
+        return (this.cacheSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of authenticated Principals cached.  Zero,
+     * the default, disables the cache.
+     *
+     * @param cacheSize The new maximum number of cached Principals
+     */
+    public void setCacheSize(int cacheSize) {
+
+        int oldCacheSize = this.cacheSize;
+        this.cacheSize = cacheSize;
+        if (cacheSize < oldCacheSize)
+            clearCache();
+        support.firePropertyChange("cacheSize", new Integer(oldCacheSize),
+                                   new Integer(this.cacheSize));
+
+    }
+
+
+    /**
+     * Return the number of seconds an authenticated Principal stays cached.
+     */
+    public int getCacheTimeout() {
+
+        return (this.cacheTimeout);
+
+    }
+
+
+    /**
+     * Set the number of seconds an authenticated Principal stays cached.
+     *
+     * @param cacheTimeout The new cache timeout
+     */
+    public void setCacheTimeout(int cacheTimeout) {
+
+        int oldCacheTimeout = this.cacheTimeout;
+        this.cacheTimeout = cacheTimeout;
+        support.firePropertyChange("cacheTimeout",
+                                   new Integer(oldCacheTimeout),
+                                   new Integer(this.cacheTimeout));
+
+    }
+
+
     /**
      * Return the Container with which this Realm has been associated.
      */
@@ -371,7 +503,7 @@ public abstract class RealmBase
         }
 
         String serverDigest =
-            md5Encoder.encode(md5Helper.digest(valueBytes));
+            md5Encoder.encode(ConcurrentMessageDigest.digestMD5(valueBytes));
 
         //System.out.println("Server digest : " + serverDigest);
 
@@ -419,6 +551,18 @@ public abstract class RealmBase
     }
 
 
+    /**
+     * Remove every authenticated Principal from the cache.
+     */
+    public void clearCache() {
+
+        synchronized (cache) {
+            cache.clear();
+        }
+
+    }
+
+
     /**
      * Return <code>true</code> if the specified Principal has the specified
      * security role, within the context of this Realm; otherwise return
@@ -457,6 +601,25 @@ public abstract class RealmBase
     }
 
 
+    /**
+     * Remove the authenticated Principal of the specified user from the
+     * cache, so that the next request of this user is authenticated again.
+     *
+     * @param username Username of the Principal to remove
+     */
+    public void invalidate(String username) {
+
+        if (username == null)
+            return;
+        synchronized (cache) {
+            cache.remove(username);
+        }
+        if (debug >= 2)
+            log(sm.getString("realmBase.cacheInvalidate", username));
+
+    }
+
+
     /**
      * Remove a property change listener from this component.
      *
@@ -525,6 +688,11 @@ public abstract class RealmBase
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        // Principals cached before a restart can no longer be found
+        clearCache();
+        cacheSalt = new byte[16];
+        new SecureRandom().nextBytes(cacheSalt);
+
         // Create a MessageDigest instance for credentials, if desired
         if (digest != null) {
             try {
@@ -559,6 +727,8 @@ public abstract class RealmBase
 
         // Clean up allocated resources
         md = null;
+        clearCache();
+        cacheSalt = null;
 
     }
 
@@ -566,14 +736,85 @@ public abstract class RealmBase
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Cache the Principal authenticated with the specified username and
+     * credentials, if the cache is enabled.  Only a salted digest of the
+     * credentials is kept.  Realm implementations call this method once
+     * they have authenticated a user, and <code>getCachedPrincipal()</code>
+     * before they do.
+     *
+     * @param username Username of the Principal
+     * @param credentials Password or other credentials used in
+     *  authenticating this username
+     * @param principal The authenticated Principal, or <code>null</code>
+     *  if the authentication failed
+     */
+    protected void cachePrincipal(String username, String credentials,
+                                  Principal principal) {
+
+        if ((cacheSize <= 0) || (principal == null))
+            return;
+        byte[] digest = cacheDigest(credentials);
+        if (digest == null)
+            return;
+
+        CachedPrincipal cached = new CachedPrincipal();
+        cached.digest = digest;
+        cached.principal = principal;
+        cached.expires =
+            System.currentTimeMillis() + cacheTimeout * 1000L;
+        synchronized (cache) {
+            cache.put(username, cached);
+        }
+
+    }
+
+
+    /**
+     * Return the cached Principal authenticated with the specified username
+     * and credentials, if it has not expired; otherwise return
+     * <code>null</code>.
+     *
+     * @param username Username of the Principal to look up
+     * @param credentials Password or other credentials to use in
+     *  authenticating this username
+     */
+    protected Principal getCachedPrincipal(String username,
+                                           String credentials) {
+
+        if (cacheSize <= 0)
+            return (null);
+        byte[] digest = cacheDigest(credentials);
+        if ((username == null) || (digest == null))
+            return (null);
+
+        synchronized (cache) {
+            CachedPrincipal cached = (CachedPrincipal) cache.get(username);
+            if ((cached != null) &&
+                (cached.expires <= System.currentTimeMillis())) {
+                cache.remove(username);
+                cached = null;
+            }
+            if ((cached != null) &&
+                MessageDigest.isEqual(digest, cached.digest)) {
+                cacheHits++;
+                return (cached.principal);
+            }
+            cacheMisses++;
+        }
+        return (null);
+
+    }
+
+
     /**
      * Digest the password using the specified algorithm and
      * convert the result to a corresponding hexadecimal string.
      * If exception, the plain credentials string is returned.
      *
-     * <strong>IMPLEMENTATION NOTE</strong> - This implementation is
-     * synchronized because it reuses the MessageDigest instance.
-     * This should be faster than cloning the instance on every request.
+     * <strong>IMPLEMENTATION NOTE</strong> - This implementation uses
+     * a MessageDigest instance of the calling thread, so that concurrent
+     * logins neither wait for a shared instance nor create new ones.
      *
      * @param credentials Password or other credentials to use in
      *  authenticating this username
@@ -585,28 +826,24 @@ public abstract class RealmBase
             return (credentials);
 
         // Digest the user credentials and return as hexadecimal
-        synchronized (this) {
-            try {
-                md.reset();
-    
-                byte[] bytes = null;
-                if(getDigestEncoding() == null) {
-                    bytes = credentials.getBytes();
-                } else {
-                    try {
-                        bytes = credentials.getBytes(getDigestEncoding());
-                    } catch (UnsupportedEncodingException uee) {
-                        log("Illegal digestEncoding: " + getDigestEncoding(), uee);
-                        throw new IllegalArgumentException(uee.getMessage());
-                    }
+        try {
+            byte[] bytes = null;
+            if(getDigestEncoding() == null) {
+                bytes = credentials.getBytes();
+            } else {
+                try {
+                    bytes = credentials.getBytes(getDigestEncoding());
+                } catch (UnsupportedEncodingException uee) {
+                    log("Illegal digestEncoding: " + getDigestEncoding(), uee);
+                    throw new IllegalArgumentException(uee.getMessage());
                 }
-                md.update(bytes);
-
-                return (HexUtils.convert(md.digest()));
-            } catch (Exception e) {
-                log(sm.getString("realmBase.digest"), e);
-                return (credentials);
             }
+
+            return (HexUtils.convert(ConcurrentMessageDigest.digest
+                                     (md.getAlgorithm(), bytes)));
+        } catch (Exception e) {
+            log(sm.getString("realmBase.digest"), e);
+            return (credentials);
         }
 
     }
@@ -619,15 +856,6 @@ public abstract class RealmBase
      * Return the digest associated with given principal's user name.
      */
     protected String getDigest(String username, String realmName) {
-        if (md5Helper == null) {
-            try {
-                md5Helper = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-                throw new IllegalStateException();
-            }
-        }
-
     	if (hasMessageDigest()) {
     		// Use pre-generated digest
     		return getPassword(username);
@@ -649,7 +877,7 @@ public abstract class RealmBase
         }
 
         byte[] digest =
-            md5Helper.digest(valueBytes);
+            ConcurrentMessageDigest.digestMD5(valueBytes);
 
         return md5Encoder.encode(digest);
     }
@@ -728,6 +956,33 @@ public abstract class RealmBase
     }
 
 
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the salted digest of the specified credentials kept in the
+     * cache, or <code>null</code> if it cannot be calculated.
+     *
+     * @param credentials Password or other credentials to digest
+     */
+    private byte[] cacheDigest(String credentials) {
+
+        byte[] salt = cacheSalt;
+        if ((salt == null) || (credentials == null))
+            return (null);
+        try {
+            MessageDigest md = ConcurrentMessageDigest.getInstance("SHA");
+            md.update(salt);
+            md.update(credentials.getBytes("UTF-8"));
+            return (md.digest());
+        } catch (Exception e) {
+            log(sm.getString("realmBase.digest"), e);
+            return (null);
+        }
+
+    }
+
+
     // --------------------------------------------------------- Static Methods
 
 
@@ -745,9 +1000,8 @@ public abstract class RealmBase
                                       String encoding) {
 
         try {
-            // Obtain a new message digest with "digest" encryption
-            MessageDigest md =
-                (MessageDigest) MessageDigest.getInstance(algorithm).clone();
+            // Obtain the message digest of this thread with "digest" encryption
+            MessageDigest md = ConcurrentMessageDigest.getInstance(algorithm);
  
             // encode the credentials
             // Should use the digestEncoding, but that's not a static field
@@ -795,4 +1049,30 @@ public abstract class RealmBase
     }
 
 
+    // ----------------------------------------------------------- Inner Classes
+
+
+    /**
+     * An authenticated Principal kept in the cache.
+     */
+    private static final class CachedPrincipal {
+
+        /**
+         * The salted digest of the credentials it was authenticated with.
+         */
+        byte[] digest = null;
+
+        /**
+         * The time at which it expires.
+         */
+        long expires = 0L;
+
+        /**
+         * The authenticated Principal.
+         */
+        Principal principal = null;
+
+    }
+
+
 }
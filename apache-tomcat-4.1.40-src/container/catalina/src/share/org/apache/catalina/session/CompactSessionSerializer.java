@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Built-in <code>SessionSerializer</code> that writes the JDK types most
+ * session attributes are made of as a one byte tag followed by their value
+ * in binary form, instead of as serialized objects.  Strings, the wrappers
+ * of primitive types, dates, byte and string arrays are handled, as well as
+ * <code>ArrayList</code> and <code>HashMap</code> instances whose elements
+ * are handled recursively.  Any other value, including subclasses of these
+ * types, is written with Java serialization.  Since this format does not
+ * preserve the identity of the collections and arrays it writes, a value in
+ * which one of them is referred to more than once, including one containing
+ * itself, is written with Java serialization as a whole.
+ */
+
+public class CompactSessionSerializer implements SessionSerializer {
+
+
+    // ----------------------------------------------------- Constants
+
+
+    /**
+     * The tags identifying the type of a written value.
+     */
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHARACTER = 10;
+    private static final byte DATE = 11;
+    private static final byte BYTES = 12;
+    private static final byte STRINGS = 13;
+    private static final byte LIST = 14;
+    private static final byte MAP = 15;
+    private static final byte OBJECT = 16;
+
+
+    /**
+     * The longest string that is always short enough for
+     * <code>writeUTF()</code>, which encodes a character in three bytes at
+     * most.
+     */
+    private static final int MAX_UTF = 65535 / 3;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Read an attribute value previously written by
+     * <code>writeAttribute()</code> from the specified stream.
+     *
+     * @param stream The stream to read from
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public Object readAttribute(ObjectInputStream stream)
+        throws ClassNotFoundException, IOException {
+
+        byte tag = stream.readByte();
+        switch (tag) {
+        case NULL:
+            return (null);
+        case STRING:
+            return (stream.readUTF());
+        case INTEGER:
+            return (new Integer(stream.readInt()));
+        case LONG:
+            return (new Long(stream.readLong()));
+        case TRUE:
+            return (Boolean.TRUE);
+        case FALSE:
+            return (Boolean.FALSE);
+        case DOUBLE:
+            return (new Double(stream.readDouble()));
+        case FLOAT:
+            return (new Float(stream.readFloat()));
+        case SHORT:
+            return (new Short(stream.readShort()));
+        case BYTE:
+            return (new Byte(stream.readByte()));
+        case CHARACTER:
+            return (new Character(stream.readChar()));
+        case DATE:
+            return (new Date(stream.readLong()));
+        case BYTES: {
+            byte bytes[] = new byte[stream.readInt()];
+            stream.readFully(bytes);
+            return (bytes);
+        }
+        case STRINGS: {
+            String strings[] = new String[stream.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = (String) readAttribute(stream);
+            return (strings);
+        }
+        case LIST: {
+            int n = stream.readInt();
+            ArrayList list = new ArrayList(n);
+            for (int i = 0; i < n; i++)
+                list.add(readAttribute(stream));
+            return (list);
+        }
+        case MAP: {
+            int n = stream.readInt();
+            HashMap map = new HashMap();
+            for (int i = 0; i < n; i++) {
+                Object key = readAttribute(stream);
+                map.put(key, readAttribute(stream));
+            }
+            return (map);
+        }
+        case OBJECT:
+            return (stream.readObject());
+        default:
+            throw new StreamCorruptedException(Byte.toString(tag));
+        }
+
+    }
+
+
+    /**
+     * Write the specified attribute value to the specified stream.
+     *
+     * @param stream The stream to write to
+     * @param value The attribute value, which may be <code>null</code>
+     *
+     * @exception java.io.NotSerializableException if the value (or an
+     *  object it refers to) cannot be serialized
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeAttribute(ObjectOutputStream stream, Object value)
+        throws IOException {
+
+        if (!isTree(value, new IdentityHashMap())) {
+            stream.writeByte(OBJECT);
+            stream.writeObject(value);
+            return;
+        }
+        write(stream, value);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return <code>true</code> if no collection or array written in the
+     * compact form is reachable more than once from the specified value,
+     * through the collections and arrays written in the compact form.
+     *
+     * @param value The value to be checked
+     * @param seen The collections and arrays already reached
+     */
+    private boolean isTree(Object value, IdentityHashMap seen) {
+
+        if (value == null)
+            return (true);
+        Class clazz = value.getClass();
+        if ((clazz != String[].class) && (clazz != ArrayList.class) &&
+            (clazz != HashMap.class))
+            return (true);
+        if (seen.put(value, value) != null)
+            return (false);
+        if (clazz == ArrayList.class) {
+            ArrayList list = (ArrayList) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (!isTree(list.get(i), seen))
+                    return (false);
+            }
+        } else if (clazz == HashMap.class) {
+            Iterator entries = ((HashMap) value).entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                if (!isTree(entry.getKey(), seen) ||
+                    !isTree(entry.getValue(), seen))
+                    return (false);
+            }
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * Write the specified value, which is known to hold no shared or
+     * circular reference to a collection or array, to the specified stream.
+     *
+     * @param stream The stream to write to
+     * @param value The value, which may be <code>null</code>
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private void write(ObjectOutputStream stream, Object value)
+        throws IOException {
+
+        if (value == null) {
+            stream.writeByte(NULL);
+            return;
+        }
+
+        // Only exact classes are handled, so that subclasses keep their type
+        Class clazz = value.getClass();
+        if (clazz == String.class) {
+            String string = (String) value;
+            if (string.length() > MAX_UTF) {
+                stream.writeByte(OBJECT);
+                stream.writeObject(string);
+            } else {
+                stream.writeByte(STRING);
+                stream.writeUTF(string);
+            }
+        } else if (clazz == Integer.class) {
+            stream.writeByte(INTEGER);
+            stream.writeInt(((Integer) value).intValue());
+        } else if (clazz == Long.class) {
+            stream.writeByte(LONG);
+            stream.writeLong(((Long) value).longValue());
+        } else if (clazz == Boolean.class) {
+            stream.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (clazz == Double.class) {
+            stream.writeByte(DOUBLE);
+            stream.writeDouble(((Double) value).doubleValue());
+        } else if (clazz == Float.class) {
+            stream.writeByte(FLOAT);
+            stream.writeFloat(((Float) value).floatValue());
+        } else if (clazz == Short.class) {
+            stream.writeByte(SHORT);
+            stream.writeShort(((Short) value).shortValue());
+        } else if (clazz == Byte.class) {
+            stream.writeByte(BYTE);
+            stream.writeByte(((Byte) value).byteValue());
+        } else if (clazz == Character.class) {
+            stream.writeByte(CHARACTER);
+            stream.writeChar(((Character) value).charValue());
+        } else if (clazz == Date.class) {
+            stream.writeByte(DATE);
+            stream.writeLong(((Date) value).getTime());
+        } else if (clazz == byte[].class) {
+            byte bytes[] = (byte[]) value;
+            stream.writeByte(BYTES);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        } else if (clazz == String[].class) {
+            String strings[] = (String[]) value;
+            stream.writeByte(STRINGS);
+            stream.writeInt(strings.length);
+            for (int i = 0; i < strings.length; i++)
+                write(stream, strings[i]);
+        } else if (clazz == ArrayList.class) {
+            ArrayList list = (ArrayList) value;
+            int n = list.size();
+            stream.writeByte(LIST);
+            stream.writeInt(n);
+            for (int i = 0; i < n; i++)
+                write(stream, list.get(i));
+        } else if (clazz == HashMap.class) {
+            HashMap map = (HashMap) value;
+            stream.writeByte(MAP);
+            stream.writeInt(map.size());
+            Iterator entries = map.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                write(stream, entry.getKey());
+                write(stream, entry.getValue());
+            }
+        } else {
+            stream.writeByte(OBJECT);
+            stream.writeObject(value);
+        }
+
+    }
+
+
+}
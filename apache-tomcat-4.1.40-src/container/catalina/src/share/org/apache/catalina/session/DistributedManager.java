@@ -5,9 +5,9 @@
  * The ASF licenses this file to You under the Apache License, Version 2.0
  * (the "License"); you may not use this file except in compliance with
  * the License.  You may obtain a copy of the License at
- * 
+ *
  *      http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -23,6 +23,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.HashMap;
 import org.apache.catalina.Cluster;
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
@@ -31,12 +32,30 @@ import org.apache.catalina.Session;
 import org.apache.catalina.cluster.ClusterSender;
 import org.apache.catalina.cluster.ClusterReceiver;
 import org.apache.catalina.cluster.ReplicationWrapper;
+import org.apache.catalina.cluster.TcpReceiver;
+import org.apache.catalina.cluster.TcpSender;
 import org.apache.catalina.util.CustomObjectInputStream;
 
 /**
  * This manager is responsible for in memory replication of
  * Sessions across a defined Cluster. It could also utilize a
  * Store to make Sessions persistence.
+ * <p>
+ * A new Session is replicated as a whole. Afterwards only the attributes
+ * set or removed since it was last replicated are sent, together with its
+ * access times, once at the end of each request that used it (see
+ * <code>replicate()</code>); a request that changed no attribute only
+ * refreshes the access times on the other members, at most once per
+ * <code>checkInterval</code>. Changes made to the contents of a mutable
+ * attribute are only replicated when the attribute is set again. The
+ * expiration or invalidation of a Session is replicated as well.
+ * Replicated changes are applied without notifying any listener.
+ * <p>
+ * Each message carries a sequence number of its Session, and messages
+ * older than the last one applied are discarded, as a message resent
+ * after a failure may be received after later ones. A Session whose
+ * changes could not be queued for every member is replicated as a whole
+ * at the end of the next request that uses it.
  *
  * @author Bip Thelin
  * @version $Revision: 466595 $, $Date: 2006-10-21 23:24:41 +0100 (Sat, 21 Oct 2006) $
@@ -48,6 +67,13 @@ public final class DistributedManager extends PersistentManagerBase {
     // ----------------------------------------------------- Instance Variables
 
 
+    /**
+     * The types of replication messages.
+     */
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    private static final byte EXPIRE = 3;
+
     /**
      * The descriptive information about this implementation.
      */
@@ -68,6 +94,29 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     private ClusterReceiver clusterReceiver = null;
 
+    /**
+     * The sequence numbers of the Sessions recently removed by replicated
+     * messages, keyed by session id, so that older messages received
+     * afterwards do not create them again.
+     */
+    private HashMap expired = new HashMap();
+
+    /**
+     * The removed Sessions recorded during the previous check interval.
+     */
+    private HashMap retired = new HashMap();
+
+    /**
+     * The time at which <code>expired</code> was last retired.
+     */
+    private long retiredTime = System.currentTimeMillis();
+
+    /**
+     * The Session being removed because of a replicated message, whose
+     * removal must not be replicated again.
+     */
+    private Session removing = null;
+
 
     // ------------------------------------------------------------- Properties
 
@@ -99,27 +148,52 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     public Session createSession() {
         Session session = super.createSession();
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-
-        try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-            ((StandardSession)session).writeObjectData(oos);
-            oos.close();
+        if (clusterSender != null)
+            send(FULL, (StandardSession) session);
+        return (session);
+    }
 
-            byte[] obs = bos.toByteArray();
-            clusterSender.send(obs);
+    /**
+     * Remove this Session from the active Sessions for this Manager,
+     * and replicate its removal in our Cluster unless it was removed
+     * because of a replicated removal.
+     *
+     * @param session Session to be removed
+     */
+    public void remove(Session session) {
+        super.remove(session);
+
+        if ((clusterSender == null) || !(session instanceof StandardSession) ||
+            (session == removing))
+            return;
+        StandardSession standardSession = (StandardSession) session;
+        standardSession.delta = null;
+        send(EXPIRE, standardSession);
+    }
 
-            if(debug > 0)
-                log("Replicating Session: "+session.getId());
-        } catch (IOException e) {
-            log("An error occurred when replicating Session: "+session.getId());
+    /**
+     * Replicate the changes made to the specified Session by the request
+     * that just completed, if it is active. A Session that was never
+     * replicated, such as one loaded from the Store, is replicated as a
+     * whole.
+     *
+     * @param id The session id of the Session
+     */
+    public void replicate(String id) {
+        if ((clusterSender == null) || (id == null))
+            return;
+        StandardSession session = (StandardSession) sessions.get(id);
+        if ((session == null) || !session.isValid())
+            return;
+
+        SessionDelta delta = session.delta;
+        if (delta == null) {
+            send(FULL, session);
+        } else if (!delta.isEmpty() ||
+                   (System.currentTimeMillis() - delta.getReplicated() >=
+                    getCheckInterval() * 1000L)) {
+            send(DELTA, session);
         }
-
-        return (session);
     }
 
     /**
@@ -135,63 +209,131 @@ public final class DistributedManager extends PersistentManagerBase {
             cluster = container.getCluster();
 
         if(cluster != null) {
-            this.clusterSender = cluster.getClusterSender(getName());
-            this.clusterReceiver = cluster.getClusterReceiver(getName());
+            // Each Context replicates to the same Context on the other members
+            String senderId = getName() + "[" + container.getName() + "]";
+            this.clusterSender = cluster.getClusterSender(senderId);
+            this.clusterReceiver = cluster.getClusterReceiver(senderId);
         }
 
         super.start();
     }
 
+    /**
+     * Stop this manager
+     *
+     * @exception LifecycleException if an error occurs
+     */
+    public void stop() throws LifecycleException {
+        // Stop replicating first, so that the other members keep the
+        // sessions expired here
+        clusterSender = null;
+
+        super.stop();
+
+        if (clusterReceiver != null)
+            clusterReceiver.stop();
+        clusterReceiver = null;
+    }
+
     /**
      * Called from our background thread to process new received Sessions
      *
      */
     public void processClusterReceiver() {
-        Object[] objs = clusterReceiver.getObjects();
-        StandardSession _session = null;
-        ByteArrayInputStream bis = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        ObjectInputStream ois = null;
-        byte[] buf = new byte[5000];
-        ReplicationWrapper repObj = null;
+        if (clusterReceiver != null)
+            process(clusterReceiver.getObjects());
+    }
 
-        for(int i=0; i < objs.length;i++) {
-            try {
-                bis = new ByteArrayInputStream(buf);
-                repObj = (ReplicationWrapper)objs[i];
-                buf = repObj.getDataStream();
-                bis = new ByteArrayInputStream(buf, 0, buf.length);
 
-                if (container != null)
-                    loader = container.getLoader();
+    // -------------------------------------------------------- Private Methods
+
 
-                if (loader != null)
-                    classLoader = loader.getClassLoader();
+    /**
+     * Apply the replication messages received from the other members.
+     *
+     * @param objs The <code>ReplicationWrapper</code>s received
+     */
+    private void process(Object[] objs) {
+        Loader loader = null;
+        ClassLoader classLoader = null;
+
+        if (container != null)
+            loader = container.getLoader();
+        if (loader != null)
+            classLoader = loader.getClassLoader();
+
+        // Remember removed Sessions for one to two check intervals
+        long timeNow = System.currentTimeMillis();
+        if (timeNow - retiredTime >= getCheckInterval() * 1000L) {
+            retired = expired;
+            expired = new HashMap();
+            retiredTime = timeNow;
+        }
 
+        for (int i = 0; i < objs.length; i++) {
+            ObjectInputStream ois = null;
+            String id = null;
+            try {
+                byte[] buf = ((ReplicationWrapper) objs[i]).getDataStream();
+                ByteArrayInputStream bis = new ByteArrayInputStream(buf);
                 if (classLoader != null)
-                    ois = new CustomObjectInputStream(bis,
-                                                      classLoader);
+                    ois = new CustomObjectInputStream(bis, classLoader);
                 else
                     ois = new ObjectInputStream(bis);
 
-                _session = (StandardSession) super.createSession();
-                _session.readObjectData(ois);
-                _session.setManager(this);
+                byte type = ois.readByte();
+                id = ois.readUTF();
+                long sequence = ois.readLong();
+                StandardSession session = (StandardSession) sessions.get(id);
+                if (isStale(id, session, sequence)) {
+                    if (debug > 1)
+                        log(sm.getString("distributedManager.stale",
+                                         String.valueOf(type), id));
+                    continue;
+                }
+                if ((session != null) && (type != DELTA)) {
+                    // Replaced or removed, without notifying listeners
+                    session.delta = null;
+                    removing = session;
+                    try {
+                        session.expire(false);
+                    } finally {
+                        removing = null;
+                    }
+                }
 
-                if (debug > 0)
-                    log("Loading replicated session: "+_session.getId());
+                if (type == FULL) {
+                    session = (StandardSession) createEmptySession();
+                    session.readObjectData(ois);
+                    session.setManager(this);
+                    session.delta = new SessionDelta();
+                    session.sequence = sequence;
+                    add(session);
+                } else if (type == DELTA) {
+                    if (session != null) {
+                        session.readDeltaData(ois, classLoader);
+                        session.sequence = sequence;
+                    } else if (debug > 1) {
+                        log(sm.getString("distributedManager.unknownSession",
+                                         id));
+                    }
+                } else if (type == EXPIRE) {
+                    expired.put(id, new Long(sequence));
+                }
+
+                if (debug > 1)
+                    log(sm.getString("distributedManager.received",
+                                     String.valueOf(type), id));
             } catch (IOException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
+                log(sm.getString("distributedManager.receiveException",
+                                 id, e.toString()));
             } catch (ClassNotFoundException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
+                log(sm.getString("distributedManager.receiveException",
+                                 id, e.toString()));
             } finally {
                 if (ois != null) {
                     try {
                         ois.close();
-                        bis = null;
                     } catch (IOException e) {
                         ;
                     }
@@ -200,13 +342,111 @@ public final class DistributedManager extends PersistentManagerBase {
         }
     }
 
+    /**
+     * Is a replication message with the specified sequence number older
+     * than the last one applied to the specified Session?
+     *
+     * @param id The session id
+     * @param session The Session, or <code>null</code> if it is unknown
+     * @param sequence The sequence number of the message
+     */
+    private boolean isStale(String id, StandardSession session,
+                            long sequence) {
+        if (session != null)
+            return (sequence <= session.sequence);
+        Long last = (Long) expired.get(id);
+        if (last == null)
+            last = (Long) retired.get(id);
+        return ((last != null) && (sequence <= last.longValue()));
+    }
+
+    /**
+     * Replicate the specified Session in our Cluster.  Messages about the
+     * same Session are received in the order they were sent.  If the
+     * message is dropped for a member, the Session is replicated as a
+     * whole the next time.
+     *
+     * @param type The type of replication message
+     * @param session The Session
+     */
+    private void send(byte type, StandardSession session) {
+        ClusterSender sender = clusterSender;
+        if (sender == null)
+            return;
+
+        String id = session.getId();
+        try {
+            // Queue the messages of a Session in the order of their numbers
+            synchronized (session) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos =
+                    new ObjectOutputStream(new BufferedOutputStream(bos));
+                oos.writeByte(type);
+                oos.writeUTF(id);
+                // Numbered from the current time when the Session was not
+                // replicated yet, such as after it was loaded from the Store
+                if (session.sequence == 0L)
+                    session.sequence = System.currentTimeMillis() * 1000L;
+                oos.writeLong(++session.sequence);
+                if (type == FULL) {
+                    // Later changes are recorded from now on
+                    session.delta = new SessionDelta();
+                    session.writeObjectData(oos);
+                } else if (type == DELTA) {
+                    session.writeDeltaData(oos);
+                }
+                oos.close();
+
+                byte[] obs = bos.toByteArray();
+                if (sender instanceof TcpSender) {
+                    if (!((TcpSender) sender).send(id, obs) &&
+                        (type != EXPIRE))
+                        session.delta = null;
+                } else {
+                    sender.send(obs);
+                }
+            }
+
+            if (debug > 1)
+                log(sm.getString("distributedManager.replicate",
+                                 String.valueOf(type), id));
+        } catch (IOException e) {
+            log(sm.getString("distributedManager.replicateException",
+                             id, e.toString()));
+        }
+    }
+
+    /**
+     * Wait for the duration specified by the <code>checkInterval</code>
+     * property, applying the replication messages as they are received
+     * if our ClusterReceiver lets us wait for them.
+     */
+    private void threadWait() {
+        if (!(clusterReceiver instanceof TcpReceiver)) {
+            threadSleep();
+            return;
+        }
+
+        TcpReceiver receiver = (TcpReceiver) clusterReceiver;
+        long end = System.currentTimeMillis() + getCheckInterval() * 1000L;
+        long wait = end - System.currentTimeMillis();
+        while (!threadDone && (wait > 0)) {
+            process(receiver.getObjects(wait));
+            wait = end - System.currentTimeMillis();
+        }
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
     /**
      * The background thread that checks for session timeouts and shutdown.
      */
     public void run() {
         // Loop until the termination semaphore is set
         while (!threadDone) {
-            threadSleep();
+            threadWait();
             processClusterReceiver();
             processExpires();
             processPersistenceChecks();
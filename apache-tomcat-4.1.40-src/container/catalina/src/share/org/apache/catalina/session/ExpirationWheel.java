@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+
+/**
+ * Hierarchical timer wheel that schedules the expiration of the sessions of
+ * a <code>StandardManager</code>.
+ * <p>
+ * Each session is placed in a slot according to its projected expiration
+ * time, computed from its last used time and maximum inactive interval.
+ * The first level has one slot per tick, and each higher level has slots
+ * covering a whole revolution of the level below it; the sessions in a
+ * higher level slot are moved down when their slot comes due.  Accessing a
+ * session does not touch the wheel: when the slot of a session comes due,
+ * its expiration time is computed again, and the session is either
+ * returned as expired or rescheduled.  Each call to <code>advance()</code>
+ * therefore only visits the sessions whose slot is due, instead of every
+ * active session.
+ * <p>
+ * The slot of a session is recorded on the session itself, so that a
+ * session can be removed from the wheel, or rescheduled, in constant time.
+ */
+
+final class ExpirationWheel {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new wheel with the specified resolution.
+     *
+     * @param tick The duration of a tick, in milliseconds
+     */
+    ExpirationWheel(long tick) {
+
+        super();
+        this.tick = tick;
+        this.current = System.currentTimeMillis() / tick;
+        for (int i = 0; i < LEVELS; i++) {
+            for (int j = 0; j < SLOTS; j++)
+                wheel[i][j] = new HashSet();
+        }
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of bits of a tick number used to index a level.
+     */
+    private static final int BITS = 6;
+
+
+    /**
+     * The number of levels of the wheel.
+     */
+    private static final int LEVELS = 3;
+
+
+    /**
+     * The number of slots in each level of the wheel.
+     */
+    private static final int SLOTS = 1 << BITS;
+
+
+    /**
+     * The mask selecting the slot index from a tick number.
+     */
+    private static final long MASK = SLOTS - 1;
+
+
+    /**
+     * The number of the last tick processed by <code>advance()</code>.
+     */
+    private long current = 0L;
+
+
+    /**
+     * The duration of a tick, in milliseconds.
+     */
+    private long tick = 0L;
+
+
+    /**
+     * The slots of the wheel, indexed by level and by slot.
+     */
+    private HashSet wheel[][] = new HashSet[LEVELS][SLOTS];
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Process every tick up to the specified time, and return the sessions
+     * found to have expired, which have been removed from the wheel.  The
+     * caller is responsible for expiring them, outside of any lock held on
+     * this wheel.
+     *
+     * @param timeNow The current time, in milliseconds
+     */
+    synchronized StandardSession[] advance(long timeNow) {
+
+        ArrayList expired = new ArrayList();
+        long target = timeNow / tick;
+        while (current < target) {
+            current++;
+
+            // Move the sessions of the higher level slots now due down
+            for (int level = 1; level < LEVELS; level++) {
+                if ((current & ((1L << (level * BITS)) - 1)) != 0)
+                    break;
+                int index = (int) ((current >>> (level * BITS)) & MASK);
+                cascade(wheel[level][index], timeNow, expired);
+            }
+
+            // Process the sessions due in this tick
+            cascade(wheel[0][(int) (current & MASK)], timeNow, expired);
+        }
+
+        return ((StandardSession[])
+                expired.toArray(new StandardSession[expired.size()]));
+
+    }
+
+
+    /**
+     * Remove the specified session from this wheel, if it is scheduled.
+     *
+     * @param session The session to be removed
+     */
+    synchronized void remove(StandardSession session) {
+
+        if (session.expirySlot != null) {
+            session.expirySlot.remove(session);
+            session.expirySlot = null;
+        }
+
+    }
+
+
+    /**
+     * Schedule (or reschedule) the specified session according to its
+     * current last used time and maximum inactive interval.  Sessions that
+     * never time out are removed from this wheel.
+     *
+     * @param session The session to be scheduled
+     */
+    synchronized void schedule(StandardSession session) {
+
+        remove(session);
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval < 0)
+            return;
+        long expires =
+            session.getLastUsedTime() + (maxInactiveInterval * 1000L);
+        place(session, (expires + tick - 1) / tick);
+
+    }
+
+
+    /**
+     * Return the number of sessions scheduled in this wheel.
+     */
+    synchronized int size() {
+
+        int size = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            for (int j = 0; j < SLOTS; j++)
+                size += wheel[i][j].size();
+        }
+        return (size);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Empty the specified slot, collecting the sessions that have expired
+     * and placing the others according to their current expiration time.
+     *
+     * @param slot The slot to be emptied
+     * @param timeNow The current time, in milliseconds
+     * @param expired The list to which expired sessions are added
+     */
+    private void cascade(HashSet slot, long timeNow, ArrayList expired) {
+
+        if (slot.isEmpty())
+            return;
+        StandardSession sessions[] = (StandardSession[])
+            slot.toArray(new StandardSession[slot.size()]);
+        slot.clear();
+
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = sessions[i];
+            session.expirySlot = null;
+            if (!session.isValid())
+                continue;
+            int maxInactiveInterval = session.getMaxInactiveInterval();
+            if (maxInactiveInterval < 0)
+                continue;
+            long expires =
+                session.getLastUsedTime() + (maxInactiveInterval * 1000L);
+            if (expires <= timeNow)
+                expired.add(session);
+            else
+                place(session, (expires + tick - 1) / tick);
+        }
+
+    }
+
+
+    /**
+     * Place the specified session in the slot covering the specified tick.
+     * Ticks already processed are mapped to the next tick, and ticks beyond
+     * the range of the wheel to its last slot, from which the session will
+     * be rescheduled when that slot comes due.
+     *
+     * @param session The session to be placed
+     * @param due The tick at which the session expires
+     */
+    private void place(StandardSession session, long due) {
+
+        if (due <= current)
+            due = current + 1;
+        long delta = due - current;
+        int level = 0;
+        while ((level < LEVELS - 1) && (delta >= (1L << ((level + 1) * BITS))))
+            level++;
+        long range = 1L << (LEVELS * BITS);
+        if (delta >= range)
+            due = current + range - 1;
+        int index = (int) ((due >>> (level * BITS)) & MASK);
+        HashSet slot = wheel[level][index];
+        slot.add(session);
+        session.expirySlot = slot;
+
+    }
+
+
+}
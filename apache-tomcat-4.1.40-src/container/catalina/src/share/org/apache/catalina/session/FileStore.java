@@ -28,10 +28,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.ArrayList;
 import javax.servlet.ServletContext;
 import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
@@ -43,6 +43,15 @@ import org.apache.catalina.util.CustomObjectInputStream;
  * Concrete implementation of the <b>Store</b> interface that utilizes
  * a file per saved Session in a configured directory.  Sessions that are
  * saved are still subject to being expired based on inactivity.
+ * <p>
+ * Session files are spread over subdirectories named after a hash of
+ * their session identifier, so that no single directory grows too large.
+ * A memory mapped index records the last used time and maximum inactive
+ * interval of every saved session, so that listing the saved sessions and
+ * finding the expired ones never requires reading the session files.  The
+ * index is rebuilt from the session files when it is missing, was not
+ * closed cleanly or is corrupt, which also moves the files saved by earlier
+ * versions into their subdirectory.
  *
  * @author Craig R. McClanahan
  * @version $Revision: 466595 $ $Date: 2006-10-21 23:24:41 +0100 (Sat, 21 Oct 2006) $
@@ -61,6 +70,19 @@ public final class FileStore
     private static final String FILE_EXT = ".session";
 
 
+    /**
+     * The name of the index file, in the directory in which Sessions are
+     * stored.
+     */
+    private static final String INDEX_FILE = "sessions.index";
+
+
+    /**
+     * The number of subdirectories over which session files are spread.
+     */
+    private static final int SUBDIRECTORIES = 256;
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -78,6 +100,12 @@ public final class FileStore
     private File directoryFile = null;
 
 
+    /**
+     * The index of the saved Sessions, opened on first use.
+     */
+    private FileStoreIndex index = null;
+
+
     /**
      * The descriptive information about this implementation.
      */
@@ -115,6 +143,7 @@ public final class FileStore
     public void setDirectory(String path) {
 
         String oldDirectory = this.directory;
+        closeIndex();
         this.directory = path;
         this.directoryFile = null;
         support.firePropertyChange("directory", oldDirectory,
@@ -156,21 +185,11 @@ public final class FileStore
      */
     public int getSize() throws IOException {
 
-        // Acquire the list of files in our storage directory
-        File file = directory();
-        if (file == null) {
+        FileStoreIndex index = index();
+        if (index == null) {
             return (0);
         }
-        String files[] = file.list();
-
-        // Figure out which files are sessions
-        int keycount = 0;
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].endsWith(FILE_EXT)) {
-                keycount++;
-            }
-        }
-        return (keycount);
+        return (index.size());
 
     }
 
@@ -203,22 +222,11 @@ public final class FileStore
      */
     public String[] keys() throws IOException {
 
-        // Acquire the list of files in our storage directory
-        File file = directory();
-        if (file == null) {
+        FileStoreIndex index = index();
+        if (index == null) {
             return (new String[0]);
         }
-        String files[] = file.list();
-
-        // Build and return the list of session identifiers
-        ArrayList list = new ArrayList();
-        int n = FILE_EXT.length();
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].endsWith(FILE_EXT)) {
-                list.add(files[i].substring(0, files[i].length() - n));
-            }
-        }
-        return ((String[]) list.toArray(new String[list.size()]));
+        return (index.keys());
 
     }
 
@@ -321,6 +329,10 @@ public final class FileStore
                              id, file.getAbsolutePath()));
         }
         file.delete();
+        FileStoreIndex index = index();
+        if (index != null) {
+            index.remove(id);
+        }
 
     }
 
@@ -347,6 +359,10 @@ public final class FileStore
         }
         FileOutputStream fos = null;
         ObjectOutputStream oos = null;
+        File parent = file.getParentFile();
+        if (!parent.isDirectory()) {
+            parent.mkdirs();
+        }
         try {
             fos = new FileOutputStream(file.getAbsolutePath());
             oos = new ObjectOutputStream(new BufferedOutputStream(fos));
@@ -367,12 +383,102 @@ public final class FileStore
             oos.close();
         }
 
+        // Record the session in the index
+        FileStoreIndex index = index();
+        if (index != null) {
+            index.put(session.getId(),
+                      ((StandardSession) session).getLastUsedTime(),
+                      session.getMaxInactiveInterval(),
+                      (int) file.length());
+        }
+
+    }
+
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component, closing the index.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+
+        super.stop();
+        closeIndex();
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Called by our background reaper thread to expire the saved Sessions
+     * whose inactive interval has elapsed, as recorded in the index.  Only
+     * the Sessions that have expired, and are not also loaded in memory,
+     * are read back from their file, so that their listeners can be
+     * notified.
+     */
+    protected void processExpires() {
+
+        if (!started) {
+            return;
+        }
+
+        String keys[] = null;
+        try {
+            FileStoreIndex index = index();
+            if (index == null) {
+                return;
+            }
+            keys = index.expired(System.currentTimeMillis());
+        } catch (IOException e) {
+            log(e.toString());
+            return;
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                if (((PersistentManagerBase) manager).isLoaded(keys[i])) {
+                    // The copy in memory is the live one
+                    remove(keys[i]);
+                    continue;
+                }
+                StandardSession session = (StandardSession) load(keys[i]);
+                if (session != null && session.isValid()) {
+                    session.expire();
+                }
+                remove(keys[i]);
+            } catch (Exception e) {
+                log("Session: " + keys[i] + "; " + e.toString());
+                try {
+                    remove(keys[i]);
+                } catch (IOException e2) {
+                    log(e2.toString());
+                }
+            }
+        }
+
     }
 
 
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Close the index, if it is open.
+     */
+    private synchronized void closeIndex() {
+
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+
+    }
+
+
     /**
      * Return a File object representing the pathname to our
      * session persistence directory, if any.  The directory will be
@@ -424,10 +530,140 @@ public final class FileStore
             return (null);
         }
         String filename = id + FILE_EXT;
-        File file = new File(directory(), filename);
+        File file = new File(new File(directory(), subdirectory(id)),
+                             filename);
         return (file);
 
     }
 
 
+    /**
+     * Return the index of the saved Sessions, opening it (and rebuilding
+     * it from the session files if it cannot be trusted) on first use.
+     * Returns <code>null</code> if no directory is configured.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private synchronized FileStoreIndex index() throws IOException {
+
+        if (index != null) {
+            return (index);
+        }
+        File dir = directory();
+        if (dir == null) {
+            return (null);
+        }
+        FileStoreIndex newIndex =
+            new FileStoreIndex(new File(dir, INDEX_FILE));
+        if (!newIndex.open()) {
+            rebuild(dir, newIndex);
+        }
+        index = newIndex;
+        return (index);
+
+    }
+
+
+    /**
+     * Index the header of the specified session file.  The scalar fields
+     * a session writes first are read without deserializing its
+     * attributes.
+     *
+     * @param file The session file
+     * @param index The index being rebuilt
+     */
+    private void indexFile(File file, FileStoreIndex index) {
+
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream
+                (new BufferedInputStream(new FileInputStream(file)));
+            ois.readObject();       // creationTime
+            ois.readObject();       // lastAccessedTime
+            int maxInactiveInterval = ((Integer) ois.readObject()).intValue();
+            ois.readObject();       // isNew
+            ois.readObject();       // isValid
+            long lastUsedTime = ((Long) ois.readObject()).longValue();
+            String id = (String) ois.readObject();
+            index.put(id, lastUsedTime, maxInactiveInterval,
+                      (int) file.length());
+        } catch (Exception e) {
+            log(sm.getString(getStoreName() + ".indexError",
+                             file.getAbsolutePath(), e.toString()));
+        } finally {
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Rebuild the index from the session files found in the specified
+     * directory, moving the files saved directly in it into their
+     * subdirectory.
+     *
+     * @param dir The directory in which Sessions are stored
+     * @param index The (empty) index to be rebuilt
+     */
+    private void rebuild(File dir, FileStoreIndex index) {
+
+        log(sm.getString(getStoreName() + ".rebuildIndex",
+                         dir.getAbsolutePath()));
+        int n = FILE_EXT.length();
+        String names[] = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (int i = 0; i < names.length; i++) {
+            File file = new File(dir, names[i]);
+            if (file.isDirectory()) {
+                String files[] = file.list();
+                if (files == null) {
+                    continue;
+                }
+                for (int j = 0; j < files.length; j++) {
+                    if (files[j].endsWith(FILE_EXT)) {
+                        indexFile(new File(file, files[j]), index);
+                    }
+                }
+            } else if (names[i].endsWith(FILE_EXT)) {
+                File target =
+                    file(names[i].substring(0, names[i].length() - n));
+                target.getParentFile().mkdirs();
+                if (file.renameTo(target)) {
+                    file = target;
+                }
+                indexFile(file, index);
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the name of the subdirectory holding the file of the
+     * specified session.
+     *
+     * @param id Session identifier
+     */
+    private String subdirectory(String id) {
+
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 8);
+        String name = Integer.toHexString(hash & (SUBDIRECTORIES - 1));
+        if (name.length() < 2) {
+            name = "0" + name;
+        }
+        return (name);
+
+    }
+
+
 }
@@ -0,0 +1,424 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+/**
+ * Memory mapped index of the sessions saved by a <code>FileStore</code>,
+ * recording for each session identifier its last used time, its maximum
+ * inactive interval and the size of its file.  The <code>FileStore</code>
+ * answers <code>keys()</code> and <code>getSize()</code> from this index,
+ * and finds the sessions that have expired by scanning it, instead of
+ * listing its directories and deserializing every session file.
+ * <p>
+ * The index file is a header followed by fixed size records, one per
+ * session.  The slot of each identifier is kept in memory; the slots of
+ * removed sessions are reused, and the file is doubled in size when every
+ * slot is taken.
+ * <p>
+ * The header records whether the index was closed cleanly.  An index left
+ * open by a crash, which may lack the sessions saved just before it, or
+ * holding an invalid record, is discarded when opened, so that the caller
+ * rebuilds it from the session files.
+ */
+
+final class FileStoreIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new index stored in the specified file.
+     *
+     * @param file The index file
+     */
+    FileStoreIndex(File file) {
+
+        super();
+        this.file = file;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The value of the state field of an index closed cleanly.
+     */
+    private static final int CLEAN = 1;
+
+
+    /**
+     * The value of the state field of an index in use.
+     */
+    private static final int DIRTY = 0;
+
+
+    /**
+     * The size of the header of the index file.
+     */
+    private static final int HEADER = 16;
+
+
+    /**
+     * The magic number identifying an index file.
+     */
+    private static final int MAGIC = 0x54434659;
+
+
+    /**
+     * The offset of the state field in the header.
+     */
+    private static final int STATE = 8;
+
+
+    /**
+     * The minimum number of records of the index file.
+     */
+    private static final int MIN_RECORDS = 1024;
+
+
+    /**
+     * The maximum length of an indexed session identifier.
+     */
+    static final int MAX_ID = 100;
+
+
+    /**
+     * The size of a record of the index file.
+     */
+    private static final int RECORD = 128;
+
+
+    /**
+     * The offsets of the fields of a record.
+     */
+    private static final int USED = 0;
+    private static final int ID_LENGTH = 1;
+    private static final int ID = 2;
+    private static final int LAST_USED = ID + MAX_ID;
+    private static final int MAX_INACTIVE = LAST_USED + 8;
+    private static final int SIZE = MAX_INACTIVE + 4;
+
+
+    /**
+     * The mapped contents of the index file.
+     */
+    private MappedByteBuffer buffer = null;
+
+
+    /**
+     * The channel of the index file.
+     */
+    private FileChannel channel = null;
+
+
+    /**
+     * The index file.
+     */
+    private File file = null;
+
+
+    /**
+     * The free slots, as <code>Integer</code>s.
+     */
+    private ArrayList free = new ArrayList();
+
+
+    /**
+     * The number of records of the index file.
+     */
+    private int records = 0;
+
+
+    /**
+     * The slot of each indexed session, as an <code>Integer</code> keyed by
+     * session identifier.
+     */
+    private HashMap slots = new HashMap();
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Close the index file, after forcing its contents to disk and marking
+     * it closed cleanly.
+     */
+    synchronized void close() {
+
+        if (channel == null)
+            return;
+        buffer.force();
+        buffer.putInt(STATE, CLEAN);
+        buffer.force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ;
+        }
+        channel = null;
+        buffer = null;
+        slots.clear();
+        free.clear();
+
+    }
+
+
+    /**
+     * Return the identifiers of the indexed sessions that have expired at
+     * the specified time.
+     *
+     * @param timeNow The current time, in milliseconds
+     */
+    synchronized String[] expired(long timeNow) {
+
+        ArrayList list = new ArrayList();
+        Iterator entries = slots.values().iterator();
+        while (entries.hasNext()) {
+            int offset = offset(((Integer) entries.next()).intValue());
+            int maxInactiveInterval = buffer.getInt(offset + MAX_INACTIVE);
+            if (maxInactiveInterval < 0)
+                continue;
+            long lastUsedTime = buffer.getLong(offset + LAST_USED);
+            if (timeNow - lastUsedTime >= maxInactiveInterval * 1000L)
+                list.add(readId(offset));
+        }
+        return ((String[]) list.toArray(new String[list.size()]));
+
+    }
+
+
+    /**
+     * Return the identifiers of every indexed session.
+     */
+    synchronized String[] keys() {
+
+        return ((String[]) slots.keySet().toArray(new String[slots.size()]));
+
+    }
+
+
+    /**
+     * Open the index file, creating it if necessary, and read the slot of
+     * each indexed session.  Return <code>false</code> if the file had to
+     * be created, or was discarded because it was not closed cleanly, was
+     * written by another version or holds an invalid record, in which case
+     * the caller must index the sessions already stored.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    synchronized boolean open() throws IOException {
+
+        boolean existed = file.exists() && (file.length() > HEADER);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        slots.clear();
+        free.clear();
+        if (existed) {
+            records = (int) ((file.length() - HEADER) / RECORD);
+            map();
+            existed = (buffer.getInt(0) == MAGIC)
+                && (buffer.getInt(4) == RECORD)
+                && (buffer.getInt(STATE) == CLEAN)
+                && readSlots();
+        }
+        if (!existed) {
+            slots.clear();
+            free.clear();
+            records = MIN_RECORDS;
+            raf.setLength(0);
+            map();
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD);
+            for (int i = records - 1; i >= 0; i--)
+                free.add(new Integer(i));
+        }
+
+        // Until closed, the index is only trusted up to the last crash
+        buffer.putInt(STATE, DIRTY);
+        buffer.force();
+        return (existed);
+
+    }
+
+
+    /**
+     * Record (or update) the specified session in the index.
+     *
+     * @param id Session identifier
+     * @param lastUsedTime Last used time of the session
+     * @param maxInactiveInterval Maximum inactive interval of the session
+     * @param size Size of the session file
+     *
+     * @exception IOException if the identifier is too long or the index
+     *  file could not be grown
+     */
+    synchronized void put(String id, long lastUsedTime,
+                          int maxInactiveInterval, int size)
+        throws IOException {
+
+        byte bytes[] = id.getBytes("ISO-8859-1");
+        if (bytes.length > MAX_ID)
+            throw new IOException(id);
+
+        Integer slot = (Integer) slots.get(id);
+        if (slot == null) {
+            if (free.isEmpty())
+                grow();
+            slot = (Integer) free.remove(free.size() - 1);
+            slots.put(id, slot);
+        }
+        int offset = offset(slot.intValue());
+        buffer.put(offset + ID_LENGTH, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++)
+            buffer.put(offset + ID + i, bytes[i]);
+        buffer.putLong(offset + LAST_USED, lastUsedTime);
+        buffer.putInt(offset + MAX_INACTIVE, maxInactiveInterval);
+        buffer.putInt(offset + SIZE, size);
+        buffer.put(offset + USED, (byte) 1);
+
+    }
+
+
+    /**
+     * Remove the specified session from the index, if present.
+     *
+     * @param id Session identifier
+     */
+    synchronized void remove(String id) {
+
+        Integer slot = (Integer) slots.remove(id);
+        if (slot == null)
+            return;
+        buffer.put(offset(slot.intValue()) + USED, (byte) 0);
+        free.add(slot);
+
+    }
+
+
+    /**
+     * Return the number of indexed sessions.
+     */
+    synchronized int size() {
+
+        return (slots.size());
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Double the number of records of the index file.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private void grow() throws IOException {
+
+        buffer.force();
+        int oldRecords = records;
+        records = records * 2;
+        map();
+        for (int i = records - 1; i >= oldRecords; i--)
+            free.add(new Integer(i));
+
+    }
+
+
+    /**
+     * Map the index file, sized for the current number of records.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private void map() throws IOException {
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                             HEADER + ((long) records * RECORD));
+
+    }
+
+
+    /**
+     * Return the offset of the specified slot in the index file.
+     *
+     * @param slot The slot
+     */
+    private int offset(int slot) {
+
+        return (HEADER + (slot * RECORD));
+
+    }
+
+
+    /**
+     * Read the slot of each indexed session, and return <code>true</code>,
+     * or return <code>false</code> if a record is invalid.
+     */
+    private boolean readSlots() {
+
+        for (int i = records - 1; i >= 0; i--) {
+            int offset = offset(i);
+            byte used = buffer.get(offset + USED);
+            if (used == 0) {
+                free.add(new Integer(i));
+                continue;
+            }
+            int length = buffer.get(offset + ID_LENGTH) & 0xff;
+            if ((used != 1) || (length == 0) || (length > MAX_ID))
+                return (false);
+            String id = readId(offset);
+            if (slots.put(id, new Integer(i)) != null)
+                return (false);
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * Return the session identifier recorded at the specified offset.
+     *
+     * @param offset Offset of the record
+     */
+    private String readId(int offset) {
+
+        int length = buffer.get(offset + ID_LENGTH) & 0xff;
+        char chars[] = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (buffer.get(offset + ID + i) & 0xff);
+        return (new String(chars));
+
+    }
+
+
+}
@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -32,13 +33,23 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.naming.Context;
+import javax.sql.DataSource;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
+import org.apache.catalina.ServerFactory;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
+import org.apache.catalina.core.StandardServer;
 import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.naming.ContextBindings;
 
 /**
  * Implementation of the <code>Store</code> interface that stores
@@ -77,11 +88,6 @@ public class JDBCStore
      */
     protected String connString = null;
 
-    /**
-     * The database connection.
-     */
-    private Connection conn = null;
-
     /**
      * Driver to use.
      */
@@ -124,42 +130,41 @@ public class JDBCStore
      */
     protected String sessionLastAccessedCol = "lastaccess";
 
-    // ------------------------------------------------------------- SQL Variables
+    // ------------------------------------------------------------- Pool Variables
 
     /**
-     * Variable to hold the <code>getSize()</code> prepared statement.
+     * Should session data be compressed before it is stored?
      */
-    protected PreparedStatement preparedSizeSql = null;
+    protected boolean compress = false;
 
     /**
-     * Variable to hold the <code>keys()</code> prepared statement.
+     * Name of the JNDI resource of the DataSource providing connections to
+     * the database.  If not set, <code>driverName</code> and
+     * <code>connectionURL</code> are used instead.
      */
-    protected PreparedStatement preparedKeysSql = null;
+    protected String dataSourceName = null;
 
     /**
-     * Variable to hold the <code>save()</code> prepared statement.
+     * The DataSource looked up from <code>dataSourceName</code>, if any.
      */
-    protected PreparedStatement preparedSaveSql = null;
+    private DataSource dataSource = null;
 
     /**
-     * Variable to hold the <code>clear()</code> prepared statement.
+     * The idle connections of this Store, each with its own prepared
+     * statements.
      */
-    protected PreparedStatement preparedClearSql = null;
+    private ArrayList idle = new ArrayList();
 
     /**
-     * Variable to hold the <code>remove()</code> prepared statement.
+     * Is the DataSource defined in the naming context of the web
+     * application, rather than in the global naming resources?
      */
-    protected PreparedStatement preparedRemoveSql = null;
+    protected boolean localDataSource = false;
 
     /**
-     * Variable to hold the <code>load()</code> prepared statement.
+     * The maximum number of idle connections kept open by this Store.
      */
-    protected PreparedStatement preparedLoadSql = null;
-
-    /**
-     * Variable to hold the <code>processExpires()</code> prepared statement.
-     */
-    protected PreparedStatement preparedExpiresSql = null;
+    protected int maxIdleConnections = 4;
 
     // ------------------------------------------------------------- Properties
 
@@ -387,6 +392,90 @@ public class JDBCStore
         return(this.sessionLastAccessedCol);
     }
 
+
+    /**
+     * Set whether session data is compressed before it is stored.
+     *
+     * @param compress The new compression flag
+     */
+    public void setCompress(boolean compress) {
+        boolean oldCompress = this.compress;
+        this.compress = compress;
+        support.firePropertyChange("compress",
+                                   new Boolean(oldCompress),
+                                   new Boolean(this.compress));
+    }
+
+    /**
+     * Return whether session data is compressed before it is stored.
+     */
+    public boolean getCompress() {
+        return(this.compress);
+    }
+
+    /**
+     * Set the JNDI name of the DataSource providing connections.
+     *
+     * @param dataSourceName The new DataSource name
+     */
+    public void setDataSourceName(String dataSourceName) {
+        String oldDataSourceName = this.dataSourceName;
+        this.dataSourceName = dataSourceName;
+        support.firePropertyChange("dataSourceName",
+                                   oldDataSourceName,
+                                   this.dataSourceName);
+    }
+
+    /**
+     * Return the JNDI name of the DataSource providing connections.
+     */
+    public String getDataSourceName() {
+        return(this.dataSourceName);
+    }
+
+    /**
+     * Set whether the DataSource is defined in the naming context of the
+     * web application, rather than in the global naming resources.
+     *
+     * @param localDataSource The new flag value
+     */
+    public void setLocalDataSource(boolean localDataSource) {
+        boolean oldLocalDataSource = this.localDataSource;
+        this.localDataSource = localDataSource;
+        support.firePropertyChange("localDataSource",
+                                   new Boolean(oldLocalDataSource),
+                                   new Boolean(this.localDataSource));
+    }
+
+    /**
+     * Return whether the DataSource is defined in the naming context of
+     * the web application.
+     */
+    public boolean getLocalDataSource() {
+        return(this.localDataSource);
+    }
+
+    /**
+     * Set the maximum number of idle connections kept open by this Store.
+     *
+     * @param maxIdleConnections The new maximum
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        int oldMaxIdleConnections = this.maxIdleConnections;
+        this.maxIdleConnections = maxIdleConnections;
+        support.firePropertyChange("maxIdleConnections",
+                                   new Integer(oldMaxIdleConnections),
+                                   new Integer(this.maxIdleConnections));
+    }
+
+    /**
+     * Return the maximum number of idle connections kept open by this
+     * Store.
+     */
+    public int getMaxIdleConnections() {
+        return(this.maxIdleConnections);
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -402,45 +491,40 @@ public class JDBCStore
             " WHERE " + sessionAppCol + " = ?";
         ResultSet rst = null;
         String keys[] = null;
-        int i;
 
-        synchronized(this) {
-            Connection _conn = getConnection();
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return(new String[0]);
+        }
 
-            if(_conn == null) {
-                return(new String[0]);
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(keysSql);
+            stmt.setString(1, getName());
+            rst = stmt.executeQuery();
+            ArrayList tmpkeys = new ArrayList();
+            if (rst != null) {
+                while(rst.next()) {
+                    tmpkeys.add(rst.getString(1));
+                }
             }
-
+            keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+            keys = new String[0];
+        } finally {
             try {
-                if(preparedKeysSql == null) {
-                    preparedKeysSql = _conn.prepareStatement(keysSql);
-                }
-
-                preparedKeysSql.setString(1, getName());
-                rst = preparedKeysSql.executeQuery();
-                ArrayList tmpkeys = new ArrayList();
-                if (rst != null) {
-                    while(rst.next()) {
-                        tmpkeys.add(rst.getString(1));
-                    }
+                if(rst != null) {
+                    rst.close();
                 }
-                keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
             } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-                keys = new String[0];
-            } finally {
-                try {
-                    if(rst != null) {
-                        rst.close();
-                    }
-                } catch(SQLException e) {
-                    ;
-                }
-
-                release(_conn);
+                ;
             }
+
+            release(_conn, valid);
         }
-        
+
         return(keys);
     }
 
@@ -458,35 +542,31 @@ public class JDBCStore
             " WHERE " + sessionAppCol + " = ?";
         ResultSet rst = null;
 
-        synchronized(this) {
-            Connection _conn = getConnection();
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return(size);
+        }
 
-            if(_conn == null) {
-                return(size);
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(sizeSql);
+            stmt.setString(1, getName());
+            rst = stmt.executeQuery();
+            if (rst.next()) {
+                size = rst.getInt(1);
             }
-
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
             try {
-                if(preparedSizeSql == null) {
-                    preparedSizeSql = _conn.prepareStatement(sizeSql);
-                }
-
-                preparedSizeSql.setString(1, getName());
-                rst = preparedSizeSql.executeQuery();
-                if (rst.next()) {
-                    size = rst.getInt(1);
-                }
+                if(rst != null)
+                    rst.close();
             } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                try {
-                    if(rst != null)
-                        rst.close();
-                } catch(SQLException e) {
-                    ;
-                }
-
-                release(_conn);
+                ;
             }
+
+            release(_conn, valid);
         }
         return(size);
     }
@@ -507,74 +587,71 @@ public class JDBCStore
         Loader loader = null;
         ClassLoader classLoader = null;
         ObjectInputStream ois = null;
-        BufferedInputStream bis = null;
+        InputStream bis = null;
         Container container = manager.getContainer();
         String loadSql =
             "SELECT " + sessionIdCol + ", " + sessionDataCol + " FROM " +
             sessionTable + " WHERE " + sessionIdCol + " = ? AND " +
             sessionAppCol + " = ?";
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return(null);
-            }
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return(null);
+        }
 
-            try {
-                if(preparedLoadSql == null) {
-                    preparedLoadSql = _conn.prepareStatement(loadSql);
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(loadSql);
+            stmt.setString(1, id);
+            stmt.setString(2, getName());
+            rst = stmt.executeQuery();
+            if (rst.next()) {
+                bis = decode(rst.getBinaryStream(2));
+
+                if (container != null) {
+                    loader = container.getLoader();
+                }
+                if (loader != null) {
+                    classLoader = loader.getClassLoader();
+                }
+                if (classLoader != null) {
+                    ois = new CustomObjectInputStream(bis,
+                                                      classLoader);
+                } else {
+                    ois = new ObjectInputStream(bis);
                 }
 
-                preparedLoadSql.setString(1, id);
-                preparedLoadSql.setString(2, getName());
-                rst = preparedLoadSql.executeQuery();
-                if (rst.next()) {
-                    bis = new BufferedInputStream(rst.getBinaryStream(2));
-
-                    if (container != null) {
-                        loader = container.getLoader();
-                    }
-                    if (loader != null) {
-                        classLoader = loader.getClassLoader();
-                    }
-                    if (classLoader != null) {
-                        ois = new CustomObjectInputStream(bis,
-                                                          classLoader);
-                    } else {
-                        ois = new ObjectInputStream(bis);
-                    }
-
-                    if (debug > 0) {
-                        log(sm.getString(getStoreName()+".loading",
-                                         id, sessionTable));
-                    }
+                if (debug > 0) {
+                    log(sm.getString(getStoreName()+".loading",
+                                     id, sessionTable));
+                }
 
-                    _session = (StandardSession) manager.createEmptySession();
-                    _session.readObjectData(ois);
-                    _session.setManager(manager);
+                _session = (StandardSession) manager.createEmptySession();
+                _session.readObjectData(ois);
+                _session.setManager(manager);
 
-                } else if (debug > 0) {
-                    log(getStoreName()+": No persisted data object found");
+            } else if (debug > 0) {
+                log(getStoreName()+": No persisted data object found");
+            }
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            try {
+                if(rst != null) {
+                    rst.close();
                 }
             } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
+                ;
+            }
+            if (ois != null) {
                 try {
-                    if(rst != null) {
-                        rst.close();
-                    }
-                } catch(SQLException e) {
+                    ois.close();
+                } catch (IOException e) {
                     ;
                 }
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException e) {
-                        ;
-                    }
-                }
-                release(_conn);
             }
+            release(_conn, valid);
         }
 
         return(_session);
@@ -595,30 +672,22 @@ public class JDBCStore
             return;
         }
 
-        String removeSql =
-            "DELETE FROM " + sessionTable + " WHERE " + sessionIdCol +
-            " = ?  AND " + sessionAppCol + " = ?";
-
-        synchronized(this) {
-            Connection _conn = getConnection();
-
-            if(_conn == null) {
-                return;
-            }
-
-            try {
-                if(preparedRemoveSql == null) {
-                    preparedRemoveSql = _conn.prepareStatement(removeSql);
-                }
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return;
+        }
 
-                preparedRemoveSql.setString(1, id);
-                preparedRemoveSql.setString(2, getName());
-                preparedRemoveSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                release(_conn);
-            }
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(getRemoveSql());
+            stmt.setString(1, id);
+            stmt.setString(2, getName());
+            stmt.execute();
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            release(_conn, valid);
         }
 
         if (debug > 0) {
@@ -635,24 +704,21 @@ public class JDBCStore
         String clearSql =
             "DELETE FROM " + sessionTable + " WHERE " + sessionAppCol + " = ?";
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return;
-            }
-
-            try {
-                if(preparedClearSql == null) {
-                    preparedClearSql = _conn.prepareStatement(clearSql);
-                }
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return;
+        }
 
-                preparedClearSql.setString(1, getName());
-                preparedClearSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                release(_conn);
-            }
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(clearSql);
+            stmt.setString(1, getName());
+            stmt.execute();
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            release(_conn, valid);
         }
     }
 
@@ -663,6 +729,21 @@ public class JDBCStore
      * @exception IOException if an input/output error occurs
      */
     public void save(Session session) throws IOException {
+        save(new Session[] { session });
+    }
+
+    /**
+     * Save several sessions to the Store.  The sessions are serialized
+     * before a connection is borrowed, then the rows they replace are
+     * deleted and the new rows inserted in a single transaction, using
+     * batch updates when the driver supports them.
+     *
+     * @param sessions the sessions to be stored
+     * @exception IOException if no connection could be opened, the
+     *  transaction failed, or a session could not be serialized, in which
+     *  case the other sessions are still saved
+     */
+    public void save(Session sessions[]) throws IOException {
         String saveSql =
             "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", " +
             sessionAppCol + ", " +
@@ -670,66 +751,100 @@ public class JDBCStore
             sessionValidCol + ", " +
             sessionMaxInactiveCol + ", " +
             sessionLastAccessedCol + ") VALUES (?, ?, ?, ?, ?, ?)";
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-        InputStream in = null;
-
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return;
-            }
-
-            // If sessions already exist in DB, remove and insert again.
-            // TODO:
-            // * Check if ID exists in database and if so use UPDATE.
-            remove(session.getId());
 
+        // Serialize the sessions before holding a connection
+        ArrayList saved = new ArrayList();
+        ArrayList data = new ArrayList();
+        StringBuffer skipped = null;
+        for (int i = 0; i < sessions.length; i++) {
             try {
-                bos = new ByteArrayOutputStream();
-                oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-                ((StandardSession)session).writeObjectData(oos);
-                oos.close();
-
-                byte[] obs = bos.toByteArray();
-                int size = obs.length;
-                bis = new ByteArrayInputStream(obs, 0, size);
-                in = new BufferedInputStream(bis, size);
-
-                if(preparedSaveSql == null) {
-                    preparedSaveSql = _conn.prepareStatement(saveSql);
-                }
-
-                preparedSaveSql.setString(1, session.getId());
-                preparedSaveSql.setString(2, getName());
-                preparedSaveSql.setBinaryStream(3, in, size);
-                preparedSaveSql.setString(4, session.isValid()?"1":"0");
-                preparedSaveSql.setInt(5, session.getMaxInactiveInterval());
-                preparedSaveSql.setLong(6, ((StandardSession)session).getLastUsedTime());
-                preparedSaveSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
+                data.add(encode((StandardSession) sessions[i]));
+                saved.add(sessions[i]);
+                continue;
             } catch (IOException e) {
-                ;
+                log(sm.getString(getStoreName()+".serializeException",
+                                 sessions[i].getId(), e.toString()));
             } catch (ConcurrentModificationException e) {
                 log(sm.getString(getStoreName()+".ConcurrentModificationException", e));
-            } finally {
-                if(bis != null) {
-                    bis.close();
-                }
-                if(in != null) {
-                    in.close();
-                }
+            }
+            if (skipped == null) {
+                skipped = new StringBuffer(sessions[i].getId());
+            } else {
+                skipped.append(", ").append(sessions[i].getId());
+            }
+        }
+        if (saved.isEmpty()) {
+            if (skipped != null) {
+                throw new IOException
+                    (sm.getString(getStoreName()+".notSaved", skipped));
+            }
+            return;
+        }
 
-                release(_conn);
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            throw new IOException
+                (sm.getString(getStoreName()+".checkConnectionDBReOpenFail"));
+        }
+
+        // If sessions already exist in DB, remove and insert again.
+        boolean valid = true;
+        try {
+            _conn.conn.setAutoCommit(false);
+            PreparedStatement removeStmt = _conn.prepare(getRemoveSql());
+            for (int i = 0; i < saved.size(); i++) {
+                Session session = (Session) saved.get(i);
+                removeStmt.setString(1, session.getId());
+                removeStmt.setString(2, getName());
+                _conn.add(removeStmt);
+            }
+            _conn.execute(removeStmt);
+
+            PreparedStatement saveStmt = _conn.prepare(saveSql);
+            for (int i = 0; i < saved.size(); i++) {
+                StandardSession session = (StandardSession) saved.get(i);
+                byte obs[] = (byte[]) data.get(i);
+                saveStmt.setString(1, session.getId());
+                saveStmt.setString(2, getName());
+                saveStmt.setBinaryStream(3, new ByteArrayInputStream(obs),
+                                         obs.length);
+                saveStmt.setString(4, session.isValid()?"1":"0");
+                saveStmt.setInt(5, session.getMaxInactiveInterval());
+                saveStmt.setLong(6, session.getLastUsedTime());
+                _conn.add(saveStmt);
             }
+            _conn.execute(saveStmt);
+
+            _conn.conn.commit();
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+            try {
+                _conn.conn.rollback();
+            } catch (SQLException f) {
+                ;
+            }
+            throw new IOException
+                (sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            try {
+                _conn.conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            release(_conn, valid);
         }
 
         if (debug > 0) {
-            log(sm.getString(getStoreName()+".saving",
-                             session.getId(), sessionTable));
+            for (int i = 0; i < saved.size(); i++) {
+                log(sm.getString(getStoreName()+".saving",
+                                 ((Session) saved.get(i)).getId(),
+                                 sessionTable));
+            }
+        }
+        if (skipped != null) {
+            throw new IOException
+                (sm.getString(getStoreName()+".notSaved", skipped));
         }
     }
 
@@ -757,42 +872,38 @@ public class JDBCStore
         String keys[] = null;
         long timeNow = System.currentTimeMillis();
 
-        synchronized(this) {
-            Connection _conn = getConnection();
+        PooledConnection _conn = borrow();
+        if(_conn == null) {
+            return;
+        }
 
-            if(_conn == null) {
-                return;
+        boolean valid = true;
+        try {
+            PreparedStatement stmt = _conn.prepare(expiresSql);
+            stmt.setString(1, getName());
+            stmt.setLong(2,timeNow);
+            rst = stmt.executeQuery();
+            ArrayList tmpkeys = new ArrayList();
+            if (rst != null) {
+                while(rst.next()) {
+                    tmpkeys.add(rst.getString(1));
+                }
             }
-
+            keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
+        } catch(SQLException e) {
+            valid = false;
+            log(sm.getString(getStoreName()+".SQLException", e));
+            keys = new String[0];
+        } finally {
             try {
-                if(preparedExpiresSql == null) {
-                    preparedExpiresSql = _conn.prepareStatement(expiresSql);
+                if(rst != null) {
+                    rst.close();
                 }
-
-                preparedExpiresSql.setString(1, getName());
-                preparedExpiresSql.setLong(2,timeNow);
-                rst = preparedExpiresSql.executeQuery();
-                ArrayList tmpkeys = new ArrayList();
-                if (rst != null) {
-                    while(rst.next()) {
-                        tmpkeys.add(rst.getString(1));
-                    }
-                }
-                keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
             } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-                keys = new String[0];
-            } finally {
-                try {
-                    if(rst != null) {
-                        rst.close();
-                    }
-                } catch(SQLException e) {
-                    ;
-                }
-
-                release(_conn);
+                ;
             }
+
+            release(_conn, valid);
         }
 
         for (int i = 0; i < keys.length; i++) {
@@ -831,43 +942,43 @@ public class JDBCStore
     }
 
     /**
-     * Check the connection associated with this store, if it's
-     * <code>null</code> or closed try to reopen it.
-     * Returns <code>null</code> if the connection could not be established.
+     * Open a new connection to the database, from the DataSource if
+     * <code>dataSourceName</code> is set, or else from the JDBC driver.
      *
-     * @return <code>Connection</code> if the connection suceeded
+     * @return <code>Connection</code> to the database
+     * @exception SQLException if the connection could not be established
      */
-    protected Connection getConnection(){
-        try {
-            if(conn == null || conn.isClosed()) {
+    protected Connection open() throws SQLException {
+        Connection conn = null;
+        if (dataSourceName != null) {
+            if (dataSource == null) {
+                dataSource = lookupDataSource();
+            }
+            if (dataSource == null) {
+                throw new SQLException(dataSourceName);
+            }
+            conn = dataSource.getConnection();
+        } else {
+            try {
                 Class.forName(driverName);
-                log(sm.getString(getStoreName()+".checkConnectionDBClosed"));
-                conn = DriverManager.getConnection(connString);
-                conn.setAutoCommit(true);
-
-                if(conn == null || conn.isClosed()) {
-                    log(sm.getString(getStoreName()+".checkConnectionDBReOpenFail"));
-                }
+            } catch (ClassNotFoundException ex) {
+                log(sm.getString(getStoreName()+".checkConnectionClassNotFoundException",
+                                 ex.toString()));
+                throw new SQLException(ex.toString());
             }
-        } catch (SQLException ex){
-            log(sm.getString(getStoreName()+".checkConnectionSQLException",
-                             ex.toString()));
-        } catch (ClassNotFoundException ex) {
-            log(sm.getString(getStoreName()+".checkConnectionClassNotFoundException",
-                             ex.toString()));
+            conn = DriverManager.getConnection(connString);
         }
-
-        return conn;
-    }
-
-    /**
-     * Release the connection, not needed here since the
-     * connection is not associated with a connection pool.
-     *
-     * @param conn The connection to be released
-     */
-    protected void release(Connection conn) {
-        ;
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            try {
+                conn.close();
+            } catch (SQLException f) {
+                ;
+            }
+            throw e;
+        }
+        return (conn);
     }
 
     /**
@@ -876,8 +987,16 @@ public class JDBCStore
     public void start() throws LifecycleException {
         super.start();
 
-        // Open connection to the database
-        this.conn = getConnection();
+        // The naming context of the web application is only bound here
+        if (dataSourceName != null) {
+            dataSource = lookupDataSource();
+        }
+
+        // Open a first connection to the database
+        PooledConnection _conn = borrow();
+        if (_conn != null) {
+            release(_conn, true);
+        }
     }
 
     /**
@@ -888,84 +1007,221 @@ public class JDBCStore
     public void stop() throws LifecycleException {
         super.stop();
 
-        // Close and release everything associated with our db.
-        if(conn != null) {
-            try {
-                conn.commit();
-            } catch (SQLException e) {
-                ;
-            }
+        // Close and release every idle connection
+        PooledConnection connections[] = null;
+        synchronized (idle) {
+            connections = (PooledConnection[])
+                idle.toArray(new PooledConnection[idle.size()]);
+            idle.clear();
+        }
+        for (int i = 0; i < connections.length; i++) {
+            connections[i].close();
+        }
+        dataSource = null;
+    }
 
-            if( preparedSizeSql != null ) {
-                try {
-                    preparedSizeSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
-            }
+    // --------------------------------------------------------- Private Methods
 
-            if( preparedKeysSql != null ) { 
-                try {
-                    preparedKeysSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    /**
+     * Borrow an idle connection, or open a new one if there is none.
+     * Returns <code>null</code> if the connection could not be established.
+     */
+    private PooledConnection borrow() {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return ((PooledConnection) idle.remove(idle.size() - 1));
             }
+        }
+        try {
+            return (new PooledConnection(open()));
+        } catch (SQLException ex) {
+            log(sm.getString(getStoreName()+".checkConnectionSQLException",
+                             ex.toString()));
+            return (null);
+        }
+    }
 
-            if( preparedSaveSql != null ) { 
-                try {
-                    preparedSaveSql.close();
-                } catch (SQLException e) {
-                    ;
+    /**
+     * Return a borrowed connection to the idle connections, or close it if
+     * it failed, this Store is stopped or enough connections are idle.
+     *
+     * @param conn The connection being returned
+     * @param valid Is the connection still usable?
+     */
+    private void release(PooledConnection conn, boolean valid) {
+        if (valid) {
+            synchronized (idle) {
+                if (started && (idle.size() < maxIdleConnections)) {
+                    idle.add(conn);
+                    return;
                 }
             }
+        }
+        conn.close();
+    }
 
-            if( preparedClearSql != null ) { 
-                try {
-                    preparedClearSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    /**
+     * Look up the DataSource named by <code>dataSourceName</code>, either
+     * in the naming context of the web application or in the global naming
+     * resources.  Returns <code>null</code> if the lookup failed.
+     */
+    private DataSource lookupDataSource() {
+        try {
+            Context context = null;
+            if (localDataSource) {
+                context = ContextBindings.getClassLoader();
+                context = (Context) context.lookup("comp/env");
+            } else {
+                StandardServer server =
+                    (StandardServer) ServerFactory.getServer();
+                context = server.getGlobalNamingContext();
             }
+            return ((DataSource) context.lookup(dataSourceName));
+        } catch (Exception e) {
+            log(sm.getString(getStoreName()+".dataSourceException",
+                             dataSourceName, e.toString()));
+            return (null);
+        }
+    }
 
-            if( preparedRemoveSql != null ) { 
-                try {
-                    preparedRemoveSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    /**
+     * Return the statement removing a session.
+     */
+    private String getRemoveSql() {
+        return ("DELETE FROM " + sessionTable + " WHERE " + sessionIdCol +
+                " = ?  AND " + sessionAppCol + " = ?");
+    }
+
+    /**
+     * Serialize the specified session, compressing the result if
+     * <code>compress</code> is set.
+     *
+     * @param session The session to be serialized
+     * @exception IOException if an input/output error occurs
+     */
+    private byte[] encode(StandardSession session) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream out = bos;
+        if (compress) {
+            out = new GZIPOutputStream(out);
+        }
+        ObjectOutputStream oos =
+            new ObjectOutputStream(new BufferedOutputStream(out));
+        session.writeObjectData(oos);
+        oos.close();
+        return (bos.toByteArray());
+    }
+
+    /**
+     * Return a stream reading the serialized session data from the
+     * specified stream, decompressing it if it was compressed.  Both forms
+     * can be read whatever the current value of <code>compress</code>.
+     *
+     * @param in The stream returned by the database
+     * @exception IOException if an input/output error occurs
+     */
+    private InputStream decode(InputStream in) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        bis.mark(2);
+        int b0 = bis.read();
+        int b1 = bis.read();
+        bis.reset();
+        if ((b0 == (GZIPInputStream.GZIP_MAGIC & 0xff)) &&
+            (b1 == ((GZIPInputStream.GZIP_MAGIC >> 8) & 0xff))) {
+            return (new BufferedInputStream(new GZIPInputStream(bis)));
+        }
+        return (bis);
+    }
+
+    // --------------------------------------------------------- Inner Classes
+
+    /**
+     * A connection of this Store, with the statements prepared on it.
+     */
+    private static final class PooledConnection {
+
+        PooledConnection(Connection conn) throws SQLException {
+            this.conn = conn;
+            try {
+                this.batch = conn.getMetaData().supportsBatchUpdates();
+            } catch (SQLException e) {
+                close();
+                throw e;
+            } catch (RuntimeException e) {
+                close();
+                throw e;
             }
+        }
 
-            if( preparedLoadSql != null ) { 
-                try {
-                    preparedLoadSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+        /**
+         * Does the driver support batch updates?
+         */
+        boolean batch = false;
+
+        /**
+         * The connection to the database.
+         */
+        Connection conn = null;
+
+        /**
+         * The statements prepared on this connection, keyed by SQL.
+         */
+        HashMap statements = new HashMap();
+
+        /**
+         * Add the current parameters of the specified statement to its
+         * batch, or execute it at once if batches are not supported.
+         */
+        void add(PreparedStatement stmt) throws SQLException {
+            if (batch) {
+                stmt.addBatch();
+            } else {
+                stmt.execute();
             }
+        }
 
-            if( preparedExpiresSql != null ) {
+        /**
+         * Close this connection and its statements, ignoring any error.
+         */
+        void close() {
+            Iterator stmts = statements.values().iterator();
+            while (stmts.hasNext()) {
                 try {
-                    preparedExpiresSql.close();
+                    ((PreparedStatement) stmts.next()).close();
                 } catch (SQLException e) {
                     ;
                 }
             }
-
+            statements.clear();
             try {
                 conn.close();
             } catch (SQLException e) {
                 ;
             }
+        }
+
+        /**
+         * Execute the batch of the specified statement, if batches are
+         * supported.
+         */
+        void execute(PreparedStatement stmt) throws SQLException {
+            if (batch) {
+                stmt.executeBatch();
+            }
+        }
 
-            this.preparedSizeSql = null;
-            this.preparedKeysSql = null;
-            this.preparedSaveSql = null;
-            this.preparedClearSql = null;
-            this.preparedRemoveSql = null;
-            this.preparedLoadSql = null;
-            this.preparedExpiresSql = null;
-            this.conn = null;
+        /**
+         * Return the statement prepared on this connection for the
+         * specified SQL, preparing it the first time.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = (PreparedStatement) statements.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return (stmt);
         }
+
     }
 }
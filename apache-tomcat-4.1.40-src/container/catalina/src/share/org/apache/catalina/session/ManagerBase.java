@@ -24,10 +24,11 @@ import java.beans.PropertyChangeSupport;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Random;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Date;
 
 import org.apache.catalina.Container;
@@ -69,9 +70,34 @@ public abstract class ManagerBase implements Manager {
 
 
     /**
-     * The message digest algorithm to be used when generating session
-     * identifiers.  This must be an algorithm supported by the
+     * The number of random number generators seeded in the background when
+     * this Manager is started.
+     */
+    protected static final int RANDOM_WARMUP = 4;
+
+
+    /**
+     * The maximum time (in milliseconds) a request waits for a seeded
+     * random number generator before seeding one itself.
+     */
+    protected static final long RANDOM_WAIT = 10000L;
+
+
+    /**
+     * The hexadecimal digits used to render session identifiers.
+     */
+    private static final char HEX_DIGITS[] =
+    { '0', '1', '2', '3', '4', '5', '6', '7',
+      '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+
+    /**
+     * The message digest algorithm returned by <code>getDigest()</code>.
+     * This must be an algorithm supported by the
      * <code>java.security.MessageDigest</code> class on your platform.
+     * Session identifiers are rendered directly from the bytes of a
+     * <code>SecureRandom</code>, and only use this digest to hash the
+     * output of a random number generator of any other class.
      */
     protected String algorithm = DEFAULT_ALGORITHM;
 
@@ -141,6 +167,27 @@ public abstract class ManagerBase implements Manager {
     protected Random random = null;
 
 
+    /**
+     * The seeded random number generators not currently in use for
+     * generating a session identifier.
+     */
+    protected ArrayList randoms = new ArrayList();
+
+
+    /**
+     * The number of seeded random number generators, in the pool or in
+     * use.  Guarded by the lock of <code>randoms</code>.
+     */
+    private int randomCount = 0;
+
+
+    /**
+     * Is the background thread seeding random number generators?  Guarded
+     * by the lock of <code>randoms</code>.
+     */
+    private boolean seeding = false;
+
+
     /**
      * The Java class name of the random number generator class to be used
      * when generating session identifiers.
@@ -154,11 +201,27 @@ public abstract class ManagerBase implements Manager {
     protected ArrayList recycled = new ArrayList();
 
 
+    /**
+     * The serializer of session attributes, created on first use.
+     */
+    protected SessionSerializer serializer = null;
+
+
+    /**
+     * The Java class name of the serializer of session attributes, or an
+     * empty string (the default) to write them with Java serialization
+     * alone.
+     */
+    protected String serializerClass = "";
+
+
     /**
      * The set of currently active Sessions for this Manager, keyed by
-     * session identifier.
+     * session identifier.  It is a <code>SessionMap</code>, whose
+     * operations are each thread-safe without an external lock;
+     * synchronizing on it does not make compound operations atomic.
      */
-    protected HashMap sessions = new HashMap();
+    protected Map sessions = new SessionMap();
 
     // Total number of sessions created by this manager
     protected int sessionCounter=0;
@@ -425,34 +488,8 @@ public abstract class ManagerBase implements Manager {
      */
     public synchronized Random getRandom() {
 
-        if (this.random == null) {
-            synchronized (this) {
-                if (this.random == null) {
-                    // Calculate the new random number generator seed
-                    log(sm.getString("managerBase.seeding", randomClass));
-                    long seed = System.currentTimeMillis();
-                    char entropy[] = getEntropy().toCharArray();
-                    for (int i = 0; i < entropy.length; i++) {
-                        long update = ((byte) entropy[i]) << ((i % 8) * 8);
-                        seed ^= update;
-                    }
-                    try {
-                        // Construct and seed a new random number generator
-                        Class clazz = Class.forName(randomClass);
-                        this.random = (Random) clazz.newInstance();
-                        this.random.setSeed(seed);
-                    } catch (Exception e) {
-                        // Fall back to the simple case
-                        log(sm.getString("managerBase.random", randomClass),
-                            e);
-                        this.random = new java.util.Random();
-                        this.random.setSeed(seed);
-                    }
-                    log(sm.getString("managerBase.complete", randomClass));
-                }
-            }
-        }
-
+        if (this.random == null)
+            this.random = createRandom();
         return (this.random);
 
     }
@@ -483,6 +520,56 @@ public abstract class ManagerBase implements Manager {
     }
 
 
+    /**
+     * Return the serializer of session attributes, creating it on first
+     * use, or <code>null</code> if they are written with Java
+     * serialization alone.
+     */
+    public SessionSerializer getSerializer() {
+
+        if ((serializer == null) && (serializerClass != null)
+            && (serializerClass.length() > 0)) {
+            try {
+                Class clazz = Class.forName(serializerClass);
+                serializer = (SessionSerializer) clazz.newInstance();
+            } catch (Exception e) {
+                log(sm.getString("managerBase.serializer", serializerClass),
+                    e);
+                serializerClass = null;
+            }
+        }
+        return (serializer);
+
+    }
+
+
+    /**
+     * Return the serializer class name.
+     */
+    public String getSerializerClass() {
+
+        return (this.serializerClass);
+
+    }
+
+
+    /**
+     * Set the serializer class name.  An empty name selects Java
+     * serialization alone.
+     *
+     * @param serializerClass The new serializer class name
+     */
+    public void setSerializerClass(String serializerClass) {
+
+        String oldSerializerClass = this.serializerClass;
+        this.serializerClass = serializerClass;
+        this.serializer = null;
+        support.firePropertyChange("serializerClass", oldSerializerClass,
+                                   this.serializerClass);
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -493,11 +580,10 @@ public abstract class ManagerBase implements Manager {
      */
     public void add(Session session) {
 
-        synchronized (sessions) {
-            sessions.put(session.getId(), session);
-            if( sessions.size() > maxActive ) {
-                maxActive=sessions.size();
-            }
+        sessions.put(session.getId(), session);
+        int size = sessions.size();
+        if( size > maxActive ) {
+            maxActive=size;
         }
 
     }
@@ -542,14 +628,12 @@ public abstract class ManagerBase implements Manager {
         if (jvmRoute != null) {
             sessionId += '.' + jvmRoute;
         }
-        synchronized (sessions) {
-            while (sessions.get(sessionId) != null){ // Guarantee uniqueness
-                sessionId = generateSessionId();
-                duplicates++;
-                // @todo Move appending of jvmRoute generateSessionId()???
-                if (jvmRoute != null) {
-                    sessionId += '.' + jvmRoute;
-                }
+        while (sessions.containsKey(sessionId)){ // Guarantee uniqueness
+            sessionId = generateSessionId();
+            duplicates++;
+            // @todo Move appending of jvmRoute generateSessionId()???
+            if (jvmRoute != null) {
+                sessionId += '.' + jvmRoute;
             }
         }
 
@@ -598,10 +682,7 @@ public abstract class ManagerBase implements Manager {
 
         if (id == null)
             return (null);
-        synchronized (sessions) {
-            Session session = (Session) sessions.get(id);
-            return (session);
-        }
+        return ((Session) sessions.get(id));
 
     }
 
@@ -612,12 +693,7 @@ public abstract class ManagerBase implements Manager {
      */
     public Session[] findSessions() {
 
-        Session results[] = null;
-        synchronized (sessions) {
-            results = new Session[sessions.size()];
-            results = (Session[]) sessions.values().toArray(results);
-        }
-        return (results);
+        return ((Session[]) sessions.values().toArray(new Session[0]));
 
     }
 
@@ -629,9 +705,7 @@ public abstract class ManagerBase implements Manager {
      */
     public void remove(Session session) {
 
-        synchronized (sessions) {
-            sessions.remove(session.getId());
-        }
+        sessions.remove(session.getId());
 
     }
 
@@ -652,31 +726,173 @@ public abstract class ManagerBase implements Manager {
 
 
     /**
-     * Generate and return a new session identifier.
+     * Generate and return a new session identifier.  The generator is
+     * borrowed from the pool of seeded ones, waiting (up to
+     * <code>RANDOM_WAIT</code> milliseconds) for the background seeder or
+     * for another request to return one rather than seeding a new one on
+     * the request thread.
      */
-    protected synchronized String generateSessionId() {
+    protected String generateSessionId() {
+
+        // Borrow a seeded random number generator, or seed a new one
+        Random random = null;
+        synchronized (randoms) {
+            long deadline = System.currentTimeMillis() + RANDOM_WAIT;
+            while (randoms.isEmpty() && (seeding || (randomCount > 0))) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    randoms.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            int size = randoms.size();
+            if (size > 0)
+                random = (Random) randoms.remove(size - 1);
+            else
+                randomCount++;
+        }
+        if (random == null)
+            random = createRandom();
 
         // Generate a byte array containing a session identifier
-        Random random = getRandom();
         byte bytes[] = new byte[SESSION_ID_BYTES];
-        getRandom().nextBytes(bytes);
-        bytes = getDigest().digest(bytes);
+        random.nextBytes(bytes);
+        if (!(random instanceof SecureRandom)) {
+            MessageDigest digest = getDigest();
+            if (digest != null) {
+                synchronized (digest) {
+                    bytes = digest.digest(bytes);
+                }
+            }
+        }
+        synchronized (randoms) {
+            randoms.add(random);
+            randoms.notify();
+        }
 
         // Render the result as a String of hexadecimal digits
-        StringBuffer result = new StringBuffer();
+        char result[] = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            byte b1 = (byte) ((bytes[i] & 0xf0) >> 4);
-            byte b2 = (byte) (bytes[i] & 0x0f);
-            if (b1 < 10)
-                result.append((char) ('0' + b1));
-            else
-                result.append((char) ('A' + (b1 - 10)));
-            if (b2 < 10)
-                result.append((char) ('0' + b2));
-            else
-                result.append((char) ('A' + (b2 - 10)));
+            result[2 * i] = HEX_DIGITS[(bytes[i] & 0xf0) >> 4];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return (new String(result));
+
+    }
+
+
+    /**
+     * Construct and seed a new random number generator of the configured
+     * class.  A <code>SecureRandom</code> is first allowed to seed itself,
+     * which may block until enough entropy is available, and the entropy
+     * increaser is then mixed into its seed.
+     */
+    protected Random createRandom() {
+
+        // Calculate the new random number generator seed
+        if (debug >= 1)
+            log(sm.getString("managerBase.seeding", randomClass));
+        long seed = System.currentTimeMillis();
+        char entropy[] = getEntropy().toCharArray();
+        for (int i = 0; i < entropy.length; i++) {
+            long update = ((byte) entropy[i]) << ((i % 8) * 8);
+            seed ^= update;
+        }
+
+        Random random = null;
+        try {
+            // Construct and seed a new random number generator
+            Class clazz = Class.forName(randomClass);
+            random = (Random) clazz.newInstance();
+        } catch (Exception e) {
+            // Fall back to the simple case
+            log(sm.getString("managerBase.random", randomClass), e);
+            random = new java.util.Random();
+        }
+        if (!(random instanceof SecureRandom))
+            log(sm.getString("managerBase.insecure", randomClass));
+        random.nextInt();
+        random.setSeed(seed);
+        if (debug >= 1)
+            log(sm.getString("managerBase.complete", randomClass));
+        return (random);
+
+    }
+
+
+    /**
+     * Seed the random number generators used to generate session
+     * identifiers.  The first one is seeded on the calling thread, so that
+     * requests never wait for entropy to be gathered, and the others on a
+     * background thread, so that the startup of this Manager waits for
+     * one generator only.
+     */
+    protected void warmUpRandoms() {
+
+        synchronized (randoms) {
+            if (seeding || (randomCount > 0))
+                return;
+            seeding = true;
+        }
+        Random first = null;
+        try {
+            first = createRandom();
+        } finally {
+            synchronized (randoms) {
+                if (first != null) {
+                    randoms.add(first);
+                    randomCount++;
+                } else {
+                    seeding = false;
+                }
+                randoms.notifyAll();
+            }
+        }
+        Runnable seeder = new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 1; i < RANDOM_WARMUP; i++) {
+                        Random random = createRandom();
+                        synchronized (randoms) {
+                            if (randomCount >= RANDOM_WARMUP)
+                                break;
+                            randoms.add(random);
+                            randomCount++;
+                            randoms.notifyAll();
+                        }
+                    }
+                } finally {
+                    synchronized (randoms) {
+                        seeding = false;
+                        randoms.notifyAll();
+                    }
+                }
+            }
+        };
+        String threadName = getName() + "RandomSeeder";
+        if (container != null)
+            threadName += "[" + container.getName() + "]";
+        Thread thread = new Thread(seeder, threadName);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Discard the seeded random number generators, so that new ones are
+     * seeded if this Manager is restarted.
+     */
+    protected void clearRandoms() {
+
+        this.random = null;
+        synchronized (randoms) {
+            randoms.clear();
+            randomCount = 0;
         }
-        return (result.toString());
 
     }
 
@@ -0,0 +1,957 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import javax.servlet.ServletContext;
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * Concrete implementation of the <b>Store</b> interface that keeps the
+ * serialized form of saved Sessions outside of the Java heap, in memory
+ * mapped segment files of a configured directory.  Saving or swapping out
+ * a session copies its serialized form into the mapped memory, which the
+ * operating system writes back to the segment files on its own schedule,
+ * so that saved sessions survive a restart of the JVM.
+ * <p>
+ * Each segment is a log of records, every record holding the identifier,
+ * last used time, maximum inactive interval and serialized form of one
+ * session.  Records are only ever appended to the newest segment; saving a
+ * session again appends a new record and marks the previous one as dead.
+ * An index of the live records is kept in memory, and is rebuilt by
+ * scanning the segments when this Store is started.  The background thread
+ * expires sessions using this index, and compacts the segments in which
+ * dead records take too much space by copying their live records to the
+ * newest segment and deleting them.
+ */
+
+public final class MappedStore
+    extends StoreBase implements Store {
+
+
+    // ----------------------------------------------------- Constants
+
+
+    /**
+     * The status of a record marking the end of the records of a segment.
+     */
+    private static final byte END = 0;
+
+
+    /**
+     * The status of a live record.
+     */
+    private static final byte LIVE = 1;
+
+
+    /**
+     * The status of a dead record, superseded or removed.
+     */
+    private static final byte DEAD = 2;
+
+
+    /**
+     * The size of the fixed part of a record: status, identifier length,
+     * last used time, maximum inactive interval and data length.
+     */
+    private static final int HEADER = 1 + 1 + 8 + 4 + 4;
+
+
+    /**
+     * The maximum length of a session identifier.
+     */
+    private static final int MAX_ID = 255;
+
+
+    /**
+     * The extension of segment file names.
+     */
+    private static final String SEGMENT_EXT = ".segment";
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The active segment, to which records are appended.
+     */
+    private Segment active = null;
+
+
+    /**
+     * The percentage of the space used by a segment that dead records must
+     * take for the segment to be compacted.
+     */
+    private int compactionRatio = 50;
+
+
+    /**
+     * The pathname of the directory in which segments are stored.  This may
+     * be an absolute pathname, or a relative path that is resolved against
+     * the temporary work directory for this application.
+     */
+    private String directory = "sessions";
+
+
+    /**
+     * A File representing the directory in which segments are stored.
+     */
+    private File directoryFile = null;
+
+
+    /**
+     * The live record of each saved session, keyed by session identifier.
+     */
+    private HashMap entries = new HashMap();
+
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    private static final String info = "MappedStore/1.0";
+
+
+    /**
+     * The number of the next segment to be created.
+     */
+    private int nextSegment = 0;
+
+
+    /**
+     * Have the segments been mapped?
+     */
+    private boolean opened = false;
+
+
+    /**
+     * The size of each segment, in bytes.
+     */
+    private int segmentSize = 64 * 1024 * 1024;
+
+
+    /**
+     * The mapped segments, in creation order.
+     */
+    private ArrayList segments = new ArrayList();
+
+
+    /**
+     * Name to register for this Store, used for logging.
+     */
+    private static final String storeName = "mappedStore";
+
+
+    /**
+     * Name to register for the background thread.
+     */
+    private static final String threadName = "MappedStore";
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the percentage of the space used by a segment that dead
+     * records must take for the segment to be compacted.
+     */
+    public int getCompactionRatio() {
+
+        return (this.compactionRatio);
+
+    }
+
+
+    /**
+     * Set the percentage of the space used by a segment that dead records
+     * must take for the segment to be compacted.
+     *
+     * @param compactionRatio The new compaction ratio
+     */
+    public void setCompactionRatio(int compactionRatio) {
+
+        int oldCompactionRatio = this.compactionRatio;
+        this.compactionRatio = compactionRatio;
+        support.firePropertyChange("compactionRatio",
+                                   new Integer(oldCompactionRatio),
+                                   new Integer(this.compactionRatio));
+
+    }
+
+
+    /**
+     * Return the directory path for this Store.
+     */
+    public String getDirectory() {
+
+        return (directory);
+
+    }
+
+
+    /**
+     * Set the directory path for this Store.  This only takes effect when
+     * this Store is next started.
+     *
+     * @param path The new directory path
+     */
+    public void setDirectory(String path) {
+
+        String oldDirectory = this.directory;
+        this.directory = path;
+        this.directoryFile = null;
+        support.firePropertyChange("directory", oldDirectory,
+                                   this.directory);
+
+    }
+
+
+    /**
+     * Return descriptive information about this Store implementation and
+     * the corresponding version number, in the format
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    /**
+     * Return the size of each segment, in bytes.
+     */
+    public int getSegmentSize() {
+
+        return (this.segmentSize);
+
+    }
+
+
+    /**
+     * Set the size of each segment, in bytes.  Segments already created
+     * keep their size.
+     *
+     * @param segmentSize The new segment size
+     */
+    public void setSegmentSize(int segmentSize) {
+
+        int oldSegmentSize = this.segmentSize;
+        this.segmentSize = segmentSize;
+        support.firePropertyChange("segmentSize",
+                                   new Integer(oldSegmentSize),
+                                   new Integer(this.segmentSize));
+
+    }
+
+
+    /**
+     * Return the number of Sessions present in this Store.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized int getSize() throws IOException {
+
+        open();
+        return (entries.size());
+
+    }
+
+
+    /**
+     * Return the name for this Store, used for logging.
+     */
+    public String getStoreName() {
+
+        return (storeName);
+
+    }
+
+
+    /**
+     * Return the thread name for this Store.
+     */
+    public String getThreadName() {
+
+        return (threadName);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Remove all of the Sessions in this Store, deleting every segment.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized void clear() throws IOException {
+
+        open();
+        entries.clear();
+        for (int i = 0; i < segments.size(); i++)
+            ((Segment) segments.get(i)).delete();
+        segments.clear();
+        active = null;
+
+    }
+
+
+    /**
+     * Return an array containing the session identifiers of all Sessions
+     * currently saved in this Store.  If there are no such Sessions, a
+     * zero-length array is returned.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public synchronized String[] keys() throws IOException {
+
+        open();
+        return ((String[]) entries.keySet().toArray
+                (new String[entries.size()]));
+
+    }
+
+
+    /**
+     * Load and return the Session associated with the specified session
+     * identifier from this Store, without removing it.  If there is no
+     * such stored Session, return <code>null</code>.
+     *
+     * @param id Session identifier of the session to load
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    public Session load(String id)
+        throws ClassNotFoundException, IOException {
+
+        // Copy the serialized form out of the mapped memory
+        byte data[] = null;
+        synchronized (this) {
+            open();
+            Entry entry = (Entry) entries.get(id);
+            if (entry == null)
+                return (null);
+            data = new byte[entry.length - entry.dataOffset];
+            ByteBuffer buffer = entry.segment.buffer.duplicate();
+            buffer.position(entry.offset + entry.dataOffset);
+            buffer.get(data);
+        }
+        if (debug >= 1)
+            log(sm.getString(getStoreName() + ".loading", id,
+                             new Integer(data.length)));
+
+        // Deserialize it with the class loader of our Container
+        ObjectInputStream ois = null;
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        try {
+            BufferedInputStream bis =
+                new BufferedInputStream(new ByteArrayInputStream(data));
+            Container container = manager.getContainer();
+            if (container != null)
+                loader = container.getLoader();
+            if (loader != null)
+                classLoader = loader.getClassLoader();
+            if (classLoader != null)
+                ois = new CustomObjectInputStream(bis, classLoader);
+            else
+                ois = new ObjectInputStream(bis);
+            StandardSession session =
+                (StandardSession) manager.createEmptySession();
+            session.readObjectData(ois);
+            session.setManager(manager);
+            return (session);
+        } finally {
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Remove the Session with the specified session identifier from
+     * this Store, if present.  If no such Session is present, this method
+     * takes no action.
+     *
+     * @param id Session identifier of the Session to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized void remove(String id) throws IOException {
+
+        open();
+        Entry entry = (Entry) entries.remove(id);
+        if (entry == null)
+            return;
+        if (debug >= 1)
+            log(sm.getString(getStoreName() + ".removing", id,
+                             entry.segment.file.getName()));
+        kill(entry);
+
+    }
+
+
+    /**
+     * Save the specified Session into this Store.  Any previously saved
+     * information for the associated session identifier is replaced.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session session) throws IOException {
+
+        // Serialize the session outside of our lock
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos =
+            new ObjectOutputStream(new BufferedOutputStream(bos));
+        try {
+            ((StandardSession) session).writeObjectData(oos);
+        } finally {
+            oos.close();
+        }
+        byte data[] = bos.toByteArray();
+
+        synchronized (this) {
+            open();
+            Entry entry =
+                append(session.getId(),
+                       ((StandardSession) session).getLastUsedTime(),
+                       session.getMaxInactiveInterval(), data);
+            if (debug >= 1)
+                log(sm.getString(getStoreName() + ".saving",
+                                 session.getId(),
+                                 entry.segment.file.getName()));
+        }
+
+    }
+
+
+    /**
+     * Prepare for the beginning of active use of the public methods of this
+     * component, mapping the existing segments.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+
+        super.start();
+        try {
+            synchronized (this) {
+                open();
+            }
+        } catch (IOException e) {
+            throw new LifecycleException(e);
+        }
+
+    }
+
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component, writing the segments back to their files.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+
+        super.stop();
+        synchronized (this) {
+            for (int i = 0; i < segments.size(); i++)
+                ((Segment) segments.get(i)).close();
+            segments.clear();
+            entries.clear();
+            active = null;
+            opened = false;
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Called by our background reaper thread to expire the saved Sessions
+     * whose inactive interval has elapsed, as recorded in the index, then
+     * to compact the segments holding too many dead records.
+     */
+    protected void processExpires() {
+
+        if (!started)
+            return;
+
+        // Find the expired sessions without deserializing any
+        long timeNow = System.currentTimeMillis();
+        ArrayList expired = new ArrayList();
+        synchronized (this) {
+            Iterator values = entries.values().iterator();
+            while (values.hasNext()) {
+                Entry entry = (Entry) values.next();
+                if (entry.maxInactiveInterval < 0)
+                    continue;
+                if (timeNow - entry.lastUsedTime >=
+                    entry.maxInactiveInterval * 1000L)
+                    expired.add(entry.id);
+            }
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            String id = (String) expired.get(i);
+            try {
+                if (!((PersistentManagerBase) manager).isLoaded(id)) {
+                    StandardSession session = (StandardSession) load(id);
+                    if (session != null && session.isValid())
+                        session.expire();
+                }
+                remove(id);
+            } catch (Exception e) {
+                log("Session: " + id + "; " + e.toString());
+                try {
+                    remove(id);
+                } catch (IOException e2) {
+                    log(e2.toString());
+                }
+            }
+        }
+
+        try {
+            compact();
+        } catch (IOException e) {
+            log(sm.getString(getStoreName() + ".compactError", e.toString()));
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Append a live record for the specified session to the active segment,
+     * creating a new segment if it is full, and mark the previous record of
+     * the session as dead.  Return the new index entry.
+     *
+     * @param id Session identifier
+     * @param lastUsedTime Last used time of the session
+     * @param maxInactiveInterval Maximum inactive interval of the session
+     * @param data Serialized form of the session
+     *
+     * @exception IOException if the record cannot fit in a segment, or a
+     *  new segment could not be created
+     */
+    private Entry append(String id, long lastUsedTime,
+                         int maxInactiveInterval, byte data[])
+        throws IOException {
+
+        byte idBytes[] = id.getBytes("ISO-8859-1");
+        if (idBytes.length > MAX_ID)
+            throw new IOException(id);
+        int length = HEADER + idBytes.length + data.length;
+        if (length > segmentSize)
+            throw new IOException
+                (sm.getString(getStoreName() + ".tooLarge", id,
+                              new Integer(length)));
+        if ((active == null) ||
+            (active.position + length > active.buffer.capacity()))
+            active = create();
+
+        // Write the record, then make it live
+        int offset = active.position;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + 1);
+        buffer.put((byte) idBytes.length);
+        buffer.put(idBytes);
+        buffer.putLong(lastUsedTime);
+        buffer.putInt(maxInactiveInterval);
+        buffer.putInt(data.length);
+        buffer.put(data);
+        active.buffer.put(offset, LIVE);
+        active.position += length;
+
+        Entry entry = new Entry(id, active, offset, length,
+                                HEADER + idBytes.length,
+                                lastUsedTime, maxInactiveInterval);
+        Entry previous = (Entry) entries.put(id, entry);
+        if (previous != null)
+            kill(previous);
+        return (entry);
+
+    }
+
+
+    /**
+     * Compact the segments, other than the active one, in which dead
+     * records take at least <code>compactionRatio</code> percent of the
+     * used space: their live records are appended to the active segment,
+     * and they are deleted.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private synchronized void compact() throws IOException {
+
+        if (!opened)
+            return;
+        Segment candidates[] = (Segment[])
+            segments.toArray(new Segment[segments.size()]);
+        for (int i = 0; i < candidates.length; i++) {
+            Segment segment = candidates[i];
+            if ((segment == active) || (segment.position == 0))
+                continue;
+            if ((segment.dead * 100L) < ((long) compactionRatio *
+                                         segment.position))
+                continue;
+
+            // Move its live records to the active segment
+            Entry live[] = (Entry[])
+                entries.values().toArray(new Entry[entries.size()]);
+            for (int j = 0; j < live.length; j++) {
+                Entry entry = live[j];
+                if (entry.segment != segment)
+                    continue;
+                byte data[] = new byte[entry.length - entry.dataOffset];
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(entry.offset + entry.dataOffset);
+                buffer.get(data);
+                append(entry.id, entry.lastUsedTime,
+                       entry.maxInactiveInterval, data);
+            }
+            if (debug >= 1)
+                log(sm.getString(getStoreName() + ".compacted",
+                                 segment.file.getName()));
+            segments.remove(segment);
+            segment.delete();
+        }
+
+    }
+
+
+    /**
+     * Create and map a new segment, which becomes the active one.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private Segment create() throws IOException {
+
+        File file = new File(directory(), nextSegment + SEGMENT_EXT);
+        nextSegment++;
+        Segment segment = new Segment(file, segmentSize);
+        segments.add(segment);
+        return (segment);
+
+    }
+
+
+    /**
+     * Return a File object representing the pathname to our
+     * segment directory.  The directory will be created if it does not
+     * already exist.
+     */
+    private File directory() {
+
+        if (this.directoryFile != null)
+            return (this.directoryFile);
+        File file = new File(this.directory);
+        if (!file.isAbsolute()) {
+            Container container = manager.getContainer();
+            if (container instanceof Context) {
+                ServletContext servletContext =
+                    ((Context) container).getServletContext();
+                File work = (File)
+                    servletContext.getAttribute(Globals.WORK_DIR_ATTR);
+                file = new File(work, this.directory);
+            } else {
+                throw new IllegalArgumentException
+                    ("Parent Container is not a Context");
+            }
+        }
+        if (!file.exists() || !file.isDirectory()) {
+            file.delete();
+            file.mkdirs();
+        }
+        this.directoryFile = file;
+        return (file);
+
+    }
+
+
+    /**
+     * Mark the record of the specified entry as dead.
+     *
+     * @param entry The index entry whose record is dead
+     */
+    private void kill(Entry entry) {
+
+        entry.segment.buffer.put(entry.offset, DEAD);
+        entry.segment.dead += entry.length;
+
+    }
+
+
+    /**
+     * Map the existing segments, in creation order, and rebuild the index
+     * from their live records, unless this has already been done.  A later
+     * live record of a session supersedes an earlier one.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private void open() throws IOException {
+
+        if (opened)
+            return;
+
+        // List the existing segments in creation order
+        String names[] = directory().list();
+        if (names == null)
+            names = new String[0];
+        ArrayList numbers = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].endsWith(SEGMENT_EXT))
+                continue;
+            try {
+                numbers.add(Integer.valueOf(names[i].substring
+                    (0, names[i].length() - SEGMENT_EXT.length())));
+            } catch (NumberFormatException e) {
+                ;
+            }
+        }
+        Integer sorted[] =
+            (Integer[]) numbers.toArray(new Integer[numbers.size()]);
+        Arrays.sort(sorted);
+
+        // Map them and scan their records
+        for (int i = 0; i < sorted.length; i++) {
+            int number = sorted[i].intValue();
+            File file = new File(directory(), number + SEGMENT_EXT);
+            Segment segment = new Segment(file, (int) file.length());
+            segments.add(segment);
+            scan(segment);
+            if (number >= nextSegment)
+                nextSegment = number + 1;
+        }
+        if (!segments.isEmpty())
+            active = (Segment) segments.get(segments.size() - 1);
+        opened = true;
+
+    }
+
+
+    /**
+     * Index the live records of the specified segment, and position its
+     * end after its last record.
+     *
+     * @param segment The segment to be scanned
+     */
+    private void scan(Segment segment) {
+
+        MappedByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int offset = 0;
+        while (offset + HEADER <= capacity) {
+            byte status = buffer.get(offset);
+            if ((status != LIVE) && (status != DEAD))
+                break;
+            int idLength = buffer.get(offset + 1) & 0xff;
+            int dataOffset = HEADER + idLength;
+            if (offset + dataOffset > capacity)
+                break;
+            int dataLength = buffer.getInt(offset + dataOffset - 4);
+            int length = dataOffset + dataLength;
+            if ((dataLength < 0) || (offset + length > capacity))
+                break;
+            if (status == LIVE) {
+                char chars[] = new char[idLength];
+                for (int i = 0; i < idLength; i++)
+                    chars[i] = (char) (buffer.get(offset + 2 + i) & 0xff);
+                String id = new String(chars);
+                long lastUsedTime = buffer.getLong(offset + 2 + idLength);
+                int maxInactiveInterval =
+                    buffer.getInt(offset + 2 + idLength + 8);
+                Entry entry = new Entry(id, segment, offset, length,
+                                        dataOffset, lastUsedTime,
+                                        maxInactiveInterval);
+                Entry previous = (Entry) entries.put(id, entry);
+                if (previous != null)
+                    kill(previous);
+            } else {
+                segment.dead += length;
+            }
+            offset += length;
+        }
+        segment.position = offset;
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The index entry of the live record of a saved session.
+     */
+    private static final class Entry {
+
+        Entry(String id, Segment segment, int offset, int length,
+              int dataOffset, long lastUsedTime, int maxInactiveInterval) {
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.lastUsedTime = lastUsedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        /**
+         * The offset of the serialized session from the start of the record.
+         */
+        int dataOffset = 0;
+
+        /**
+         * The session identifier.
+         */
+        String id = null;
+
+        /**
+         * The last used time of the session.
+         */
+        long lastUsedTime = 0L;
+
+        /**
+         * The length of the record.
+         */
+        int length = 0;
+
+        /**
+         * The maximum inactive interval of the session.
+         */
+        int maxInactiveInterval = 0;
+
+        /**
+         * The offset of the record in its segment.
+         */
+        int offset = 0;
+
+        /**
+         * The segment holding the record.
+         */
+        Segment segment = null;
+
+    }
+
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static final class Segment {
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer =
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * The mapped contents of the segment file.
+         */
+        MappedByteBuffer buffer = null;
+
+        /**
+         * The channel of the segment file.
+         */
+        FileChannel channel = null;
+
+        /**
+         * The number of bytes taken by dead records.
+         */
+        long dead = 0L;
+
+        /**
+         * The segment file.
+         */
+        File file = null;
+
+        /**
+         * The offset at which the next record will be appended.
+         */
+        int position = 0;
+
+        /**
+         * Write the segment back to its file and close it.
+         */
+        void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+
+        /**
+         * Close and delete the segment file.  The records are first
+         * cleared, so that they are not read again should the file not be
+         * deleted while it is still mapped.
+         */
+        void delete() {
+            buffer.put(0, END);
+            close();
+            file.delete();
+        }
+
+    }
+
+
+}
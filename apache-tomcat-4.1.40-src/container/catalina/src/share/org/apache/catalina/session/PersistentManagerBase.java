@@ -21,7 +21,10 @@ package org.apache.catalina.session;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
 import org.apache.catalina.Lifecycle;
@@ -156,6 +159,43 @@ public abstract class PersistentManagerBase
     private int maxIdleSwap = -1;
 
 
+    /**
+     * The identifiers of the sessions currently being swapped in.
+     */
+    private HashSet swapping = new HashSet();
+
+
+    /**
+     * The number of sessions swapped in from the Store.
+     */
+    private long swapInCount = 0L;
+
+
+    /**
+     * The cumulative time (in milliseconds) spent swapping sessions in.
+     */
+    private long swapInTime = 0L;
+
+
+    /**
+     * The longest time (in milliseconds) spent swapping a session in.
+     */
+    private long maxSwapInTime = 0L;
+
+
+    /**
+     * Should sessions be backed up and swapped out asynchronously, by a
+     * background thread, rather than by the thread checking for them?
+     */
+    private boolean writeBehind = true;
+
+
+    /**
+     * The queue of sessions waiting to be written to the Store.
+     */
+    private WriteBehindQueue writeQueue = new WriteBehindQueue(this, 100);
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -410,6 +450,159 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Return the average time (in milliseconds) spent swapping a session
+     * in from the Store.
+     */
+    public long getAverageSwapInTime() {
+
+        synchronized (swapping) {
+            if (swapInCount == 0)
+                return (0L);
+            return (swapInTime / swapInCount);
+        }
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) spent swapping a session
+     * in from the Store.
+     */
+    public long getMaxSwapInTime() {
+
+        synchronized (swapping) {
+            return (this.maxSwapInTime);
+        }
+
+    }
+
+
+    /**
+     * Return the number of sessions swapped in from the Store.
+     */
+    public long getSwapInCount() {
+
+        synchronized (swapping) {
+            return (this.swapInCount);
+        }
+
+    }
+
+
+    /**
+     * Return the average time (in milliseconds) a session waited to be
+     * written to the Store.
+     */
+    public long getAverageWriteQueueTime() {
+
+        return (writeQueue.getAverageQueueTime());
+
+    }
+
+
+    /**
+     * Return the average time (in milliseconds) spent writing a batch of
+     * sessions to the Store in the background.
+     */
+    public long getAverageWriteTime() {
+
+        return (writeQueue.getAverageWriteTime());
+
+    }
+
+
+    /**
+     * Return the number of background writes coalesced with a write of the
+     * same session already waiting.
+     */
+    public long getCoalescedWriteCount() {
+
+        return (writeQueue.getCoalescedCount());
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) a session waited to be
+     * written to the Store.
+     */
+    public long getMaxWriteQueueTime() {
+
+        return (writeQueue.getMaxQueueTime());
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) spent writing a batch of
+     * sessions to the Store in the background.
+     */
+    public long getMaxWriteTime() {
+
+        return (writeQueue.getMaxWriteTime());
+
+    }
+
+
+    /**
+     * Return the number of sessions written to the Store in the background.
+     */
+    public long getWriteCount() {
+
+        return (writeQueue.getWriteCount());
+
+    }
+
+
+    /**
+     * Return the number of background writes to the Store that failed.
+     */
+    public long getWriteFailureCount() {
+
+        return (writeQueue.getFailureCount());
+
+    }
+
+
+    /**
+     * Return the number of sessions waiting to be written to the Store.
+     */
+    public int getWriteQueueSize() {
+
+        return (writeQueue.getSize());
+
+    }
+
+
+    /**
+     * Return true if sessions are backed up and swapped out to the Store
+     * by a background thread.
+     */
+    public boolean getWriteBehind() {
+
+        return (this.writeBehind);
+
+    }
+
+
+    /**
+     * Set whether sessions are backed up and swapped out to the Store by a
+     * background thread, rather than by the thread checking for them.
+     *
+     * @param writeBehind The new write behind flag
+     */
+    public void setWriteBehind(boolean writeBehind) {
+
+        boolean oldWriteBehind = this.writeBehind;
+        this.writeBehind = writeBehind;
+        support.firePropertyChange("writeBehind",
+                                   new Boolean(oldWriteBehind),
+                                   new Boolean(this.writeBehind));
+
+    }
+
+
 
     /**
      * Indicates whether sessions are saved when the Manager is shut down
@@ -593,13 +786,16 @@ public abstract class PersistentManagerBase
 
     /**
      * Remove this Session from the active Sessions for this Manager,
-     * and from the Store.
+     * and from the Store.  A queued write of the session is cancelled,
+     * and a write already in progress is waited for, so that it cannot
+     * bring the session back into the Store.
      *
      * @param session Session to be removed
      */
     public void remove(Session session) {
 
         super.remove (session);
+        writeQueue.cancel(session.getId());
 
         if (store != null)
             try {
@@ -664,6 +860,49 @@ public abstract class PersistentManagerBase
             return null;
         }
 
+        // Wait for any swap in of this session already in progress
+        synchronized (swapping) {
+            if (swapping.contains(id)) {
+                while (swapping.contains(id)) {
+                    try {
+                        swapping.wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                return (super.findSession(id));
+            }
+            swapping.add(id);
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            return (swapIn(id, start));
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            synchronized (swapping) {
+                swapping.remove(id);
+                swapInCount++;
+                swapInTime += elapsed;
+                if (elapsed > maxSwapInTime)
+                    maxSwapInTime = elapsed;
+                swapping.notifyAll();
+            }
+        }
+
+    }
+
+
+    /**
+     * Load a session from the Store and, if found, restore it in the
+     * Manager's list of active sessions if appropriate.  The caller must
+     * have registered this session as being swapped in.
+     *
+     * @param id The session id for the session to be swapped in
+     * @param timeNow The current time
+     */
+    private Session swapIn(String id, long timeNow) throws IOException {
+
         Session session = null;
         try {
             session = store.load(id);
@@ -678,8 +917,7 @@ public abstract class PersistentManagerBase
             return (null);
         }
 
-        if (!session.isValid()
-                || isSessionStale(session, System.currentTimeMillis())) {
+        if (!session.isValid() || isSessionStale(session, timeNow)) {
             log("session swapped in is invalid or expired");
             session.expire();
             store.remove(id);
@@ -748,6 +986,83 @@ public abstract class PersistentManagerBase
     }
 
 
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Write a batch of sessions taken from the write behind queue to the
+     * Store, in a single call when the Store supports it.  A session to be
+     * swapped out is left in memory if it has been used since it was
+     * queued, either before or while it is written, and sessions that are
+     * invalid or past their expiration are skipped.
+     *
+     * @param sessions The sessions to be written
+     * @param swap Should each session be swapped out?
+     * @param lastUsedTime The last used time of each session when queued
+     */
+    void writeBehind(StandardSession sessions[], boolean swap[],
+                     long lastUsedTime[]) throws IOException {
+
+        if (store == null)
+            return;
+
+        long timeNow = System.currentTimeMillis();
+        ArrayList written = new ArrayList();
+        ArrayList swapped = new ArrayList();
+        ArrayList swappedTimes = new ArrayList();
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = sessions[i];
+            if (!session.isValid() || isSessionStale(session, timeNow))
+                continue;
+            if (swap[i]) {
+                if (session.getLastUsedTime() != lastUsedTime[i])
+                    continue;
+                session.passivate();
+                swapped.add(session);
+                swappedTimes.add(new Long(lastUsedTime[i]));
+            }
+            written.add(session);
+        }
+        if (written.isEmpty())
+            return;
+
+        Session batch[] =
+            (Session[]) written.toArray(new Session[written.size()]);
+        try {
+            if (store instanceof StoreBase) {
+                ((StoreBase) store).save(batch);
+            } else {
+                for (int i = 0; i < batch.length; i++)
+                    store.save(batch[i]);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < batch.length; i++)
+                log(sm.getString
+                    ("persistentManager.serializeError", batch[i].getId(), e));
+            for (int i = 0; i < swapped.size(); i++)
+                ((StandardSession) swapped.get(i)).activate();
+            throw e;
+        }
+
+        for (int i = 0; i < batch.length; i++)
+            sessionSwapIgnore.remove(batch[i].getId());
+        for (int i = 0; i < swapped.size(); i++) {
+            StandardSession session = (StandardSession) swapped.get(i);
+            if (!session.isValid())
+                continue;
+            long time = ((Long) swappedTimes.get(i)).longValue();
+            if (session.getLastUsedTime() != time) {
+                // Used while being written, so keep it in memory
+                session.activate();
+                continue;
+            }
+            super.remove(session);
+            session.recycle();
+        }
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -806,18 +1121,19 @@ public abstract class PersistentManagerBase
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
-        // Force initialization of the random number generator
-        if (debug >= 1)
-            log("Force random number initialization starting");
-        String dummy = generateSessionId();
-        if (debug >= 1)
-            log("Force random number initialization completed");
+        // Seed the first random number generator, and the others in the
+        // background
+        warmUpRandoms();
 
         if (store == null)
             log("No Store configured, persistence disabled");
         else if (store instanceof Lifecycle)
             ((Lifecycle)store).start();
 
+        // Start the write behind thread
+        if (store != null)
+            writeQueue.start(getName() + "[" + container.getName() + "]Writer");
+
         // Start the background reaper thread
         threadStart();
 
@@ -847,6 +1163,9 @@ public abstract class PersistentManagerBase
         // Stop the background reaper thread
         threadStop();
 
+        // Write out the sessions still queued
+        writeQueue.stop();
+
         if (getStore() != null && saveOnRestart) {
             unload();
         } else {
@@ -867,8 +1186,8 @@ public abstract class PersistentManagerBase
         if (getStore() != null && getStore() instanceof Lifecycle)
             ((Lifecycle)getStore()).stop();
 
-        // Require a new random number generator if we are restarted
-        this.random = null;
+        // Require new random number generators if we are restarted
+        clearRandoms();
 
     }
 
@@ -935,10 +1254,10 @@ public abstract class PersistentManagerBase
             return;
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
+        Iterator elements = sessions.values().iterator();
 
-        for (int i = 0; i < sessions.length; i++) {
-            StandardSession session = (StandardSession) sessions[i];
+        while (elements.hasNext()) {
+            StandardSession session = (StandardSession) elements.next();
             if (!session.isValid())
                 continue;
             if (isSessionStale(session, timeNow))
@@ -980,7 +1299,7 @@ public abstract class PersistentManagerBase
                             ("persistentManager.swapMaxIdle",
                              session.getId(), new Integer(timeIdle)));
                     try {
-                        swapOut(session);
+                        requestSwapOut(session);
                     } catch (IOException e) {
                         ;   // This is logged in writeSession()
                     }
@@ -1023,7 +1342,7 @@ public abstract class PersistentManagerBase
                         ("persistentManager.swapTooManyActive",
                          session.getId(), new Integer(timeIdle)));
                 try {
-                    swapOut(session);
+                    requestSwapOut(session);
                 } catch (IOException e) {
                     ;   // This is logged in writeSession()
                 }
@@ -1060,7 +1379,7 @@ public abstract class PersistentManagerBase
                             session.getId(), new Integer(timeIdle)));
 
                     try {
-                        writeSession(session);
+                        requestBackup(session);
                     } catch (IOException e) {
                         ;   // This is logged in writeSession()
                     }
@@ -1071,6 +1390,38 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Back up the specified session to the Store, either now or through
+     * the write behind queue.
+     *
+     * @param session The session to be backed up
+     */
+    private void requestBackup(StandardSession session) throws IOException {
+
+        if (writeBehind)
+            writeQueue.enqueue(session, false);
+        else
+            writeSession(session);
+
+    }
+
+
+    /**
+     * Swap the specified session out to the Store, either now or through
+     * the write behind queue.
+     *
+     * @param session The session to be swapped out
+     */
+    private void requestSwapOut(StandardSession session) throws IOException {
+
+        if (writeBehind)
+            writeQueue.enqueue(session, true);
+        else
+            swapOut(session);
+
+    }
+
+
     /**
      * Sleep for the duration specified by the <code>checkInterval</code>
      * property.
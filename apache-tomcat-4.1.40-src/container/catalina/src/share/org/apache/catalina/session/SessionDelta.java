@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * The attribute changes made to a <code>StandardSession</code> since they
+ * were last replicated by its <code>DistributedManager</code>.  Only the
+ * last change to each attribute is kept, so that a request setting the
+ * same attribute several times replicates it once.
+ */
+
+final class SessionDelta {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The value recorded for a removed attribute.
+     */
+    private static final Object REMOVED = new Object();
+
+
+    /**
+     * The changed attributes, keyed by name, with their new value or
+     * <code>REMOVED</code>.
+     */
+    private HashMap changes = new HashMap();
+
+
+    /**
+     * The time the session was last replicated.
+     */
+    private long replicated = System.currentTimeMillis();
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Return the time the session was last replicated.
+     */
+    synchronized long getReplicated() {
+
+        return (this.replicated);
+
+    }
+
+
+    /**
+     * Have attributes been changed since the last replication?
+     */
+    synchronized boolean isEmpty() {
+
+        return (changes.isEmpty());
+
+    }
+
+
+    /**
+     * Record the removal of the specified attribute.
+     *
+     * @param name Name of the attribute
+     */
+    synchronized void removeAttribute(String name) {
+
+        changes.put(name, REMOVED);
+
+    }
+
+
+    /**
+     * Record the new value of the specified attribute.
+     *
+     * @param name Name of the attribute
+     * @param value New value of the attribute
+     */
+    synchronized void setAttribute(String name, Object value) {
+
+        changes.put(name, value);
+
+    }
+
+
+    /**
+     * Write the recorded changes to the specified stream, and forget them,
+     * even if they could not all be written.  The number of changes is
+     * written first, as <code>-n - 1</code> if the values are written by a
+     * serializer, followed by each change: the attribute name, a flag
+     * telling whether it was removed, and the new value otherwise.  Each
+     * value is written to a separate object stream, whose length and bytes
+     * follow the flag, so that a value which cannot be serialized does not
+     * spoil the others: its attribute is written as removed instead.
+     *
+     * @param stream The stream to write to
+     * @param serializer The serializer writing the values, or
+     *  <code>null</code> to use Java serialization
+     * @return The names of the attributes whose value could not be
+     *  serialized
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    synchronized String[] write(ObjectOutputStream stream,
+                                SessionSerializer serializer)
+        throws IOException {
+
+        ArrayList skipped = new ArrayList();
+        try {
+            int n = changes.size();
+            stream.writeInt((serializer == null) ? n : -n - 1);
+            Iterator entries = changes.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                String name = (String) entry.getKey();
+                byte value[] = null;
+                if (entry.getValue() != REMOVED) {
+                    try {
+                        value = serialize(entry.getValue(), serializer);
+                    } catch (IOException e) {
+                        skipped.add(name);
+                    }
+                }
+                stream.writeUTF(name);
+                if (value == null) {
+                    stream.writeBoolean(true);
+                } else {
+                    stream.writeBoolean(false);
+                    stream.writeInt(value.length);
+                    stream.write(value);
+                }
+            }
+        } finally {
+            changes.clear();
+            replicated = System.currentTimeMillis();
+        }
+        return ((String[]) skipped.toArray(new String[skipped.size()]));
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Serialize the specified attribute value to a new object stream, and
+     * return its bytes.
+     *
+     * @param value The attribute value
+     * @param serializer The serializer writing the value, or
+     *  <code>null</code> to use Java serialization
+     *
+     * @exception IOException if the value cannot be serialized
+     */
+    private static byte[] serialize(Object value,
+                                    SessionSerializer serializer)
+        throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        if (serializer != null)
+            serializer.writeAttribute(oos, value);
+        else
+            oos.writeObject(value);
+        oos.close();
+        return (bos.toByteArray());
+
+    }
+
+}
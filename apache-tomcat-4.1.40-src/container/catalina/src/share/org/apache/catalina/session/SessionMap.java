@@ -0,0 +1,520 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.catalina.Session;
+
+
+/**
+ * Thread-safe map of the active Sessions of a Manager, keyed by session
+ * identifier.
+ * <p>
+ * The map is split into a fixed number of segments, each of them a
+ * <code>HashMap</code> guarded by its own lock, so that threads looking up,
+ * adding or removing different sessions rarely contend with each other.
+ * The iterators of its key set, values and entry set are weakly
+ * consistent, and copy one segment at a time rather than the whole map:
+ * they never throw <code>ConcurrentModificationException</code>, return
+ * every session that was present for the whole iteration, and may or may
+ * not return sessions added or removed while it is in progress.
+ * <p>
+ * Each operation of this map is atomic on its own, but the map is never
+ * locked as a whole: synchronizing on it, as code written for the former
+ * <code>HashMap</code> of sessions may do around compound operations,
+ * does not exclude the Manager or any other thread from modifying it.
+ * Such code must use its own lock, or tolerate concurrent changes.
+ */
+
+public final class SessionMap extends AbstractMap {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new, empty session map.
+     */
+    public SessionMap() {
+
+        super();
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new HashMap();
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The entries of this map, created on first use.
+     */
+    private transient Set entrySet = null;
+
+
+    /**
+     * The identifiers of this map, created on first use.
+     */
+    private transient Set keySet = null;
+
+
+    /**
+     * Iterator mode returning entries.
+     */
+    private static final int ENTRIES = 2;
+
+
+    /**
+     * Iterator mode returning identifiers.
+     */
+    private static final int KEYS = 0;
+
+
+    /**
+     * The number of segments, which must be a power of two.
+     */
+    private static final int SEGMENTS = 32;
+
+
+    /**
+     * The segments of this map, each used as its own lock.
+     */
+    private HashMap segments[] = new HashMap[SEGMENTS];
+
+
+    /**
+     * Iterator mode returning sessions.
+     */
+    private static final int VALUES = 1;
+
+
+    /**
+     * The sessions of this map, created on first use.
+     */
+    private transient Collection values = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Remove all sessions from this map.
+     */
+    public void clear() {
+
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                segments[i].clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Is there a session with the specified identifier in this map?
+     *
+     * @param id Session identifier to look for
+     */
+    public boolean containsKey(Object id) {
+
+        HashMap segment = segmentFor(id);
+        synchronized (segment) {
+            return (segment.containsKey(id));
+        }
+
+    }
+
+
+    /**
+     * Return a set view of the entries of this map, with a weakly
+     * consistent iterator.
+     */
+    public Set entrySet() {
+
+        if (entrySet == null) {
+            entrySet = new AbstractSet() {
+                public Iterator iterator() {
+                    return (new SegmentIterator(ENTRIES));
+                }
+                public int size() {
+                    return (SessionMap.this.size());
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+            };
+        }
+        return (entrySet);
+
+    }
+
+
+    /**
+     * Return the session with the specified identifier, or
+     * <code>null</code> if there is no such session.
+     *
+     * @param id Session identifier to look for
+     */
+    public Object get(Object id) {
+
+        HashMap segment = segmentFor(id);
+        synchronized (segment) {
+            return (segment.get(id));
+        }
+
+    }
+
+
+    /**
+     * Is this map empty?
+     */
+    public boolean isEmpty() {
+
+        return (size() == 0);
+
+    }
+
+
+    /**
+     * Return a weakly consistent iterator over the sessions in this map.
+     */
+    public Iterator iterator() {
+
+        return (new SegmentIterator(VALUES));
+
+    }
+
+
+    /**
+     * Return a set view of the session identifiers of this map, with a
+     * weakly consistent iterator.
+     */
+    public Set keySet() {
+
+        if (keySet == null) {
+            keySet = new AbstractSet() {
+                public Iterator iterator() {
+                    return (new SegmentIterator(KEYS));
+                }
+                public int size() {
+                    return (SessionMap.this.size());
+                }
+                public boolean contains(Object o) {
+                    return (SessionMap.this.containsKey(o));
+                }
+                public boolean remove(Object o) {
+                    return (SessionMap.this.remove(o) != null);
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+            };
+        }
+        return (keySet);
+
+    }
+
+
+    /**
+     * Add the specified session to this map, replacing any session with the
+     * same identifier.  Return the replaced session, if any.
+     *
+     * @param id Session identifier
+     * @param session Session to be added
+     */
+    public Object put(Object id, Object session) {
+
+        HashMap segment = segmentFor(id);
+        synchronized (segment) {
+            return (segment.put(id, session));
+        }
+
+    }
+
+
+    /**
+     * Remove the session with the specified identifier from this map.
+     * Return the removed session, if any.
+     *
+     * @param id Session identifier
+     */
+    public Object remove(Object id) {
+
+        HashMap segment = segmentFor(id);
+        synchronized (segment) {
+            return (segment.remove(id));
+        }
+
+    }
+
+
+    /**
+     * Return the number of sessions in this map.  The result is exact when
+     * the map is not being modified, and approximate otherwise.
+     */
+    public int size() {
+
+        int size = 0;
+        for (int i = 0; i < segments.length; i++)
+            size += segments[i].size();
+        return (size);
+
+    }
+
+
+    /**
+     * Return a snapshot of the sessions in this map.  Each segment is copied
+     * under its own lock, so the result is consistent per segment only.
+     */
+    public Session[] toArray() {
+
+        int n = 0;
+        Object parts[][] = new Object[segments.length][];
+        for (int i = 0; i < segments.length; i++) {
+            parts[i] = copy(segments[i], VALUES);
+            n += parts[i].length;
+        }
+        Session results[] = new Session[n];
+        n = 0;
+        for (int i = 0; i < parts.length; i++) {
+            System.arraycopy(parts[i], 0, results, n, parts[i].length);
+            n += parts[i].length;
+        }
+        return (results);
+
+    }
+
+
+    /**
+     * Return a collection view of the sessions of this map, with a weakly
+     * consistent iterator.
+     */
+    public Collection values() {
+
+        if (values == null) {
+            values = new AbstractCollection() {
+                public Iterator iterator() {
+                    return (new SegmentIterator(VALUES));
+                }
+                public int size() {
+                    return (SessionMap.this.size());
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+                public Object[] toArray() {
+                    return (SessionMap.this.toArray());
+                }
+                public Object[] toArray(Object a[]) {
+                    Session results[] = SessionMap.this.toArray();
+                    if (a.length < results.length)
+                        a = (Object[]) Array.newInstance
+                            (a.getClass().getComponentType(), results.length);
+                    System.arraycopy(results, 0, a, 0, results.length);
+                    if (a.length > results.length)
+                        a[results.length] = null;
+                    return (a);
+                }
+            };
+        }
+        return (values);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return a copy of the identifiers, sessions or entries of the
+     * specified segment.
+     *
+     * @param segment The segment to be copied
+     * @param mode What to copy
+     */
+    private Object[] copy(HashMap segment, int mode) {
+
+        synchronized (segment) {
+            Object results[] = new Object[segment.size()];
+            if (mode == VALUES)
+                return (segment.values().toArray(results));
+            if (mode == KEYS)
+                return (segment.keySet().toArray(results));
+            Iterator entries = segment.entrySet().iterator();
+            for (int i = 0; entries.hasNext(); i++) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                results[i] = new Entry(entry.getKey(), entry.getValue());
+            }
+            return (results);
+        }
+
+    }
+
+
+    /**
+     * Return the segment holding the specified session identifier.
+     *
+     * @param id Session identifier
+     */
+    private HashMap segmentFor(Object id) {
+
+        int hash = (id == null) ? 0 : id.hashCode();
+        hash ^= (hash >>> 16);
+        return (segments[hash & (SEGMENTS - 1)]);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A snapshot of an entry of this map, whose <code>setValue()</code>
+     * writes through to the map.
+     */
+    private final class Entry implements Map.Entry {
+
+        private Object key;
+
+        private Object value;
+
+        Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Object getKey() {
+            return (key);
+        }
+
+        public Object getValue() {
+            return (value);
+        }
+
+        public Object setValue(Object value) {
+            Object old = this.value;
+            this.value = value;
+            put(key, value);
+            return (old);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return (false);
+            Map.Entry e = (Map.Entry) o;
+            return (((key == null) ? (e.getKey() == null)
+                                   : key.equals(e.getKey())) &&
+                    ((value == null) ? (e.getValue() == null)
+                                     : value.equals(e.getValue())));
+        }
+
+        public int hashCode() {
+            return (((key == null) ? 0 : key.hashCode()) ^
+                    ((value == null) ? 0 : value.hashCode()));
+        }
+
+        public String toString() {
+            return (key + "=" + value);
+        }
+
+    }
+
+
+    /**
+     * Weakly consistent iterator over the identifiers, sessions or entries
+     * of this map, copying one segment at a time.
+     */
+    private final class SegmentIterator implements Iterator {
+
+        /**
+         * What this iterator returns.
+         */
+        private int mode;
+
+        /**
+         * The index of the next segment to be copied.
+         */
+        private int segment = 0;
+
+        /**
+         * The elements of the current segment.
+         */
+        private Object current[] = new Object[0];
+
+        /**
+         * The index of the next element in the current segment.
+         */
+        private int index = 0;
+
+        /**
+         * The identifier of the last element returned, or
+         * <code>null</code> if it may not be removed.
+         */
+        private Object last = null;
+
+        SegmentIterator(int mode) {
+            this.mode = mode;
+        }
+
+        public boolean hasNext() {
+            while (index >= current.length) {
+                if (segment >= segments.length)
+                    return (false);
+                current = copy(segments[segment++], mode);
+                index = 0;
+            }
+            return (true);
+        }
+
+        public Object next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Object element = current[index++];
+            if (mode == KEYS)
+                last = element;
+            else if (mode == VALUES)
+                last = ((Session) element).getId();
+            else
+                last = ((Map.Entry) element).getKey();
+            return (element);
+        }
+
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            SessionMap.this.remove(last);
+            last = null;
+        }
+
+    }
+
+
+}
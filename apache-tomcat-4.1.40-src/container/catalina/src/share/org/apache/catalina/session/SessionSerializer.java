@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+
+/**
+ * A <b>SessionSerializer</b> writes and reads the attribute values of a
+ * <code>StandardSession</code> whenever the session is serialized, be it
+ * by <code>StandardManager</code> across restarts, by the Store of a
+ * <code>PersistentManager</code>, or for replication to other members of a
+ * cluster.  The serializer used is configured on the Manager; the same
+ * implementation must be configured wherever the serialized sessions are
+ * read back.
+ * <p>
+ * Implementations must be thread safe, and must read back exactly what
+ * they wrote.  They may write to the stream with both its object and its
+ * primitive methods, and should fall back to <code>writeObject()</code>
+ * for the values they do not handle themselves, so that the class loader
+ * of the web application is used to resolve their classes.
+ */
+
+public interface SessionSerializer {
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Read an attribute value previously written by
+     * <code>writeAttribute()</code> from the specified stream.
+     *
+     * @param stream The stream to read from
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public Object readAttribute(ObjectInputStream stream)
+        throws ClassNotFoundException, IOException;
+
+
+    /**
+     * Write the specified attribute value to the specified stream.
+     *
+     * @param stream The stream to write to
+     * @param value The attribute value, which may be <code>null</code>
+     *
+     * @exception java.io.NotSerializableException if the value (or an
+     *  object it refers to) cannot be serialized
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeAttribute(ObjectOutputStream stream, Object value)
+        throws IOException;
+
+
+}
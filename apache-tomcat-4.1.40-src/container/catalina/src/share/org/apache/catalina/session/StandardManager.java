@@ -27,10 +27,12 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletContext;
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
@@ -67,11 +69,25 @@ public class StandardManager
 
 
     /**
-     * The interval (in seconds) between checks for expired sessions.
+     * The interval (in seconds) between checks for expired sessions.  Kept
+     * for compatibility only: expirations are scheduled on a timer wheel,
+     * which is advanced every <code>EXPIRY_TICK</code> milliseconds.
      */
     private int checkInterval = 60;
 
 
+    /**
+     * The resolution (in milliseconds) of session expiration.
+     */
+    private static final long EXPIRY_TICK = 1000L;
+
+
+    /**
+     * The timer wheel on which the expiration of our sessions is scheduled.
+     */
+    private ExpirationWheel wheel = new ExpirationWheel(EXPIRY_TICK);
+
+
     /**
      * The descriptive information about this implementation.
      */
@@ -96,6 +112,19 @@ public class StandardManager
     protected static String name = "StandardManager";
 
 
+    /**
+     * The loaders of the segments of the persisted sessions, while they
+     * are being reloaded in the background; <code>null</code> otherwise.
+     */
+    private volatile SegmentLoader loaders[] = null;
+
+
+    /**
+     * The number of segments of the persisted sessions not loaded yet.
+     */
+    private int pendingSegments = 0;
+
+
     /**
      * Path name of the disk file in which active sessions are saved
      * when we stop, and from which these sessions are loaded when we start.
@@ -107,6 +136,14 @@ public class StandardManager
     private String pathname = "SESSIONS.ser";
 
 
+    /**
+     * The number of segments in which sessions are persisted, and of
+     * threads used to save and reload them.
+     */
+    private int persistenceThreads =
+        Runtime.getRuntime().availableProcessors();
+
+
     /**
      * Has this component been started yet?
      */
@@ -286,9 +323,50 @@ public class StandardManager
     }
 
 
+    /**
+     * Return the number of threads used to save and reload sessions.
+     */
+    public int getPersistenceThreads() {
+
+        return (this.persistenceThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads used to save and reload sessions.
+     *
+     * @param persistenceThreads The new number of threads
+     */
+    public void setPersistenceThreads(int persistenceThreads) {
+
+        int oldPersistenceThreads = this.persistenceThreads;
+        this.persistenceThreads = persistenceThreads;
+        support.firePropertyChange("persistenceThreads",
+                                   new Integer(oldPersistenceThreads),
+                                   new Integer(this.persistenceThreads));
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * Add this Session to the set of active Sessions for this Manager, and
+     * schedule its expiration.
+     *
+     * @param session Session to be added
+     */
+    public void add(Session session) {
+
+        super.add(session);
+        if (session instanceof StandardSession)
+            wheel.schedule((StandardSession) session);
+
+    }
+
+
     /**
      * Construct and return a new session object, based on the default
      * settings specified by this Manager's properties.  The session
@@ -313,10 +391,45 @@ public class StandardManager
     }
 
 
+    /**
+     * Return the active Session, associated with this Manager, with the
+     * specified session id (if any); otherwise return <code>null</code>.
+     * If the persisted sessions are still being reloaded, the segment that
+     * would hold this session is loaded first.
+     *
+     * @param id The session id for the session to be returned
+     *
+     * @exception IllegalStateException if a new session cannot be
+     *  instantiated for any reason
+     * @exception IOException if an input/output error occurs while
+     *  processing this request
+     */
+    public Session findSession(String id) throws IOException {
+
+        Session session = super.findSession(id);
+        if ((session != null) || (id == null))
+            return (session);
+
+        // Wait for the segment that would hold this session, if loading
+        SegmentLoader current[] = loaders;
+        if (current == null)
+            return (null);
+        current[segmentFor(id, current.length)].await();
+        return (super.findSession(id));
+
+    }
+
+
     /**
      * Load any currently active sessions that were previously unloaded
      * to the appropriate persistence mechanism, if any.  If persistence is not
      * supported, this method returns without doing anything.
+     * <p>
+     * Sessions are saved in several compressed segments, which are loaded
+     * in parallel by background threads: this method returns as soon as
+     * those threads are started, and <code>findSession()</code> loads the
+     * segment of a requested session on demand.  A file written as a single
+     * stream by an earlier version is loaded before this method returns.
      *
      * @exception ClassNotFoundException if a serialized class cannot be
      *  found during the reload
@@ -331,103 +444,59 @@ public class StandardManager
         recycled.clear();
         sessions.clear();
 
-        // Open an input stream to the specified pathname, if any
+        // Locate the persisted data, if any
         File file = file();
         if (file == null)
             return;
-        if (debug >= 1)
-            log(sm.getString("standardManager.loading", pathname));
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        try {
-            fis = new FileInputStream(file.getAbsolutePath());
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            if (container != null)
-                loader = container.getLoader();
-            if (loader != null)
-                classLoader = loader.getClassLoader();
-            if (classLoader != null) {
-                if (debug >= 1)
-                    log("Creating custom object input stream for class loader "
-                        + classLoader);
-                ois = new CustomObjectInputStream(bis, classLoader);
-            } else {
-                if (debug >= 1)
-                    log("Creating standard object input stream");
-                ois = new ObjectInputStream(bis);
-            }
-        } catch (FileNotFoundException e) {
+        if (file.exists()) {
+            if (debug >= 1)
+                log(sm.getString("standardManager.loading", pathname));
+            loadSegment(file, false);
+        }
+        ArrayList list = new ArrayList();
+        while (true) {
+            File segment = segmentFile(file, list.size());
+            if (!segment.exists())
+                break;
+            list.add(new SegmentLoader(segment));
+        }
+        if (list.isEmpty()) {
             if (debug >= 1)
                 log("No persisted data file found");
             return;
-        } catch (IOException e) {
-            log(sm.getString("standardManager.loading.ioe", e), e);
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
-                ois = null;
-            }
-            throw e;
         }
 
-        // Load the previously unloaded active sessions
-        synchronized (sessions) {
-            try {
-                Integer count = (Integer) ois.readObject();
-                int n = count.intValue();
-                if (debug >= 1)
-                    log("Loading " + n + " persisted sessions");
-                for (int i = 0; i < n; i++) {
-                    StandardSession session = new StandardSession(this);
-                    session.readObjectData(ois);
-                    session.setManager(this);
-                    sessions.put(session.getId(), session);
-                    ((StandardSession) session).activate();
-                }
-            } catch (ClassNotFoundException e) {
-              log(sm.getString("standardManager.loading.cnfe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } catch (IOException e) {
-              log(sm.getString("standardManager.loading.ioe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } finally {
-                // Close the input stream
-                try {
-                    if (ois != null)
-                        ois.close();
-                } catch (IOException f) {
-                    // ignored
-                }
-
-                // Delete the persistent storage file
-                if (file != null && file.exists() )
-                    file.delete();
-            }
+        // Load the segments in the background
+        if (debug >= 1)
+            log(sm.getString("standardManager.loading", pathname));
+        loaders = (SegmentLoader[]) list.toArray(new SegmentLoader[list.size()]);
+        pendingSegments = loaders.length;
+        int n = Math.min(Math.max(persistenceThreads, 1), loaders.length);
+        for (int i = 0; i < n; i++) {
+            Thread thread = new Thread(new SegmentLoadTask(loaders, i),
+                                       backgroundThreadName("Loader-" + i));
+            thread.setDaemon(true);
+            if ((container != null) && (container.getLoader() != null))
+                thread.setContextClassLoader
+                    (container.getLoader().getClassLoader());
+            thread.start();
         }
 
-        if (debug >= 1)
-            log("Finish: Loading persisted sessions");
+    }
+
+
+    /**
+     * Remove this Session from the active Sessions for this Manager, and
+     * cancel its scheduled expiration.
+     *
+     * @param session Session to be removed
+     */
+    public void remove(Session session) {
+
+        super.remove(session);
+        if (session instanceof StandardSession)
+            wheel.remove((StandardSession) session);
+
     }
 
 
@@ -435,6 +504,10 @@ public class StandardManager
      * Save any currently active sessions in the appropriate persistence
      * mechanism, if any.  If persistence is not supported, this method
      * returns without doing anything.
+     * <p>
+     * The sessions are partitioned by identifier into compressed segments,
+     * which are written in parallel.  If writing any segment fails, every
+     * segment is deleted and no session is expired.
      *
      * @exception IOException if an input/output error occurs
      */
@@ -449,76 +522,72 @@ public class StandardManager
             return;
         if (debug >= 1)
             log(sm.getString("standardManager.unloading", pathname));
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
-        try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-        } catch (IOException e) {
-            log(sm.getString("standardManager.unloading.ioe", e), e);
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
-            throw e;
-        }
 
-        // Write the number of active sessions, followed by the details
-        ArrayList list = new ArrayList();
-        synchronized (sessions) {
-            if (debug >= 1)
-                log("Unloading " + sessions.size() + " sessions");
-            try {
-                oos.writeObject(new Integer(sessions.size()));
-                Iterator elements = sessions.values().iterator();
-                while (elements.hasNext()) {
-                    StandardSession session =
-                        (StandardSession) elements.next();
-                    list.add(session);
-                    ((StandardSession) session).passivate();
-                    session.writeObjectData(oos);
-                }
-            } catch (IOException e) {
-                log(sm.getString("standardManager.unloading.ioe", e), e);
-                if (oos != null) {
-                    try {
-                        oos.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    oos = null;
-                }
-                throw e;
+        // Finish reloading the previously persisted sessions first
+        awaitLoaders();
+
+        // Partition the active sessions into segments
+        Session elements[] = findSessions();
+        if (debug >= 1)
+            log("Unloading " + elements.length + " sessions");
+        int n = Math.max(Math.min(persistenceThreads, elements.length), 1);
+        ArrayList lists[] = new ArrayList[n];
+        for (int i = 0; i < n; i++)
+            lists[i] = new ArrayList();
+        for (int i = 0; i < elements.length; i++)
+            lists[segmentFor(elements[i].getId(), n)].add(elements[i]);
+
+        // Remove any stale persisted data
+        if (file.exists())
+            file.delete();
+        for (int i = n; segmentFile(file, i).exists(); i++)
+            segmentFile(file, i).delete();
+
+        // Write the segments, using this thread for the first one
+        SegmentWriter writers[] = new SegmentWriter[n];
+        Thread threads[] = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            writers[i] = new SegmentWriter(segmentFile(file, i), lists[i]);
+            if (i > 0) {
+                threads[i] = new Thread(writers[i],
+                                        backgroundThreadName("Writer-" + i));
+                threads[i].setDaemon(true);
+                threads[i].setContextClassLoader
+                    (Thread.currentThread().getContextClassLoader());
+                threads[i].start();
             }
         }
-
-        // Flush and close the output stream
-        try {
-            oos.flush();
-            oos.close();
-            oos = null;
-        } catch (IOException e) {
-            if (oos != null) {
+        writers[0].run();
+        boolean interrupted = false;
+        Throwable exception = writers[0].exception;
+        for (int i = 1; i < n; i++) {
+            while (threads[i].isAlive()) {
                 try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-                oos = null;
             }
-            throw e;
+            if (exception == null)
+                exception = writers[i].exception;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // Keep every session if any segment is incomplete
+        if (exception != null) {
+            for (int i = 0; i < n; i++)
+                segmentFile(file, i).delete();
+            if (exception instanceof IOException)
+                throw (IOException) exception;
+            throw new IOException(exception.toString());
         }
 
         // Expire all the sessions we just wrote
         if (debug >= 1)
-            log("Expiring " + list.size() + " persisted sessions");
-        Iterator expires = list.iterator();
-        while (expires.hasNext()) {
-            StandardSession session = (StandardSession) expires.next();
+            log("Expiring " + elements.length + " persisted sessions");
+        for (int i = 0; i < elements.length; i++) {
+            StandardSession session = (StandardSession) elements[i];
             try {
                 session.expire(false);
             } catch (Throwable t) {
@@ -532,6 +601,40 @@ public class StandardManager
     }
 
 
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Schedule (or reschedule) the expiration of the specified Session,
+     * according to its current last used time and maximum inactive
+     * interval.
+     *
+     * @param session Session to be scheduled
+     */
+    void scheduleExpiry(StandardSession session) {
+
+        wheel.schedule(session);
+
+    }
+
+
+    /**
+     * Record that one more segment of the persisted sessions has been
+     * loaded, and forget about the segment loaders once all are.
+     */
+    void segmentLoaded() {
+
+        synchronized (this) {
+            if (--pendingSegments > 0)
+                return;
+            loaders = null;
+        }
+        if (debug >= 1)
+            log("Finish: Loading persisted sessions");
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -590,12 +693,9 @@ public class StandardManager
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
-        // Force initialization of the random number generator
-        if (debug >= 1)
-            log("Force random number initialization starting");
-        String dummy = generateSessionId();
-        if (debug >= 1)
-            log("Force random number initialization completed");
+        // Seed the first random number generator, and the others in the
+        // background
+        warmUpRandoms();
 
         // Load unloaded sessions, if any
         try {
@@ -653,8 +753,8 @@ public class StandardManager
             }
         }
 
-        // Require a new random number generator if we are restarted
-        this.random = null;
+        // Require new random number generators if we are restarted
+        clearRandoms();
 
     }
 
@@ -691,6 +791,21 @@ public class StandardManager
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Wait until every segment of the previously persisted sessions has
+     * been loaded.
+     */
+    private void awaitLoaders() {
+
+        SegmentLoader current[] = loaders;
+        if (current == null)
+            return;
+        for (int i = 0; i < current.length; i++)
+            current[i].await();
+
+    }
+
+
     /**
      * Return a File object representing the pathname to our
      * persistence file, if any.
@@ -718,29 +833,113 @@ public class StandardManager
 
 
     /**
-     * Invalidate all sessions that have expired.
+     * Load the sessions persisted in the specified file, and delete it.
+     *
+     * @param file The file to be loaded
+     * @param compressed Was the file written as a compressed segment?
+     *
+     * @exception ClassNotFoundException if a serialized class cannot be
+     *  found during the reload
+     * @exception IOException if an input/output error occurs
+     */
+    private void loadSegment(File file, boolean compressed)
+        throws ClassNotFoundException, IOException {
+
+        // Open an input stream to the specified file
+        FileInputStream fis = null;
+        ObjectInputStream ois = null;
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        try {
+            fis = new FileInputStream(file.getAbsolutePath());
+            InputStream is = new BufferedInputStream(fis);
+            if (compressed)
+                is = new GZIPInputStream(is);
+            if (container != null)
+                loader = container.getLoader();
+            if (loader != null)
+                classLoader = loader.getClassLoader();
+            if (classLoader != null) {
+                if (debug >= 1)
+                    log("Creating custom object input stream for class loader "
+                        + classLoader);
+                ois = new CustomObjectInputStream(is, classLoader);
+            } else {
+                if (debug >= 1)
+                    log("Creating standard object input stream");
+                ois = new ObjectInputStream(is);
+            }
+        } catch (FileNotFoundException e) {
+            if (debug >= 1)
+                log("No persisted data file found");
+            return;
+        } catch (IOException e) {
+            log(sm.getString("standardManager.loading.ioe", e), e);
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException f) {
+                    ;
+                }
+                fis = null;
+            }
+            throw e;
+        }
+
+        // Load the previously unloaded active sessions
+        try {
+            Integer count = (Integer) ois.readObject();
+            int n = count.intValue();
+            if (debug >= 1)
+                log("Loading " + n + " persisted sessions from " + file);
+            for (int i = 0; i < n; i++) {
+                StandardSession session = new StandardSession(this);
+                session.readObjectData(ois);
+                session.setManager(this);
+                sessions.put(session.getId(), session);
+                ((StandardSession) session).activate();
+                wheel.schedule(session);
+            }
+        } catch (ClassNotFoundException e) {
+            log(sm.getString("standardManager.loading.cnfe", e), e);
+            throw e;
+        } catch (IOException e) {
+            log(sm.getString("standardManager.loading.ioe", e), e);
+            throw e;
+        } finally {
+            // Close the input stream
+            try {
+                ois.close();
+            } catch (IOException f) {
+                // ignored
+            }
+
+            // Delete the persistent storage file
+            if (file.exists())
+                file.delete();
+        }
+
+    }
+
+
+    /**
+     * Invalidate all sessions that have expired.  Only the sessions whose
+     * slot of the expiration wheel is due are examined.
      */
     private void processExpires() {
 
-        long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
+        StandardSession sessions[] =
+            wheel.advance(System.currentTimeMillis());
 
         for (int i = 0; i < sessions.length; i++) {
-            StandardSession session = (StandardSession) sessions[i];
+            StandardSession session = sessions[i];
             if (!session.isValid())
                 continue;
-            int maxInactiveInterval = session.getMaxInactiveInterval();
-            if (maxInactiveInterval < 0)
-                continue;
-            int timeIdle = // Truncate, do not round up
-                (int) ((timeNow - session.getLastUsedTime()) / 1000L);
-            if (timeIdle >= maxInactiveInterval) {
-                try {
-                    expiredSessions++;
-                    session.expire();
-                } catch (Throwable t) {
-                    log(sm.getString("standardManager.expireException"), t);
-                }
+            try {
+                expiredSessions++;
+                session.expire();
+            } catch (Throwable t) {
+                log(sm.getString("standardManager.expireException"), t);
             }
         }
 
@@ -748,13 +947,54 @@ public class StandardManager
 
 
     /**
-     * Sleep for the duration specified by the <code>checkInterval</code>
-     * property.
+     * Return the segment, out of the specified number of segments, in which
+     * the session with the specified identifier is persisted.
+     *
+     * @param id Session identifier
+     * @param segments Number of segments
+     */
+    private static int segmentFor(String id, int segments) {
+
+        return ((id.hashCode() & 0x7fffffff) % segments);
+
+    }
+
+
+    /**
+     * Return the file in which the specified segment of the persisted
+     * sessions is stored.
+     *
+     * @param file Our persistence file
+     * @param segment Segment number
+     */
+    private static File segmentFile(File file, int segment) {
+
+        return (new File(file.getPath() + "." + segment + ".gz"));
+
+    }
+
+
+    /**
+     * Return the name of a background thread of this Manager.
+     *
+     * @param suffix Suffix identifying the thread
+     */
+    private String backgroundThreadName(String suffix) {
+
+        if (container == null)
+            return ("StandardManager" + suffix);
+        return ("StandardManager[" + container.getName() + "]" + suffix);
+
+    }
+
+
+    /**
+     * Sleep for the duration of a tick of the expiration wheel.
      */
     private void threadSleep() {
 
         try {
-            Thread.sleep(checkInterval * 1000L);
+            Thread.sleep(EXPIRY_TICK);
         } catch (InterruptedException e) {
             ;
         }
@@ -818,4 +1058,153 @@ public class StandardManager
         }
 
     }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Loader of one segment of the persisted sessions, either by one of the
+     * background loading threads or on demand by a request thread.
+     */
+    private final class SegmentLoader {
+
+        /**
+         * The file holding this segment.
+         */
+        private File file = null;
+
+        /**
+         * Has a thread claimed the loading of this segment?
+         */
+        private boolean claimed = false;
+
+        /**
+         * Has loading this segment completed?
+         */
+        private boolean done = false;
+
+        SegmentLoader(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Load this segment on the calling thread, unless another thread
+         * is already loading (or has loaded) it.  Return <code>true</code>
+         * if this thread loaded the segment.
+         */
+        boolean tryLoad() {
+            synchronized (this) {
+                if (claimed)
+                    return (false);
+                claimed = true;
+            }
+            try {
+                loadSegment(file, true);
+            } catch (Throwable t) {
+                log(sm.getString("standardManager.managerLoad"), t);
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+                segmentLoaded();
+            }
+            return (true);
+        }
+
+        /**
+         * Return once this segment has been loaded, loading it on the
+         * calling thread if nobody has started to.
+         */
+        void await() {
+            if (tryLoad())
+                return;
+            synchronized (this) {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Background task loading segments of the persisted sessions, starting
+     * at a different segment in each thread.
+     */
+    private static final class SegmentLoadTask implements Runnable {
+
+        private SegmentLoader loaders[] = null;
+
+        private int offset = 0;
+
+        SegmentLoadTask(SegmentLoader loaders[], int offset) {
+            this.loaders = loaders;
+            this.offset = offset;
+        }
+
+        public void run() {
+            for (int i = 0; i < loaders.length; i++)
+                loaders[(offset + i) % loaders.length].tryLoad();
+        }
+
+    }
+
+
+    /**
+     * Writer of one compressed segment of the persisted sessions.
+     */
+    private final class SegmentWriter implements Runnable {
+
+        /**
+         * The exception that caused writing this segment to fail, if any.
+         */
+        Throwable exception = null;
+
+        private File file = null;
+
+        private ArrayList list = null;
+
+        SegmentWriter(File file, ArrayList list) {
+            this.file = file;
+            this.list = list;
+        }
+
+        public void run() {
+            ObjectOutputStream oos = null;
+            try {
+                oos = new ObjectOutputStream(new GZIPOutputStream
+                    (new BufferedOutputStream
+                        (new FileOutputStream(file.getAbsolutePath()))));
+                oos.writeObject(new Integer(list.size()));
+                for (int i = 0; i < list.size(); i++) {
+                    StandardSession session = (StandardSession) list.get(i);
+                    session.passivate();
+                    session.writeObjectData(oos);
+                }
+                oos.close();
+                oos = null;
+            } catch (Throwable t) {
+                log(sm.getString("standardManager.unloading.ioe", t), t);
+                exception = t;
+            } finally {
+                if (oos != null) {
+                    try {
+                        oos.close();
+                    } catch (IOException f) {
+                        ;
+                    }
+                }
+            }
+        }
+
+    }
+
+
 }
@@ -20,6 +20,7 @@ package org.apache.catalina.session;
 
 
 import java.beans.PropertyChangeSupport;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
@@ -30,6 +31,7 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -45,6 +47,7 @@ import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
 import org.apache.catalina.SessionEvent;
 import org.apache.catalina.SessionListener;
+import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.catalina.util.Enumerator;
 import org.apache.catalina.util.StringManager;
 
@@ -149,6 +152,23 @@ class StandardSession
     private transient int debug = 0;
 
 
+    /**
+     * The attribute changes not replicated yet, if our Manager replicates
+     * this session to the other members of a cluster.  NOTE:  This value
+     * is not included in the serialized version of this object.
+     */
+    transient SessionDelta delta = null;
+
+
+    /**
+     * The sequence number of the last replication message sent or applied
+     * for this session, used to discard messages received out of order.
+     * NOTE:  This value is not included in the serialized version of this
+     * object.
+     */
+    transient long sequence = 0L;
+
+
     /**
      * We are currently processing a session expiration, so bypass
      * certain IllegalStateException tests.  NOTE:  This value is not
@@ -177,9 +197,18 @@ class StandardSession
 
 
     /**
-     * The last accessed time for this Session.
+     * The slot of the expiration wheel of our Manager in which this Session
+     * is currently scheduled, if any.  Guarded by that wheel.
+     */
+    transient HashSet expirySlot = null;
+
+
+    /**
+     * The last accessed time for this Session.  Volatile so that the
+     * background expiration thread always reads a complete value, without
+     * any locking in <code>access()</code>.
      */
-    private long lastAccessedTime = creationTime;
+    private volatile long lastAccessedTime = creationTime;
 
 
     /**
@@ -254,7 +283,7 @@ class StandardSession
     /**
      * The current accessed time for this session.
      */
-    private long lastUsedTime = creationTime;
+    private volatile long lastUsedTime = creationTime;
 
 
     // ----------------------------------------------------- Session Properties
@@ -455,6 +484,10 @@ class StandardSession
 
         this.maxInactiveInterval = interval;
 
+        // Reschedule our expiration, which may now be due earlier
+        if (isValid && (manager instanceof StandardManager))
+            ((StandardManager) manager).scheduleExpiry(this);
+
     }
 
 
@@ -545,9 +578,11 @@ class StandardSession
      */
     public void access() {
 
-        this.isNew = false;
+        if (this.isNew)
+            this.isNew = false;
+        long timeNow = System.currentTimeMillis();
         this.lastAccessedTime = this.lastUsedTime;
-        this.lastUsedTime = System.currentTimeMillis();
+        this.lastUsedTime = timeNow;
 
     }
 
@@ -745,6 +780,8 @@ class StandardSession
         setPrincipal(null);
         isNew = false;
         isValid = false;
+        delta = null;
+        sequence = 0L;
 
         // Disable session recycling
         manager = null;
@@ -838,6 +875,96 @@ class StandardSession
     }
 
 
+    /**
+     * Apply the access times, the maximum inactive interval and the
+     * attribute changes written by <code>writeDeltaData()</code> on another
+     * member of the cluster to this session, without notifying any
+     * listeners nor recording them as changes to replicate.
+     *
+     * @param stream The object input stream to read from
+     * @param classLoader The class loader resolving the classes of the
+     *  attribute values, or <code>null</code> for the default one
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    void readDeltaData(ObjectInputStream stream, ClassLoader classLoader)
+        throws ClassNotFoundException, IOException {
+
+        lastAccessedTime = stream.readLong();
+        lastUsedTime = stream.readLong();
+        maxInactiveInterval = stream.readInt();
+
+        int n = stream.readInt();
+        SessionSerializer serializer = null;
+        if (n < 0) {
+            // The values were written by a SessionSerializer
+            n = -n - 1;
+            serializer = getSerializer();
+            if (serializer == null)
+                serializer = new CompactSessionSerializer();
+        }
+        for (int i = 0; i < n; i++) {
+            String name = stream.readUTF();
+            if (stream.readBoolean()) {
+                synchronized (attributes) {
+                    attributes.remove(name);
+                }
+                continue;
+            }
+            // Each value was written to an object stream of its own
+            byte buf[] = new byte[stream.readInt()];
+            stream.readFully(buf);
+            ByteArrayInputStream bis = new ByteArrayInputStream(buf);
+            ObjectInputStream ois = null;
+            if (classLoader != null)
+                ois = new CustomObjectInputStream(bis, classLoader);
+            else
+                ois = new ObjectInputStream(bis);
+            Object value = null;
+            if (serializer == null)
+                value = ois.readObject();
+            else
+                value = serializer.readAttribute(ois);
+            synchronized (attributes) {
+                attributes.put(name, value);
+            }
+        }
+        if (debug >= 2)
+            log("readDeltaData() applied " + n + " changes to session " + id);
+
+    }
+
+
+    /**
+     * Write the access times, the maximum inactive interval and the
+     * attribute changes made to this session since they were last written
+     * to the specified object output stream, for replication to the other
+     * members of the cluster.
+     *
+     * @param stream The object output stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    void writeDeltaData(ObjectOutputStream stream)
+        throws IOException {
+
+        stream.writeLong(lastAccessedTime);
+        stream.writeLong(lastUsedTime);
+        stream.writeInt(maxInactiveInterval);
+        SessionDelta delta = this.delta;
+        if (delta == null) {
+            stream.writeInt(0);
+            return;
+        }
+        String skipped[] = delta.write(stream, getSerializer());
+        for (int i = 0; i < skipped.length; i++)
+            log(sm.getString("standardSession.notSerializable",
+                             skipped[i], id));
+
+    }
+
+
     /**
      * Write a serialized version of the contents of this session object to
      * the specified object output stream, without requiring that the
@@ -1103,27 +1230,29 @@ class StandardSession
 
         // Remove this attribute from our collection
         Object value = null;
-        boolean found = false;
         synchronized (attributes) {
-            found = attributes.containsKey(name);
-            if (found) {
-                value = attributes.get(name);
-                attributes.remove(name);
-            } else {
-                return;
-            }
+            value = attributes.remove(name);
         }
+        if (value == null)
+            return;
+        SessionDelta delta = this.delta;
+        if (delta != null)
+            delta.removeAttribute(name);
 
         // Do we need to do valueUnbound() and attributeRemoved() notification?
         if (!notify) {
             return;
         }
+        Context context = (Context) manager.getContainer();
+        Object listeners[] = context.getApplicationListeners();
+        boolean listening = hasAttributeListeners(listeners);
+        if (!listening && !(value instanceof HttpSessionBindingListener))
+            return;
 
         // Call the valueUnbound() method if necessary
         HttpSessionBindingEvent event =
           new HttpSessionBindingEvent((HttpSession) this, name, value);
-        if ((value != null) &&
-            (value instanceof HttpSessionBindingListener)) {
+        if (value instanceof HttpSessionBindingListener) {
             try {
                 ((HttpSessionBindingListener) value).valueUnbound(event);
             } catch (Throwable t) {
@@ -1132,9 +1261,7 @@ class StandardSession
         }
 
         // Notify interested application event listeners
-        Context context = (Context) manager.getContainer();
-        Object listeners[] = context.getApplicationListeners();
-        if (listeners == null)
+        if (!listening)
             return;
         for (int i = 0; i < listeners.length; i++) {
             if (!(listeners[i] instanceof HttpSessionAttributeListener))
@@ -1228,12 +1355,11 @@ class StandardSession
             throw new IllegalArgumentException
                 (sm.getString("standardSession.setAttribute.iae"));
 
-        // Construct an event with the new value
-        HttpSessionBindingEvent event = new HttpSessionBindingEvent
-                ((HttpSession) this, name, value);
-
         // Call the valueBound() method if necessary
+        HttpSessionBindingEvent event = null;
         if (value instanceof HttpSessionBindingListener) {
+            event = new HttpSessionBindingEvent
+                ((HttpSession) this, name, value);
             try {
                 ((HttpSessionBindingListener) value).valueBound(event);
             } catch (Throwable t) {
@@ -1244,9 +1370,11 @@ class StandardSession
         // Replace or add this attribute
         Object unbound = null;
         synchronized (attributes) {
-            unbound = attributes.get(name);
-            attributes.put(name, value);
+            unbound = attributes.put(name, value);
         }
+        SessionDelta delta = this.delta;
+        if (delta != null)
+            delta.setAttribute(name, value);
 
         // Call the valueUnbound() method if necessary
         if ((unbound != null) &&
@@ -1259,17 +1387,19 @@ class StandardSession
             }
         }
 
-        // Replace the current event with one containing 
-        // the old value if necesary
-        if (unbound != null)
-            event = new HttpSessionBindingEvent((HttpSession) this,
-                                                name, unbound);
-
         // Notify interested application event listeners
         Context context = (Context) manager.getContainer();
         Object listeners[] = context.getApplicationListeners();
-        if (listeners == null)
+        if (!hasAttributeListeners(listeners))
             return;
+
+        // Construct an event with the old value if necessary
+        if (unbound != null)
+            event = new HttpSessionBindingEvent((HttpSession) this,
+                                                name, unbound);
+        else if (event == null)
+            event = new HttpSessionBindingEvent((HttpSession) this,
+                                                name, value);
         for (int i = 0; i < listeners.length; i++) {
             if (!(listeners[i] instanceof HttpSessionAttributeListener))
                 continue;
@@ -1351,11 +1481,23 @@ class StandardSession
         if (attributes == null)
             attributes = new HashMap();
         int n = ((Integer) stream.readObject()).intValue();
+        SessionSerializer serializer = null;
+        if (n < 0) {
+            // The values were written by a SessionSerializer
+            n = -n - 1;
+            serializer = getSerializer();
+            if (serializer == null)
+                serializer = new CompactSessionSerializer();
+        }
         boolean isValidSave = isValid;
         isValid = true;
         for (int i = 0; i < n; i++) {
             String name = (String) stream.readObject();
-            Object value = (Object) stream.readObject();
+            Object value = null;
+            if (serializer == null)
+                value = stream.readObject();
+            else
+                value = serializer.readAttribute(stream);
             if ((value instanceof String) && (value.equals(NOT_SERIALIZED)))
                 continue;
             if (debug >= 2)
@@ -1421,20 +1563,31 @@ class StandardSession
             }
         }
 
-        // Serialize the attribute count and the Serializable attributes
+        // Serialize the attribute count and the Serializable attributes,
+        // a negative count meaning the values are written by a serializer
+        SessionSerializer serializer = getSerializer();
         int n = saveNames.size();
-        stream.writeObject(new Integer(n));
+        if (serializer == null)
+            stream.writeObject(new Integer(n));
+        else
+            stream.writeObject(new Integer(-n - 1));
         for (int i = 0; i < n; i++) {
             stream.writeObject((String) saveNames.get(i));
             try {
-                stream.writeObject(saveValues.get(i));
+                if (serializer == null)
+                    stream.writeObject(saveValues.get(i));
+                else
+                    serializer.writeAttribute(stream, saveValues.get(i));
                 if (debug >= 2)
                     log("  storing attribute '" + saveNames.get(i) +
                         "' with value '" + saveValues.get(i) + "'");
             } catch (NotSerializableException e) {
                 log(sm.getString("standardSession.notSerializable",
                                  saveNames.get(i), id), e);
-                stream.writeObject(NOT_SERIALIZED);
+                if (serializer == null)
+                    stream.writeObject(NOT_SERIALIZED);
+                else
+                    serializer.writeAttribute(stream, NOT_SERIALIZED);
                 if (debug >= 2)
                     log("  storing attribute '" + saveNames.get(i) +
                         "' with value NOT_SERIALIZED");
@@ -1503,6 +1656,39 @@ class StandardSession
     }
 
 
+    /**
+     * Return the serializer of attribute values configured on our Manager,
+     * or <code>null</code> if they are written with Java serialization.
+     */
+    private SessionSerializer getSerializer() {
+
+        if (manager instanceof ManagerBase)
+            return (((ManagerBase) manager).getSerializer());
+        return (null);
+
+    }
+
+
+    /**
+     * Is any of the specified application event listeners an
+     * <code>HttpSessionAttributeListener</code>?  Attribute events are only
+     * constructed when this is the case.
+     *
+     * @param listeners The application event listeners of our Context
+     */
+    private boolean hasAttributeListeners(Object listeners[]) {
+
+        if (listeners == null)
+            return (false);
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] instanceof HttpSessionAttributeListener)
+                return (true);
+        }
+        return (false);
+
+    }
+
+
     /**
      * Return the names of all currently defined session attributes
      * as an array of Strings.  If there are no defined attributes, a
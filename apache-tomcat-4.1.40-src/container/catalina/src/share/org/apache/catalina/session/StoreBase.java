@@ -27,6 +27,7 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Logger;
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -232,6 +233,19 @@ public abstract class StoreBase
         support.removePropertyChangeListener(listener);
     }
 
+    /**
+     * Save several sessions to the Store.  This implementation saves them
+     * one at a time; subclasses may write them in a single batch.
+     *
+     * @param sessions The sessions to be stored
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session sessions[]) throws IOException {
+        for (int i = 0; i < sessions.length; i++) {
+            save(sessions[i]);
+        }
+    }
+
     // --------------------------------------------------------- Protected Methods
 
     /**
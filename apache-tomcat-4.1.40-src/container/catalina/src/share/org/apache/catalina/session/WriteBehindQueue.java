@@ -0,0 +1,546 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Asynchronous queue of the sessions a <code>PersistentManagerBase</code>
+ * has decided to back up or swap out to its Store.
+ * <p>
+ * Sessions are written in arrival order by a background thread, which
+ * takes every queued session (up to the batch size) each time it wakes up,
+ * and hands them to the Manager as a single batch.
+ * A session queued again before it has been written is only written once:
+ * a swap out supersedes a back up, and the latest request determines the
+ * last used time the session must still have for a swap out to proceed.
+ * The queue records how long sessions wait, and how long writes take.
+ */
+
+final class WriteBehindQueue implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new queue writing sessions for the specified Manager.
+     *
+     * @param manager The Manager whose sessions are written
+     * @param batchSize The maximum number of sessions written per batch
+     */
+    WriteBehindQueue(PersistentManagerBase manager, int batchSize) {
+
+        super();
+        this.manager = manager;
+        this.batchSize = batchSize;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of batches written.
+     */
+    private long batches = 0L;
+
+
+    /**
+     * The maximum number of sessions written per batch.
+     */
+    private int batchSize = 0;
+
+
+    /**
+     * The number of requests coalesced with one already queued.
+     */
+    private long coalesced = 0L;
+
+
+    /**
+     * The number of session writes that failed.
+     */
+    private long failures = 0L;
+
+
+    /**
+     * The Manager whose sessions are written.
+     */
+    private PersistentManagerBase manager = null;
+
+
+    /**
+     * The longest time (in milliseconds) a session waited in this queue.
+     */
+    private long maxQueueTime = 0L;
+
+
+    /**
+     * The longest time (in milliseconds) a batch write took.
+     */
+    private long maxWriteTime = 0L;
+
+
+    /**
+     * The queued entries, in arrival order.
+     */
+    private LinkedList order = new LinkedList();
+
+
+    /**
+     * The queued entries, keyed by session identifier.
+     */
+    private HashMap pending = new HashMap();
+
+
+    /**
+     * Is the background thread running?
+     */
+    private boolean running = false;
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The background thread.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * The cumulative time (in milliseconds) sessions waited in this queue.
+     */
+    private long totalQueueTime = 0L;
+
+
+    /**
+     * The cumulative time (in milliseconds) spent writing batches.
+     */
+    private long totalWriteTime = 0L;
+
+
+    /**
+     * The identifiers of the sessions of the batch being written.
+     */
+    private HashSet writing = new HashSet();
+
+
+    /**
+     * The thread writing the current batch, if any.
+     */
+    private Thread writer = null;
+
+
+    /**
+     * The number of sessions written.
+     */
+    private long writes = 0L;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the average time (in milliseconds) a batch write took.
+     */
+    synchronized long getAverageWriteTime() {
+
+        if (batches == 0)
+            return (0L);
+        return (totalWriteTime / batches);
+
+    }
+
+
+    /**
+     * Return the average time (in milliseconds) a session waited in this
+     * queue before being written.
+     */
+    synchronized long getAverageQueueTime() {
+
+        if (writes == 0)
+            return (0L);
+        return (totalQueueTime / writes);
+
+    }
+
+
+    /**
+     * Return the number of requests coalesced with one already queued.
+     */
+    synchronized long getCoalescedCount() {
+
+        return (this.coalesced);
+
+    }
+
+
+    /**
+     * Return the number of writes that failed.
+     */
+    synchronized long getFailureCount() {
+
+        return (this.failures);
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) a session waited in this
+     * queue.
+     */
+    synchronized long getMaxQueueTime() {
+
+        return (this.maxQueueTime);
+
+    }
+
+
+    /**
+     * Return the longest time (in milliseconds) a batch write took.
+     */
+    synchronized long getMaxWriteTime() {
+
+        return (this.maxWriteTime);
+
+    }
+
+
+    /**
+     * Return the number of sessions waiting to be written.
+     */
+    synchronized int getSize() {
+
+        return (pending.size());
+
+    }
+
+
+    /**
+     * Return the number of sessions written.
+     */
+    synchronized long getWriteCount() {
+
+        return (this.writes);
+
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Forget any queued write of the session with the specified identifier,
+     * and wait for a write of that session already in progress to finish,
+     * so that the caller may then remove the session from the Store
+     * without the write bringing it back.  Return <code>true</code> if a
+     * queued write was cancelled.
+     *
+     * @param id Session identifier
+     */
+    synchronized boolean cancel(String id) {
+
+        while (writing.contains(id) && (writer != Thread.currentThread())) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+        Entry entry = (Entry) pending.remove(id);
+        if (entry == null)
+            return (false);
+        entry.cancelled = true;
+        return (true);
+
+    }
+
+
+    /**
+     * Queue the specified session to be written to the Store.
+     *
+     * @param session The session to be written
+     * @param swap Should the session be swapped out once written?
+     */
+    synchronized void enqueue(StandardSession session, boolean swap) {
+
+        String id = session.getId();
+        Entry entry = (Entry) pending.get(id);
+        if (entry != null) {
+            coalesced++;
+            entry.session = session;
+            entry.swap |= swap;
+            entry.lastUsedTime = session.getLastUsedTime();
+            return;
+        }
+        entry = new Entry(session, swap);
+        pending.put(id, entry);
+        order.addLast(entry);
+        notify();
+
+    }
+
+
+    /**
+     * Write every queued session on the calling thread.
+     */
+    void flush() {
+
+        while (true) {
+            Entry batch[] = take(false);
+            if (batch == null)
+                return;
+            write(batch);
+        }
+
+    }
+
+
+    /**
+     * Start the background thread writing the queued sessions.
+     *
+     * @param name Name of the background thread
+     */
+    synchronized void start(String name) {
+
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop the background thread, then write any session still queued on
+     * the calling thread.
+     */
+    void stop() {
+
+        Thread current = null;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+        flush();
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * The background thread writing the queued sessions.
+     */
+    public void run() {
+
+        while (true) {
+            Entry batch[] = take(true);
+            if (batch == null)
+                break;
+            write(batch);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Remove and return the next batch of queued entries, or
+     * <code>null</code> if there are none.
+     *
+     * @param wait Should we wait for entries while the background thread
+     *  is running?
+     */
+    private synchronized Entry[] take(boolean wait) {
+
+        while (wait && running && order.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+        if (wait && !running)
+            return (null);
+        if (order.isEmpty())
+            return (null);
+
+        int n = Math.min(order.size(), batchSize);
+        Entry batch[] = new Entry[n];
+        for (int i = 0; i < n; i++) {
+            batch[i] = (Entry) order.removeFirst();
+            if (!batch[i].cancelled) {
+                pending.remove(batch[i].id);
+                writing.add(batch[i].id);
+            }
+        }
+        writer = Thread.currentThread();
+        return (batch);
+
+    }
+
+
+    /**
+     * Write the specified batch of entries to the Store.
+     *
+     * @param batch The entries to be written
+     */
+    private void write(Entry batch[]) {
+
+        int n = 0;
+        for (int i = 0; i < batch.length; i++) {
+            if (!batch[i].cancelled)
+                n++;
+        }
+        if (n == 0) {
+            synchronized (this) {
+                writer = null;
+            }
+            return;
+        }
+        StandardSession sessions[] = new StandardSession[n];
+        boolean swap[] = new boolean[n];
+        long lastUsedTime[] = new long[n];
+        n = 0;
+        for (int i = 0; i < batch.length; i++) {
+            Entry entry = batch[i];
+            if (entry.cancelled)
+                continue;
+            sessions[n] = entry.session;
+            swap[n] = entry.swap;
+            lastUsedTime[n] = entry.lastUsedTime;
+            n++;
+        }
+
+        long start = System.currentTimeMillis();
+        boolean failed = false;
+        try {
+            manager.writeBehind(sessions, swap, lastUsedTime);
+        } catch (IOException e) {
+            failed = true;  // This is logged in writeBehind()
+        } catch (Throwable t) {
+            failed = true;
+            manager.log(sm.getString("persistentManager.writeBehind",
+                                     new Integer(n)), t);
+        }
+        long end = System.currentTimeMillis();
+        synchronized (this) {
+            writing.clear();
+            writer = null;
+            notifyAll();
+            batches++;
+            writes += n;
+            if (failed)
+                failures += n;
+            for (int i = 0; i < batch.length; i++) {
+                if (batch[i].cancelled)
+                    continue;
+                long queueTime = start - batch[i].queued;
+                totalQueueTime += queueTime;
+                if (queueTime > maxQueueTime)
+                    maxQueueTime = queueTime;
+            }
+            long writeTime = end - start;
+            totalWriteTime += writeTime;
+            if (writeTime > maxWriteTime)
+                maxWriteTime = writeTime;
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A queued request to write a session.
+     */
+    private static final class Entry {
+
+        Entry(StandardSession session, boolean swap) {
+            this.id = session.getId();
+            this.session = session;
+            this.swap = swap;
+            this.lastUsedTime = session.getLastUsedTime();
+            this.queued = System.currentTimeMillis();
+        }
+
+        /**
+         * Has this request been cancelled?
+         */
+        boolean cancelled = false;
+
+        /**
+         * The identifier of the session to be written.
+         */
+        String id = null;
+
+        /**
+         * The last used time the session must still have for a swap out to
+         * proceed.
+         */
+        long lastUsedTime = 0L;
+
+        /**
+         * The time at which this request was queued.
+         */
+        long queued = 0L;
+
+        /**
+         * The session to be written.
+         */
+        StandardSession session = null;
+
+        /**
+         * Should the session be swapped out once written?
+         */
+        boolean swap = false;
+
+    }
+
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+
+/**
+ * Provide each thread with its own <code>MessageDigest</code> instance for
+ * every algorithm it uses, so that threads digesting at the same time
+ * neither share an instance under a lock nor create a new one each time.
+ * <p>
+ * The instance returned belongs to the calling thread, and must not be
+ * kept or passed to another thread.  It is reset and returned again by the
+ * next call for the same algorithm on that thread, so it must be done with
+ * before then.
+ */
+
+public final class ConcurrentMessageDigest {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The MessageDigest instances of each thread, keyed by algorithm.
+     */
+    private static final ThreadLocal digests = new ThreadLocal();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the reset MessageDigest instance of the calling thread for the
+     * specified algorithm, creating it on first use.
+     *
+     * @param algorithm Name of the digest algorithm
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static MessageDigest getInstance(String algorithm)
+        throws NoSuchAlgorithmException {
+
+        HashMap instances = (HashMap) digests.get();
+        if (instances == null) {
+            instances = new HashMap();
+            digests.set(instances);
+        }
+        MessageDigest md = (MessageDigest) instances.get(algorithm);
+        if (md == null) {
+            md = MessageDigest.getInstance(algorithm);
+            instances.put(algorithm, md);
+        } else {
+            md.reset();
+        }
+        return (md);
+
+    }
+
+
+    /**
+     * Digest the specified bytes with the specified algorithm.
+     *
+     * @param algorithm Name of the digest algorithm
+     * @param input The bytes to digest
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static byte[] digest(String algorithm, byte[] input)
+        throws NoSuchAlgorithmException {
+
+        return (getInstance(algorithm).digest(input));
+
+    }
+
+
+    /**
+     * Digest the specified bytes with MD5, which every platform provides.
+     *
+     * @param input The bytes to digest
+     */
+    public static byte[] digestMD5(byte[] input) {
+
+        try {
+            return (digest("MD5", input));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+
+    }
+
+
+}
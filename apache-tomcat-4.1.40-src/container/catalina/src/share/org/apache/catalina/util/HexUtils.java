@@ -51,6 +51,15 @@ public final class HexUtils {
     };
 
 
+    /**
+     * Table for DEC to HEX digit translation.
+     */
+    private static final char[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+
 
     /**
      * The string manager for this package.
@@ -112,12 +121,12 @@ public final class HexUtils {
      */
     public static String convert(byte bytes[]) {
 
-        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        char[] digits = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            sb.append(convertDigit((int) (bytes[i] >> 4)));
-            sb.append(convertDigit((int) (bytes[i] & 0x0f)));
+            digits[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            digits[i * 2 + 1] = HEX[bytes[i] & 0x0f];
         }
-        return (sb.toString());
+        return (new String(digits));
 
     }
 
@@ -157,21 +166,4 @@ public final class HexUtils {
 
 
 
-    /**
-     * [Private] Convert the specified value (0 .. 15) to the corresponding
-     * hexadecimal digit.
-     *
-     * @param value Value to be converted
-     */
-    private static char convertDigit(int value) {
-
-        value &= 0x0f;
-        if (value >= 10)
-            return ((char) (value - 10 + 'a'));
-        else
-            return ((char) (value + '0'));
-
-    }
-
-
 }
@@ -0,0 +1,506 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * Resolve the host names of client IP addresses with reverse DNS lookups,
+ * shared by every request of a Connector so that each address is looked up
+ * once rather than on each request.
+ * <p>
+ * Resolved names are cached for <code>cacheTtl</code> seconds, and
+ * addresses without a name for <code>failureTtl</code> seconds, in a cache
+ * of at most <code>cacheSize</code> addresses from which the least recently
+ * used ones are evicted.  Threads asking for an address being looked up by
+ * another thread wait for that lookup rather than starting their own.  When
+ * <code>prefetchThreads</code> is positive, <code>prefetch()</code> queues
+ * the address of a request as soon as it arrives, to be looked up by
+ * background threads while the request makes its way to the application.
+ * A thread asking for an address still waiting in that queue looks it up
+ * itself, rather than waiting behind the addresses queued before it.
+ * <p>
+ * The name of an address without one is the address itself, as returned by
+ * <code>InetAddress.getHostName()</code>.
+ */
+
+public class HostNameResolver implements Runnable {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The cached lookups, keyed by address, in order of last access.
+     */
+    private LinkedHashMap cache = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return (size() > cacheSize);
+        }
+    };
+
+
+    /**
+     * The maximum number of cached addresses.
+     */
+    private int cacheSize = 1000;
+
+
+    /**
+     * The time (in seconds) a resolved name is cached.
+     */
+    private int cacheTtl = 300;
+
+
+    /**
+     * The time (in seconds) an address without a name is cached.
+     */
+    private int failureTtl = 60;
+
+
+    /**
+     * The maximum number of addresses queued for prefetching.
+     */
+    private int maxQueue = 1000;
+
+
+    /**
+     * The number of background threads prefetching names.
+     */
+    private int prefetchThreads = 0;
+
+
+    /**
+     * The lookups queued for prefetching, also used as the lock of the
+     * background threads.
+     */
+    private LinkedList queue = new LinkedList();
+
+
+    /**
+     * The background threads, or <code>null</code> if they are not running.
+     */
+    private Thread threads[] = null;
+
+
+    /**
+     * The background thread completion semaphore.
+     */
+    private boolean threadDone = false;
+
+
+    /**
+     * Name to register for the background threads.
+     */
+    private String threadName = "HostNameResolver";
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the maximum number of cached addresses.
+     */
+    public int getCacheSize() {
+
+        return (this.cacheSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of cached addresses.
+     *
+     * @param cacheSize The new maximum number of cached addresses
+     */
+    public void setCacheSize(int cacheSize) {
+
+        this.cacheSize = cacheSize;
+
+    }
+
+
+    /**
+     * Return the time (in seconds) a resolved name is cached.
+     */
+    public int getCacheTtl() {
+
+        return (this.cacheTtl);
+
+    }
+
+
+    /**
+     * Set the time (in seconds) a resolved name is cached.
+     *
+     * @param cacheTtl The new time to live
+     */
+    public void setCacheTtl(int cacheTtl) {
+
+        this.cacheTtl = cacheTtl;
+
+    }
+
+
+    /**
+     * Return the time (in seconds) an address without a name is cached.
+     */
+    public int getFailureTtl() {
+
+        return (this.failureTtl);
+
+    }
+
+
+    /**
+     * Set the time (in seconds) an address without a name is cached.
+     *
+     * @param failureTtl The new time to live
+     */
+    public void setFailureTtl(int failureTtl) {
+
+        this.failureTtl = failureTtl;
+
+    }
+
+
+    /**
+     * Return the number of background threads prefetching names.
+     */
+    public int getPrefetchThreads() {
+
+        return (this.prefetchThreads);
+
+    }
+
+
+    /**
+     * Set the number of background threads prefetching names, which takes
+     * effect on the next call to <code>start()</code>.
+     *
+     * @param prefetchThreads The new number of threads
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+
+        this.prefetchThreads = prefetchThreads;
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Queue the specified address to be looked up by a background thread,
+     * unless it is cached, already being looked up, or no background thread
+     * is running.  The queue is bounded, and addresses arriving while it is
+     * full are left to be looked up on demand.
+     *
+     * @param address The IP address of a client
+     */
+    public void prefetch(String address) {
+
+        if ((address == null) || (threads == null))
+            return;
+        Lookup lookup = null;
+        synchronized (queue) {
+            if (queue.size() >= maxQueue)
+                return;
+            synchronized (cache) {
+                if (cached(address, System.currentTimeMillis()) != null)
+                    return;
+                lookup = new Lookup(address);
+                cache.put(address, lookup);
+            }
+            queue.addLast(lookup);
+            queue.notify();
+        }
+
+    }
+
+
+    /**
+     * Return the host name of the specified address, or the address itself
+     * if it has none.
+     *
+     * @param address The IP address of a client
+     */
+    public String resolve(String address) {
+
+        if (address == null)
+            return (null);
+        Lookup lookup = null;
+        synchronized (cache) {
+            lookup = cached(address, System.currentTimeMillis());
+            if (lookup == null) {
+                lookup = new Lookup(address);
+                cache.put(address, lookup);
+            }
+        }
+
+        // Perform the lookup unless another thread has started it, taking
+        // it over from the prefetch queue if it is still waiting there
+        if (lookup.claim())
+            complete(lookup);
+        return (lookup.getName());
+
+    }
+
+
+    /**
+     * Start the background threads prefetching names, if any.
+     */
+    public void start() {
+
+        if ((threads != null) || (prefetchThreads <= 0))
+            return;
+        threadDone = false;
+        threads = new Thread[prefetchThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this, threadName + "[" + i + "]");
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+    }
+
+
+    /**
+     * Stop the background threads prefetching names, and remove every
+     * cached address.
+     */
+    public void stop() {
+
+        Thread threads[] = this.threads;
+        if (threads == null)
+            return;
+        this.threads = null;
+        synchronized (queue) {
+            threadDone = true;
+            queue.notifyAll();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+
+        // Release any thread waiting for a lookup left in the queue
+        synchronized (queue) {
+            while (!queue.isEmpty()) {
+                Lookup lookup = (Lookup) queue.removeFirst();
+                if (lookup.claim())
+                    lookup.complete(lookup.address, 0);
+            }
+        }
+        synchronized (cache) {
+            cache.clear();
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Look up the host name of the specified address, and return it, or
+     * return <code>null</code> if it has none.
+     *
+     * @param address The IP address
+     */
+    protected String lookup(String address) {
+
+        try {
+            String name = InetAddress.getByName(address).getHostName();
+            if (address.equals(name))
+                return (null);
+            return (name);
+        } catch (Exception e) {
+            return (null);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the cached lookup of the specified address, or
+     * <code>null</code> if it is not cached or has expired.  The caller
+     * must hold the lock of the cache.
+     *
+     * @param address The IP address
+     * @param now The current time
+     */
+    private Lookup cached(String address, long now) {
+
+        Lookup lookup = (Lookup) cache.get(address);
+        if ((lookup != null) && lookup.isExpired(now)) {
+            cache.remove(address);
+            lookup = null;
+        }
+        return (lookup);
+
+    }
+
+
+    /**
+     * Perform the specified lookup, and release the threads waiting for it.
+     *
+     * @param lookup The lookup
+     */
+    private void complete(Lookup lookup) {
+
+        String name = null;
+        try {
+            name = lookup(lookup.address);
+        } finally {
+            if (name == null)
+                lookup.complete(lookup.address, failureTtl);
+            else
+                lookup.complete(name, cacheTtl);
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * The background thread that looks up the addresses queued by
+     * <code>prefetch()</code>.
+     */
+    public void run() {
+
+        while (true) {
+            Lookup lookup = null;
+            synchronized (queue) {
+                while (!threadDone && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (threadDone)
+                    return;
+                lookup = (Lookup) queue.removeFirst();
+            }
+            // Skip the lookups taken over by resolve()
+            if (lookup.claim())
+                complete(lookup);
+        }
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The lookup of the host name of an address, complete or in progress.
+     */
+    private static final class Lookup {
+
+        /**
+         * The IP address looked up.
+         */
+        final String address;
+
+        /**
+         * The time after which the result is no longer used.
+         */
+        private long expires = Long.MAX_VALUE;
+
+        /**
+         * The host name, or <code>null</code> while the lookup is in
+         * progress.
+         */
+        private String name = null;
+
+        /**
+         * Has a thread started the lookup?
+         */
+        private boolean started = false;
+
+        Lookup(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Claim the lookup for the calling thread, and return
+         * <code>true</code>, or return <code>false</code> if another
+         * thread has started it.
+         */
+        synchronized boolean claim() {
+            if (started)
+                return (false);
+            started = true;
+            return (true);
+        }
+
+        /**
+         * Record the result of the lookup, and release the threads waiting
+         * for it.
+         *
+         * @param name The host name, or the address if it has none
+         * @param ttl The time (in seconds) the result is kept
+         */
+        synchronized void complete(String name, int ttl) {
+            this.name = name;
+            this.expires = System.currentTimeMillis() + ttl * 1000L;
+            notifyAll();
+        }
+
+        /**
+         * Return the host name, waiting for the lookup to complete.
+         */
+        synchronized String getName() {
+            while (name == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+            return (name);
+        }
+
+        /**
+         * Has the result of the lookup expired?
+         *
+         * @param now The current time
+         */
+        synchronized boolean isExpired(long now) {
+            return (now > expires);
+        }
+
+    }
+
+
+}
@@ -62,8 +62,10 @@ public final class InstanceSupport {
 
     /**
      * The set of registered InstanceListeners for event notifications.
+     * This array is replaced, never modified, when listeners are added or
+     * removed, so it can be iterated without synchronization.
      */
-    private InstanceListener listeners[] = new InstanceListener[0];
+    private volatile InstanceListener listeners[] = new InstanceListener[0];
 
 
     /**
@@ -85,6 +87,17 @@ public final class InstanceSupport {
     }
 
 
+    /**
+     * Return <code>true</code> if at least one InstanceListener is currently
+     * registered, so that callers can skip preparing events entirely.
+     */
+    public boolean hasListeners() {
+
+        return (listeners.length > 0);
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -117,14 +130,11 @@ public final class InstanceSupport {
      */
     public void fireInstanceEvent(String type, Filter filter) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, filter, type);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -143,15 +153,12 @@ public final class InstanceSupport {
     public void fireInstanceEvent(String type, Filter filter,
                                   Throwable exception) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, filter, type,
                                                 exception);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -172,15 +179,12 @@ public final class InstanceSupport {
                                   ServletRequest request,
                                   ServletResponse response) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, filter, type,
                                                 request, response);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -203,15 +207,12 @@ public final class InstanceSupport {
                                   ServletResponse response,
                                   Throwable exception) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, filter, type,
                                                 request, response, exception);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -228,14 +229,11 @@ public final class InstanceSupport {
      */
     public void fireInstanceEvent(String type, Servlet servlet) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, servlet, type);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -254,15 +252,12 @@ public final class InstanceSupport {
     public void fireInstanceEvent(String type, Servlet servlet,
                                   Throwable exception) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, servlet, type,
                                                 exception);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -283,15 +278,12 @@ public final class InstanceSupport {
                                   ServletRequest request,
                                   ServletResponse response) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, servlet, type,
                                                 request, response);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -314,15 +306,12 @@ public final class InstanceSupport {
                                   ServletResponse response,
                                   Throwable exception) {
 
-        if (listeners.length == 0)
+        InstanceListener interested[] = listeners;
+        if (interested.length == 0)
             return;
 
         InstanceEvent event = new InstanceEvent(wrapper, servlet, type,
                                                 request, response, exception);
-        InstanceListener interested[] = null;
-        synchronized (listeners) {
-            interested = (InstanceListener[]) listeners.clone();
-        }
         for (int i = 0; i < interested.length; i++)
             interested[i].instanceEvent(event);
 
@@ -0,0 +1,477 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.apache.regexp.RE;
+import org.apache.regexp.REProgram;
+import org.apache.regexp.RESyntaxException;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * The compiled form of a comma-delimited list of <code>allow</code> or
+ * <code>deny</code> patterns of a <code>RequestFilterValve</code>.  Each
+ * pattern is compiled into the cheapest structure that matches exactly the
+ * same values:
+ * <ul>
+ * <li>A CIDR block, such as <code>10.0.0.0/8</code> or
+ *     <code>fe80::/10</code>, is added to a binary trie of the address bits
+ *     of its IP version, in which an address is looked up with at most one
+ *     step per bit whatever the number of blocks.</li>
+ * <li>A regular expression anchored at both ends whose body is a literal
+ *     string, such as <code>^www\.example\.com$</code>, is added to a set
+ *     of exact values.</li>
+ * <li>Any other pattern is kept as a regular expression, evaluated in
+ *     turn as before.</li>
+ * </ul>
+ * <p>
+ * The rules are not modified once compiled, so any number of threads may
+ * evaluate them at the same time without locking.
+ */
+
+final class AddressRules {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Compile the specified list of patterns.
+     *
+     * @param list The comma-separated list of patterns, or
+     *  <code>null</code> for none
+     *
+     * @exception IllegalArgumentException if one of the patterns has
+     *  invalid syntax
+     */
+    AddressRules(String list) {
+
+        ArrayList programList = new ArrayList();
+        if (list != null)
+            list = list.trim();
+        if ((list != null) && (list.length() > 0)) {
+            list += ",";
+            int start = 0;
+            while (start < list.length()) {
+                int comma = list.indexOf(',', start);
+                String pattern = list.substring(start, comma).trim();
+                start = comma + 1;
+                if (addBlock(pattern) || addExact(pattern))
+                    continue;
+                try {
+                    programList.add(new RE(pattern).getProgram());
+                } catch (RESyntaxException e) {
+                    throw new IllegalArgumentException
+                        (sm.getString("requestFilterValve.syntax", pattern));
+                }
+                count++;
+            }
+        }
+        programs = (REProgram[])
+            programList.toArray(new REProgram[programList.size()]);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of patterns compiled.
+     */
+    private int count = 0;
+
+
+    /**
+     * The values matched exactly.
+     */
+    private HashSet exact = new HashSet();
+
+
+    /**
+     * The root of the trie of IPv4 CIDR blocks, or <code>null</code> if
+     * there are none.
+     */
+    private Node ipv4 = null;
+
+
+    /**
+     * The root of the trie of IPv6 CIDR blocks, or <code>null</code> if
+     * there are none.
+     */
+    private Node ipv6 = null;
+
+
+    /**
+     * The regular expressions evaluated in turn.
+     */
+    private REProgram programs[] = null;
+
+
+    /**
+     * The StringManager for this package.
+     */
+    private static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Return the regular expressions that could not be compiled into a
+     * cheaper structure.
+     */
+    REProgram[] getPrograms() {
+
+        return (this.programs);
+
+    }
+
+
+    /**
+     * Are there no patterns at all?
+     */
+    boolean isEmpty() {
+
+        return (count == 0);
+
+    }
+
+
+    /**
+     * Does any of the patterns match the specified value?
+     *
+     * @param value The request property to match
+     */
+    boolean matches(String value) {
+
+        if (exact.contains(value))
+            return (true);
+
+        // Look up the address in the trie of its IP version
+        if ((ipv4 != null) || (ipv6 != null)) {
+            byte address[] = parseAddress(value);
+            if (address != null) {
+                Node node = (address.length == 4) ? ipv4 : ipv6;
+                for (int i = 0; node != null; i++) {
+                    if (node.terminal)
+                        return (true);
+                    if ((address[i >> 3] & (0x80 >> (i & 7))) == 0)
+                        node = node.zero;
+                    else
+                        node = node.one;
+                }
+            }
+        }
+
+        if (programs.length == 0)
+            return (false);
+
+        // Create local RE since RE is not thread safe
+        RE re = new RE();
+        for (int i = 0; i < programs.length; i++) {
+            re.setProgram(programs[i]);
+            if (re.match(value))
+                return (true);
+        }
+        return (false);
+
+    }
+
+
+    /**
+     * Parse the specified IPv4 or IPv6 address literal, without resolving
+     * it, and return its bytes, or <code>null</code> if it is not an
+     * address literal.  An IPv4-mapped IPv6 address is returned as the IPv4
+     * address it maps.
+     *
+     * @param value The address literal
+     */
+    static byte[] parseAddress(String value) {
+
+        if ((value == null) || (value.length() == 0))
+            return (null);
+        if (value.indexOf(':') < 0)
+            return (parseIPv4(value, 0, value.length()));
+
+        // Ignore any zone identifier
+        int end = value.indexOf('%');
+        if (end < 0)
+            end = value.length();
+        byte address[] = new byte[16];
+        int gap = -1;
+        int length = 0;
+        int pos = 0;
+        if (value.startsWith("::")) {
+            gap = 0;
+            pos = 2;
+        }
+        while (pos < end) {
+            int colon = value.indexOf(':', pos);
+            if ((colon < 0) || (colon > end))
+                colon = end;
+            if ((colon == end) && (value.indexOf('.', pos) > 0)
+                && (value.indexOf('.', pos) < end)) {
+                // Embedded IPv4 address in the last 32 bits
+                byte ipv4[] = parseIPv4(value, pos, end);
+                if ((ipv4 == null) || (length > 12))
+                    return (null);
+                System.arraycopy(ipv4, 0, address, length, 4);
+                length += 4;
+                break;
+            }
+            if ((colon == pos) || (colon - pos > 4) || (length > 14))
+                return (null);
+            int group = 0;
+            for (int i = pos; i < colon; i++) {
+                int digit = Character.digit(value.charAt(i), 16);
+                if (digit < 0)
+                    return (null);
+                group = (group << 4) | digit;
+            }
+            address[length++] = (byte) (group >> 8);
+            address[length++] = (byte) group;
+            pos = colon + 1;
+            if (colon == end)
+                break;
+            if ((pos < end) && (value.charAt(pos) == ':')) {
+                if (gap >= 0)
+                    return (null);
+                gap = length;
+                pos++;
+            } else if (pos == end) {
+                return (null);
+            }
+        }
+
+        // Expand the "::" gap with zeroes
+        if (gap >= 0) {
+            if (length == 16)
+                return (null);
+            int tail = length - gap;
+            System.arraycopy(address, gap, address, 16 - tail, tail);
+            for (int i = gap; i < 16 - tail; i++)
+                address[i] = 0;
+        } else if (length != 16) {
+            return (null);
+        }
+
+        // Return IPv4-mapped addresses as IPv4
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0)
+                return (address);
+        }
+        if ((address[10] != (byte) 0xff) || (address[11] != (byte) 0xff))
+            return (address);
+        byte ipv4[] = new byte[4];
+        System.arraycopy(address, 12, ipv4, 0, 4);
+        return (ipv4);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Add the specified pattern to the trie of its IP version if it is a
+     * CIDR block, and return <code>true</code>, or return
+     * <code>false</code> otherwise.
+     *
+     * @param pattern The pattern
+     */
+    private boolean addBlock(String pattern) {
+
+        int slash = pattern.indexOf('/');
+        if ((slash < 0) || (slash == pattern.length() - 1))
+            return (false);
+        byte address[] = parseAddress(pattern.substring(0, slash));
+        if (address == null)
+            return (false);
+        // An IPv4-mapped block still counts its bits in IPv6
+        boolean mapped = (address.length == 4) && (pattern.indexOf(':') >= 0);
+        int limit = mapped ? 128 : address.length * 8;
+        int bits = 0;
+        for (int i = slash + 1; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if ((c < '0') || (c > '9') || (bits > limit))
+                return (false);
+            bits = bits * 10 + (c - '0');
+        }
+        if (bits > limit)
+            return (false);
+        if (mapped) {
+            if (bits < 96)
+                return (false);
+            bits -= 96;
+        }
+
+        if (address.length == 4) {
+            if (ipv4 == null)
+                ipv4 = new Node();
+            add(ipv4, address, bits);
+        } else {
+            if (ipv6 == null)
+                ipv6 = new Node();
+            add(ipv6, address, bits);
+        }
+        count++;
+        return (true);
+
+    }
+
+
+    /**
+     * Add the literal value of the specified pattern to the exact values if
+     * it is a regular expression matching only that value, and return
+     * <code>true</code>, or return <code>false</code> otherwise.
+     *
+     * @param pattern The pattern
+     */
+    private boolean addExact(String pattern) {
+
+        int length = pattern.length();
+        if ((length < 3) || (pattern.charAt(0) != '^')
+            || (pattern.charAt(length - 1) != '$'))
+            return (false);
+        StringBuffer value = new StringBuffer(length);
+        for (int i = 1; i < length - 1; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == length - 1)
+                    return (false);
+                c = pattern.charAt(++i);
+                if ((c != '.') && (c != '-') && (c != ':'))
+                    return (false);
+            } else if (!Character.isLetterOrDigit(c) && (c != '-')
+                       && (c != '_')) {
+                return (false);
+            }
+            value.append(c);
+        }
+        exact.add(value.toString());
+        count++;
+        return (true);
+
+    }
+
+
+    /**
+     * Add a CIDR block to the specified trie.
+     *
+     * @param root The root of the trie
+     * @param address The bytes of the address
+     * @param bits The length of the prefix in bits
+     */
+    private static void add(Node root, byte address[], int bits) {
+
+        Node node = root;
+        for (int i = 0; i < bits; i++) {
+            if (node.terminal)
+                return;
+            if ((address[i >> 3] & (0x80 >> (i & 7))) == 0) {
+                if (node.zero == null)
+                    node.zero = new Node();
+                node = node.zero;
+            } else {
+                if (node.one == null)
+                    node.one = new Node();
+                node = node.one;
+            }
+        }
+
+        // Blocks within this one are no longer needed
+        node.terminal = true;
+        node.zero = null;
+        node.one = null;
+
+    }
+
+
+    /**
+     * Parse a dotted IPv4 address literal, and return its bytes, or
+     * <code>null</code> if it is not one.
+     *
+     * @param value The string holding the address
+     * @param start The index of the start of the address
+     * @param end The index after the end of the address
+     */
+    private static byte[] parseIPv4(String value, int start, int end) {
+
+        byte address[] = new byte[4];
+        int part = 0;
+        int digits = 0;
+        int octet = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '.') {
+                if ((digits == 0) || (part == 3))
+                    return (null);
+                address[part++] = (byte) octet;
+                digits = 0;
+                octet = 0;
+            } else if ((c >= '0') && (c <= '9') && (digits < 3)) {
+                octet = octet * 10 + (c - '0');
+                if (octet > 255)
+                    return (null);
+                digits++;
+            } else {
+                return (null);
+            }
+        }
+        if ((digits == 0) || (part != 3))
+            return (null);
+        address[3] = (byte) octet;
+        return (address);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A node of a trie of CIDR blocks, reached by the bits of the prefix
+     * leading to it.
+     */
+    private static final class Node {
+
+        /**
+         * Does a block end at this node?
+         */
+        boolean terminal = false;
+
+        /**
+         * The child reached by a zero bit.
+         */
+        Node zero = null;
+
+        /**
+         * The child reached by a one bit.
+         */
+        Node one = null;
+
+    }
+
+
+}
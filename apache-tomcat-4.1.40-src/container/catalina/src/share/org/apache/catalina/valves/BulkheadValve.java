@@ -0,0 +1,619 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.catalina.HttpRequest;
+import org.apache.catalina.HttpResponse;
+import org.apache.catalina.Request;
+import org.apache.catalina.Response;
+import org.apache.catalina.ValveContext;
+
+
+/**
+ * Implementation of a Valve that isolates the requests matching a set of
+ * URL patterns in a <em>bulkhead</em> of at most <code>maxThreads</code>
+ * request processing threads, so that a slow web application cannot take
+ * every thread of the connectors away from the other ones.
+ * <p>
+ * Placed in the pipeline of a Host, where it runs before the
+ * <code>StandardHostValve</code> selects the Context, this Valve admits at
+ * most <code>maxThreads</code> requests matching its
+ * <code>urlPatterns</code> at the same time; a pattern of the form
+ * <code>/path/*</code> isolates the whole Context at <code>/path</code>.
+ * Placed in the pipeline of a Context, without patterns, it bounds every
+ * request of that Context.  A Host may have several such Valves, one per
+ * bulkhead.
+ * <p>
+ * A request arriving while the bulkhead is full waits up to
+ * <code>maxWait</code> milliseconds for a thread of it to finish, as long
+ * as fewer than <code>maxQueue</code> requests are already waiting, and is
+ * otherwise answered at once with an empty "503 Service Unavailable"
+ * response, committed so that no error page is generated for it.
+ */
+
+public class BulkheadValve
+    extends ValveBase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of requests being processed in the bulkhead.
+     */
+    private int activeCount = 0;
+
+
+    /**
+     * The URL patterns matching whole decoded request URIs.
+     */
+    private String exacts[] = new String[0];
+
+
+    /**
+     * The extensions matched by <code>*.extension</code> URL patterns,
+     * including the period.
+     */
+    private String extensions[] = new String[0];
+
+
+    /**
+     * The descriptive information related to this implementation.
+     */
+    private static final String info =
+        "org.apache.catalina.valves.BulkheadValve/1.0";
+
+
+    /**
+     * The lock guarding the counts, on which waiting requests wait.
+     */
+    private Object lock = new Object();
+
+
+    /**
+     * The maximum number of requests waiting for a thread of the bulkhead.
+     */
+    private int maxQueue = 0;
+
+
+    /**
+     * The maximum number of requests processed in the bulkhead at the same
+     * time.
+     */
+    private int maxThreads = 25;
+
+
+    /**
+     * The maximum time (in milliseconds) a request waits for a thread of
+     * the bulkhead.
+     */
+    private long maxWait = 0;
+
+
+    /**
+     * The name of the bulkhead.
+     */
+    private String name = null;
+
+
+    /**
+     * The highest number of requests processed in the bulkhead at the same
+     * time.
+     */
+    private int peakActiveCount = 0;
+
+
+    /**
+     * The paths matched by <code>/path/*</code> URL patterns, without the
+     * trailing slash.
+     */
+    private String prefixes[] = new String[0];
+
+
+    /**
+     * The number of requests that had to wait for a thread of the bulkhead.
+     */
+    private long queuedCount = 0;
+
+
+    /**
+     * The number of requests rejected because the bulkhead was full.
+     */
+    private long rejectedCount = 0;
+
+
+    /**
+     * The number of requests admitted in the bulkhead.
+     */
+    private long requestCount = 0;
+
+
+    /**
+     * The comma-separated URL patterns of the requests of the bulkhead.
+     */
+    private String urlPatterns = null;
+
+
+    /**
+     * The number of requests waiting for a thread of the bulkhead.
+     */
+    private int waitingCount = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of requests being processed in the bulkhead.
+     */
+    public int getActiveCount() {
+
+        synchronized (lock) {
+            return (this.activeCount);
+        }
+
+    }
+
+
+    /**
+     * Return descriptive information about this Valve implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    /**
+     * Return the maximum number of requests waiting for a thread of the
+     * bulkhead.
+     */
+    public int getMaxQueue() {
+
+        return (this.maxQueue);
+
+    }
+
+
+    /**
+     * Set the maximum number of requests waiting for a thread of the
+     * bulkhead.
+     *
+     * @param maxQueue The new maximum number of requests
+     */
+    public void setMaxQueue(int maxQueue) {
+
+        this.maxQueue = maxQueue;
+
+    }
+
+
+    /**
+     * Return the maximum number of requests processed in the bulkhead at
+     * the same time.
+     */
+    public int getMaxThreads() {
+
+        return (this.maxThreads);
+
+    }
+
+
+    /**
+     * Set the maximum number of requests processed in the bulkhead at the
+     * same time.
+     *
+     * @param maxThreads The new maximum number of requests
+     */
+    public void setMaxThreads(int maxThreads) {
+
+        synchronized (lock) {
+            this.maxThreads = maxThreads;
+            lock.notifyAll();
+        }
+
+    }
+
+
+    /**
+     * Return the maximum time (in milliseconds) a request waits for a
+     * thread of the bulkhead.
+     */
+    public long getMaxWait() {
+
+        return (this.maxWait);
+
+    }
+
+
+    /**
+     * Set the maximum time (in milliseconds) a request waits for a thread
+     * of the bulkhead.
+     *
+     * @param maxWait The new maximum time
+     */
+    public void setMaxWait(long maxWait) {
+
+        this.maxWait = maxWait;
+
+    }
+
+
+    /**
+     * Return the name of the bulkhead.
+     */
+    public String getName() {
+
+        return (this.name);
+
+    }
+
+
+    /**
+     * Set the name of the bulkhead, used in log messages.
+     *
+     * @param name The new name
+     */
+    public void setName(String name) {
+
+        this.name = name;
+
+    }
+
+
+    /**
+     * Return the highest number of requests processed in the bulkhead at
+     * the same time.
+     */
+    public int getPeakActiveCount() {
+
+        synchronized (lock) {
+            return (this.peakActiveCount);
+        }
+
+    }
+
+
+    /**
+     * Return the number of requests that had to wait for a thread of the
+     * bulkhead.
+     */
+    public long getQueuedCount() {
+
+        synchronized (lock) {
+            return (this.queuedCount);
+        }
+
+    }
+
+
+    /**
+     * Return the number of requests rejected because the bulkhead was full.
+     */
+    public long getRejectedCount() {
+
+        synchronized (lock) {
+            return (this.rejectedCount);
+        }
+
+    }
+
+
+    /**
+     * Return the number of requests admitted in the bulkhead.
+     */
+    public long getRequestCount() {
+
+        synchronized (lock) {
+            return (this.requestCount);
+        }
+
+    }
+
+
+    /**
+     * Return the comma-separated URL patterns of the requests of the
+     * bulkhead.
+     */
+    public String getUrlPatterns() {
+
+        return (this.urlPatterns);
+
+    }
+
+
+    /**
+     * Set the comma-separated URL patterns of the requests of the bulkhead,
+     * each of the form <code>/path/*</code>, <code>*.extension</code> or
+     * <code>/exact/path</code>.  Every request belongs to the bulkhead if
+     * there are none.
+     *
+     * @param urlPatterns The new URL patterns
+     *
+     * @exception IllegalArgumentException if one of the patterns has
+     *  invalid syntax
+     */
+    public void setUrlPatterns(String urlPatterns) {
+
+        ArrayList exactList = new ArrayList();
+        ArrayList extensionList = new ArrayList();
+        ArrayList prefixList = new ArrayList();
+        if (urlPatterns != null) {
+            String list = urlPatterns + ",";
+            int start = 0;
+            while (start < list.length()) {
+                int comma = list.indexOf(',', start);
+                String pattern = list.substring(start, comma).trim();
+                start = comma + 1;
+                if (pattern.length() == 0)
+                    continue;
+                if (pattern.startsWith("*.") && (pattern.length() > 2)
+                    && (pattern.indexOf('/') < 0))
+                    extensionList.add(pattern.substring(1));
+                else if (pattern.equals("/"))
+                    prefixList.add("");
+                else if (pattern.endsWith("/*") && pattern.startsWith("/"))
+                    prefixList.add(pattern.substring(0, pattern.length() - 2));
+                else if (pattern.startsWith("/") && (pattern.indexOf('*') < 0))
+                    exactList.add(pattern);
+                else
+                    throw new IllegalArgumentException
+                        (sm.getString("bulkheadValve.pattern", pattern));
+            }
+        }
+        this.exacts = (String[])
+            exactList.toArray(new String[exactList.size()]);
+        this.extensions = (String[])
+            extensionList.toArray(new String[extensionList.size()]);
+        this.prefixes = (String[])
+            prefixList.toArray(new String[prefixList.size()]);
+        this.urlPatterns = urlPatterns;
+
+    }
+
+
+    /**
+     * Return the number of requests waiting for a thread of the bulkhead.
+     */
+    public int getWaitingCount() {
+
+        synchronized (lock) {
+            return (this.waitingCount);
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Process the request in the bulkhead if it belongs to it and there is
+     * room for it, reject it if there is none, or pass it on to the next
+     * Valve at once if it does not belong to the bulkhead.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     * @param context The valve context used to invoke the next valve
+     *  in the current processing pipeline
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void invoke(Request request, Response response,
+                       ValveContext context)
+        throws IOException, ServletException {
+
+        // Skip non-HTTP requests and responses
+        if (!(request instanceof HttpRequest) ||
+            !(response instanceof HttpResponse)) {
+            context.invokeNext(request, response);
+            return;
+        }
+        HttpServletRequest hreq = (HttpServletRequest) request.getRequest();
+        if (!matches(((HttpRequest) request).getDecodedRequestURI())) {
+            context.invokeNext(request, response);
+            return;
+        }
+
+        if (acquire()) {
+            try {
+                context.invokeNext(request, response);
+            } finally {
+                release();
+            }
+            return;
+        }
+
+        // Reject the request without an error page
+        if (debug >= 1)
+            log("Rejected request for '" + hreq.getRequestURI() + "'");
+        HttpServletResponse hres =
+            (HttpServletResponse) response.getResponse();
+        hres.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        hres.setContentLength(0);
+        hres.flushBuffer();
+
+    }
+
+
+    /**
+     * Return a String rendering of this object.
+     */
+    public String toString() {
+
+        StringBuffer sb = new StringBuffer("BulkheadValve[");
+        if (container != null)
+            sb.append(container.getName());
+        if (name != null) {
+            sb.append(", ");
+            sb.append(name);
+        }
+        sb.append("]");
+        return (sb.toString());
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Take a thread of the bulkhead, waiting for one if there is room in
+     * the queue, and return <code>true</code>, or return <code>false</code>
+     * if the bulkhead is full.
+     */
+    protected boolean acquire() {
+
+        synchronized (lock) {
+            if (activeCount < maxThreads) {
+                admit();
+                return (true);
+            }
+            if ((maxWait <= 0) || (waitingCount >= maxQueue)) {
+                rejectedCount++;
+                return (false);
+            }
+
+            // Wait for a thread of the bulkhead to finish
+            queuedCount++;
+            waitingCount++;
+            try {
+                long deadline = System.currentTimeMillis() + maxWait;
+                while (activeCount >= maxThreads) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        rejectedCount++;
+                        return (false);
+                    }
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        rejectedCount++;
+                        return (false);
+                    }
+                }
+            } finally {
+                waitingCount--;
+            }
+            admit();
+            return (true);
+        }
+
+    }
+
+
+    /**
+     * Log a message on the Logger associated with our Container (if any).
+     *
+     * @param message Message to be logged
+     */
+    protected void log(String message) {
+
+        org.apache.catalina.Logger logger = null;
+        if (container != null)
+            logger = container.getLogger();
+        if (logger != null)
+            logger.log(this.toString() + ": " + message);
+        else
+            System.out.println(this.toString() + ": " + message);
+
+    }
+
+
+    /**
+     * Does the specified request URI belong to the bulkhead?
+     *
+     * @param uri The decoded request URI
+     */
+    protected boolean matches(String uri) {
+
+        if ((exacts.length == 0) && (extensions.length == 0)
+            && (prefixes.length == 0))
+            return (true);
+        if (uri == null)
+            return (false);
+
+        for (int i = 0; i < exacts.length; i++) {
+            if (uri.equals(exacts[i]))
+                return (true);
+        }
+        for (int i = 0; i < prefixes.length; i++) {
+            String prefix = prefixes[i];
+            if (uri.startsWith(prefix)
+                && ((uri.length() == prefix.length())
+                    || (uri.charAt(prefix.length()) == '/')))
+                return (true);
+        }
+        if (extensions.length > 0) {
+            int slash = uri.lastIndexOf('/');
+            int period = uri.lastIndexOf('.');
+            if (period > slash) {
+                for (int i = 0; i < extensions.length; i++) {
+                    if (uri.endsWith(extensions[i])
+                        && (uri.length() - extensions[i].length() == period))
+                        return (true);
+                }
+            }
+        }
+        return (false);
+
+    }
+
+
+    /**
+     * Give back the thread of the bulkhead taken by a request, and wake up
+     * a request waiting for one, if any.
+     */
+    protected void release() {
+
+        synchronized (lock) {
+            activeCount--;
+            if (waitingCount > 0)
+                lock.notify();
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Count a request admitted in the bulkhead.  The caller must hold the
+     * lock.
+     */
+    private void admit() {
+
+        activeCount++;
+        requestCount++;
+        if (activeCount > peakActiveCount)
+            peakActiveCount = activeCount;
+
+    }
+
+
+}
@@ -0,0 +1,703 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.apache.catalina.Context;
+import org.apache.catalina.HttpRequest;
+import org.apache.catalina.HttpResponse;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Request;
+import org.apache.catalina.Response;
+import org.apache.catalina.Session;
+import org.apache.catalina.ValveContext;
+
+
+/**
+ * Implementation of a Valve that limits the rate of the requests of each
+ * client, so that a few abusive clients cannot take every request
+ * processing thread of the connectors away from the others.
+ * <p>
+ * Requests are grouped by a key selected by the <code>keyBy</code>
+ * property: the remote IP address (<code>address</code>, the default), the
+ * name of the authenticated user, or the remote address of requests without
+ * one (<code>user</code>), or the first <code>uriDepth</code> segments of
+ * the decoded request URI (<code>uri</code>).  Each key has a token
+ * bucket holding at most <code>burst</code> tokens, refilled with
+ * <code>rate</code> tokens per second.  A request takes one token; a
+ * request finding the bucket of its key empty is answered at once with an
+ * empty "429 Too Many Requests" response, committed so that no error page
+ * is generated for it, and a <code>Retry-After</code> header.
+ * <p>
+ * The buckets are kept in a fixed number of segments, each guarded by its
+ * own lock and holding the buckets of at most its share of
+ * <code>maxKeys</code> keys, beyond which the least recently used buckets
+ * are evicted.  A bucket is only locked for the few arithmetic operations
+ * taking a token, so requests of different keys rarely contend.
+ * <p>
+ * This Valve may be attached to any Container.  The authenticated user is
+ * known to it when it follows a <code>SingleSignOn</code> Valve of a Host.
+ * The Authenticator of a Context always follows the Valves configured for
+ * it, so in a Context the user is only known once the Authenticator has
+ * cached its Principal in the session of the request.
+ */
+
+public class RateLimitValve
+    extends ValveBase {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new Valve with the default configuration.
+     */
+    public RateLimitValve() {
+
+        super();
+        resize();
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The maximum number of tokens of a bucket.
+     */
+    private int burst = 100;
+
+
+    /**
+     * The descriptive information related to this implementation.
+     */
+    private static final String info =
+        "org.apache.catalina.valves.RateLimitValve/1.0";
+
+
+    /**
+     * The request property the buckets are keyed by.
+     */
+    private String keyBy = "address";
+
+
+    /**
+     * The maximum number of keys with a bucket.
+     */
+    private int maxKeys = 10000;
+
+
+    /**
+     * The number of tokens added to a bucket per second.
+     */
+    private double rate = 10;
+
+
+    /**
+     * The number of segments, which must be a power of two.
+     */
+    private static final int SEGMENTS = 16;
+
+
+    /**
+     * The segments of buckets, each used as its own lock.
+     */
+    private Segment segments[] = null;
+
+
+    /**
+     * The HTTP status code of the responses to rejected requests.
+     */
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+
+    /**
+     * The number of leading URI segments making up the key of a request,
+     * when the buckets are keyed by URI.
+     */
+    private int uriDepth = 1;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of requests allowed by the buckets.
+     */
+    public long getAllowedCount() {
+
+        long count = 0;
+        for (int i = 0; i < segments.length; i++)
+            count += segments[i].getAllowed();
+        return (count);
+
+    }
+
+
+    /**
+     * Return the maximum number of tokens of a bucket.
+     */
+    public int getBurst() {
+
+        return (this.burst);
+
+    }
+
+
+    /**
+     * Set the maximum number of tokens of a bucket, which is the number of
+     * requests a client may make at once after being idle.
+     *
+     * @param burst The new maximum number of tokens
+     */
+    public void setBurst(int burst) {
+
+        this.burst = burst;
+
+    }
+
+
+    /**
+     * Return the number of buckets evicted to keep within
+     * <code>maxKeys</code>.
+     */
+    public long getEvictionCount() {
+
+        long count = 0;
+        for (int i = 0; i < segments.length; i++)
+            count += segments[i].getEvicted();
+        return (count);
+
+    }
+
+
+    /**
+     * Return descriptive information about this Valve implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    /**
+     * Return the request property the buckets are keyed by.
+     */
+    public String getKeyBy() {
+
+        return (this.keyBy);
+
+    }
+
+
+    /**
+     * Set the request property the buckets are keyed by:
+     * <code>address</code>, <code>user</code> or <code>uri</code>.
+     *
+     * @param keyBy The new request property
+     *
+     * @exception IllegalArgumentException if the property is unknown
+     */
+    public void setKeyBy(String keyBy) {
+
+        if (!"address".equals(keyBy) && !"user".equals(keyBy)
+            && !"uri".equals(keyBy))
+            throw new IllegalArgumentException
+                (sm.getString("rateLimitValve.keyBy", keyBy));
+        this.keyBy = keyBy;
+        resize();
+
+    }
+
+
+    /**
+     * Return the number of keys with a bucket.
+     */
+    public int getKeyCount() {
+
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                count += segments[i].size();
+            }
+        }
+        return (count);
+
+    }
+
+
+    /**
+     * Return the maximum number of keys with a bucket.
+     */
+    public int getMaxKeys() {
+
+        return (this.maxKeys);
+
+    }
+
+
+    /**
+     * Set the maximum number of keys with a bucket, beyond which the least
+     * recently used buckets are evicted.  Changing it forgets every bucket.
+     *
+     * @param maxKeys The new maximum number of keys
+     */
+    public void setMaxKeys(int maxKeys) {
+
+        this.maxKeys = maxKeys;
+        resize();
+
+    }
+
+
+    /**
+     * Return the number of tokens added to a bucket per second.
+     */
+    public double getRate() {
+
+        return (this.rate);
+
+    }
+
+
+    /**
+     * Set the number of tokens added to a bucket per second, which is the
+     * sustained number of requests per second allowed to a client.
+     *
+     * @param rate The new rate
+     */
+    public void setRate(double rate) {
+
+        this.rate = rate;
+
+    }
+
+
+    /**
+     * Return the number of requests rejected by the buckets.
+     */
+    public long getRejectedCount() {
+
+        long count = 0;
+        for (int i = 0; i < segments.length; i++)
+            count += segments[i].getRejected();
+        return (count);
+
+    }
+
+
+    /**
+     * Return the number of leading URI segments making up the key of a
+     * request, when the buckets are keyed by URI.
+     */
+    public int getUriDepth() {
+
+        return (this.uriDepth);
+
+    }
+
+
+    /**
+     * Set the number of leading URI segments making up the key of a
+     * request, when the buckets are keyed by URI.
+     *
+     * @param uriDepth The new number of segments
+     */
+    public void setUriDepth(int uriDepth) {
+
+        this.uriDepth = uriDepth;
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the statistics of the bucket of each key, one per line.
+     */
+    public String[] findKeyStatistics() {
+
+        ArrayList results = new ArrayList();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                Iterator entries = segments[i].entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entries.next();
+                    Bucket bucket = (Bucket) entry.getValue();
+                    results.add(entry.getKey() + " " +
+                                bucket.toString(now, rate, burst));
+                }
+            }
+        }
+        return ((String[]) results.toArray(new String[results.size()]));
+
+    }
+
+
+    /**
+     * Take a token from the bucket of the request, and pass it on to the
+     * next Valve if there was one, or reject it otherwise.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     * @param context The valve context used to invoke the next valve
+     *  in the current processing pipeline
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void invoke(Request request, Response response,
+                       ValveContext context)
+        throws IOException, ServletException {
+
+        // Skip non-HTTP requests and responses
+        if (!(request instanceof HttpRequest) ||
+            !(response instanceof HttpResponse)) {
+            context.invokeNext(request, response);
+            return;
+        }
+        HttpServletRequest hreq = (HttpServletRequest) request.getRequest();
+
+        String key = getKey((HttpRequest) request);
+        if ((key == null) || take(key, System.currentTimeMillis())) {
+            context.invokeNext(request, response);
+            return;
+        }
+
+        // Reject the request without an error page
+        if (debug >= 1)
+            log("Rejected request for '" + hreq.getRequestURI() +
+                "' of key '" + key + "'");
+        HttpServletResponse hres =
+            (HttpServletResponse) response.getResponse();
+        hres.setStatus(SC_TOO_MANY_REQUESTS);
+        hres.setHeader("Retry-After",
+                       String.valueOf((long) Math.ceil(1 / rate)));
+        hres.setContentLength(0);
+        hres.flushBuffer();
+
+    }
+
+
+    /**
+     * Return a String rendering of this object.
+     */
+    public String toString() {
+
+        StringBuffer sb = new StringBuffer("RateLimitValve[");
+        if (container != null)
+            sb.append(container.getName());
+        sb.append("]");
+        return (sb.toString());
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the Principal cached in the session of the specified request
+     * by the Authenticator of our Context, or <code>null</code> if there is
+     * none or we are not attached to a Context.
+     *
+     * @param hreq The servlet request being processed
+     */
+    protected Principal getCachedPrincipal(HttpServletRequest hreq) {
+
+        if (!(container instanceof Context))
+            return (null);
+        Manager manager = ((Context) container).getManager();
+        HttpSession hses = hreq.getSession(false);
+        if ((manager == null) || (hses == null))
+            return (null);
+        try {
+            Session session = manager.findSession(hses.getId());
+            if (session != null)
+                return (session.getPrincipal());
+        } catch (IOException e) {
+            ;
+        }
+        return (null);
+
+    }
+
+
+    /**
+     * Return the key of the bucket of the specified request, or
+     * <code>null</code> if it is not limited.
+     *
+     * @param request The request being processed
+     */
+    protected String getKey(HttpRequest request) {
+
+        HttpServletRequest hreq = (HttpServletRequest) request.getRequest();
+        if ("uri".equals(keyBy)) {
+            String uri = request.getDecodedRequestURI();
+            if (uri == null)
+                return (null);
+            int end = 0;
+            for (int i = 0; i < uriDepth; i++) {
+                end = uri.indexOf('/', end + 1);
+                if (end < 0)
+                    return (uri);
+            }
+            return (uri.substring(0, end));
+        }
+        if ("user".equals(keyBy)) {
+            Principal principal = hreq.getUserPrincipal();
+            if (principal == null)
+                principal = getCachedPrincipal(hreq);
+            if (principal != null)
+                return ("user:" + principal.getName());
+        }
+        return (hreq.getRemoteAddr());
+
+    }
+
+
+    /**
+     * Log a message on the Logger associated with our Container (if any).
+     *
+     * @param message Message to be logged
+     */
+    protected void log(String message) {
+
+        org.apache.catalina.Logger logger = null;
+        if (container != null)
+            logger = container.getLogger();
+        if (logger != null)
+            logger.log(this.toString() + ": " + message);
+        else
+            System.out.println(this.toString() + ": " + message);
+
+    }
+
+
+    /**
+     * Take a token from the bucket of the specified key, creating it full
+     * if there is none, and return <code>true</code>, or return
+     * <code>false</code> if the bucket is empty.
+     *
+     * @param key The key
+     * @param now The current time
+     */
+    protected boolean take(String key, long now) {
+
+        Segment segment = segmentFor(key);
+        Bucket bucket = null;
+        synchronized (segment) {
+            bucket = (Bucket) segment.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                segment.put(key, bucket);
+            }
+        }
+        return (bucket.take(now, rate, burst));
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Replace the segments with empty ones sized for <code>maxKeys</code>.
+     */
+    private void resize() {
+
+        Segment segments[] = new Segment[SEGMENTS];
+        int capacity = Math.max(1, (maxKeys + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(capacity);
+        this.segments = segments;
+
+    }
+
+
+    /**
+     * Return the segment holding the bucket of the specified key.
+     *
+     * @param key The key
+     */
+    private Segment segmentFor(String key) {
+
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 8);
+        return (segments[hash & (SEGMENTS - 1)]);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The token bucket of a key.
+     */
+    private static final class Bucket {
+
+        /**
+         * The number of requests allowed.
+         */
+        private long allowed = 0;
+
+        /**
+         * The number of requests rejected.
+         */
+        private long rejected = 0;
+
+        /**
+         * The number of tokens at the time of the last refill.
+         */
+        private double tokens;
+
+        /**
+         * The time of the last refill.
+         */
+        private long updated;
+
+        Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.updated = now;
+        }
+
+        synchronized long getAllowed() {
+            return (allowed);
+        }
+
+        synchronized long getRejected() {
+            return (rejected);
+        }
+
+        /**
+         * Refill the bucket for the time elapsed, then take a token if
+         * there is one.
+         *
+         * @param now The current time
+         * @param rate The number of tokens added per second
+         * @param burst The maximum number of tokens
+         */
+        synchronized boolean take(long now, double rate, int burst) {
+            refill(now, rate, burst);
+            if (tokens >= 1) {
+                tokens--;
+                allowed++;
+                return (true);
+            }
+            rejected++;
+            return (false);
+        }
+
+        synchronized String toString(long now, double rate, int burst) {
+            refill(now, rate, burst);
+            return ("allowed=" + allowed + " rejected=" + rejected +
+                    " tokens=" + (long) tokens);
+        }
+
+        private void refill(long now, double rate, int burst) {
+            if (now > updated) {
+                tokens = Math.min(burst, tokens + (now - updated) * rate / 1000);
+                updated = now;
+            }
+        }
+
+    }
+
+
+    /**
+     * A segment of buckets, in order of last access, bounded to its share
+     * of <code>maxKeys</code>.
+     */
+    private static final class Segment extends LinkedHashMap {
+
+        /**
+         * The number of requests allowed by evicted buckets.
+         */
+        private long allowed = 0;
+
+        /**
+         * The maximum number of buckets.
+         */
+        private int capacity;
+
+        /**
+         * The number of buckets evicted.
+         */
+        private long evicted = 0;
+
+        /**
+         * The number of requests rejected by evicted buckets.
+         */
+        private long rejected = 0;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        synchronized long getAllowed() {
+            long count = allowed;
+            Iterator buckets = values().iterator();
+            while (buckets.hasNext())
+                count += ((Bucket) buckets.next()).getAllowed();
+            return (count);
+        }
+
+        synchronized long getEvicted() {
+            return (evicted);
+        }
+
+        synchronized long getRejected() {
+            long count = rejected;
+            Iterator buckets = values().iterator();
+            while (buckets.hasNext())
+                count += ((Bucket) buckets.next()).getRejected();
+            return (count);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() <= capacity)
+                return (false);
+            Bucket bucket = (Bucket) eldest.getValue();
+            allowed += bucket.getAllowed();
+            rejected += bucket.getRejected();
+            evicted++;
+            return (true);
+        }
+
+    }
+
+
+}
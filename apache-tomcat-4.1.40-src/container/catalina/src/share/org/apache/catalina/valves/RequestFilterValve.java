@@ -43,8 +43,9 @@ import org.apache.catalina.util.StringManager;
  * This valve is configured by setting the <code>allow</code> and/or
  * <code>deny</code> properties to a comma-delimited list of regular
  * expressions (in the syntax supported by the jakarta-regexp library) to
- * which the appropriate request property will be compared.  Evaluation
- * proceeds as follows:
+ * which the appropriate request property will be compared.  A pattern
+ * may also be an IPv4 or IPv6 CIDR block, such as <code>10.0.0.0/8</code>,
+ * which matches the addresses within it.  Evaluation proceeds as follows:
  * <ul>
  * <li>The subclass extracts the request property to be filtered, and
  *     calls the common <code>process()</code> method.
@@ -63,6 +64,12 @@ import org.apache.catalina.util.StringManager;
  * <p>
  * This Valve may be attached to any Container, depending on the granularity
  * of the filtering you wish to perform.
+ * <p>
+ * The patterns are compiled by <code>AddressRules</code>, which looks up
+ * CIDR blocks in a trie and literal patterns anchored at both ends, such as
+ * <code>^192\.168\.0\.1$</code>, in a set, so that long lists of such
+ * patterns cost no more to evaluate than short ones.  Only the other
+ * patterns are evaluated as regular expressions.
  *
  * @author Craig R. McClanahan
  * @version $Revision: 466595 $ $Date: 2006-10-21 23:24:41 +0100 (Sat, 21 Oct 2006) $
@@ -81,20 +88,32 @@ public abstract class RequestFilterValve
     protected String allow = null;
 
 
+    /**
+     * The compiled <code>allow</code> patterns.
+     */
+    private AddressRules allowRules = new AddressRules(null);
+
+
     /**
      * The set of <code>allow</code> pre-compiled regular expressions we will
-     * evaluate.
+     * evaluate, other than those compiled into a cheaper structure.
      */
     protected REProgram allows[] = new REProgram[0];
 
 
     /**
      * The set of <code>deny</code> pre-compiled regular expressions we will
-     * evaluate.
+     * evaluate, other than those compiled into a cheaper structure.
      */
     protected REProgram denies[] = new REProgram[0];
 
 
+    /**
+     * The compiled <code>deny</code> patterns.
+     */
+    private AddressRules denyRules = new AddressRules(null);
+
+
     /**
      * The comma-delimited set of <code>deny</code> expressions.
      */
@@ -137,8 +156,10 @@ public abstract class RequestFilterValve
      */
     public void setAllow(String allow) {
 
+        AddressRules rules = new AddressRules(allow);
         this.allow = allow;
-        allows = precalculate(allow);
+        allowRules = rules;
+        allows = rules.getPrograms();
 
     }
 
@@ -162,8 +183,10 @@ public abstract class RequestFilterValve
      */
     public void setDeny(String deny) {
 
+        AddressRules rules = new AddressRules(deny);
         this.deny = deny;
-        denies = precalculate(deny);
+        denyRules = rules;
+        denies = rules.getPrograms();
 
     }
 
@@ -212,6 +235,9 @@ public abstract class RequestFilterValve
      *
      * @exception IllegalArgumentException if one of the patterns has
      *  invalid syntax
+     * @deprecated The patterns are now compiled by
+     *  <code>AddressRules</code>, which only keeps some of them as regular
+     *  expressions
      */
     protected REProgram[] precalculate(String list) {
 
@@ -273,34 +299,28 @@ public abstract class RequestFilterValve
             return;
         }
 
-        
-        // Create local RE since RE is not thread safe
-        RE re = new RE();
-        
+        // Take the rules once, as they may be replaced at any time
+        AddressRules denyRules = this.denyRules;
+        AddressRules allowRules = this.allowRules;
+
         // Check the deny patterns, if any
-        for (int i = 0; i < denies.length; i++) {
-            re.setProgram(denies[i]);
-            if (re.match(property)) {
-                ServletResponse sres = response.getResponse();
-                if (sres instanceof HttpServletResponse) {
-                    HttpServletResponse hres = (HttpServletResponse) sres;
-                    hres.sendError(HttpServletResponse.SC_FORBIDDEN);
-                    return;
-                }
+        if (denyRules.matches(property)) {
+            ServletResponse sres = response.getResponse();
+            if (sres instanceof HttpServletResponse) {
+                HttpServletResponse hres = (HttpServletResponse) sres;
+                hres.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
             }
         }
 
         // Check the allow patterns, if any
-        for (int i = 0; i < allows.length; i++) {
-            re.setProgram(allows[i]);
-            if (re.match(property)) {
-                context.invokeNext(request, response);
-                return;
-            }
+        if (allowRules.matches(property)) {
+            context.invokeNext(request, response);
+            return;
         }
 
         // Allow if denies specified but not allows
-        if ((denies.length > 0) && (allows.length == 0)) {
+        if (!denyRules.isEmpty() && allowRules.isEmpty()) {
             context.invokeNext(request, response);
             return;
         }
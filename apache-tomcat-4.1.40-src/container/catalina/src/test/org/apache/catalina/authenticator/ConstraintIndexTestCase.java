@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.authenticator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.deploy.SecurityCollection;
+import org.apache.catalina.deploy.SecurityConstraint;
+
+
+/**
+ * Unit tests for the <code>ConstraintIndex</code> class, which must select
+ * the same security constraints as <code>SecurityConstraint.included()</code>.
+ */
+
+public class ConstraintIndexTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The request methods checked.
+     */
+    protected static final String METHODS[] = {
+        "GET", "POST", "PUT", "PROPFIND"
+    };
+
+
+    /**
+     * The request URIs checked.
+     */
+    protected static final String URIS[] = {
+        "", "/", "/index.jsp", "/admin", "/admin/", "/admin/users",
+        "/admin/users/edit.do", "/administrator", "/docs/a.tar.gz",
+        "/docs/b.gz", "/docs/.gz", "/docs.gz/readme", "/secure/page.html",
+        "/secure/deep/er/page.jsp", "/exact", "/exact/", "/webdav/file"
+    };
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public ConstraintIndexTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(ConstraintIndexTestCase.class));
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that an index of no constraints finds none.
+     */
+    public void testEmpty() {
+
+        ConstraintIndex index = new ConstraintIndex(new SecurityConstraint[0]);
+        assertTrue("No constraint", index.find("/", "GET") == null);
+
+    }
+
+
+    /**
+     * Check the constraints found against those selected by matching each
+     * constraint in turn.
+     */
+    public void testMatching() {
+
+        SecurityConstraint constraints[] = {
+            constraint(new String[] { "/exact" }, new String[0]),
+            constraint(new String[] { "/admin/*" }, new String[] { "POST" }),
+            constraint(new String[] { "*.do", "/admin/users/*" },
+                       new String[] { "GET", "POST" }),
+            constraint(new String[] { "/admin/*" }, new String[0]),
+            constraint(new String[] { "*.tar.gz" }, new String[0]),
+            constraint(new String[] { "*.gz", "*.jsp" }, new String[0]),
+            constraint(new String[] { "/webdav/*" },
+                       new String[] { "PROPFIND" }),
+            constraint(new String[] { "/secure/*" }, new String[0]),
+            constraint(new String[] { "/" }, new String[] { "PUT" })
+        };
+        check(constraints);
+
+        // The universal mapping declared first takes precedence
+        SecurityConstraint universal[] = new SecurityConstraint[2];
+        universal[0] = constraint(new String[] { "/*" }, new String[0]);
+        universal[1] = constraints[0];
+        check(universal);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Check every URI and method against the index of the specified
+     * constraints.
+     *
+     * @param constraints The security constraints
+     */
+    private void check(SecurityConstraint constraints[]) {
+
+        ConstraintIndex index = new ConstraintIndex(constraints);
+        for (int i = 0; i < URIS.length; i++) {
+            for (int j = 0; j < METHODS.length; j++) {
+                SecurityConstraint expected = null;
+                for (int k = 0; k < constraints.length; k++) {
+                    if (constraints[k].included(URIS[i], METHODS[j])) {
+                        expected = constraints[k];
+                        break;
+                    }
+                }
+                assertTrue(METHODS[j] + " " + URIS[i],
+                           index.find(URIS[i], METHODS[j]) == expected);
+            }
+        }
+
+    }
+
+
+    /**
+     * Return a security constraint with one web resource collection.
+     *
+     * @param patterns The URL patterns of the collection
+     * @param methods The methods of the collection
+     */
+    private SecurityConstraint constraint(String patterns[],
+                                          String methods[]) {
+
+        SecurityCollection collection = new SecurityCollection();
+        for (int i = 0; i < patterns.length; i++)
+            collection.addPattern(patterns[i]);
+        for (int i = 0; i < methods.length; i++)
+            collection.addMethod(methods[i]);
+        SecurityConstraint constraint = new SecurityConstraint();
+        constraint.addCollection(collection);
+        return (constraint);
+
+    }
+
+
+}
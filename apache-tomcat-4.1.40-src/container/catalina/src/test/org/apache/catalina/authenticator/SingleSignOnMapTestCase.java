@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.authenticator;
+
+import java.util.HashMap;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>SingleSignOnMap</code> class.
+ */
+
+public class SingleSignOnMapTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The map being tested.
+     */
+    protected SingleSignOnMap map = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SingleSignOnMapTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        map = new SingleSignOnMap();
+        for (int i = 0; i < 100; i++) {
+            SingleSignOnEntry entry = entry();
+            entry.setLastAccessed(i);
+            map.put("sso" + i, entry);
+        }
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(SingleSignOnMapTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        map = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that the least recently used entries are evicted first.
+     */
+    public void testRemoveEldest() {
+
+        map.get("sso0", 1000);
+        map.get("sso2", 1001);
+        HashMap removed = new HashMap();
+        for (int i = 0; i < 3; i++)
+            assertTrue("Removed " + i, map.removeEldest(removed));
+        assertEquals("Size", 97, map.size());
+        assertEquals("Removed", 3, removed.size());
+        assertTrue("Removed sso1", removed.containsKey("sso1"));
+        assertTrue("Removed sso3", removed.containsKey("sso3"));
+        assertTrue("Removed sso4", removed.containsKey("sso4"));
+        assertTrue("Kept sso0", map.get("sso0", 1002) != null);
+
+        removed.clear();
+        map.clear(removed);
+        assertEquals("Cleared", 97, removed.size());
+        assertTrue("Empty", !map.removeEldest(removed));
+
+    }
+
+
+    /**
+     * Check that only the entries idle since the specified time are
+     * removed.
+     */
+    public void testRemoveIdle() {
+
+        map.get("sso10", 200);
+        HashMap removed = new HashMap();
+        map.removeIdle(50, removed);
+        assertEquals("Removed", 49, removed.size());
+        assertTrue("Kept sso10", !removed.containsKey("sso10"));
+        assertTrue("Removed sso49", removed.containsKey("sso49"));
+        assertTrue("Kept sso50", map.get("sso50", 300) != null);
+        assertTrue("Lost sso0", map.get("sso0", 300) == null);
+        assertEquals("Size", 51, map.size());
+
+        removed.clear();
+        map.removeIdle(250, removed);
+        assertEquals("Removed again", 50, removed.size());
+        assertTrue("Kept sso50", map.remove("sso50") != null);
+        assertEquals("Size again", 0, map.size());
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return a new entry for a user authenticated with a password.
+     */
+    private SingleSignOnEntry entry() {
+
+        return (new SingleSignOnEntry(null, Constants.FORM_METHOD,
+                                      "tomcat", "secret"));
+
+    }
+
+
+}
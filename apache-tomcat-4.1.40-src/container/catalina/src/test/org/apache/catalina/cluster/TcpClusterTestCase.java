@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.cluster;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>TcpCluster</code> class, running several
+ * members in this JVM on the loopback interface.
+ */
+
+public class TcpClusterTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The members of the cluster being tested.
+     */
+    protected TcpCluster members[] = null;
+
+
+    /**
+     * The senderId used by the tests.
+     */
+    protected static final String SENDER_ID = "TcpClusterTestCase";
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public TcpClusterTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        members = new TcpCluster[3];
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(TcpClusterTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] != null)
+                members[i].stop();
+        }
+        members = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that messages sent with acknowledgements are received by every
+     * other member, in the order they were sent.
+     */
+    public void testAcknowledged() throws Exception {
+
+        start(true);
+        check(2000);
+
+    }
+
+
+    /**
+     * Check that members started with a single seed find each other with
+     * heartbeats, and that a stopped member is suspected then removed.
+     */
+    public void testMembership() throws Exception {
+
+        final ArrayList events = new ArrayList();
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new TcpCluster();
+            members[i].setClusterName("membership");
+            members[i].setTcpListenAddress("127.0.0.1");
+            members[i].setTcpListenPort(0);
+            members[i].setHeartbeatPort(0);
+            members[i].setHeartbeatInterval(100);
+            members[i].setSuspectTimeout(400);
+            members[i].setFailureTimeout(1000);
+            if (i > 0)
+                members[i].setSeeds("127.0.0.1:" +
+                                    members[0].getHeartbeatPort());
+            members[i].start();
+        }
+        members[0].addMembershipListener(new MembershipListener() {
+            public void memberAdded(String member) {
+                record("added " + member);
+            }
+            public void memberSuspected(String member) {
+                record("suspected " + member);
+            }
+            public void memberRecovered(String member) {
+                record("recovered " + member);
+            }
+            public void memberRemoved(String member) {
+                record("removed " + member);
+            }
+            private void record(String event) {
+                synchronized (events) {
+                    events.add(event);
+                }
+            }
+        });
+
+        for (int i = 0; i < members.length; i++)
+            waitForMembers(members[i], members.length - 1);
+
+        String stopped = "127.0.0.1:" + members[2].getTcpListenPort();
+        members[2].stop();
+        members[2] = null;
+        waitForMembers(members[0], 1);
+        waitForMembers(members[1], 1);
+        synchronized (events) {
+            assertTrue("Suspected " + events,
+                       events.contains("suspected " + stopped));
+            assertTrue("Removed " + events,
+                       events.contains("removed " + stopped));
+        }
+
+    }
+
+
+    /**
+     * Check that messages are dropped, rather than blocking the sender,
+     * when a member cannot be reached.
+     */
+    public void testUnreachable() throws Exception {
+
+        start(false);
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        members[0].addMember("127.0.0.1", port);
+        Thread.sleep(500);
+
+        ClusterSender sender = members[0].getClusterSender(SENDER_ID);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++)
+            sender.send(new byte[] { (byte) i });
+        assertTrue("Sending did not block",
+                   System.currentTimeMillis() - start <
+                   members[0].getQueueTimeout());
+        long statistics[] =
+            members[0].getMemberStatistics("127.0.0.1:" + port);
+        assertTrue("Messages were dropped", statistics[1] > 0);
+
+    }
+
+
+    /**
+     * Check that messages sent without acknowledgements are received by
+     * every other member, in the order they were sent.
+     */
+    public void testUnacknowledged() throws Exception {
+
+        start(false);
+        check(2000);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Send the specified number of numbered messages from the first member
+     * with the same ordering key, and check that each other member receives
+     * them all in order.
+     *
+     * @param n The number of messages
+     */
+    private void check(int n) throws Exception {
+
+        TcpReceiver receivers[] = new TcpReceiver[members.length];
+        for (int i = 1; i < members.length; i++)
+            receivers[i] =
+                (TcpReceiver) members[i].getClusterReceiver(SENDER_ID);
+
+        TcpSender sender = (TcpSender) members[0].getClusterSender(SENDER_ID);
+        for (int i = 0; i < n; i++) {
+            byte data[] = new byte[100];
+            data[0] = (byte) (i >> 8);
+            data[1] = (byte) i;
+            sender.send("key", data);
+        }
+
+        for (int i = 1; i < members.length; i++) {
+            ArrayList received = new ArrayList();
+            long end = System.currentTimeMillis() + 10000L;
+            while ((received.size() < n) &&
+                   (System.currentTimeMillis() < end)) {
+                Object objs[] = receivers[i].getObjects(1000L);
+                for (int j = 0; j < objs.length; j++)
+                    received.add(objs[j]);
+            }
+            assertEquals("Messages received by member " + i,
+                         n, received.size());
+            for (int j = 0; j < n; j++) {
+                ReplicationWrapper wrapper =
+                    (ReplicationWrapper) received.get(j);
+                byte data[] = wrapper.getDataStream();
+                assertEquals("Sender", SENDER_ID, wrapper.getSenderId());
+                assertEquals("Message " + j, j,
+                             ((data[0] & 0xff) << 8) | (data[1] & 0xff));
+            }
+        }
+
+    }
+
+
+    /**
+     * Wait for the specified member to know the specified number of
+     * remote members, for at most five seconds.
+     *
+     * @param member The member
+     * @param n The number of remote members
+     */
+    private void waitForMembers(TcpCluster member, int n) throws Exception {
+
+        long end = System.currentTimeMillis() + 5000L;
+        while ((member.findMembers().length != n) &&
+               (System.currentTimeMillis() < end))
+            Thread.sleep(50);
+        assertEquals("Remote members of " + member.getClusterName(),
+                     n, member.findMembers().length);
+
+    }
+
+
+    /**
+     * Start the members on free ports of the loopback interface, each
+     * knowing every member (itself included).
+     *
+     * @param waitForAck Should messages be acknowledged?
+     */
+    private void start(boolean waitForAck) throws Exception {
+
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new TcpCluster();
+            members[i].setClusterName("member" + i);
+            members[i].setTcpListenAddress("127.0.0.1");
+            members[i].setTcpListenPort(0);
+            members[i].setWaitForAck(waitForAck);
+            members[i].setQueueTimeout(1000);
+            members[i].start();
+        }
+        for (int i = 0; i < members.length; i++) {
+            for (int j = 0; j < members.length; j++)
+                members[i].addMember("127.0.0.1",
+                                     members[j].getTcpListenPort());
+            assertEquals("Remote members of member " + i,
+                         members.length - 1,
+                         members[i].findMembers().length);
+        }
+
+    }
+
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.realm;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>JDBCRealm</code> class, against an in-memory
+ * HSQLDB database.
+ */
+
+public class JDBCRealmTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The JDBC driver of the embedded database.
+     */
+    protected static final String DRIVER = "org.hsqldb.jdbcDriver";
+
+
+    /**
+     * The connection URL of the embedded database.
+     */
+    protected static final String URL = "jdbc:hsqldb:mem:JDBCRealmTestCase";
+
+
+    /**
+     * The Realm being tested.
+     */
+    protected JDBCRealm realm = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public JDBCRealmTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() throws Exception {
+
+        Class.forName(DRIVER);
+        execute(new String[] {
+            "CREATE TABLE users (user_name VARCHAR(15) NOT NULL PRIMARY KEY, user_pass VARCHAR(15) NOT NULL)",
+            "CREATE TABLE user_roles (user_name VARCHAR(15) NOT NULL, role_name VARCHAR(15) NOT NULL)",
+            "INSERT INTO users VALUES ('tomcat', 'tomcat')",
+            "INSERT INTO users VALUES ('norole', 'norole')",
+            "INSERT INTO user_roles VALUES ('tomcat', 'tomcat')",
+            "INSERT INTO user_roles VALUES ('tomcat', 'manager')"
+        });
+
+        realm = new JDBCRealm();
+        realm.setDriverName(DRIVER);
+        realm.setConnectionURL(URL);
+        realm.setConnectionName("sa");
+        realm.setConnectionPassword("");
+        realm.setUserTable("users");
+        realm.setUserNameCol("user_name");
+        realm.setUserCredCol("user_pass");
+        realm.setUserRoleTable("user_roles");
+        realm.setRoleNameCol("role_name");
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(JDBCRealmTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        realm.stop();
+        realm = null;
+        execute(new String[] { "SHUTDOWN" });
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check the users authenticated with a single query.
+     */
+    public void testCombinedQueries() throws Exception {
+
+        realm.start();
+        check();
+
+    }
+
+
+    /**
+     * Check that concurrent authentications share at most
+     * <code>maxActive</code> connections.
+     */
+    public void testConcurrent() throws Exception {
+
+        realm.setMaxActive(3);
+        realm.start();
+
+        final int failures[] = new int[1];
+        Thread threads[] = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        if (realm.authenticate("tomcat", "tomcat") == null) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals("Failed authentications", 0, failures[0]);
+        assertTrue("Open connections " + realm.connectionCount,
+                   (realm.connectionCount > 0) &&
+                   (realm.connectionCount <= 3));
+
+    }
+
+
+    /**
+     * Check the users authenticated with separate credentials and roles
+     * queries.
+     */
+    public void testSeparateQueries() throws Exception {
+
+        realm.setCombineQueries(false);
+        realm.start();
+        check();
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Check the authentication of the users of the database.
+     */
+    private void check() throws Exception {
+
+        GenericPrincipal principal =
+            (GenericPrincipal) realm.authenticate("tomcat", "tomcat");
+        assertTrue("Authenticated", principal != null);
+        assertEquals("Name", "tomcat", principal.getName());
+        assertEquals("Roles", 2, principal.getRoles().length);
+        assertTrue("Has role", principal.hasRole("manager"));
+
+        principal = (GenericPrincipal) realm.authenticate("norole", "norole");
+        assertTrue("Authenticated without roles", principal != null);
+        assertEquals("No roles", 0, principal.getRoles().length);
+
+        assertTrue("Wrong password",
+                   realm.authenticate("tomcat", "wrong") == null);
+        assertTrue("Unknown user",
+                   realm.authenticate("nobody", "tomcat") == null);
+
+    }
+
+
+    /**
+     * Execute the specified SQL statements on the embedded database.
+     *
+     * @param sql The SQL statements
+     */
+    private void execute(String sql[]) throws Exception {
+
+        Connection connection = DriverManager.getConnection(URL, "sa", "");
+        try {
+            Statement statement = connection.createStatement();
+            for (int i = 0; i < sql.length; i++)
+                statement.execute(sql[i]);
+            statement.close();
+        } finally {
+            connection.close();
+        }
+
+    }
+
+
+}
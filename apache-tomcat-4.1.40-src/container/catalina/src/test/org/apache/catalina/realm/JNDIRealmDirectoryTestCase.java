@@ -0,0 +1,485 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.realm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Properties;
+import javax.naming.CommunicationException;
+import javax.naming.CompoundName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchResult;
+import javax.naming.spi.InitialContextFactory;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the connection pool and the role searches of the
+ * <code>JNDIRealm</code> class, against an in-memory stand-in for a
+ * directory server.
+ */
+
+public class JNDIRealmDirectoryTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The entries of the directory, each an array of alternating attribute
+     * names and values, the distinguished name first.
+     */
+    protected static final String ENTRIES[][] = {
+        { "dn", "uid=alice,ou=people,dc=example", "userPassword", "secret" },
+        { "dn", "uid=bob,ou=people,dc=example", "userPassword", "secret" },
+        { "dn", "cn=users,ou=groups,dc=example", "cn", "users",
+          "member", "uid=alice,ou=people,dc=example",
+          "member", "uid=bob,ou=people,dc=example" },
+        { "dn", "cn=staff,ou=groups,dc=example", "cn", "staff",
+          "member", "cn=users,ou=groups,dc=example" },
+        { "dn", "cn=auditors,ou=groups,dc=example", "cn", "auditors",
+          "member", "cn=users,ou=groups,dc=example" },
+        { "dn", "cn=admins,ou=groups,dc=example", "cn", "admins",
+          "member", "cn=staff,ou=groups,dc=example",
+          "member", "cn=admins,ou=groups,dc=example" }
+    };
+
+
+    /**
+     * The Realm being tested.
+     */
+    protected JNDIRealm realm = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public JNDIRealmDirectoryTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        Directory.reset();
+        realm = new JNDIRealm();
+        realm.setContextFactory(Directory.class.getName());
+        realm.setConnectionURL("ldap://localhost/");
+        realm.setUserPattern("uid={0},ou=people,dc=example");
+        realm.setUserPassword("userPassword");
+        realm.setRoleBase("ou=groups,dc=example");
+        realm.setRoleName("cn");
+        realm.setRoleSearch("(member={0})");
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(JNDIRealmDirectoryTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        realm.stop();
+        realm = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check the users authenticated with the roles of their groups.
+     */
+    public void testAuthenticate() throws Exception {
+
+        realm.start();
+        GenericPrincipal principal =
+            (GenericPrincipal) realm.authenticate("alice", "secret");
+        assertTrue("Authenticated", principal != null);
+        assertEquals("Roles", 1, principal.getRoles().length);
+        assertTrue("Has role", principal.hasRole("users"));
+
+        assertTrue("Wrong password",
+                   realm.authenticate("alice", "wrong") == null);
+        assertTrue("Unknown user",
+                   realm.authenticate("nobody", "secret") == null);
+
+    }
+
+
+    /**
+     * Check that concurrent authentications share at most
+     * <code>maxActive</code> directory contexts.
+     */
+    public void testConcurrent() throws Exception {
+
+        realm.setMaxActive(3);
+        realm.start();
+
+        final int failures[] = new int[1];
+        Thread threads[] = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 5; j++) {
+                        if (realm.authenticate("bob", "secret") == null) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals("Failed authentications", 0, failures[0]);
+        assertTrue("Opened contexts " + Directory.opened,
+                   (Directory.opened > 1) && (Directory.opened <= 3));
+        assertEquals("Open contexts", Directory.opened, realm.connectionCount);
+
+    }
+
+
+    /**
+     * Check that the groups of the groups of a user are searched, those
+     * of the same level in parallel, and that cycles are not followed.
+     */
+    public void testNestedRoles() throws Exception {
+
+        realm.setRoleNested(true);
+        realm.start();
+        GenericPrincipal principal =
+            (GenericPrincipal) realm.authenticate("alice", "secret");
+        assertTrue("Authenticated", principal != null);
+        assertEquals("Roles", 4, principal.getRoles().length);
+        assertTrue("Has nested role", principal.hasRole("admins"));
+        assertEquals("Searches", 5, Directory.searches);
+        assertEquals("Parallel searches", 2, Directory.maxSearching);
+
+    }
+
+
+    /**
+     * Check that the roles of a user are searched once while cached.
+     */
+    public void testRoleCache() throws Exception {
+
+        realm.setRoleNested(true);
+        realm.setRoleCacheSize(10);
+        realm.start();
+        assertTrue("Authenticated",
+                   realm.authenticate("alice", "secret") != null);
+        int searches = Directory.searches;
+        GenericPrincipal principal =
+            (GenericPrincipal) realm.authenticate("alice", "secret");
+        assertEquals("Roles", 4, principal.getRoles().length);
+        assertEquals("Searches", searches, Directory.searches);
+
+        realm.clearCache();
+        assertTrue("Authenticated",
+                   realm.authenticate("alice", "secret") != null);
+        assertEquals("Searches", 2 * searches, Directory.searches);
+
+    }
+
+
+    /**
+     * Check that an idle context that fails its check is replaced.
+     */
+    public void testValidation() throws Exception {
+
+        realm.setValidationInterval(0);
+        realm.start();
+        assertTrue("Authenticated",
+                   realm.authenticate("alice", "secret") != null);
+        assertEquals("Opened contexts", 1, Directory.opened);
+
+        Directory.fail();
+        assertTrue("Authenticated",
+                   realm.authenticate("alice", "secret") != null);
+        assertEquals("Opened contexts", 2, Directory.opened);
+        assertEquals("Open contexts", 1, realm.connectionCount);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * An in-memory stand-in for a directory server, created as the JNDI
+     * context factory of the Realm.  It supports what the Realm uses: the
+     * retrieval of the attributes of an entry, and searches with a filter
+     * of the form <code>(attribute=value)</code>.
+     */
+    public static class Directory
+        implements InitialContextFactory, InvocationHandler {
+
+        /**
+         * The number of directory contexts opened.
+         */
+        static int opened = 0;
+
+        /**
+         * The number of searches performed.
+         */
+        static int searches = 0;
+
+        /**
+         * The number of searches in progress.
+         */
+        static int searching = 0;
+
+        /**
+         * The maximum number of searches that were in progress at once.
+         */
+        static int maxSearching = 0;
+
+        /**
+         * The directory contexts opened.
+         */
+        static ArrayList handlers = new ArrayList();
+
+        /**
+         * Does this directory context fail to reach the server?
+         */
+        boolean failed = false;
+
+        /**
+         * Make the directory contexts opened so far fail to reach the
+         * server.
+         */
+        static synchronized void fail() {
+            for (int i = 0; i < handlers.size(); i++)
+                ((Directory) handlers.get(i)).failed = true;
+        }
+
+        /**
+         * Forget the directory contexts opened and the searches performed.
+         */
+        static synchronized void reset() {
+            opened = 0;
+            searches = 0;
+            maxSearching = 0;
+            handlers.clear();
+        }
+
+        public Context getInitialContext(Hashtable environment) {
+            Directory handler = new Directory();
+            synchronized (Directory.class) {
+                opened++;
+                handlers.add(handler);
+            }
+            return ((Context) Proxy.newProxyInstance
+                    (getClass().getClassLoader(),
+                     new Class[] { DirContext.class }, handler));
+        }
+
+        public Object invoke(Object proxy, Method method, Object args[])
+            throws Throwable {
+            String name = method.getName();
+            if (name.equals("close") ||
+                name.equals("addToEnvironment") ||
+                name.equals("removeFromEnvironment"))
+                return (null);
+            if (name.equals("getNameInNamespace"))
+                return ("");
+            if (name.equals("getNameParser"))
+                return (new Parser());
+            if (failed)
+                throw new CommunicationException("connection closed");
+            if (name.equals("getAttributes") && (args[0] instanceof String))
+                return (getAttributes((String) args[0], (String[]) args[1]));
+            if (name.equals("search") && (args[0] instanceof String) &&
+                (args[1] instanceof String))
+                return (search((String) args[0], (String) args[1]));
+            throw new OperationNotSupportedException(name);
+        }
+
+        /**
+         * Return the requested attributes of the specified entry.
+         */
+        private Attributes getAttributes(String dn, String ids[])
+            throws NamingException {
+            if (dn.length() == 0)
+                return (new BasicAttributes(true));
+            for (int i = 0; i < ENTRIES.length; i++) {
+                if (ENTRIES[i][1].equalsIgnoreCase(dn))
+                    return (attributes(ENTRIES[i], ids));
+            }
+            throw new NameNotFoundException(dn);
+        }
+
+        /**
+         * Return the entries under the specified base matching the
+         * specified filter.
+         */
+        private NamingEnumeration search(String base, String filter)
+            throws NamingException {
+            synchronized (Directory.class) {
+                searches++;
+                searching++;
+                maxSearching = Math.max(maxSearching, searching);
+            }
+            try {
+                // Leave time for the other searches to start
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                ;
+            } finally {
+                synchronized (Directory.class) {
+                    searching--;
+                }
+            }
+
+            int equals = filter.indexOf('=');
+            String attr = filter.substring(1, equals);
+            String value =
+                unescape(filter.substring(equals + 1, filter.length() - 1));
+            String suffix = "," + base;
+            final ArrayList results = new ArrayList();
+            for (int i = 0; i < ENTRIES.length; i++) {
+                String dn = ENTRIES[i][1];
+                if (!dn.endsWith(suffix))
+                    continue;
+                for (int j = 2; j < ENTRIES[i].length; j += 2) {
+                    if (ENTRIES[i][j].equalsIgnoreCase(attr) &&
+                        ENTRIES[i][j + 1].equalsIgnoreCase(value)) {
+                        results.add(new SearchResult
+                            (dn.substring(0, dn.length() - suffix.length()),
+                             null, attributes(ENTRIES[i], null)));
+                        break;
+                    }
+                }
+            }
+            final Iterator iterator = results.iterator();
+            return ((NamingEnumeration) Proxy.newProxyInstance
+                    (getClass().getClassLoader(),
+                     new Class[] { NamingEnumeration.class },
+                     new InvocationHandler() {
+                         public Object invoke(Object proxy, Method method,
+                                              Object args[]) {
+                             String name = method.getName();
+                             if (name.startsWith("has"))
+                                 return (new Boolean(iterator.hasNext()));
+                             if (name.startsWith("next"))
+                                 return (iterator.next());
+                             return (null);
+                         }
+                     }));
+        }
+
+        /**
+         * Return the requested attributes of an entry, or all of them.
+         */
+        private static Attributes attributes(String entry[], String ids[]) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            for (int i = 2; i < entry.length; i += 2) {
+                boolean requested = (ids == null);
+                for (int j = 0; !requested && (j < ids.length); j++)
+                    requested = ids[j].equalsIgnoreCase(entry[i]);
+                if (!requested)
+                    continue;
+                if (attrs.get(entry[i]) == null)
+                    attrs.put(new BasicAttribute(entry[i]));
+                attrs.get(entry[i]).add(entry[i + 1]);
+            }
+            return (attrs);
+        }
+
+        /**
+         * Return the value of a filter with RFC 2254 escapes decoded.
+         */
+        private static String unescape(String value) {
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    sb.append((char) Integer.parseInt
+                              (value.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    sb.append(c);
+                }
+            }
+            return (sb.toString());
+        }
+
+    }
+
+
+    /**
+     * Parse distinguished names whose components are separated by commas.
+     */
+    private static class Parser implements NameParser {
+
+        public Name parse(String name) throws NamingException {
+            Properties syntax = new Properties();
+            syntax.put("jndi.syntax.direction", "right_to_left");
+            syntax.put("jndi.syntax.separator", ",");
+            return (new CompoundName(name, syntax));
+        }
+
+    }
+
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.realm;
+
+import java.security.Principal;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the credential digests of the <code>RealmBase</code>
+ * class.  Run as an application, it measures the authentication throughput
+ * of a Realm with digested passwords as the number of threads grows.
+ */
+
+public class RealmBaseDigestTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The SHA digest of the password of the user, in hexadecimal.
+     */
+    protected static final String PASSWORD =
+        "e5e9fa1ba31ecd1ae84f75caaa474f3a663f05f4";
+
+
+    /**
+     * The Realm being tested.
+     */
+    protected DigestRealm realm = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public RealmBaseDigestTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() throws Exception {
+
+        realm = new DigestRealm();
+        realm.setDigest("SHA");
+        realm.start();
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(RealmBaseDigestTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        realm.stop();
+        realm = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check the digests of the Realm and of the static helper.
+     */
+    public void testDigest() {
+
+        assertEquals("Realm digest", PASSWORD, realm.digest("secret"));
+        assertEquals("Static digest", PASSWORD,
+                     RealmBase.Digest("secret", "SHA", null));
+        assertEquals("Other algorithm", "5ebe2294ecd0e0f08eab7690d2a6ee69",
+                     RealmBase.Digest("secret", "MD5", null));
+        assertEquals("Realm digest", PASSWORD, realm.digest("secret"));
+
+    }
+
+
+    /**
+     * Check that concurrent threads authenticate with the right digests.
+     */
+    public void testConcurrent() throws Exception {
+
+        int failures[] = authenticate(realm, 8, 2000);
+        assertEquals("Failed authentications", 0, failures[0]);
+
+    }
+
+
+    // ----------------------------------------------------------- Main Program
+
+
+    /**
+     * Print the authentication throughput for a growing number of threads.
+     *
+     * @param args The number of authentications per thread (optional)
+     */
+    public static void main(String args[]) throws Exception {
+
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        DigestRealm realm = new DigestRealm();
+        realm.setDigest("SHA");
+        realm.start();
+        authenticate(realm, 1, n);
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            long start = System.currentTimeMillis();
+            authenticate(realm, threads, n);
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println(threads + " threads: " +
+                               (threads * n * 1000L / elapsed) +
+                               " authentications/s");
+        }
+        realm.stop();
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Authenticate the user from the specified number of threads at once,
+     * and return the number of failed authentications.
+     *
+     * @param realm The Realm
+     * @param threads The number of threads
+     * @param n The number of authentications per thread
+     */
+    private static int[] authenticate(final RealmBase realm, int threads,
+                                      final int n)
+        throws InterruptedException {
+
+        final int failures[] = new int[1];
+        Thread workers[] = new Thread[threads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < n; j++) {
+                        if (realm.authenticate("tomcat", "secret") == null) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < workers.length; i++)
+            workers[i].join();
+        return (failures);
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A Realm with one user, whose password is stored digested.
+     */
+    private static class DigestRealm extends RealmBase {
+
+        protected String getName() {
+            return ("DigestRealm");
+        }
+
+        protected String getPassword(String username) {
+            return ("tomcat".equals(username) ? PASSWORD : null);
+        }
+
+        protected Principal getPrincipal(String username) {
+            return (new GenericPrincipal(this, username, PASSWORD));
+        }
+
+    }
+
+
+}
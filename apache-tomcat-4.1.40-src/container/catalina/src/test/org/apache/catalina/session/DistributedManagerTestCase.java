@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.Session;
+import org.apache.catalina.cluster.TcpCluster;
+import org.apache.catalina.cluster.TcpSender;
+import org.apache.catalina.core.StandardContext;
+
+
+/**
+ * Unit tests for the replication of sessions between two
+ * <code>DistributedManager</code>s, each in a cluster member of this JVM
+ * on the loopback interface.
+ */
+
+public class DistributedManagerTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The cluster members.
+     */
+    protected TcpCluster members[] = null;
+
+
+    /**
+     * The managers being tested, one in each member.
+     */
+    protected DistributedManager managers[] = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public DistributedManagerTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() throws Exception {
+
+        members = new TcpCluster[2];
+        managers = new DistributedManager[2];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new TcpCluster();
+            members[i].setClusterName("member" + i);
+            members[i].setTcpListenAddress("127.0.0.1");
+            members[i].setTcpListenPort(0);
+            members[i].start();
+        }
+        for (int i = 0; i < members.length; i++) {
+            for (int j = 0; j < members.length; j++)
+                members[i].addMember("127.0.0.1",
+                                     members[j].getTcpListenPort());
+        }
+
+        for (int i = 0; i < managers.length; i++) {
+            StandardContext context = new StandardContext();
+            context.setName("/test");
+            context.setCluster(members[i]);
+            managers[i] = new DistributedManager();
+            managers[i].setContainer(context);
+            managers[i].start();
+        }
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(DistributedManagerTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        for (int i = 0; i < managers.length; i++) {
+            if (managers[i] != null)
+                managers[i].stop();
+        }
+        for (int i = 0; i < members.length; i++)
+            members[i].stop();
+        managers = null;
+        members = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that a new session, the changes made to its attributes and its
+     * expiration are replicated to the other member.
+     */
+    public void testReplication() throws Exception {
+
+        StandardSession session =
+            (StandardSession) managers[0].createSession();
+        String id = session.getId();
+        StandardSession replica = waitForSession(id, true);
+        assertTrue("Created", replica != null);
+
+        session.setAttribute("a", "1");
+        session.setAttribute("b", "1");
+        managers[0].replicate(id);
+        waitForAttribute(replica, "b", "1");
+        assertEquals("Set", "1", replica.getAttribute("a"));
+
+        // A value which cannot be serialized does not spoil the others
+        session.setAttribute("bad", new Object());
+        session.removeAttribute("a");
+        session.setAttribute("b", "2");
+        managers[0].replicate(id);
+        waitForAttribute(replica, "b", "2");
+        assertTrue("Removed", replica.getAttribute("a") == null);
+        assertTrue("Not serialized", replica.getAttribute("bad") == null);
+
+        session.expire();
+        assertTrue("Expired", waitForSession(id, false) == null);
+
+    }
+
+
+    /**
+     * Check that a message received after later messages about the same
+     * session, as when it is resent after a failure, is discarded.
+     */
+    public void testStale() throws Exception {
+
+        StandardSession session =
+            (StandardSession) managers[0].createSession();
+        String id = session.getId();
+        session.setAttribute("a", "old");
+        byte stale[] = createFull(session, 1L);
+        StandardSession replica = waitForSession(id, true);
+        assertTrue("Created", replica != null);
+
+        session.setAttribute("a", "new");
+        managers[0].replicate(id);
+        waitForAttribute(replica, "a", "new");
+
+        // Messages about the same session are applied in order
+        send(id, stale);
+        session.setAttribute("b", "done");
+        managers[0].replicate(id);
+        waitForAttribute(replica, "b", "done");
+        assertEquals("Not replaced", "new", replica.getAttribute("a"));
+        assertTrue("Same session", managers[1].findSession(id) == replica);
+
+        // An expired session is not created again
+        session.expire();
+        assertTrue("Expired", waitForSession(id, false) == null);
+        send(id, stale);
+        StandardSession marker = new StandardSession(managers[0]);
+        marker.setValid(true);
+        marker.setId(id + "-marker");
+        send(id, createFull(marker, 1L));
+        assertTrue("Marker", waitForSession(marker.getId(), true) != null);
+        assertTrue("Not created", managers[1].findSession(id) == null);
+
+    }
+
+
+    /**
+     * Check that the sessions expired when a manager stops are kept by the
+     * other member.
+     */
+    public void testStop() throws Exception {
+
+        String id = managers[0].createSession().getId();
+        assertTrue("Created", waitForSession(id, true) != null);
+
+        managers[0].stop();
+        managers[0] = null;
+        Thread.sleep(500);
+        assertTrue("Kept", managers[1].findSession(id) != null);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return a replication message holding the specified session as a
+     * whole.
+     *
+     * @param session The session
+     * @param sequence The sequence number of the message
+     */
+    private byte[] createFull(StandardSession session, long sequence)
+        throws Exception {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeByte(1);
+        oos.writeUTF(session.getId());
+        oos.writeLong(sequence);
+        session.writeObjectData(oos);
+        oos.close();
+        return (bos.toByteArray());
+
+    }
+
+
+    /**
+     * Send the specified replication message from the first member, in
+     * order with the other messages about the specified session.
+     *
+     * @param id The session id
+     * @param message The message
+     */
+    private void send(String id, byte[] message) throws Exception {
+
+        TcpSender sender = (TcpSender)
+            members[0].getClusterSender("DistributedManager[/test]");
+        assertTrue("Queued", sender.send(id, message));
+
+    }
+
+
+
+    /**
+     * Wait for the specified attribute of the specified session to take the
+     * specified value, for at most five seconds.
+     *
+     * @param session The session
+     * @param name The attribute name
+     * @param value The expected value
+     */
+    private void waitForAttribute(StandardSession session, String name,
+                                  Object value) throws Exception {
+
+        long end = System.currentTimeMillis() + 5000L;
+        while (!value.equals(session.getAttribute(name)) &&
+               (System.currentTimeMillis() < end))
+            Thread.sleep(50);
+        assertEquals("Attribute " + name, value, session.getAttribute(name));
+
+    }
+
+
+    /**
+     * Wait for the specified session to appear in, or disappear from, the
+     * second manager, for at most five seconds, and return it.
+     *
+     * @param id The session id
+     * @param present Should the session be present?
+     */
+    private StandardSession waitForSession(String id, boolean present)
+        throws Exception {
+
+        long end = System.currentTimeMillis() + 5000L;
+        Session session = managers[1].findSession(id);
+        while (((session != null) != present) &&
+               (System.currentTimeMillis() < end)) {
+            Thread.sleep(50);
+            session = managers[1].findSession(id);
+        }
+        return ((StandardSession) session);
+
+    }
+
+
+}
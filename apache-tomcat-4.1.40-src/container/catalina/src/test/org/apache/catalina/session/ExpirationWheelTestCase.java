@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>ExpirationWheel</code> class.  Time is simulated
+ * by passing times in the future to <code>advance()</code>, so that the
+ * sessions cascade through every level of the wheel.
+ */
+
+public class ExpirationWheelTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The time at which the sessions were last used.
+     */
+    protected long start = 0L;
+
+
+    /**
+     * The wheel being tested, with a tick of 100 milliseconds.
+     */
+    protected ExpirationWheel wheel = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public ExpirationWheelTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        wheel = new ExpirationWheel(100L);
+        start = System.currentTimeMillis();
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(ExpirationWheelTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        wheel = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that sessions scheduled in each level of the wheel, and beyond
+     * its range, expire neither early nor late.
+     */
+    public void testCascade() {
+
+        // One, 64, 4096 and 262144 ticks of 100 milliseconds
+        int intervals[] = { 1, 10, 600, 30000 };
+        StandardSession sessions[] = new StandardSession[intervals.length];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = createSession(intervals[i]);
+            wheel.schedule(sessions[i]);
+        }
+        assertEquals("Scheduled", sessions.length, wheel.size());
+
+        for (int i = 0; i < sessions.length; i++) {
+            long expires = start + (intervals[i] * 1000L);
+            StandardSession expired[] = wheel.advance(expires - 100L);
+            assertEquals("Early " + intervals[i], 0, expired.length);
+            expired = wheel.advance(expires + 100L);
+            assertEquals("Expired " + intervals[i], 1, expired.length);
+            assertTrue("Session " + intervals[i], expired[0] == sessions[i]);
+            assertEquals("Remaining", sessions.length - i - 1, wheel.size());
+        }
+
+    }
+
+
+    /**
+     * Check that an access and a change of the maximum inactive interval
+     * postpone or advance the expiration of a session.
+     */
+    public void testReschedule() {
+
+        // A longer interval is noticed when the slot comes due
+        StandardSession session = createSession(60);
+        wheel.schedule(session);
+        session.setMaxInactiveInterval(7200);
+        assertEquals("Extended", 0, wheel.advance(start + 61000L).length);
+        assertEquals("Moved", 1, wheel.size());
+
+        // A shorter interval requires the session to be rescheduled
+        session.setMaxInactiveInterval(120);
+        wheel.schedule(session);
+        assertEquals("Not due", 0, wheel.advance(start + 119000L).length);
+        assertEquals("Shortened", 1, wheel.advance(start + 121000L).length);
+        assertEquals("Removed", 0, wheel.size());
+
+        // An access is noticed when the slot comes due
+        session = createSession(60);
+        wheel.schedule(session);
+        session.setCreationTime(start + 120000L);
+        assertEquals("Accessed", 0, wheel.advance(start + 170000L).length);
+        assertEquals("Expired", 1, wheel.advance(start + 181000L).length);
+
+        // A session which never expires is taken off the wheel
+        session = createSession(60);
+        wheel.schedule(session);
+        session.setMaxInactiveInterval(-1);
+        wheel.schedule(session);
+        assertEquals("Never", 0, wheel.size());
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Create a valid session last used at the start of the test.
+     *
+     * @param interval The maximum inactive interval of the session
+     */
+    private StandardSession createSession(int interval) {
+
+        // Not a StandardManager, which would schedule it on its own wheel
+        StandardSession session = new StandardSession(new PersistentManager());
+        session.setCreationTime(start);
+        session.setMaxInactiveInterval(interval);
+        session.setValid(true);
+        return (session);
+
+    }
+
+
+}
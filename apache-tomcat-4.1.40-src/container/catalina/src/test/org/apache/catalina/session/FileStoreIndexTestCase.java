@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.core.StandardContext;
+
+
+/**
+ * Unit tests for the <code>FileStoreIndex</code> class, and for the
+ * rebuilding of the index of a <code>FileStore</code> after a crash.
+ */
+
+public class FileStoreIndexTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The directory in which sessions are stored.
+     */
+    protected File directory = null;
+
+
+    /**
+     * The Manager whose sessions are stored.
+     */
+    protected PersistentManager manager = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public FileStoreIndexTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                             "FileStoreIndexTestCase");
+        delete(directory);
+        directory.mkdirs();
+
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        manager = new PersistentManager();
+        manager.setContainer(context);
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(FileStoreIndexTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        delete(directory);
+        directory = null;
+        manager = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that an index closed cleanly is trusted when opened again, and
+     * that an index left open is discarded.
+     */
+    public void testCleanAndDirty() throws Exception {
+
+        File file = new File(directory, "sessions.index");
+        FileStoreIndex index = new FileStoreIndex(file);
+        assertTrue("Created", !index.open());
+        index.put("A", 1000L, 60, 100);
+        index.put("B", 2000L, -1, 200);
+        index.remove("A");
+        index.close();
+
+        index = new FileStoreIndex(file);
+        assertTrue("Clean", index.open());
+        assertEquals("Size", 1, index.size());
+        assertEquals("Key", "B", index.keys()[0]);
+        index.put("C", 3000L, 60, 300);
+
+        // Left open, as after a crash
+        FileStoreIndex reopened = new FileStoreIndex(file);
+        assertTrue("Dirty", !reopened.open());
+        assertEquals("Discarded", 0, reopened.size());
+        reopened.close();
+        index.close();
+
+    }
+
+
+    /**
+     * Check that an index holding an invalid record is discarded.
+     */
+    public void testInvalidRecord() throws Exception {
+
+        File file = new File(directory, "sessions.index");
+        FileStoreIndex index = new FileStoreIndex(file);
+        index.open();
+        index.put("A", 1000L, 60, 100);
+        index.close();
+
+        // Corrupt the identifier length of the first record, after the
+        // header of 16 bytes and its used flag
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(17);
+        raf.write(0);
+        raf.close();
+
+        index = new FileStoreIndex(file);
+        assertTrue("Invalid", !index.open());
+        assertEquals("Discarded", 0, index.size());
+        index.close();
+
+    }
+
+
+    /**
+     * Check that a FileStore which was not stopped rebuilds its index from
+     * the session files, including files saved directly in its directory.
+     */
+    public void testRebuild() throws Exception {
+
+        FileStore store = createStore();
+        StandardSession sessions[] = new StandardSession[3];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = (StandardSession) manager.createSession();
+            sessions[i].setMaxInactiveInterval(60 * (i + 1));
+            store.save(sessions[i]);
+        }
+        store.remove(sessions[2].getId());
+
+        // A session file of an earlier version, outside the subdirectories
+        StandardSession legacy = (StandardSession) manager.createSession();
+        store.save(legacy);
+        File saved = findFile(directory, legacy.getId() + ".session");
+        assertTrue("Saved", saved != null);
+        assertTrue("Moved", saved.renameTo
+                   (new File(directory, legacy.getId() + ".session")));
+
+        // The first store is never stopped, as after a crash
+        FileStore recovered = createStore();
+        String keys[] = recovered.keys();
+        Arrays.sort(keys);
+        assertEquals("Size", 3, keys.length);
+        assertTrue("First",
+                   Arrays.binarySearch(keys, sessions[0].getId()) >= 0);
+        assertTrue("Second",
+                   Arrays.binarySearch(keys, sessions[1].getId()) >= 0);
+        assertTrue("Legacy", Arrays.binarySearch(keys, legacy.getId()) >= 0);
+        assertTrue("Legacy loaded", recovered.load(legacy.getId()) != null);
+        assertTrue("Legacy filed",
+                   !new File(directory, legacy.getId() + ".session").exists());
+
+        // The rebuilt index records the inactive intervals
+        long timeNow = System.currentTimeMillis();
+        recovered.stop();
+        FileStoreIndex index =
+            new FileStoreIndex(new File(directory, "sessions.index"));
+        assertTrue("Clean", index.open());
+        assertEquals("None expired", 0, index.expired(timeNow).length);
+        assertEquals("Expired", 1, index.expired(timeNow + 90000L).length);
+        assertEquals("Expired id", sessions[0].getId(),
+                     index.expired(timeNow + 90000L)[0]);
+        index.close();
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Create and start a FileStore on the test directory.
+     */
+    private FileStore createStore() throws Exception {
+
+        FileStore store = new FileStore();
+        store.setManager(manager);
+        store.setDirectory(directory.getAbsolutePath());
+        store.start();
+        return (store);
+
+    }
+
+
+    /**
+     * Delete the specified file, and its contents if it is a directory.
+     *
+     * @param file The file to be deleted
+     */
+    private void delete(File file) {
+
+        File files[] = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++)
+                delete(files[i]);
+        }
+        file.delete();
+
+    }
+
+
+    /**
+     * Find the file with the specified name below the specified directory.
+     *
+     * @param dir The directory to be searched
+     * @param name The file name
+     */
+    private File findFile(File dir, String name) {
+
+        File files[] = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                File file = findFile(files[i], name);
+                if (file != null)
+                    return (file);
+            } else if (files[i].getName().equals(name)) {
+                return (files[i]);
+            }
+        }
+        return (null);
+
+    }
+
+
+}
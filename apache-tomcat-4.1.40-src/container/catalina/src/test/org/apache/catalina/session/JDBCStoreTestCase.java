@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+
+
+/**
+ * Unit tests for the <code>JDBCStore</code> class, against an in-memory
+ * HSQLDB database.
+ */
+
+public class JDBCStoreTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The JDBC driver of the embedded database.
+     */
+    protected static final String DRIVER = "org.hsqldb.jdbcDriver";
+
+
+    /**
+     * The connection URL of the embedded database.
+     */
+    protected static final String URL = "jdbc:hsqldb:mem:JDBCStoreTestCase";
+
+
+    /**
+     * The Manager whose sessions are stored.
+     */
+    protected PersistentManager manager = null;
+
+
+    /**
+     * The Store being tested.
+     */
+    protected JDBCStore store = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public JDBCStoreTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() throws Exception {
+
+        Class.forName(DRIVER);
+        execute("CREATE TABLE sessions (id VARCHAR(100) NOT NULL, app VARCHAR(255) NOT NULL, data LONGVARBINARY, valid CHAR(1) NOT NULL, maxinactive INT NOT NULL, lastaccess BIGINT NOT NULL, CHECK (maxinactive < 100000))");
+
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        manager = new PersistentManager();
+        manager.setContainer(context);
+
+        store = new JDBCStore();
+        store.setManager(manager);
+        store.setDriverName(DRIVER);
+        store.setConnectionURL(URL + ";user=sa");
+        store.setSessionTable("sessions");
+        store.start();
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(JDBCStoreTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        store.stop();
+        store = null;
+        manager = null;
+        execute("SHUTDOWN");
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that sessions saved on pooled connections are loaded back, and
+     * that saving a session again replaces its row.
+     */
+    public void testSaveLoad() throws Exception {
+
+        StandardSession sessions[] = new StandardSession[3];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = createSession("value" + i, 60);
+            store.save(sessions[i]);
+        }
+        assertEquals("Size", sessions.length, store.getSize());
+        String keys[] = store.keys();
+        Arrays.sort(keys);
+        for (int i = 0; i < sessions.length; i++)
+            assertTrue("Key " + i,
+                       Arrays.binarySearch(keys, sessions[i].getId()) >= 0);
+
+        // Many more operations than pooled connections
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].setAttribute("count", new Integer(n));
+                store.save(sessions[i]);
+                Session loaded = store.load(sessions[i].getId());
+                assertEquals("Loaded " + i, "value" + i,
+                             ((StandardSession) loaded).getAttribute("a"));
+                assertEquals("Count " + i, new Integer(n),
+                             ((StandardSession) loaded).getAttribute("count"));
+            }
+        }
+        assertEquals("Replaced", sessions.length, store.getSize());
+
+        store.remove(sessions[0].getId());
+        assertTrue("Removed", store.load(sessions[0].getId()) == null);
+        assertEquals("Remaining", sessions.length - 1, store.getSize());
+
+    }
+
+
+    /**
+     * Check that a batch which fails part way leaves every row it would
+     * have replaced unchanged.
+     */
+    public void testBatchRollback() throws Exception {
+
+        StandardSession first = createSession("old", 60);
+        StandardSession second = createSession("old", 60);
+        store.save(new Session[] { first, second });
+
+        // The second row violates the check constraint
+        first.setAttribute("a", "new");
+        second.setAttribute("a", "new");
+        second.setMaxInactiveInterval(200000);
+        try {
+            store.save(new Session[] { first, second });
+            assertTrue("Exception expected", false);
+        } catch (IOException e) {
+            ;
+        }
+
+        assertEquals("Size", 2, store.getSize());
+        assertEquals("First", "old",
+                     ((StandardSession) store.load(first.getId()))
+                     .getAttribute("a"));
+        assertEquals("Second", "old",
+                     ((StandardSession) store.load(second.getId()))
+                     .getAttribute("a"));
+
+        // The Store is still usable after the rollback
+        second.setMaxInactiveInterval(60);
+        store.save(new Session[] { first, second });
+        assertEquals("Saved", "new",
+                     ((StandardSession) store.load(second.getId()))
+                     .getAttribute("a"));
+
+    }
+
+
+    /**
+     * Check that compressed and plain rows are both read back, whatever
+     * the current value of <code>compress</code>.
+     */
+    public void testCompression() throws Exception {
+
+        store.setCompress(true);
+        StandardSession gzip = createSession("gzip", 60);
+        store.save(gzip);
+        store.setCompress(false);
+        StandardSession plain = createSession("plain", 60);
+        store.save(plain);
+
+        assertTrue("Compressed", isCompressed(gzip.getId()));
+        assertTrue("Plain", !isCompressed(plain.getId()));
+
+        for (int i = 0; i < 2; i++) {
+            store.setCompress(i == 0);
+            assertEquals("Gzip " + i, "gzip",
+                         ((StandardSession) store.load(gzip.getId()))
+                         .getAttribute("a"));
+            assertEquals("Plain " + i, "plain",
+                         ((StandardSession) store.load(plain.getId()))
+                         .getAttribute("a"));
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Create a valid session with the specified value of its attribute
+     * <code>a</code>.
+     *
+     * @param value The attribute value
+     * @param interval The maximum inactive interval of the session
+     */
+    private StandardSession createSession(String value, int interval) {
+
+        StandardSession session = (StandardSession) manager.createSession();
+        session.setMaxInactiveInterval(interval);
+        session.setAttribute("a", value);
+        return (session);
+
+    }
+
+
+    /**
+     * Execute the specified statement on a new connection.
+     *
+     * @param sql The statement to be executed
+     */
+    private void execute(String sql) throws Exception {
+
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute(sql);
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+
+    }
+
+
+    /**
+     * Is the stored row of the specified session compressed?
+     *
+     * @param id The session id
+     */
+    private boolean isCompressed(String id) throws Exception {
+
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        try {
+            PreparedStatement stmt =
+                conn.prepareStatement("SELECT data FROM sessions WHERE id = ?");
+            stmt.setString(1, id);
+            ResultSet rs = stmt.executeQuery();
+            assertTrue("Row " + id, rs.next());
+            InputStream in = rs.getBinaryStream(1);
+            boolean result = (in.read() == 0x1f) && (in.read() == 0x8b);
+            in.close();
+            rs.close();
+            stmt.close();
+            return (result);
+        } finally {
+            conn.close();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.core.StandardContext;
+
+
+/**
+ * Unit tests for the <code>MappedStore</code> class, using small segments
+ * so that sessions are spread over several of them.
+ */
+
+public class MappedStoreTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The directory in which segments are stored.
+     */
+    protected File directory = null;
+
+
+    /**
+     * The Manager whose sessions are stored.
+     */
+    protected PersistentManager manager = null;
+
+
+    /**
+     * The Store being tested.
+     */
+    protected MappedStore store = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public MappedStoreTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() throws Exception {
+
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                             "MappedStoreTestCase");
+        delete(directory);
+        directory.mkdirs();
+
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        manager = new PersistentManager();
+        manager.setContainer(context);
+        store = createStore();
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(MappedStoreTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() throws Exception {
+
+        if (store != null)
+            store.stop();
+        store = null;
+        manager = null;
+        delete(directory);
+        directory = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that saving a session again supersedes its previous record,
+     * and that removed sessions are no longer found.
+     */
+    public void testAppendSupersede() throws Exception {
+
+        StandardSession sessions[] = new StandardSession[3];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = createSession("value" + i);
+            store.save(sessions[i]);
+        }
+        assertEquals("Size", 3, store.getSize());
+
+        sessions[1].setAttribute("a", "changed");
+        store.save(sessions[1]);
+        assertEquals("Superseded", 3, store.getSize());
+        assertEquals("Changed", "changed", load(sessions[1].getId()));
+        assertEquals("Unchanged", "value0", load(sessions[0].getId()));
+
+        store.remove(sessions[2].getId());
+        assertTrue("Removed", store.load(sessions[2].getId()) == null);
+        String keys[] = store.keys();
+        Arrays.sort(keys);
+        assertEquals("Keys", 2, keys.length);
+        assertTrue("First",
+                   Arrays.binarySearch(keys, sessions[0].getId()) >= 0);
+        assertTrue("Second",
+                   Arrays.binarySearch(keys, sessions[1].getId()) >= 0);
+
+    }
+
+
+    /**
+     * Check that the segments holding mostly dead records are deleted
+     * once their live records have been moved to the active segment.
+     */
+    public void testCompact() throws Exception {
+
+        StandardSession kept = createSession("kept");
+        store.save(kept);
+        StandardSession changing = createSession("0");
+        for (int i = 0; i < 40; i++) {
+            changing.setAttribute("a", String.valueOf(i));
+            store.save(changing);
+        }
+        int before = countSegments();
+        assertTrue("Segments " + before, before > 2);
+
+        store.processExpires();
+        int after = countSegments();
+        assertTrue("Compacted " + after, after < before);
+        assertEquals("Size", 2, store.getSize());
+        assertEquals("Kept", "kept", load(kept.getId()));
+        assertEquals("Latest", "39", load(changing.getId()));
+
+    }
+
+
+    /**
+     * Check that the index is rebuilt by scanning the segments when the
+     * Store is started again, whether it was stopped or not.
+     */
+    public void testReopen() throws Exception {
+
+        StandardSession first = createSession("first");
+        StandardSession second = createSession("second");
+        StandardSession removed = createSession("removed");
+        store.save(first);
+        store.save(second);
+        store.save(removed);
+        for (int i = 0; i < 20; i++) {
+            second.setAttribute("a", "second" + i);
+            store.save(second);
+        }
+        store.remove(removed.getId());
+        store.stop();
+
+        store = createStore();
+        assertEquals("Size", 2, store.getSize());
+        assertEquals("First", "first", load(first.getId()));
+        assertEquals("Second", "second19", load(second.getId()));
+        assertTrue("Removed", store.load(removed.getId()) == null);
+
+        // Records appended after the restart follow the scanned ones
+        first.setAttribute("a", "again");
+        store.save(first);
+
+        // Not stopped, as after a crash
+        MappedStore recovered = createStore();
+        assertEquals("Recovered", 2, recovered.getSize());
+        assertEquals("Again", "again",
+                     ((StandardSession) recovered.load(first.getId()))
+                     .getAttribute("a"));
+        recovered.stop();
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the number of segment files in the test directory.
+     */
+    private int countSegments() {
+
+        String names[] = directory.list();
+        int n = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].endsWith(".segment"))
+                n++;
+        }
+        return (n);
+
+    }
+
+
+    /**
+     * Create a session with the specified value of its attribute
+     * <code>a</code>.
+     *
+     * @param value The attribute value
+     */
+    private StandardSession createSession(String value) {
+
+        StandardSession session = (StandardSession) manager.createSession();
+        session.setMaxInactiveInterval(3600);
+        session.setAttribute("a", value);
+        return (session);
+
+    }
+
+
+    /**
+     * Create and start a MappedStore on the test directory, with segments
+     * holding a few sessions each.
+     */
+    private MappedStore createStore() throws Exception {
+
+        MappedStore store = new MappedStore();
+        store.setManager(manager);
+        store.setDirectory(directory.getAbsolutePath());
+        store.setSegmentSize(2048);
+        store.start();
+        return (store);
+
+    }
+
+
+    /**
+     * Delete the specified directory and its contents.
+     *
+     * @param dir The directory to be deleted
+     */
+    private void delete(File dir) {
+
+        File files[] = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++)
+                files[i].delete();
+        }
+        dir.delete();
+
+    }
+
+
+    /**
+     * Return the value of the attribute <code>a</code> of the specified
+     * session, loaded from the Store.
+     *
+     * @param id The session id
+     */
+    private Object load(String id) throws Exception {
+
+        StandardSession session = (StandardSession) store.load(id);
+        assertTrue("Loaded " + id, session != null);
+        return (session.getAttribute("a"));
+
+    }
+
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.catalina.core.StandardContext;
+
+
+/**
+ * Unit tests for the <code>CompactSessionSerializer</code> class, and for
+ * its use by <code>StandardSession</code>.  The sample sessions are
+ * modelled on typical applications: a logged in user, a shopping cart and
+ * a multi-page form.
+ */
+
+public class SessionSerializerTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The sample sessions, as arrays of attribute values.
+     */
+    protected Object samples[][] = null;
+
+
+    /**
+     * The names of the sample sessions.
+     */
+    protected String sampleNames[] =
+        { "login", "cart", "form" };
+
+
+    /**
+     * The serializer being tested.
+     */
+    protected CompactSessionSerializer serializer = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SessionSerializerTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        serializer = new CompactSessionSerializer();
+
+        Object login[] = new Object[] {
+            "jsmith",
+            new String[] { "user", "manager", "auditor" },
+            new Integer(4711),
+            new Long(System.currentTimeMillis()),
+            Boolean.TRUE,
+            Locale.US,
+            new Date()
+        };
+
+        ArrayList items = new ArrayList();
+        for (int i = 0; i < 12; i++) {
+            HashMap item = new HashMap();
+            item.put("sku", "SKU-" + (100000 + i));
+            item.put("quantity", new Integer(i + 1));
+            item.put("price", new Double(9.99 * (i + 1)));
+            item.put("gift", (i % 3 == 0) ? Boolean.TRUE : Boolean.FALSE);
+            items.add(item);
+        }
+        Object cart[] = new Object[] {
+            items,
+            "EUR",
+            new Double(1234.56),
+            new Short((short) 2),
+            null
+        };
+
+        HashMap fields = new HashMap();
+        for (int i = 0; i < 30; i++)
+            fields.put("field" + i, "Value of field number " + i);
+        Object form[] = new Object[] {
+            fields,
+            new Integer(3),
+            new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+            new Character('x'),
+            new Float(0.5f),
+            new Byte((byte) 7)
+        };
+
+        samples = new Object[][] { login, cart, form };
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(SessionSerializerTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        samples = null;
+        serializer = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that the compact form of the sample sessions is smaller than
+     * their Java serialized form.
+     */
+    public void testCompare() throws Exception {
+
+        for (int i = 0; i < samples.length; i++) {
+            byte java[] = write(samples[i], false);
+            byte compact[] = write(samples[i], true);
+            assertTrue("Compact " + sampleNames[i] + " is smaller",
+                       compact.length < java.length);
+        }
+
+    }
+
+
+    /**
+     * Check that sessions written before the serializer existed, with a
+     * positive attribute count, are still read, whatever the serializer.
+     */
+    public void testLegacyFormat() throws Exception {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        long now = System.currentTimeMillis();
+        oos.writeObject(new Long(now - 1000L));     // creationTime
+        oos.writeObject(new Long(now - 500L));      // lastAccessedTime
+        oos.writeObject(new Integer(1800));         // maxInactiveInterval
+        oos.writeObject(Boolean.FALSE);             // isNew
+        oos.writeObject(Boolean.TRUE);              // isValid
+        oos.writeObject(new Long(now));             // lastUsedTime
+        oos.writeObject("LEGACY");                  // id
+        oos.writeObject(new Integer(2));
+        oos.writeObject("user");
+        oos.writeObject("jsmith");
+        oos.writeObject("roles");
+        oos.writeObject(new String[] { "user", "manager" });
+        oos.close();
+
+        String classes[] =
+            { "", "org.apache.catalina.session.CompactSessionSerializer" };
+        for (int i = 0; i < classes.length; i++) {
+            StandardSession session = (StandardSession)
+                createManager(classes[i]).createEmptySession();
+            ObjectInputStream ois = new ObjectInputStream
+                (new ByteArrayInputStream(bos.toByteArray()));
+            session.readObjectData(ois);
+            ois.close();
+            assertEquals("Id", "LEGACY", session.getId());
+            assertEquals("Interval", 1800, session.getMaxInactiveInterval());
+            assertEquals("User", "jsmith", session.getAttribute("user"));
+            assertTrue("Roles", Arrays.equals
+                       (new String[] { "user", "manager" },
+                        (String[]) session.getAttribute("roles")));
+        }
+
+    }
+
+
+    /**
+     * Check that every sample value is read back unchanged.
+     */
+    public void testRoundTrip() throws Exception {
+
+        for (int i = 0; i < samples.length; i++) {
+            Object values[] = read(write(samples[i], true), samples[i].length);
+            for (int j = 0; j < values.length; j++)
+                check(sampleNames[i] + " value " + j,
+                      samples[i][j], values[j]);
+        }
+
+    }
+
+
+    /**
+     * Check that the sample sessions are read back unchanged from the
+     * output of <code>StandardSession.writeObjectData()</code>, with and
+     * without the serializer.
+     */
+    public void testSessionRoundTrip() throws Exception {
+
+        String classes[] =
+            { "", "org.apache.catalina.session.CompactSessionSerializer" };
+        for (int c = 0; c < classes.length; c++) {
+            PersistentManager manager = createManager(classes[c]);
+            for (int i = 0; i < samples.length; i++) {
+                StandardSession session =
+                    (StandardSession) manager.createSession();
+                for (int j = 0; j < samples[i].length; j++) {
+                    if (samples[i][j] != null)
+                        session.setAttribute("value" + j, samples[i][j]);
+                }
+
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                session.writeObjectData(oos);
+                oos.close();
+                StandardSession copy =
+                    (StandardSession) manager.createEmptySession();
+                ObjectInputStream ois = new ObjectInputStream
+                    (new ByteArrayInputStream(bos.toByteArray()));
+                copy.readObjectData(ois);
+                ois.close();
+
+                assertEquals("Id", session.getId(), copy.getId());
+                for (int j = 0; j < samples[i].length; j++)
+                    check("'" + classes[c] + "' " + sampleNames[i] +
+                          " value " + j, samples[i][j],
+                          copy.getAttribute("value" + j));
+            }
+        }
+
+    }
+
+
+    /**
+     * Check that shared and circular references to collections survive,
+     * by writing the values holding them with Java serialization.
+     */
+    public void testSharedReferences() throws Exception {
+
+        HashMap item = new HashMap();
+        item.put("sku", "SKU-1");
+        ArrayList shared = new ArrayList();
+        shared.add(item);
+        shared.add(item);
+        ArrayList circular = new ArrayList();
+        circular.add("first");
+        circular.add(circular);
+
+        Object values[] =
+            read(write(new Object[] { shared, circular }, true), 2);
+        ArrayList list = (ArrayList) values[0];
+        assertEquals("Shared", item, list.get(0));
+        assertTrue("Identity", list.get(0) == list.get(1));
+        list = (ArrayList) values[1];
+        assertEquals("First", "first", list.get(0));
+        assertTrue("Circular", list.get(1) == list);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Check that the specified value was read back unchanged.
+     *
+     * @param message The assertion message
+     * @param expected The value written
+     * @param actual The value read back
+     */
+    private void check(String message, Object expected, Object actual) {
+
+        if (expected instanceof byte[]) {
+            assertTrue(message, Arrays.equals((byte[]) expected,
+                                              (byte[]) actual));
+        } else if (expected instanceof String[]) {
+            assertTrue(message, Arrays.equals((String[]) expected,
+                                              (String[]) actual));
+        } else {
+            assertEquals(message, expected, actual);
+        }
+
+    }
+
+
+    /**
+     * Create a Manager using the specified serializer class.
+     *
+     * @param serializerClass The serializer class name, or an empty string
+     */
+    private PersistentManager createManager(String serializerClass) {
+
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        PersistentManager manager = new PersistentManager();
+        manager.setContainer(context);
+        manager.setSerializerClass(serializerClass);
+        return (manager);
+
+    }
+
+
+    /**
+     * Read the specified number of values written by the serializer.
+     *
+     * @param data The written values
+     * @param n The number of values
+     */
+    private Object[] read(byte data[], int n)
+        throws ClassNotFoundException, IOException {
+
+        ObjectInputStream ois =
+            new ObjectInputStream(new ByteArrayInputStream(data));
+        Object values[] = new Object[n];
+        for (int i = 0; i < n; i++)
+            values[i] = serializer.readAttribute(ois);
+        ois.close();
+        return (values);
+
+    }
+
+
+    /**
+     * Write the specified values, and return the bytes written.
+     *
+     * @param values The values
+     * @param compact Use the serializer rather than Java serialization?
+     */
+    private byte[] write(Object values[], boolean compact)
+        throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        for (int i = 0; i < values.length; i++) {
+            if (compact)
+                serializer.writeAttribute(oos, values[i]);
+            else
+                oos.writeObject(values[i]);
+        }
+        oos.close();
+        return (bos.toByteArray());
+
+    }
+
+
+}
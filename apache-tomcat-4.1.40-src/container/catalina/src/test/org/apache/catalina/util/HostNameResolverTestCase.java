@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>HostNameResolver</code> class, using a stub
+ * resolver that never queries DNS.
+ */
+
+public class HostNameResolverTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The resolver being tested.
+     */
+    protected StubResolver resolver = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public HostNameResolverTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        resolver = new StubResolver();
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(HostNameResolverTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        resolver.stop();
+        resolver = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that names and failures are cached, and evicted beyond the
+     * cache size.
+     */
+    public void testCache() {
+
+        resolver.setCacheSize(2);
+        assertEquals("Name", "host1.example.com", resolver.resolve("10.0.0.1"));
+        assertEquals("Cached name", "host1.example.com",
+                     resolver.resolve("10.0.0.1"));
+        assertEquals("No name", "10.0.0.99", resolver.resolve("10.0.0.99"));
+        assertEquals("Cached failure", "10.0.0.99",
+                     resolver.resolve("10.0.0.99"));
+        assertEquals("Lookups", 2, resolver.getLookups());
+
+        // Evict the least recently used address
+        resolver.resolve("10.0.0.1");
+        resolver.resolve("10.0.0.2");
+        resolver.resolve("10.0.0.1");
+        assertEquals("Lookups after eviction", 3, resolver.getLookups());
+        resolver.resolve("10.0.0.99");
+        assertEquals("Evicted", 4, resolver.getLookups());
+
+    }
+
+
+    /**
+     * Check that expired names and failures are looked up again.
+     */
+    public void testExpiration() throws Exception {
+
+        resolver.setCacheTtl(0);
+        resolver.setFailureTtl(3600);
+        resolver.resolve("10.0.0.1");
+        resolver.resolve("10.0.0.99");
+        Thread.sleep(20);
+        resolver.resolve("10.0.0.1");
+        resolver.resolve("10.0.0.99");
+        assertEquals("Lookups", 3, resolver.getLookups());
+
+    }
+
+
+    /**
+     * Check that threads asking for the same address share one lookup.
+     */
+    public void testConcurrent() throws Exception {
+
+        resolver.setDelay(200);
+        final String names[] = new String[8];
+        Thread threads[] = new Thread[names.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    names[n] = resolver.resolve("10.0.0.3");
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        for (int i = 0; i < names.length; i++)
+            assertEquals("Name " + i, "host3.example.com", names[i]);
+        assertEquals("Lookups", 1, resolver.getLookups());
+
+    }
+
+
+    /**
+     * Check that prefetched addresses are resolved in the background.
+     */
+    public void testPrefetch() throws Exception {
+
+        resolver.prefetch("10.0.0.4");
+        assertEquals("Not started", 0, resolver.getLookups());
+
+        resolver.setPrefetchThreads(2);
+        resolver.start();
+        resolver.setDelay(100);
+        resolver.prefetch("10.0.0.4");
+        resolver.prefetch("10.0.0.4");
+        assertEquals("Name", "host4.example.com", resolver.resolve("10.0.0.4"));
+        assertEquals("Lookups", 1, resolver.getLookups());
+
+    }
+
+
+    /**
+     * Check that an address still queued for prefetching is looked up at
+     * once when it is resolved, rather than after those queued before it.
+     */
+    public void testQueued() throws Exception {
+
+        resolver.setPrefetchThreads(1);
+        resolver.start();
+        resolver.setDelay(300);
+        resolver.prefetch("10.0.0.5");
+        resolver.prefetch("10.0.0.6");
+        resolver.prefetch("10.0.0.7");
+        long start = System.currentTimeMillis();
+        assertEquals("Name", "host7.example.com", resolver.resolve("10.0.0.7"));
+        assertTrue("Not queued", System.currentTimeMillis() - start < 600);
+        assertEquals("Prefetched", "host6.example.com",
+                     resolver.resolve("10.0.0.6"));
+        assertEquals("Lookups", 3, resolver.getLookups());
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * A resolver naming the addresses of 10.0.0.0/24 below 10.0.0.99, after
+     * an optional delay.
+     */
+    private static class StubResolver extends HostNameResolver {
+
+        private int delay = 0;
+
+        private int lookups = 0;
+
+        synchronized int getLookups() {
+            return (lookups);
+        }
+
+        void setDelay(int delay) {
+            this.delay = delay;
+        }
+
+        protected String lookup(String address) {
+            synchronized (this) {
+                lookups++;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                ;
+            }
+            int host = Integer.parseInt(address.substring(7));
+            if (host >= 99)
+                return (null);
+            return ("host" + host + ".example.com");
+        }
+
+    }
+
+
+}
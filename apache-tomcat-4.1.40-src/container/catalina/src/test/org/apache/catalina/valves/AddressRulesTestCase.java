@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the <code>AddressRules</code> class.
+ */
+
+public class AddressRulesTestCase extends TestCase {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public AddressRulesTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(AddressRulesTestCase.class));
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check the parsing of address literals.
+     */
+    public void testParseAddress() {
+
+        assertAddress("10.1.2.3", new int[] { 10, 1, 2, 3 });
+        assertAddress("::1", new int[] { 0, 0, 0, 0, 0, 0, 0, 0,
+                                         0, 0, 0, 0, 0, 0, 0, 1 });
+        assertAddress("0:0:0:0:0:0:0:1", new int[] { 0, 0, 0, 0, 0, 0, 0, 0,
+                                                     0, 0, 0, 0, 0, 0, 0, 1 });
+        assertAddress("fe80::1:2%eth0", new int[] { 0xfe, 0x80, 0, 0, 0, 0,
+                                                    0, 0, 0, 0, 0, 0, 0, 1,
+                                                    0, 2 });
+        assertAddress("::ffff:192.168.0.1", new int[] { 192, 168, 0, 1 });
+
+        String invalid[] = { "", "localhost", "1.2.3", "1.2.3.4.5",
+                             "256.1.1.1", "1..2.3", "1:2", ":1", "1:::2",
+                             "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::",
+                             "www.example.com" };
+        for (int i = 0; i < invalid.length; i++)
+            assertTrue(invalid[i],
+                       AddressRules.parseAddress(invalid[i]) == null);
+
+    }
+
+
+    /**
+     * Check the matching of CIDR blocks.
+     */
+    public void testBlocks() {
+
+        AddressRules rules = new AddressRules
+            ("10.0.0.0/8, 192.168.1.128/25, 172.16.5.4/32, fe80::/10," +
+             "::ffff:100.64.0.0/106");
+        assertTrue("10/8", rules.matches("10.255.3.4"));
+        assertTrue("Upper half", rules.matches("192.168.1.200"));
+        assertTrue("Lower half", !rules.matches("192.168.1.127"));
+        assertTrue("Host", rules.matches("172.16.5.4"));
+        assertTrue("Other host", !rules.matches("172.16.5.5"));
+        assertTrue("Link local", rules.matches("fe80::1234"));
+        assertTrue("Not link local", !rules.matches("fec0::1"));
+        assertTrue("Mapped", rules.matches("::ffff:10.1.1.1"));
+        assertTrue("Mapped block", rules.matches("100.127.255.255"));
+        assertTrue("Outside mapped block", !rules.matches("100.128.0.0"));
+        assertTrue("Hostname", !rules.matches("localhost"));
+        assertEquals("No regular expressions", 0,
+                     rules.getPrograms().length);
+
+        rules = new AddressRules("0.0.0.0/0");
+        assertTrue("Every IPv4 address", rules.matches("1.2.3.4"));
+        assertTrue("No IPv6 address", !rules.matches("::2"));
+
+    }
+
+
+    /**
+     * Check that each pattern matches the same values as the regular
+     * expression it was compiled from.
+     */
+    public void testPatterns() {
+
+        assertTrue("Empty", new AddressRules(null).isEmpty());
+        assertTrue("Blank", new AddressRules("  ").isEmpty());
+
+        AddressRules rules = new AddressRules
+            ("^127\\.0\\.0\\.1$, ^www\\.example\\.com$, .*\\.example\\.org$");
+        assertEquals("Regular expressions", 1, rules.getPrograms().length);
+        assertTrue("Exact address", rules.matches("127.0.0.1"));
+        assertTrue("Longer address", !rules.matches("127.0.0.10"));
+        assertTrue("Exact host", rules.matches("www.example.com"));
+        assertTrue("Other host", !rules.matches("wwwxexample.com"));
+        assertTrue("Expression", rules.matches("www.example.org"));
+
+        // An unanchored pattern stays a regular expression
+        rules = new AddressRules("127\\.0\\.0\\.1");
+        assertEquals("Unanchored", 1, rules.getPrograms().length);
+        assertTrue("Prefix", rules.matches("127.0.0.10"));
+
+        boolean invalid = false;
+        try {
+            new AddressRules("[a-");
+        } catch (IllegalArgumentException e) {
+            invalid = true;
+        }
+        assertTrue("Invalid regular expression", invalid);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Check that the specified literal parses into the specified bytes.
+     *
+     * @param value The address literal
+     * @param expected The expected bytes
+     */
+    private void assertAddress(String value, int expected[]) {
+
+        byte address[] = AddressRules.parseAddress(value);
+        assertTrue(value, address != null);
+        assertEquals(value + " length", expected.length, address.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(value + " byte " + i, expected[i],
+                         address[i] & 0xff);
+
+    }
+
+
+}
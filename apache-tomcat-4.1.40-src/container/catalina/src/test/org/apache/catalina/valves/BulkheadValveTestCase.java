@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the URL patterns and the admission of requests of the
+ * <code>BulkheadValve</code> class.
+ */
+
+public class BulkheadValveTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The valve being tested.
+     */
+    protected BulkheadValve valve = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public BulkheadValveTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        valve = new BulkheadValve();
+        valve.setMaxThreads(2);
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(BulkheadValveTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        valve = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check the matching of URL patterns.
+     */
+    public void testPatterns() {
+
+        assertTrue("No patterns", valve.matches("/any/thing"));
+
+        valve.setUrlPatterns("/reports/*, *.pdf, /admin/export");
+        assertTrue("Context root", valve.matches("/reports"));
+        assertTrue("Prefix", valve.matches("/reports/daily/1"));
+        assertTrue("Other context", !valve.matches("/reportsold/x"));
+        assertTrue("Extension", valve.matches("/docs/a.pdf"));
+        assertTrue("Extension in path", !valve.matches("/a.pdf/b"));
+        assertTrue("Exact", valve.matches("/admin/export"));
+        assertTrue("Below exact", !valve.matches("/admin/export/1"));
+        assertTrue("Null URI", !valve.matches(null));
+
+        valve.setUrlPatterns("/");
+        assertTrue("Default", valve.matches("/x"));
+
+        boolean invalid = false;
+        try {
+            valve.setUrlPatterns("reports/*");
+        } catch (IllegalArgumentException e) {
+            invalid = true;
+        }
+        assertTrue("Invalid pattern", invalid);
+
+    }
+
+
+    /**
+     * Check that requests beyond the maximum number of threads are rejected
+     * at once when there is no queue.
+     */
+    public void testReject() {
+
+        assertTrue("First", valve.acquire());
+        assertTrue("Second", valve.acquire());
+        assertTrue("Full", !valve.acquire());
+        valve.release();
+        assertTrue("Released", valve.acquire());
+        valve.release();
+        valve.release();
+
+        assertEquals("Active", 0, valve.getActiveCount());
+        assertEquals("Peak", 2, valve.getPeakActiveCount());
+        assertEquals("Requests", 3, valve.getRequestCount());
+        assertEquals("Rejected", 1, valve.getRejectedCount());
+
+    }
+
+
+    /**
+     * Check that queued requests wait for a thread, and are rejected once
+     * they have waited too long or the queue is full.
+     */
+    public void testQueue() throws Exception {
+
+        valve.setMaxQueue(1);
+        valve.setMaxWait(5000);
+        valve.acquire();
+        valve.acquire();
+
+        final boolean admitted[] = new boolean[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                admitted[0] = valve.acquire();
+            }
+        };
+        waiter.start();
+        while (valve.getWaitingCount() == 0)
+            Thread.sleep(10);
+        assertTrue("Queue full", !valve.acquire());
+        valve.release();
+        waiter.join();
+        assertTrue("Admitted", admitted[0]);
+        assertEquals("Queued", 1, valve.getQueuedCount());
+
+        valve.setMaxWait(50);
+        long start = System.currentTimeMillis();
+        assertTrue("Timed out", !valve.acquire());
+        assertTrue("Waited", System.currentTimeMillis() - start >= 40);
+        assertEquals("Rejected", 2, valve.getRejectedCount());
+
+    }
+
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit tests for the token buckets of the <code>RateLimitValve</code>
+ * class.
+ */
+
+public class RateLimitValveTestCase extends TestCase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The valve being tested.
+     */
+    protected RateLimitValve valve = null;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public RateLimitValveTestCase(String name) {
+
+        super(name);
+
+    }
+
+
+    // --------------------------------------------------- Overall Test Methods
+
+
+    /**
+     * Set up instance variables required by this test case.
+     */
+    public void setUp() {
+
+        valve = new RateLimitValve();
+        valve.setBurst(3);
+        valve.setRate(2);
+
+    }
+
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+
+        return (new TestSuite(RateLimitValveTestCase.class));
+
+    }
+
+
+    /**
+     * Tear down instance variables required by this test case.
+     */
+    public void tearDown() {
+
+        valve = null;
+
+    }
+
+
+    // ------------------------------------------------ Individual Test Methods
+
+
+    /**
+     * Check that a bucket allows a burst, then refills at the rate.
+     */
+    public void testBucket() {
+
+        long now = 1000000;
+        for (int i = 0; i < 3; i++)
+            assertTrue("Burst " + i, valve.take("10.0.0.1", now));
+        assertTrue("Empty", !valve.take("10.0.0.1", now));
+        assertTrue("Other key", valve.take("10.0.0.2", now));
+
+        assertTrue("Not refilled", !valve.take("10.0.0.1", now + 400));
+        assertTrue("Refilled", valve.take("10.0.0.1", now + 500));
+        assertTrue("Empty again", !valve.take("10.0.0.1", now + 500));
+
+        // Idle time refills no more than the burst
+        for (int i = 0; i < 3; i++)
+            assertTrue("Idle " + i, valve.take("10.0.0.1", now + 60000));
+        assertTrue("Capped", !valve.take("10.0.0.1", now + 60000));
+
+        assertEquals("Allowed", 8, valve.getAllowedCount());
+        assertEquals("Rejected", 4, valve.getRejectedCount());
+        assertEquals("Keys", 2, valve.getKeyCount());
+        assertEquals("Statistics", 2, valve.findKeyStatistics().length);
+
+    }
+
+
+    /**
+     * Check that the least recently used buckets are evicted beyond the
+     * maximum number of keys, keeping their counts in the totals.
+     */
+    public void testEviction() {
+
+        valve.setMaxKeys(16);
+        long now = 1000000;
+        for (int i = 0; i < 1000; i++)
+            valve.take("10.0." + (i / 256) + "." + (i % 256), now);
+        assertTrue("Bounded", valve.getKeyCount() <= 16);
+        assertEquals("Evicted", 1000 - valve.getKeyCount(),
+                     valve.getEvictionCount());
+        assertEquals("Allowed", 1000, valve.getAllowedCount());
+
+        boolean invalid = false;
+        try {
+            valve.setKeyBy("cookie");
+        } catch (IllegalArgumentException e) {
+            invalid = true;
+        }
+        assertTrue("Invalid key", invalid);
+
+    }
+
+
+}